@@ -0,0 +1,33 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the GC profiler, so the allocation rate per operation is reported next to the timings. The arguments are
+ * passed on to JMH, e.g. a regular expression selecting the benchmarks or {@code -h} for the available options.
+ */
+public final class BenchmarkRunner
+{
+    private BenchmarkRunner()
+    {
+        // no instances
+    }
+    
+    public static void main( String[] args ) throws Exception
+    {
+        for ( String arg : args )
+        {
+            if ( "-prof".equals( arg ) || "-lprof".equals( arg ) || "-h".equals( arg ) || "-l".equals( arg ) )
+            {
+                Main.main( args );
+                return;
+            }
+        }
+        
+        String[] withGcProfiler = new String[args.length + 2];
+        withGcProfiler[0] = "-prof";
+        withGcProfiler[1] = "gc";
+        System.arraycopy( args, 0, withGcProfiler, 2, args.length );
+        Main.main( withGcProfiler );
+    }
+}
\ No newline at end of file
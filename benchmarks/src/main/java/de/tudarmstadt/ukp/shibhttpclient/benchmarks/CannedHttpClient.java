@@ -0,0 +1,180 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A {@link CloseableHttpClient} answering requests with canned responses instead of sending them, so the interceptors can be measured
+ * without network I/O. Request entities are written to a discarding stream, so the cost of serializing them is still included.
+ */
+@SuppressWarnings( "deprecation" )
+class CannedHttpClient extends CloseableHttpClient
+{
+    private final Map<String, CannedResponse> responses = new HashMap<String, CannedResponse>();
+    private final CannedResponse              fallback;
+    private final HttpParams                  params    = new BasicHttpParams();
+    
+    /**
+     * Create a new {@link CannedHttpClient}.
+     * 
+     * @param fallback
+     *            the response to requests for URIs without a canned response
+     */
+    CannedHttpClient( CannedResponse fallback )
+    {
+        this.fallback = fallback;
+    }
+    
+    /**
+     * Answer requests for the given URI with the given response.
+     * 
+     * @param uri
+     *            the absolute URI
+     * @param response
+     *            the canned response
+     * @return this client
+     */
+    CannedHttpClient on( String uri, CannedResponse response )
+    {
+        responses.put( uri, response );
+        return this;
+    }
+    
+    @Override
+    protected CloseableHttpResponse doExecute( HttpHost target, HttpRequest request, HttpContext context ) throws IOException,
+            ClientProtocolException
+    {
+        if ( request instanceof HttpEntityEnclosingRequest )
+        {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if ( entity != null )
+            {
+                entity.writeTo( NullOutputStream.INSTANCE );
+            }
+        }
+        
+        String uri = request instanceof HttpUriRequest ? ((HttpUriRequest) request).getURI().toString() : request.getRequestLine()
+                .getUri();
+        CannedResponse response = responses.get( uri );
+        return (response != null ? response : fallback).create();
+    }
+    
+    @Override
+    public HttpParams getParams()
+    {
+        return params;
+    }
+    
+    @Override
+    public ClientConnectionManager getConnectionManager()
+    {
+        throw new UnsupportedOperationException();
+    }
+    
+    @Override
+    public void close()
+    {
+        // nothing to release
+    }
+    
+    /**
+     * A response that is created anew for every request.
+     */
+    static final class CannedResponse
+    {
+        private final int         status;
+        private final String[]    headers;
+        private final byte[]      content;
+        private final ContentType contentType;
+        
+        /**
+         * Create a new {@link CannedResponse}.
+         * 
+         * @param status
+         *            the status code
+         * @param content
+         *            the content, may be {@code null}
+         * @param contentType
+         *            the type of the content, may be {@code null}
+         * @param headers
+         *            alternating names and values of additional headers
+         */
+        CannedResponse( int status, byte[] content, ContentType contentType, String... headers )
+        {
+            this.status = status;
+            this.content = content;
+            this.contentType = contentType;
+            this.headers = headers;
+        }
+        
+        CloseableHttpResponse create()
+        {
+            CannedHttpResponse response = new CannedHttpResponse( status );
+            for ( int i = 0; i < headers.length; i += 2 )
+            {
+                response.addHeader( headers[i], headers[i + 1] );
+            }
+            if ( content != null )
+            {
+                response.setEntity( new ByteArrayEntity( content, contentType ) );
+                if ( contentType != null )
+                {
+                    response.setHeader( "Content-Type", contentType.toString() );
+                }
+            }
+            return response;
+        }
+    }
+    
+    private static final class CannedHttpResponse extends BasicHttpResponse implements CloseableHttpResponse
+    {
+        CannedHttpResponse( int status )
+        {
+            super( HttpVersion.HTTP_1_1, status, status == HttpStatus.SC_OK ? "OK" : null );
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            EntityUtils.consume( getEntity() );
+        }
+    }
+    
+    private static final class NullOutputStream extends OutputStream
+    {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+        
+        @Override
+        public void write( int b )
+        {
+            // discard
+        }
+        
+        @Override
+        public void write( byte[] b, int off, int len )
+        {
+            // discard
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.X509CertificateStructure;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.X509CertificateObject;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.Role;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenData;
+
+/**
+ * Keys, certificates, tokens and canned SAML messages shared by the benchmarks.
+ */
+final class Fixtures
+{
+    /**
+     * The PAOS authentication request of an SP.
+     */
+    static final String PAOS_AUTHN_REQUEST = "/paos-authn-request.xml";
+    
+    /**
+     * The ECP response of an IdP with a signed assertion and a typical attribute statement.
+     */
+    static final String IDP_ECP_RESPONSE   = "/idp-ecp-response.xml";
+    
+    private Fixtures()
+    {
+        // no instances
+    }
+    
+    /**
+     * Generate an RSA key pair.
+     * 
+     * @param keySize
+     *            the size of the modulus in bits
+     * @return the key pair
+     */
+    static KeyPair generateKeys( int keySize ) throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+        generator.initialize( keySize );
+        return generator.generateKeyPair();
+    }
+    
+    /**
+     * Create a self-signed certificate for the given key pair, valid for a day.
+     * 
+     * @param keyPair
+     *            the key pair
+     * @return the certificate
+     */
+    static X509Certificate signCertificate( KeyPair keyPair ) throws Exception
+    {
+        Date now = new Date();
+        SubjectPublicKeyInfo publicKeyInfo = new SubjectPublicKeyInfo( ASN1Sequence.getInstance( keyPair.getPublic().getEncoded() ) );
+        
+        X500Name subject = new X500Name( "cn=benchmark,o=example" );
+        X509v3CertificateBuilder certificateBuilder = new X509v3CertificateBuilder( subject, BigInteger.ONE, now, new Date(
+                now.getTime() + 86400000L ), subject, publicKeyInfo );
+        
+        X509CertificateHolder certificateHolder = certificateBuilder.build( new JcaContentSignerBuilder( "SHA256WithRSA" ).build( keyPair
+                .getPrivate() ) );
+        
+        return new X509CertificateObject( X509CertificateStructure.getInstance( certificateHolder.toASN1Structure() ) );
+    }
+    
+    /**
+     * Create the data of a token valid for an hour, with the given number of roles. Every other role is restricted to an application
+     * and a context.
+     * 
+     * @param roleCount
+     *            the number of roles
+     * @return the token data
+     */
+    static TokenData tokenData( int roleCount )
+    {
+        Set<Role> roles = new HashSet<Role>();
+        for ( int i = 0; i < roleCount; i++ )
+        {
+            if ( i % 2 == 0 )
+            {
+                roles.add( new Role( "role-" + i ) );
+            }
+            else
+            {
+                roles.add( new Role( "role-" + i, "application-" + (i % 7), "context-" + (i % 3) ) );
+            }
+        }
+        long now = System.currentTimeMillis();
+        return new TokenData( "benchmark-user@example.org", roles, new Date( now - 5000 ), new Date( now + 3600000L ) );
+    }
+    
+    /**
+     * Read a canned message from the class path.
+     * 
+     * @param name
+     *            the name of the resource
+     * @return the content of the resource
+     */
+    static byte[] resource( String name ) throws IOException
+    {
+        InputStream in = Fixtures.class.getResourceAsStream( name );
+        if ( in == null )
+        {
+            throw new IOException( "resource not found: " + name );
+        }
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ( (read = in.read( buffer )) != -1 )
+            {
+                out.write( buffer, 0, read );
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
\ No newline at end of file
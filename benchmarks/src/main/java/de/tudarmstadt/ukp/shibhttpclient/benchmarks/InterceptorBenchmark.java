@@ -0,0 +1,150 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.parse.BasicParserPool;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.BasicAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.benchmarks.CannedHttpClient.CannedResponse;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpRequestPreProcessor;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
+
+/**
+ * The ECP interceptors against canned responses of an SP and an IdP. The benchmarks cover the paths a request can take: the PAOS headers
+ * added to every request, the knock before an unredirectable request with and without a live session, a response passing through the
+ * post-processor untouched and a complete login triggered by a PAOS challenge.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class InterceptorBenchmark
+{
+    private static final String      SP_ORIGIN    = "https://sp.example.org";
+    private static final String      RESOURCE     = SP_ORIGIN + "/secure/resource";
+    private static final String      ACS_URL      = SP_ORIGIN + "/Shibboleth.sso/SAML2/ECP";
+    private static final String      IDP_URL      = "https://idp.example.org/idp/profile/SAML2/SOAP/ECP";
+    private static final HttpHost    SP           = new HttpHost( "sp.example.org", 443, "https" );
+    
+    private EcpRequestPreProcessor   preProcessor;
+    private EcpRequestPreProcessor   trackingPreProcessor;
+    private EcpResponsePostProcessor postProcessor;
+    private CookieStore              cookieStore;
+    private CannedResponse           page;
+    private CannedResponse           paosChallenge;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        DefaultBootstrap.bootstrap();
+        
+        BasicParserPool parserPool = new BasicParserPool();
+        parserPool.setNamespaceAware( true );
+        
+        page = new CannedResponse( HttpStatus.SC_OK, "<html><body>resource</body></html>".getBytes( "UTF-8" ), ContentType.TEXT_HTML );
+        paosChallenge = new CannedResponse( HttpStatus.SC_OK, Fixtures.resource( Fixtures.PAOS_AUTHN_REQUEST ), ContentType.create(
+                EcpResponsePostProcessor.MIME_TYPE_PAOS, "UTF-8" ) );
+        CannedHttpClient client = new CannedHttpClient( page ).on( IDP_URL,
+                new CannedResponse( HttpStatus.SC_OK, Fixtures.resource( Fixtures.IDP_ECP_RESPONSE ), ContentType.create( "text/xml", "UTF-8" ) ) )
+                .on( ACS_URL, new CannedResponse( HttpStatus.SC_MOVED_TEMPORARILY, null, null, "Location", RESOURCE ) );
+        
+        // a live session, so the tracking pre-processor never knocks
+        cookieStore = new BasicCookieStore();
+        BasicClientCookie sessionCookie = new BasicClientCookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "benchmark", "1" );
+        sessionCookie.setDomain( "sp.example.org" );
+        sessionCookie.setPath( "/" );
+        cookieStore.addCookie( sessionCookie );
+        SessionTracker sessionTracker = new SessionTracker();
+        sessionTracker.sessionEstablished( SP, cookieStore, RESOURCE );
+        
+        preProcessor = new EcpRequestPreProcessor( client );
+        trackingPreProcessor = new EcpRequestPreProcessor( client, sessionTracker );
+        postProcessor = new EcpResponsePostProcessor( client, parserPool, IDP_URL, new BasicAuthenticator( "benchmark-user",
+                "secret".toCharArray() ) );
+    }
+    
+    @Benchmark
+    public HttpRequest preProcessRedirectable() throws Exception
+    {
+        HttpGet request = new HttpGet( RESOURCE );
+        preProcessor.process( request, context( request ) );
+        return request;
+    }
+    
+    @Benchmark
+    public HttpRequest preProcessKnock() throws Exception
+    {
+        HttpPost request = new HttpPost( RESOURCE );
+        request.setEntity( new StringEntity( "data" ) );
+        preProcessor.process( request, context( request ) );
+        return request;
+    }
+    
+    @Benchmark
+    public HttpRequest preProcessLiveSession() throws Exception
+    {
+        HttpPost request = new HttpPost( RESOURCE );
+        request.setEntity( new StringEntity( "data" ) );
+        trackingPreProcessor.process( request, context( request ) );
+        return request;
+    }
+    
+    @Benchmark
+    public HttpResponse postProcessPassThrough() throws Exception
+    {
+        HttpGet request = new HttpGet( RESOURCE );
+        HttpResponse response = page.create();
+        postProcessor.process( response, context( request ) );
+        EntityUtils.consume( response.getEntity() );
+        return response;
+    }
+    
+    @Benchmark
+    public HttpResponse postProcessLogin() throws Exception
+    {
+        HttpGet request = new HttpGet( RESOURCE );
+        HttpResponse response = paosChallenge.create();
+        postProcessor.process( response, context( request ) );
+        if ( response.getStatusLine().getStatusCode() != HttpStatus.SC_MOVED_TEMPORARILY )
+        {
+            throw new IllegalStateException( "login failed: " + response.getStatusLine() );
+        }
+        return response;
+    }
+    
+    private HttpClientContext context( HttpRequest request )
+    {
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute( HttpClientContext.HTTP_REQUEST, request );
+        context.setAttribute( HttpClientContext.HTTP_TARGET_HOST, SP );
+        context.setCookieStore( cookieStore );
+        return context;
+    }
+}
\ No newline at end of file
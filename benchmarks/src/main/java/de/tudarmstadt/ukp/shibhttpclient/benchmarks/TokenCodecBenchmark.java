@@ -0,0 +1,100 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.Role;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.SignedToken;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.SignedTokenView;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenData;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenEncoder;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenSigner;
+
+/**
+ * DER encoding and parsing of tokens with a growing number of roles, comparing the BouncyCastle object tree with the hand-written
+ * {@link TokenEncoder} and the lazy {@link SignedTokenView}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class TokenCodecBenchmark
+{
+    @Param( { "0", "1", "10", "100", "500" } )
+    private int         roles;
+    
+    private TokenData   data;
+    private SignedToken token;
+    private byte[]      encodedToken;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        KeyPair keyPair = Fixtures.generateKeys( 2048 );
+        X509Certificate certificate = Fixtures.signCertificate( keyPair );
+        
+        data = Fixtures.tokenData( roles );
+        token = new TokenSigner( (RSAPrivateKey) keyPair.getPrivate(), certificate ).sign( data );
+        encodedToken = TokenEncoder.encode( token );
+    }
+    
+    @Benchmark
+    public byte[] encodeData()
+    {
+        return TokenEncoder.encode( data );
+    }
+    
+    @Benchmark
+    public byte[] encodeDataBouncyCastle()
+    {
+        return data.getDERObject().getDEREncoded();
+    }
+    
+    @Benchmark
+    public byte[] encodeToken()
+    {
+        return TokenEncoder.encode( token );
+    }
+    
+    @Benchmark
+    public byte[] encodeTokenBouncyCastle()
+    {
+        return token.getDERObject().getDEREncoded();
+    }
+    
+    @Benchmark
+    public SignedToken parseToken() throws Exception
+    {
+        return SignedToken.parse( ASN1Sequence.getInstance( encodedToken ) );
+    }
+    
+    @Benchmark
+    public String parseTokenViewId() throws Exception
+    {
+        return SignedTokenView.wrap( encodedToken ).getId();
+    }
+    
+    @Benchmark
+    public Set<Role> parseTokenViewRoles() throws Exception
+    {
+        return SignedTokenView.wrap( encodedToken ).getRoles();
+    }
+}
\ No newline at end of file
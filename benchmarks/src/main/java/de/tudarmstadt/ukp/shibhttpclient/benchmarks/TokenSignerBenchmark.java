@@ -0,0 +1,93 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.SignedToken;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.SignedTokenView;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenData;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenEncoder;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenSigner;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TrustedSignerIndex;
+
+/**
+ * Signing and verification of sender-vouches tokens with RSA keys of different sizes. Signing is dominated by the private key operation,
+ * so it is measured in microseconds per token, as is verification for comparison.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class TokenSignerBenchmark
+{
+    @Param( { "2048", "4096" } )
+    private int                         keySize;
+    
+    private TokenSigner                 signer;
+    private TokenData                   data;
+    private SignedToken                 token;
+    private byte[]                      encodedToken;
+    private Collection<X509Certificate> trustedCertificates;
+    private TrustedSignerIndex          trustedSigners;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        KeyPair keyPair = Fixtures.generateKeys( keySize );
+        X509Certificate certificate = Fixtures.signCertificate( keyPair );
+        
+        signer = new TokenSigner( (RSAPrivateKey) keyPair.getPrivate(), certificate );
+        data = Fixtures.tokenData( 3 );
+        token = signer.sign( data );
+        encodedToken = TokenEncoder.encode( token );
+        trustedCertificates = Collections.singleton( certificate );
+        trustedSigners = new TrustedSignerIndex( trustedCertificates );
+        
+        if ( !TokenSigner.verify( token, trustedSigners ) )
+        {
+            throw new IllegalStateException( "token does not verify" );
+        }
+    }
+    
+    @Benchmark
+    public SignedToken sign() throws Exception
+    {
+        return signer.sign( data );
+    }
+    
+    @Benchmark
+    public boolean verify() throws Exception
+    {
+        return TokenSigner.verify( token, trustedCertificates );
+    }
+    
+    @Benchmark
+    public boolean verifyIndexed() throws Exception
+    {
+        return TokenSigner.verify( token, trustedSigners );
+    }
+    
+    @Benchmark
+    public boolean verifyEncoded() throws Exception
+    {
+        return TokenSigner.verify( SignedTokenView.wrap( encodedToken ), trustedSigners );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,81 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.BasicParserPool;
+
+import de.tudarmstadt.ukp.shibhttpclient.Utils;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpEnvelopeReader;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpMessage;
+
+/**
+ * Unmarshalling and serialization of the SOAP envelopes exchanged during an ECP login: the PAOS authentication request of the SP and the
+ * ECP response of the IdP. The streaming {@link EcpEnvelopeReader} is measured on the same messages for comparison.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class XmlBenchmark
+{
+    @Param( { Fixtures.PAOS_AUTHN_REQUEST, Fixtures.IDP_ECP_RESPONSE } )
+    private String            message;
+    
+    private BasicParserPool   parserPool;
+    private EcpEnvelopeReader envelopeReader;
+    private byte[]            content;
+    private XMLObject         envelope;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        DefaultBootstrap.bootstrap();
+        
+        parserPool = new BasicParserPool();
+        parserPool.setNamespaceAware( true );
+        envelopeReader = new EcpEnvelopeReader();
+        
+        content = Fixtures.resource( message );
+        envelope = Utils.unmarshallMessage( parserPool, new ByteArrayInputStream( content ) );
+    }
+    
+    @Benchmark
+    public XMLObject unmarshallMessage() throws Exception
+    {
+        return Utils.unmarshallMessage( parserPool, new ByteArrayInputStream( content ) );
+    }
+    
+    @Benchmark
+    public String xmlToString() throws Exception
+    {
+        return Utils.xmlToString( envelope );
+    }
+    
+    @Benchmark
+    public String xmlToStringPretty() throws Exception
+    {
+        return Utils.xmlToString( envelope.getDOM() );
+    }
+    
+    @Benchmark
+    public EcpMessage readEnvelope() throws Exception
+    {
+        return envelopeReader.read( content );
+    }
+}
\ No newline at end of file
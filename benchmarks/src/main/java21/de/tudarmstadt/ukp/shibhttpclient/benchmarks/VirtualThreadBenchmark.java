@@ -0,0 +1,221 @@
+package de.tudarmstadt.ukp.shibhttpclient.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.DefaultBootstrap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.tudarmstadt.ukp.shibhttpclient.ShibHttpClient;
+import de.tudarmstadt.ukp.shibhttpclient.ShibHttpClientBuilder;
+
+/**
+ * Many concurrent authenticated requests through one blocking {@link ShibHttpClient}, each on a thread of its own, against an SP and
+ * IdP on the loopback interface. One operation sends {@link #requests} requests at once and waits for all responses; the session is
+ * established by a single login before the measurement.
+ *
+ * <p>
+ * With {@code threads=virtual}, every request runs on a new virtual thread; {@code threads=platform} runs the same requests on a pool of
+ * {@link #PLATFORM_THREADS} platform threads for comparison. The fork traces virtual threads that block while pinned to their carrier,
+ * so any pinning on the request path shows up as a stack trace in the output.
+ * </p>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( value = 1, jvmArgsAppend = "-Djdk.tracePinnedThreads=short" )
+public class VirtualThreadBenchmark
+{
+    private static final int PLATFORM_THREADS = 200;
+    private static final int CONNECTIONS      = 500;
+
+    @Param( { "10000" } )
+    private int              requests;
+
+    @Param( { "virtual", "platform" } )
+    private String           threads;
+
+    private LoopbackShib     shib;
+    private ShibHttpClient   client;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        DefaultBootstrap.bootstrap();
+        shib = new LoopbackShib();
+        client = ShibHttpClientBuilder.create( shib.baseUrl + LoopbackShib.IDP_PATH ).setCredentials( "alice", "secret" )
+                .setMaxTotal( CONNECTIONS ).setMaxPerRoute( CONNECTIONS ).build();
+
+        get( "/login" );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        client.close();
+        shib.close();
+        if ( shib.logins.get() != 1 )
+        {
+            throw new IllegalStateException( "expected a single login, but the client logged in " + shib.logins.get() + " times" );
+        }
+    }
+
+    @Benchmark
+    public int concurrentAuthenticatedRequests() throws Exception
+    {
+        try ( ExecutorService executor = "virtual".equals( threads ) ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool( PLATFORM_THREADS ) )
+        {
+            List<Future<Integer>> responses = new ArrayList<>( requests );
+            for ( int i = 0; i < requests; i++ )
+            {
+                String path = "/resource/" + i;
+                responses.add( executor.submit( () -> get( path ) ) );
+            }
+
+            int length = 0;
+            for ( Future<Integer> response : responses )
+            {
+                length += response.get();
+            }
+            return length;
+        }
+    }
+
+    private int get( String path ) throws IOException
+    {
+        HttpResponse response = client.execute( new HttpGet( shib.baseUrl + path ) );
+        byte[] body = EntityUtils.toByteArray( response.getEntity() );
+        if ( response.getStatusLine().getStatusCode() != 200 )
+        {
+            throw new IOException( "unexpected response " + response.getStatusLine() + " to " + path );
+        }
+        return body.length;
+    }
+
+    /**
+     * An SP and its IdP in one HTTP server on the loopback interface, serving the canned messages of the {@link Fixtures} with the URLs
+     * of the SP pointing to this server. Every request is handled on a virtual thread of its own.
+     */
+    private static final class LoopbackShib
+    {
+        static final String         IDP_PATH       = "/idp/profile/SAML2/SOAP/ECP";
+        static final String         ACS_PATH       = "/Shibboleth.sso/SAML2/ECP";
+        static final String         SESSION_COOKIE = "_shibsession_benchmark";
+        static final String         FIXTURE_SP     = "https://sp.example.org";
+
+        final HttpServer            server;
+        final ExecutorService       executor       = Executors.newVirtualThreadPerTaskExecutor();
+        final String                baseUrl;
+        final AtomicInteger         logins         = new AtomicInteger();
+
+        private final byte[]        paosAuthnRequest;
+        private final byte[]        idpEcpResponse;
+        private final byte[]        resource       = "<html><body>resource</body></html>".getBytes( StandardCharsets.UTF_8 );
+
+        LoopbackShib() throws IOException
+        {
+            server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), CONNECTIONS );
+            baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+            paosAuthnRequest = fixture( Fixtures.PAOS_AUTHN_REQUEST );
+            idpEcpResponse = fixture( Fixtures.IDP_ECP_RESPONSE );
+
+            server.setExecutor( executor );
+            server.createContext( "/", this::serve );
+            server.start();
+        }
+
+        private byte[] fixture( String name ) throws IOException
+        {
+            return new String( Fixtures.resource( name ), StandardCharsets.UTF_8 ).replace( FIXTURE_SP, baseUrl )
+                    .getBytes( StandardCharsets.UTF_8 );
+        }
+
+        private void serve( HttpExchange exchange ) throws IOException
+        {
+            try ( exchange )
+            {
+                try ( InputStream in = exchange.getRequestBody() )
+                {
+                    in.transferTo( OutputStream.nullOutputStream() );
+                }
+
+                String path = exchange.getRequestURI().getPath();
+                if ( IDP_PATH.equals( path ) )
+                {
+                    send( exchange, 200, "text/xml", idpEcpResponse );
+                }
+                else if ( ACS_PATH.equals( path ) )
+                {
+                    logins.incrementAndGet();
+                    exchange.getResponseHeaders().add( "Set-Cookie", SESSION_COOKIE + "=1; path=/" );
+                    exchange.getResponseHeaders().add( "Location", baseUrl + "/resource" );
+                    send( exchange, 302, "text/plain", new byte[0] );
+                }
+                else if ( hasSession( exchange ) )
+                {
+                    send( exchange, 200, "text/html", resource );
+                }
+                else
+                {
+                    send( exchange, 200, "application/vnd.paos+xml", paosAuthnRequest );
+                }
+            }
+        }
+
+        private static boolean hasSession( HttpExchange exchange )
+        {
+            String cookies = exchange.getRequestHeaders().getFirst( "Cookie" );
+            return cookies != null && cookies.contains( SESSION_COOKIE + "=1" );
+        }
+
+        private static void send( HttpExchange exchange, int status, String contentType, byte[] body ) throws IOException
+        {
+            exchange.getResponseHeaders().set( "Content-Type", contentType );
+            exchange.sendResponseHeaders( status, body.length > 0 ? body.length : -1 );
+            if ( body.length > 0 )
+            {
+                try ( OutputStream out = exchange.getResponseBody() )
+                {
+                    out.write( body );
+                }
+            }
+        }
+
+        void close()
+        {
+            server.stop( 0 );
+            executor.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * For copyright information, see NOTICE.txt file.
+ ******************************************************************************/
+
+package de.tudarmstadt.ukp.shibhttpclient;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.HttpClientConnectionManager;
+
+/**
+ * Background thread closing expired connections and connections that have been idle for too long, so the pool does not hand out
+ * connections the server has already dropped.
+ */
+public class IdleConnectionReaper extends Thread implements Closeable
+{
+    private final Log                         log  = LogFactory.getLog( getClass() );
+    private final Object                      lock = new Object();
+    
+    private final HttpClientConnectionManager connectionManager;
+    private final long                        maxIdleTime;
+    private final long                        checkInterval;
+    private volatile boolean                  shutdown;
+    
+    /**
+     * Create a new {@link IdleConnectionReaper}. It does nothing until it is started.
+     * 
+     * @param connectionManager
+     *            the connection manager to clean up
+     * @param maxIdleTime
+     *            the time after which idle connections are closed
+     * @param checkInterval
+     *            the time between two clean-ups, must be positive
+     * @param unit
+     *            the unit of {@code maxIdleTime} and {@code checkInterval}
+     */
+    public IdleConnectionReaper( HttpClientConnectionManager connectionManager, long maxIdleTime, long checkInterval, TimeUnit unit )
+    {
+        super( "shib-idle-connection-reaper" );
+        setDaemon( true );
+        this.connectionManager = connectionManager;
+        this.maxIdleTime = unit.toMillis( maxIdleTime );
+        this.checkInterval = unit.toMillis( checkInterval );
+        if ( this.checkInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "checkInterval must be at least one millisecond" );
+        }
+    }
+    
+    @Override
+    public void run()
+    {
+        try
+        {
+            while ( !shutdown )
+            {
+                synchronized ( lock )
+                {
+                    if ( !shutdown )
+                    {
+                        lock.wait( checkInterval );
+                    }
+                }
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections( maxIdleTime, TimeUnit.MILLISECONDS );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            log.debug( "Idle connection reaper interrupted" );
+        }
+    }
+    
+    /**
+     * Stop the reaper. Connections are left open.
+     */
+    @Override
+    public void close()
+    {
+        shutdown = true;
+        synchronized ( lock )
+        {
+            lock.notifyAll();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * For copyright information, see NOTICE.txt file.
+ ******************************************************************************/
+
+package de.tudarmstadt.ukp.shibhttpclient;
+
+import static de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor.REDIRECTABLE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.NonRepeatableRequestException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.opensaml.xml.parse.BasicParserPool;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.Authenticator;
+import de.tudarmstadt.ukp.shibhttpclient.cookie.ConcurrentCookieStore;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpMessage;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpProtocol;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpRequestPreProcessor;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
+
+/**
+ * Non-blocking counterpart of {@link ShibHttpClient} based on the Apache HttpAsyncClient. Requests return immediately with a
+ * {@link Future}; the knock, the PAOS exchange with the IdP, the post to the assertion consumer service and the replay of the original
+ * request are chained as callbacks on the I/O threads, so no thread waits while a login is in progress. Parsing the PAOS messages and
+ * creating the credentials for the IdP, which may include signing a token, run on a small pool of login threads instead, so they do not
+ * hold up the I/O threads.
+ * <p>
+ * Like {@link ShibHttpClient}, requests other than GET and HEAD are preceded by a HEAD request unless a live SP session is known.
+ * Concurrent requests that run into a PAOS challenge for the same SP, IdP and principal share a single login.
+ * <p>
+ * The HttpAsyncClient is an optional dependency and must be on the classpath to use this class.
+ */
+public class ShibHttpAsyncClient implements Closeable
+{
+    /**
+     * The number of login threads unless configured otherwise.
+     */
+    public static final int                          DEFAULT_LOGIN_THREADS = 2;
+    
+    private final Log                                log           = LogFactory.getLog( getClass() );
+    
+    private final ConcurrentMap<String, PendingLogin> logins        = new ConcurrentHashMap<String, PendingLogin>();
+    
+    private final AtomicLong                         knocksSent    = new AtomicLong();
+    private final AtomicLong                         knocksSkipped = new AtomicLong();
+    
+    private final CloseableHttpAsyncClient           client;
+    private final ConcurrentCookieStore              cookieStore;
+    private final EcpProtocol                        protocol;
+    private final SessionTracker                     sessionTracker;
+    private final ExecutorService                    loginExecutor;
+    
+    /**
+     * Create a new client with default settings.
+     * 
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @param authenticator
+     *            the authenticator supplying the credentials for the IdP
+     */
+    public ShibHttpAsyncClient( String idpUrl, Authenticator authenticator )
+    {
+        this( HttpAsyncClients.custom(), idpUrl, authenticator );
+    }
+    
+    /**
+     * Create a new client from a pre-configured builder, e.g. to set up SSL, proxies or the connection pool. The default cookie store of
+     * the builder is replaced.
+     * 
+     * @param builder
+     *            the builder for the underlying client
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @param authenticator
+     *            the authenticator supplying the credentials for the IdP
+     */
+    public ShibHttpAsyncClient( HttpAsyncClientBuilder builder, String idpUrl, Authenticator authenticator )
+    {
+        this( builder, idpUrl, authenticator, DEFAULT_LOGIN_THREADS );
+    }
+    
+    /**
+     * Create a new client from a pre-configured builder with the given number of login threads. Login steps queue up while all login
+     * threads are busy; idle login threads are stopped after a minute.
+     * 
+     * @param builder
+     *            the builder for the underlying client
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @param authenticator
+     *            the authenticator supplying the credentials for the IdP
+     * @param loginThreads
+     *            the maximum number of threads parsing PAOS messages and creating credentials, must be positive
+     */
+    public ShibHttpAsyncClient( HttpAsyncClientBuilder builder, String idpUrl, Authenticator authenticator, int loginThreads )
+    {
+        if ( loginThreads <= 0 )
+        {
+            throw new IllegalArgumentException( "loginThreads must be positive" );
+        }
+        
+        BasicParserPool parserPool = new BasicParserPool();
+        parserPool.setNamespaceAware( true );
+        
+        // The client needs to remember the auth cookie
+        cookieStore = new ConcurrentCookieStore();
+        client = builder.setDefaultCookieStore( cookieStore ).build();
+        protocol = new EcpProtocol( parserPool, idpUrl, authenticator );
+        sessionTracker = new SessionTracker();
+        ThreadFactory threadFactory = new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "shib-async-login-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( loginThreads, loginThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory );
+        executor.allowCoreThreadTimeOut( true );
+        loginExecutor = executor;
+    }
+    
+    /**
+     * Start the I/O reactor of the underlying client. Requests can only be executed once the client has been started.
+     */
+    public void start()
+    {
+        client.start();
+    }
+    
+    /**
+     * Check whether the client has been started and not closed yet.
+     * 
+     * @return {@code true} if the client is running
+     */
+    public boolean isRunning()
+    {
+        return client.isRunning();
+    }
+    
+    /**
+     * Shut down the I/O reactor and the login threads and release all connections.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        loginExecutor.shutdownNow();
+        client.close();
+    }
+    
+    /**
+     * Execute the request, logging in to the SP first if it asks for authentication.
+     * 
+     * @param request
+     *            the request to execute
+     * @param callback
+     *            notified when the response is available, may be {@code null}
+     * @return the future response
+     */
+    public Future<HttpResponse> execute( HttpUriRequest request, FutureCallback<HttpResponse> callback )
+    {
+        return execute( request, HttpClientContext.create(), callback );
+    }
+    
+    /**
+     * Execute the request in the given context, logging in to the SP first if it asks for authentication.
+     * 
+     * @param request
+     *            the request to execute
+     * @param context
+     *            the context of the request
+     * @param callback
+     *            notified when the response is available, may be {@code null}
+     * @return the future response
+     */
+    public Future<HttpResponse> execute( HttpUriRequest request, HttpContext context, FutureCallback<HttpResponse> callback )
+    {
+        BasicFuture<HttpResponse> result = new BasicFuture<HttpResponse>( callback );
+        new Exchange( request, HttpClientContext.adapt( context ), result ).start();
+        return result;
+    }
+    
+    /**
+     * Get the sessionTracker.
+     * 
+     * @return the sessionTracker
+     */
+    public SessionTracker getSessionTracker()
+    {
+        return sessionTracker;
+    }
+    
+    /**
+     * Get the cookieStore.
+     * 
+     * @return the cookieStore
+     */
+    public CookieStore getCookieStore()
+    {
+        return cookieStore;
+    }
+    
+    /**
+     * Get the number of HEAD requests sent to the SP ahead of non-redirectable requests.
+     * 
+     * @return the number of knocks sent
+     */
+    public long getKnocksSent()
+    {
+        return knocksSent.get();
+    }
+    
+    /**
+     * Get the number of HEAD requests omitted because a live SP session was known.
+     * 
+     * @return the number of knocks skipped
+     */
+    public long getKnocksSkipped()
+    {
+        return knocksSkipped.get();
+    }
+    
+    /**
+     * The state of a single request execution: knock, send, log in on a PAOS challenge and send again.
+     */
+    private class Exchange
+    {
+        private final HttpUriRequest            request;
+        private final HttpHost                  target;
+        private final HttpClientContext         context;
+        private final BasicFuture<HttpResponse> result;
+        private HttpRequest                     sent;
+        private int                             attempts;
+        private boolean                         loggedIn;
+        
+        Exchange( HttpUriRequest request, HttpClientContext context, BasicFuture<HttpResponse> result )
+        {
+            this.request = request;
+            this.target = URIUtils.extractHost( request.getURI() );
+            this.context = context;
+            this.result = result;
+        }
+        
+        void start()
+        {
+            if ( REDIRECTABLE.contains( request.getMethod() ) )
+            {
+                send();
+            }
+            else if ( sessionTracker.hasLiveSession( target, principal(), cookieStore() ) )
+            {
+                knocksSkipped.incrementAndGet();
+                send();
+            }
+            else
+            {
+                knock();
+            }
+        }
+        
+        private void knock()
+        {
+            knocksSent.incrementAndGet();
+            final HttpHead knock = new HttpHead( request.getURI() );
+            EcpRequestPreProcessor.addPaosHeaders( knock );
+            log.trace( "Sending knock request to [" + request.getURI() + "]" );
+            client.execute( knock, context, new Step()
+            {
+                @Override
+                void handle( HttpResponse response ) throws Exception
+                {
+                    if ( EcpProtocol.isSamlSoapResponse( response ) )
+                    {
+                        sent = knock;
+                        challenged( response );
+                    }
+                    else
+                    {
+                        send();
+                    }
+                }
+            } );
+        }
+        
+        private void send()
+        {
+            if ( attempts > 0 && request instanceof HttpEntityEnclosingRequest )
+            {
+                HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+                if ( enclosing.getEntity() != null && !enclosing.getEntity().isRepeatable() )
+                {
+                    result.failed( new NonRepeatableRequestException( "Cannot replay request with a non-repeatable request entity" ) );
+                    return;
+                }
+            }
+            attempts++;
+            
+            final HttpRequestWrapper wrapper = HttpRequestWrapper.wrap( request );
+            EcpRequestPreProcessor.addPaosHeaders( wrapper );
+            client.execute( target, wrapper, context, new Step()
+            {
+                @Override
+                void handle( HttpResponse response ) throws Exception
+                {
+                    if ( EcpProtocol.isSamlSoapResponse( response ) )
+                    {
+                        sent = wrapper;
+                        challenged( response );
+                    }
+                    else
+                    {
+                        result.completed( response );
+                    }
+                }
+            } );
+        }
+        
+        private void challenged( HttpResponse response ) throws IOException
+        {
+            if ( loggedIn )
+            {
+                EntityUtils.consumeQuietly( response.getEntity() );
+                result.failed( new AuthenticationException( "SP requested authentication again after login to [" + target + "]" ) );
+                return;
+            }
+            
+            // The exec chain adds the cookie headers to a copy of the request, which the context holds once it has been sent
+            HttpRequest presented = context.getRequest() != null ? context.getRequest() : sent;
+            if ( sessionTracker.isSessionRenewed( target, principal(), cookieStore(), presented ) )
+            {
+                // another request logged in while this one was on its way
+                EntityUtils.consumeQuietly( response.getEntity() );
+                loggedIn = true;
+                send();
+                return;
+            }
+            sessionTracker.sessionInvalidated( target, principal() );
+            
+            if ( "HEAD".equals( sent.getRequestLine().getMethod() ) )
+            {
+                // HEAD responses carry no authentication request, ask for it again using GET
+                HttpGet authTriggerRequest = new HttpGet( request.getURI() );
+                EcpRequestPreProcessor.addPaosHeaders( authTriggerRequest );
+                client.execute( authTriggerRequest, context, new Step()
+                {
+                    @Override
+                    void handle( HttpResponse response ) throws Exception
+                    {
+                        sent = null;
+                        if ( EcpProtocol.isSamlSoapResponse( response ) )
+                        {
+                            login( response );
+                        }
+                        else
+                        {
+                            EntityUtils.consumeQuietly( response.getEntity() );
+                            send();
+                        }
+                    }
+                } );
+            }
+            else
+            {
+                login( response );
+            }
+        }
+        
+        private void login( HttpResponse paosResponse )
+        {
+            final String key = protocol.loginKey( target, context );
+            final String principal = protocol.currentPrincipal( context );
+            final PendingLogin login = new PendingLogin();
+            PendingLogin inFlight = logins.putIfAbsent( key, login );
+            if ( inFlight != null )
+            {
+                log.debug( "Joining login in progress for [" + key + "]" );
+                EntityUtils.consumeQuietly( paosResponse.getEntity() );
+                inFlight.await( this );
+                return;
+            }
+            
+            login.await( this );
+            log.debug( "Logging in for [" + key + "]" );
+            new LoginStep( key, login )
+            {
+                @Override
+                void handle( HttpResponse paosResponse ) throws Exception
+                {
+                    final EcpMessage authnRequest = protocol.readAuthnRequest( paosResponse.getEntity() );
+                    HttpPost idpLoginRequest = protocol.createIdpLoginRequest( authnRequest, context );
+                    client.execute( idpLoginRequest, loginContext(), new LoginStep( key, login )
+                    {
+                        @Override
+                        void handle( HttpResponse idpLoginResponse ) throws Exception
+                        {
+                            EcpMessage idpResponse = protocol.readIdpLoginResponse( idpLoginResponse );
+                            HttpPost spLoginRequest = protocol.createSpLoginRequest( idpResponse, authnRequest );
+                            client.execute( spLoginRequest, loginContext(), new LoginStep( key, login )
+                            {
+                                @Override
+                                void handle( HttpResponse spLoginResponse ) throws Exception
+                                {
+                                    EntityUtils.consumeQuietly( spLoginResponse.getEntity() );
+                                    log.debug( "SP login status: " + spLoginResponse.getStatusLine() );
+                                    if ( spLoginResponse.getStatusLine().getStatusCode() < 400 )
+                                    {
+                                        sessionTracker.sessionEstablished( target, cookieStore(), request.getURI().toString(),
+                                                principal );
+                                    }
+                                    finish( key, login, null );
+                                }
+                            } );
+                        }
+                    } );
+                }
+            }.completed( paosResponse );
+        }
+        
+        void loginCompleted( Exception failure )
+        {
+            if ( failure != null )
+            {
+                result.failed( failure );
+            }
+            else
+            {
+                loggedIn = true;
+                send();
+            }
+        }
+        
+        private HttpClientContext loginContext()
+        {
+            HttpClientContext loginContext = HttpClientContext.create();
+            loginContext.setCookieStore( cookieStore() );
+            return loginContext;
+        }
+        
+        private CookieStore cookieStore()
+        {
+            CookieStore store = context.getCookieStore();
+            return store != null ? store : cookieStore;
+        }
+        
+        private String principal()
+        {
+            try
+            {
+                return protocol.currentPrincipal( context );
+            }
+            catch ( IllegalStateException e )
+            {
+                // no principal bound, the login will fail on its own
+                return null;
+            }
+        }
+        
+        private void finish( String key, PendingLogin login, Exception failure )
+        {
+            logins.remove( key, login );
+            login.complete( failure );
+        }
+        
+        /**
+         * A step of the exchange. Any failure fails the whole exchange.
+         */
+        private abstract class Step implements FutureCallback<HttpResponse>
+        {
+            abstract void handle( HttpResponse response ) throws Exception;
+            
+            @Override
+            public void completed( HttpResponse response )
+            {
+                try
+                {
+                    handle( response );
+                }
+                catch ( Exception e )
+                {
+                    EntityUtils.consumeQuietly( response.getEntity() );
+                    failed( e );
+                }
+            }
+            
+            @Override
+            public void failed( Exception e )
+            {
+                result.failed( e );
+            }
+            
+            @Override
+            public void cancelled()
+            {
+                result.cancel( true );
+            }
+        }
+        
+        /**
+         * A step of a login. It is handled on a login thread, any failure fails the login and all exchanges waiting for it.
+         */
+        private abstract class LoginStep extends Step
+        {
+            private final String       key;
+            private final PendingLogin login;
+            
+            LoginStep( String key, PendingLogin login )
+            {
+                this.key = key;
+                this.login = login;
+            }
+            
+            @Override
+            public void completed( final HttpResponse response )
+            {
+                try
+                {
+                    loginExecutor.execute( new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            LoginStep.super.completed( response );
+                        }
+                    } );
+                }
+                catch ( RejectedExecutionException e )
+                {
+                    EntityUtils.consumeQuietly( response.getEntity() );
+                    failed( new IOException( "Client closed during login" ) );
+                }
+            }
+            
+            @Override
+            public void failed( Exception e )
+            {
+                finish( key, login, e );
+            }
+            
+            @Override
+            public void cancelled()
+            {
+                finish( key, login, new IOException( "Login request cancelled" ) );
+            }
+        }
+    }
+    
+    /**
+     * A login in progress and the exchanges waiting for it.
+     */
+    private static class PendingLogin
+    {
+        private final List<Exchange> waiters = new ArrayList<Exchange>();
+        private boolean              done;
+        private Exception            failure;
+        
+        void await( Exchange exchange )
+        {
+            Exception outcome;
+            synchronized ( this )
+            {
+                if ( !done )
+                {
+                    waiters.add( exchange );
+                    return;
+                }
+                outcome = failure;
+            }
+            exchange.loginCompleted( outcome );
+        }
+        
+        void complete( Exception failure )
+        {
+            List<Exchange> notify;
+            synchronized ( this )
+            {
+                this.done = true;
+                this.failure = failure;
+                notify = new ArrayList<Exchange>( waiters );
+                waiters.clear();
+            }
+            for ( Exchange exchange : notify )
+            {
+                exchange.loginCompleted( failure );
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -2,9 +2,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *
+ * 
  *   http://www.apache.org/licenses/LICENSE-2.0
- *
+ * 
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -16,21 +16,28 @@
 
 package de.tudarmstadt.ukp.shibhttpclient;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.ProxySelector;
 import java.security.GeneralSecurityException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ResponseProcessCookies;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ClientConnectionManager;
@@ -39,7 +46,7 @@ import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustStrategy;
-import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
@@ -50,9 +57,23 @@ import org.apache.http.protocol.HttpContext;
 import org.opensaml.xml.parse.BasicParserPool;
 
 import de.tudarmstadt.ukp.shibhttpclient.authentication.Authenticator;
-import de.tudarmstadt.ukp.shibhttpclient.authentication.BasicAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.PrincipalAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.SenderVouchesAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.ContextSVAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.cookie.ConcurrentCookieStore;
+import de.tudarmstadt.ukp.shibhttpclient.cookie.ExpiredCookiePurger;
+import de.tudarmstadt.ukp.shibhttpclient.cookie.PrincipalCookieJars;
+import de.tudarmstadt.ukp.shibhttpclient.cookie.RequestAddCachedCookies;
+import de.tudarmstadt.ukp.shibhttpclient.jmx.RouteRecorder;
+import de.tudarmstadt.ukp.shibhttpclient.jmx.ShibHttpClientManagement;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.NoOpMetrics;
 import de.tudarmstadt.ukp.shibhttpclient.processor.EcpRequestPreProcessor;
 import de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionRefresher;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionSnapshotLog;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
+import de.tudarmstadt.ukp.shibhttpclient.session.SharedSessionCache;
+import de.tudarmstadt.ukp.shibhttpclient.session.SpSession;
 
 // deprecated classes we should try to find alternatives for
 
@@ -65,13 +86,35 @@ import de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor;
  * the specified URL first. If this results in an authentication request, a login is performed before the original request is executed.
  */
 @SuppressWarnings( "deprecation" )
-public class ShibHttpClient implements HttpClient
+public class ShibHttpClient implements HttpClient, Closeable
 {
-    private CloseableHttpClient client;
+    private final Log                log = LogFactory.getLog( getClass() );
+    
+    private CloseableHttpClient      client;
+    
+    private ConcurrentCookieStore    cookieStore;
+    
+    private BasicParserPool          parserPool;
+    
+    private SessionTracker           sessionTracker;
+    
+    private EcpRequestPreProcessor   requestPreProcessor;
+    
+    private SessionRefresher         sessionRefresher;
+    
+    private IdleConnectionReaper     idleConnectionReaper;
     
-    private BasicCookieStore    cookieStore;
+    private ExpiredCookiePurger      expiredCookiePurger;
     
-    private BasicParserPool     parserPool;
+    private PrincipalCookieJars      cookieJars;
+    
+    private Authenticator            authenticator;
+    
+    private ShibHttpClientManagement management;
+    
+    private SessionSnapshotLog       sessionSnapshotLog;
+    
+    private SharedSessionCache       sharedSessions;
     
     /**
      * Create a new client (assuming we don't accept self-signed certificates)
@@ -145,6 +188,18 @@ public class ShibHttpClient implements HttpClient
      *            authentication process yourself.
      */
     public ShibHttpClient( String aIdpUrl, String aUsername, String aPassword, HttpHost aProxy, boolean anyCert, boolean transparentAuth )
+    {
+        this( builder( aIdpUrl, aUsername, aPassword, transparentAuth ).setProxy( aProxy ).setAnyCert( anyCert ) );
+    }
+    
+    /**
+     * Create a new client as configured by the builder.
+     * 
+     * @param aBuilder
+     *            the configuration of the client
+     * @see ShibHttpClientBuilder
+     */
+    ShibHttpClient( ShibHttpClientBuilder aBuilder )
     {
         parserPool = new BasicParserPool();
         parserPool.setNamespaceAware( true );
@@ -152,7 +207,8 @@ public class ShibHttpClient implements HttpClient
         // Use a pooling connection manager, because we'll have to do a call out to the IdP
         // while still being in a connection with the SP
         PoolingHttpClientConnectionManager connMgr;
-        if ( anyCert )
+        Registry<ConnectionSocketFactory> socketFactoryRegistry;
+        if ( aBuilder.isAnyCert() )
         {
             try
             {
@@ -166,13 +222,12 @@ public class ShibHttpClient implements HttpClient
                     }
                 };
                 builder.loadTrustMaterial( null, trustStrategy );
-                Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder
+                socketFactoryRegistry = RegistryBuilder
                         .<ConnectionSocketFactory> create()
                         .register( "http", new PlainConnectionSocketFactory() )
                         .register( "https",
                                 new SSLConnectionSocketFactory( builder.build(), SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER ) )
                         .build();
-                connMgr = new PoolingHttpClientConnectionManager( socketFactoryRegistry );
             }
             catch ( GeneralSecurityException e )
             {
@@ -183,22 +238,59 @@ public class ShibHttpClient implements HttpClient
         }
         else
         {
-            connMgr = new PoolingHttpClientConnectionManager();
+            socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory> create()
+                    .register( "http", PlainConnectionSocketFactory.getSocketFactory() )
+                    .register( "https", SSLConnectionSocketFactory.getSocketFactory() ).build();
+        }
+        connMgr = new PoolingHttpClientConnectionManager( socketFactoryRegistry, null, null, null,
+                aBuilder.getConnectionTimeToLive(), TimeUnit.MILLISECONDS );
+        connMgr.setMaxTotal( aBuilder.getMaxTotal() );
+        connMgr.setDefaultMaxPerRoute( aBuilder.getMaxPerRoute() );
+        
+        if ( aBuilder.getMaxIdleTime() >= 0 )
+        {
+            idleConnectionReaper = new IdleConnectionReaper( connMgr, aBuilder.getMaxIdleTime(), aBuilder.getIdleCheckInterval(),
+                    TimeUnit.MILLISECONDS );
         }
-        connMgr.setMaxTotal( 10 );
-        connMgr.setDefaultMaxPerRoute( 5 );
         
         // The client needs to remember the auth cookie
-        cookieStore = new BasicCookieStore();
-        RequestConfig globalRequestConfig = RequestConfig.custom().setCookieSpec( CookieSpecs.BROWSER_COMPATIBILITY ).build();
+        cookieStore = new ConcurrentCookieStore();
+        if ( aBuilder.getCookiePurgeInterval() >= 0 )
+        {
+            expiredCookiePurger = new ExpiredCookiePurger( cookieStore, aBuilder.getCookiePurgeInterval(), TimeUnit.MILLISECONDS );
+        }
+        RequestConfig globalRequestConfig = RequestConfig.custom().setCookieSpec( CookieSpecs.BROWSER_COMPATIBILITY )
+                .setStaleConnectionCheckEnabled( aBuilder.isStaleConnectionCheck() ).setConnectTimeout( aBuilder.getConnectTimeout() )
+                .setSocketTimeout( aBuilder.getSocketTimeout() ).setConnectionRequestTimeout( aBuilder.getConnectionRequestTimeout() )
+                .build();
         
         // Let's throw all common client elements into one builder object
         HttpClientBuilder customClient = HttpClients.custom().setConnectionManager( connMgr )
         // The client needs to remember the auth cookie
-                .setDefaultRequestConfig( globalRequestConfig ).setDefaultCookieStore( cookieStore );
+                .setDefaultRequestConfig( globalRequestConfig ).setDefaultCookieStore( cookieStore )
+                // Send the Cookie headers cached by the cookie store
+                .disableCookieManagement().addInterceptorLast( new RequestAddCachedCookies() )
+                .addInterceptorLast( new ResponseProcessCookies() );
+        if ( aBuilder.getKeepAliveStrategy() != null )
+        {
+            customClient = customClient.setKeepAliveStrategy( aBuilder.getKeepAliveStrategy() );
+        }
+        
+        // Swap the cookie store for the jar of the current principal before anything reads the cookies
+        authenticator = aBuilder.getAuthenticator();
+        if ( aBuilder.getMaxCookieJars() > 0 )
+        {
+            cookieJars = new PrincipalCookieJars( (PrincipalAuthenticator) aBuilder.getAuthenticator(), cookieStore,
+                    aBuilder.getMaxCookieJars(), aBuilder.getCookieJarIdleTime(), TimeUnit.MILLISECONDS );
+            customClient = customClient.addInterceptorFirst( cookieJars );
+            if ( expiredCookiePurger != null )
+            {
+                expiredCookiePurger.setCookieJars( cookieJars );
+            }
+        }
         
         // Build the client with/without proxy settings
-        if ( aProxy == null )
+        if ( aBuilder.getProxy() == null )
         {
             // use the proxy settings of the JVM, if specified
             customClient = customClient.setRoutePlanner( new SystemDefaultRoutePlanner( ProxySelector.getDefault() ) );
@@ -206,24 +298,246 @@ public class ShibHttpClient implements HttpClient
         else
         {
             // use the explicit proxy
-            customClient = customClient.setProxy( aProxy );
+            customClient = customClient.setProxy( aBuilder.getProxy() );
+        }
+        
+        // Remember the routes of all requests, including those to the IdP, to report their pool stats
+        RouteRecorder routeRecorder = null;
+        if ( aBuilder.getMBeanName() != null )
+        {
+            routeRecorder = new RouteRecorder();
+            customClient = customClient.addInterceptorLast( routeRecorder );
         }
         
         HttpClient ecpClient = customClient.build();
         
+        // Remember SP sessions so unredirectable requests do not need to knock
+        sessionTracker = new SessionTracker();
+        
         // Add the ECP/PAOS headers - needs to be added first so the cookie we get from
         // the authentication can be handled by the RequestAddCookies interceptor later
-        customClient = customClient.addInterceptorFirst( new EcpRequestPreProcessor( ecpClient ) );
+        requestPreProcessor = new EcpRequestPreProcessor( ecpClient, sessionTracker, aBuilder.getAuthenticator() );
+        requestPreProcessor.setMetrics( aBuilder.getMetrics() );
+        customClient = customClient.addInterceptorFirst( requestPreProcessor );
         
         // Automatically log into IdP if transparent Shibboleth authentication handling is requested (default)
-        if ( transparentAuth )
+        EcpResponsePostProcessor responsePostProcessor = null;
+        if ( aBuilder.isTransparentAuth() )
         {
-            Authenticator basicAuthenticator = new BasicAuthenticator( aUsername, aPassword.toCharArray() );
-            customClient = customClient.addInterceptorFirst( new EcpResponsePostProcessor( ecpClient, parserPool, aIdpUrl,
-                    basicAuthenticator ) );
+            responsePostProcessor = new EcpResponsePostProcessor( ecpClient, parserPool, aBuilder.getIdpUrl(),
+                    aBuilder.getAuthenticator(), sessionTracker );
+            responsePostProcessor.setMetrics( aBuilder.getMetrics() );
+            if ( aBuilder.getSessionStore() != null )
+            {
+                // Adopt the sessions of other nodes before logging in, publish the own ones
+                sharedSessions = new SharedSessionCache( aBuilder.getSessionStore(), sessionTracker );
+                sessionTracker.addSessionListener( sharedSessions );
+                responsePostProcessor.setSharedSessions( sharedSessions );
+            }
+            customClient = customClient.addInterceptorFirst( responsePostProcessor );
+            
+            if ( aBuilder.getAuthenticator() instanceof SenderVouchesAuthenticator && aBuilder.getMetrics() != NoOpMetrics.INSTANCE )
+            {
+                ((SenderVouchesAuthenticator) aBuilder.getAuthenticator()).setMetrics( aBuilder.getMetrics() );
+            }
         }
         
         client = customClient.build();
+        
+        if ( aBuilder.getSessionSnapshotFile() != null )
+        {
+            openSessionSnapshot( aBuilder.getSessionSnapshotFile() );
+        }
+        
+        if ( aBuilder.getMBeanName() != null )
+        {
+            management = new ShibHttpClientManagement( connMgr, routeRecorder, cookieStore, sessionTracker, requestPreProcessor,
+                    responsePostProcessor );
+            management.register( aBuilder.getMBeanName() );
+        }
+        
+        // Start the background threads last, so they are not left running if any of the steps above fails
+        if ( idleConnectionReaper != null )
+        {
+            idleConnectionReaper.start();
+        }
+        if ( expiredCookiePurger != null )
+        {
+            expiredCookiePurger.start();
+        }
+    }
+    
+    /**
+     * Resume the sessions persisted in the snapshot log and record new ones. A log that cannot be opened only costs the logins it would
+     * have saved.
+     */
+    private void openSessionSnapshot( File file )
+    {
+        try
+        {
+            sessionSnapshotLog = new SessionSnapshotLog( file );
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Unable to open session snapshot log " + file + ", sessions will not be persisted", e );
+            return;
+        }
+        
+        int restored = 0;
+        for ( SpSession session : sessionSnapshotLog.getSessions() )
+        {
+            CookieStore store = cookieStore;
+            if ( cookieJars != null && session.getPrincipal() != null )
+            {
+                store = cookieJars.getCookieStore( session.getPrincipal() );
+            }
+            for ( Cookie cookie : session.getCookies() )
+            {
+                store.addCookie( cookie );
+            }
+            if ( sessionTracker.restoreSession( session ) )
+            {
+                restored++;
+            }
+        }
+        log.debug( "Restored " + restored + " sessions from session snapshot log " + file );
+        sessionTracker.addSessionListener( sessionSnapshotLog );
+    }
+    
+    private static ShibHttpClientBuilder builder( String aIdpUrl, String aUsername, String aPassword, boolean transparentAuth )
+    {
+        ShibHttpClientBuilder builder = ShibHttpClientBuilder.create( aIdpUrl ).setTransparentAuth( transparentAuth );
+        if ( transparentAuth )
+        {
+            builder.setCredentials( aUsername, aPassword );
+        }
+        return builder;
+    }
+    
+    /**
+     * Refresh SP sessions in the background shortly before they expire. Calling this method again replaces the previous refresh schedule.
+     * 
+     * @param leadTime
+     *            the time ahead of the expiry of a session at which it is refreshed
+     * @param maxJitter
+     *            the maximum random time by which a refresh is moved further ahead, to spread refreshes of sessions established together
+     * @param unit
+     *            the unit of {@code leadTime} and {@code maxJitter}
+     * @return the refresher, which can be closed to stop refreshing
+     * @throws IllegalStateException
+     *             if the client keeps cookie jars per principal, but its authenticator is no {@link ContextSVAuthenticator} the principal
+     *             of a refresh can be assigned to
+     */
+    public synchronized SessionRefresher enableSessionRefresh( long leadTime, long maxJitter, TimeUnit unit )
+    {
+        if ( cookieJars != null && !(authenticator instanceof ContextSVAuthenticator) )
+        {
+            throw new IllegalStateException( "Refreshing sessions in cookie jars per principal requires a ContextSVAuthenticator" );
+        }
+        disableSessionRefresh();
+        sessionRefresher = new SessionRefresher( this, sessionTracker, cookieStore, leadTime, maxJitter, unit );
+        sessionRefresher.setCookieJars( cookieJars );
+        sessionRefresher.start();
+        return sessionRefresher;
+    }
+    
+    /**
+     * Stop refreshing SP sessions in the background.
+     */
+    public synchronized void disableSessionRefresh()
+    {
+        if ( sessionRefresher != null )
+        {
+            sessionRefresher.close();
+            sessionRefresher = null;
+        }
+    }
+    
+    /**
+     * Get the tracker of the sessions this client holds at the SPs.
+     * 
+     * @return the session tracker
+     */
+    public SessionTracker getSessionTracker()
+    {
+        return sessionTracker;
+    }
+    
+    /**
+     * Get the number of knocks sent ahead of unredirectable requests.
+     * 
+     * @return the number of knocks sent
+     */
+    public long getKnocksSent()
+    {
+        return requestPreProcessor.getKnocksSent();
+    }
+    
+    /**
+     * Get the number of knocks skipped because a live session was known.
+     * 
+     * @return the number of knocks skipped
+     */
+    public long getKnocksSkipped()
+    {
+        return requestPreProcessor.getKnocksSkipped();
+    }
+    
+    /**
+     * Get the cookie jars of the principals using this client.
+     * 
+     * @return the cookie jars, {@code null} unless cookie jars per principal have been enabled on the {@link ShibHttpClientBuilder}
+     */
+    public PrincipalCookieJars getCookieJars()
+    {
+        return cookieJars;
+    }
+    
+    /**
+     * Get the cache of the session store this client shares sessions with other nodes through.
+     * 
+     * @return the cache, {@code null} unless a session store has been set on the {@link ShibHttpClientBuilder}
+     */
+    public SharedSessionCache getSharedSessions()
+    {
+        return sharedSessions;
+    }
+    
+    /**
+     * Get the management bean of this client.
+     * 
+     * @return the management bean, {@code null} unless a name for it has been set on the {@link ShibHttpClientBuilder}
+     */
+    public ShibHttpClientManagement getManagement()
+    {
+        return management;
+    }
+    
+    /**
+     * Stop all background threads of this client, unregister its management bean, close its session snapshot log and shut down its
+     * connection pool.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        disableSessionRefresh();
+        if ( management != null )
+        {
+            management.unregister();
+        }
+        if ( idleConnectionReaper != null )
+        {
+            idleConnectionReaper.close();
+        }
+        if ( expiredCookiePurger != null )
+        {
+            expiredCookiePurger.close();
+        }
+        if ( sessionSnapshotLog != null )
+        {
+            sessionSnapshotLog.close();
+        }
+        client.close();
     }
     
     @Override
@@ -289,4 +603,4 @@ public class ShibHttpClient implements HttpClient
     {
         return client.execute( aTarget, aRequest, aResponseHandler, aContext );
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,591 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * For copyright information, see NOTICE.txt file.
+ ******************************************************************************/
+
+package de.tudarmstadt.ukp.shibhttpclient;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.Authenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.BasicAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.PrincipalAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.NoOpMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionSnapshotLog;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionStore;
+import de.tudarmstadt.ukp.shibhttpclient.session.SharedSessionCache;
+
+/**
+ * Builder for {@link ShibHttpClient} instances with a configurable connection pool, timeouts and connection eviction.
+ * 
+ * <pre>
+ * ShibHttpClient client = ShibHttpClientBuilder.create( idpUrl ).setCredentials( username, password ).setMaxTotal( 100 )
+ *         .setMaxPerRoute( 20 ).setIdleConnectionEviction( 30, 5, TimeUnit.SECONDS ).build();
+ * </pre>
+ */
+public class ShibHttpClientBuilder
+{
+    /**
+     * The maximum number of pooled connections unless configured otherwise.
+     */
+    public static final int             DEFAULT_MAX_TOTAL         = 10;
+    
+    /**
+     * The maximum number of pooled connections per route unless configured otherwise.
+     */
+    public static final int             DEFAULT_MAX_PER_ROUTE     = 5;
+    
+    /**
+     * The time between two purges of expired cookies in milliseconds unless configured otherwise.
+     */
+    public static final long            DEFAULT_PURGE_INTERVAL    = 60000L;
+    
+    private final String                idpUrl;
+    private Authenticator               authenticator;
+    private HttpHost                    proxy;
+    private boolean                     anyCert;
+    private boolean                     transparentAuth           = true;
+    
+    private int                         maxTotal                  = DEFAULT_MAX_TOTAL;
+    private int                         maxPerRoute               = DEFAULT_MAX_PER_ROUTE;
+    private long                        connectionTimeToLive      = -1;
+    private boolean                     staleConnectionCheck      = true;
+    
+    private int                         connectTimeout            = -1;
+    private int                         socketTimeout             = -1;
+    private int                         connectionRequestTimeout  = -1;
+    
+    private long                        maxIdleTime               = -1;
+    private long                        idleCheckInterval         = -1;
+    
+    private long                        cookiePurgeInterval       = DEFAULT_PURGE_INTERVAL;
+    private int                         maxCookieJars             = -1;
+    private long                        cookieJarIdleTime         = -1;
+    private File                        sessionSnapshotFile;
+    private SessionStore                sessionStore;
+    
+    private ConnectionKeepAliveStrategy keepAliveStrategy;
+    
+    private ShibClientMetrics           metrics                   = NoOpMetrics.INSTANCE;
+    private String                      mBeanName;
+    
+    /**
+     * Create a new builder for clients logging in at the given IdP.
+     * 
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     */
+    protected ShibHttpClientBuilder( String idpUrl )
+    {
+        this.idpUrl = idpUrl;
+    }
+    
+    /**
+     * Create a new builder for clients logging in at the given IdP.
+     * 
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @return the new builder
+     */
+    public static ShibHttpClientBuilder create( String idpUrl )
+    {
+        return new ShibHttpClientBuilder( idpUrl );
+    }
+    
+    /**
+     * Log in to the IdP using HTTP basic authentication.
+     * 
+     * @param username
+     *            the user name to log into the IdP.
+     * @param password
+     *            the password to log in to the IdP.
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setCredentials( String username, String password )
+    {
+        this.authenticator = new BasicAuthenticator( username, password.toCharArray() );
+        return this;
+    }
+    
+    /**
+     * Set the {@link Authenticator} supplying the credentials for the IdP.
+     * 
+     * @param authenticator
+     *            the authenticator
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setAuthenticator( Authenticator authenticator )
+    {
+        this.authenticator = authenticator;
+        return this;
+    }
+    
+    /**
+     * Use an explicit proxy instead of the default system proxy (if any).
+     * 
+     * @param proxy
+     *            the proxy, {@code null} to use the system proxy
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setProxy( HttpHost proxy )
+    {
+        this.proxy = proxy;
+        return this;
+    }
+    
+    /**
+     * Accept any certificate from any remote host. By default, certificates need to be installed in the JRE.
+     * 
+     * @param anyCert
+     *            {@code true} to accept any certificate
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setAnyCert( boolean anyCert )
+    {
+        this.anyCert = anyCert;
+        return this;
+    }
+    
+    /**
+     * Handle authentication transparently (default). Otherwise, the caller must handle the authentication process itself.
+     * 
+     * @param transparentAuth
+     *            {@code true} to log in automatically on a PAOS challenge
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setTransparentAuth( boolean transparentAuth )
+    {
+        this.transparentAuth = transparentAuth;
+        return this;
+    }
+    
+    /**
+     * Set the maximum number of pooled connections.
+     * 
+     * @param maxTotal
+     *            the maximum number of connections
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setMaxTotal( int maxTotal )
+    {
+        this.maxTotal = maxTotal;
+        return this;
+    }
+    
+    /**
+     * Set the maximum number of pooled connections per route, i.e. per SP or IdP.
+     * 
+     * @param maxPerRoute
+     *            the maximum number of connections per route
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setMaxPerRoute( int maxPerRoute )
+    {
+        this.maxPerRoute = maxPerRoute;
+        return this;
+    }
+    
+    /**
+     * Set the total time a connection may be reused. By default, connections live as long as the server keeps them open.
+     * 
+     * @param timeToLive
+     *            the maximum life time of a connection
+     * @param unit
+     *            the unit of {@code timeToLive}
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setConnectionTimeToLive( long timeToLive, TimeUnit unit )
+    {
+        this.connectionTimeToLive = unit.toMillis( timeToLive );
+        return this;
+    }
+    
+    /**
+     * Check whether a pooled connection is still open before reusing it (default). Disabling the check saves up to 30ms per request but
+     * risks failures on connections closed by the server; combine it with {@link #setIdleConnectionEviction idle connection eviction}.
+     * 
+     * @param staleConnectionCheck
+     *            {@code true} to validate pooled connections before reuse
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setStaleConnectionCheck( boolean staleConnectionCheck )
+    {
+        this.staleConnectionCheck = staleConnectionCheck;
+        return this;
+    }
+    
+    /**
+     * Set the timeout for establishing connections.
+     * 
+     * @param timeout
+     *            the timeout, {@code 0} for none
+     * @param unit
+     *            the unit of {@code timeout}
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setConnectTimeout( long timeout, TimeUnit unit )
+    {
+        this.connectTimeout = (int) unit.toMillis( timeout );
+        return this;
+    }
+    
+    /**
+     * Set the maximum time of inactivity while waiting for data.
+     * 
+     * @param timeout
+     *            the timeout, {@code 0} for none
+     * @param unit
+     *            the unit of {@code timeout}
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setSocketTimeout( long timeout, TimeUnit unit )
+    {
+        this.socketTimeout = (int) unit.toMillis( timeout );
+        return this;
+    }
+    
+    /**
+     * Set the maximum time to wait for a connection from the pool.
+     * 
+     * @param timeout
+     *            the timeout, {@code 0} for none
+     * @param unit
+     *            the unit of {@code timeout}
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setConnectionRequestTimeout( long timeout, TimeUnit unit )
+    {
+        this.connectionRequestTimeout = (int) unit.toMillis( timeout );
+        return this;
+    }
+    
+    /**
+     * Close expired connections and connections idle for longer than {@code maxIdleTime} in a background thread, which is stopped when
+     * the client is closed.
+     * 
+     * @param maxIdleTime
+     *            the time after which idle connections are closed
+     * @param checkInterval
+     *            the time between two clean-ups, at least one millisecond
+     * @param unit
+     *            the unit of {@code maxIdleTime} and {@code checkInterval}
+     * @return this builder
+     * @throws IllegalArgumentException
+     *             if {@code maxIdleTime} is negative or {@code checkInterval} is shorter than one millisecond
+     */
+    public ShibHttpClientBuilder setIdleConnectionEviction( long maxIdleTime, long checkInterval, TimeUnit unit )
+    {
+        if ( maxIdleTime < 0 || unit.toMillis( checkInterval ) <= 0 )
+        {
+            throw new IllegalArgumentException( "maxIdleTime must not be negative and checkInterval must be at least one millisecond" );
+        }
+        this.maxIdleTime = unit.toMillis( maxIdleTime );
+        this.idleCheckInterval = unit.toMillis( checkInterval );
+        return this;
+    }
+    
+    /**
+     * Set the time between two purges of expired cookies from the cookie store of the client in a background thread, which is stopped
+     * when the client is closed. Expired cookies are never sent, purging only frees their memory.
+     * 
+     * @param purgeInterval
+     *            the time between two purges, at least one millisecond, or negative to not purge in the background
+     * @param unit
+     *            the unit of {@code purgeInterval}
+     * @return this builder
+     * @throws IllegalArgumentException
+     *             if {@code purgeInterval} is not negative but shorter than one millisecond
+     */
+    public ShibHttpClientBuilder setCookiePurgeInterval( long purgeInterval, TimeUnit unit )
+    {
+        if ( purgeInterval >= 0 && unit.toMillis( purgeInterval ) <= 0 )
+        {
+            throw new IllegalArgumentException( "purgeInterval must be at least one millisecond, or negative to not purge" );
+        }
+        this.cookiePurgeInterval = purgeInterval < 0 ? -1 : unit.toMillis( purgeInterval );
+        return this;
+    }
+    
+    /**
+     * Keep the cookies of every principal in a separate jar, so the principals sharing the client keep their SP sessions when requests of
+     * different principals interleave. All principals share one connection pool. Requires a {@link PrincipalAuthenticator}.
+     * 
+     * @param maxPrincipals
+     *            the maximum number of jars, the least recently used jar is evicted first
+     * @param maxIdleTime
+     *            the time after which unused jars are evicted
+     * @param unit
+     *            the unit of {@code maxIdleTime}
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setCookieJarPerPrincipal( int maxPrincipals, long maxIdleTime, TimeUnit unit )
+    {
+        this.maxCookieJars = maxPrincipals;
+        this.cookieJarIdleTime = unit.toMillis( maxIdleTime );
+        return this;
+    }
+    
+    /**
+     * Persist the SP sessions of the client and their cookies in a log in the given file, and resume the sessions still valid from the
+     * log when the client is built. A restarted client thus serves authenticated requests without logging in again. The file holds
+     * credentials and must not be accessible to other users.
+     * 
+     * @param sessionSnapshotFile
+     *            the file of the log, {@code null} to keep sessions in memory only
+     * @return this builder
+     * @see SessionSnapshotLog
+     */
+    public ShibHttpClientBuilder setSessionSnapshotFile( File sessionSnapshotFile )
+    {
+        this.sessionSnapshotFile = sessionSnapshotFile;
+        return this;
+    }
+    
+    /**
+     * Share SP sessions with the clients of other nodes through the given store. A client publishes the sessions it establishes, and
+     * adopts a session another node has published instead of logging in itself, so the IdP sees one login per SP and principal for the
+     * whole cluster rather than one per node.
+     * 
+     * @param sessionStore
+     *            the store shared by all nodes, {@code null} to not share sessions
+     * @return this builder
+     * @see SharedSessionCache
+     */
+    public ShibHttpClientBuilder setSessionStore( SessionStore sessionStore )
+    {
+        this.sessionStore = sessionStore;
+        return this;
+    }
+    
+    /**
+     * Set the strategy deciding how long connections are kept alive.
+     * 
+     * @param keepAliveStrategy
+     *            the keep-alive strategy
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setKeepAliveStrategy( ConnectionKeepAliveStrategy keepAliveStrategy )
+    {
+        this.keepAliveStrategy = keepAliveStrategy;
+        return this;
+    }
+    
+    /**
+     * Keep connections alive for the given time unless the server sends a shorter {@code Keep-Alive} timeout.
+     * 
+     * @param keepAlive
+     *            the maximum keep-alive time
+     * @param unit
+     *            the unit of {@code keepAlive}
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setKeepAlive( long keepAlive, TimeUnit unit )
+    {
+        final long maxKeepAlive = unit.toMillis( keepAlive );
+        this.keepAliveStrategy = new ConnectionKeepAliveStrategy()
+        {
+            @Override
+            public long getKeepAliveDuration( HttpResponse response, HttpContext context )
+            {
+                HeaderElementIterator it = new BasicHeaderElementIterator( response.headerIterator( HTTP.CONN_KEEP_ALIVE ) );
+                while ( it.hasNext() )
+                {
+                    HeaderElement he = it.nextElement();
+                    if ( he.getValue() != null && "timeout".equalsIgnoreCase( he.getName() ) )
+                    {
+                        try
+                        {
+                            return Math.min( Long.parseLong( he.getValue() ) * 1000, maxKeepAlive );
+                        }
+                        catch ( NumberFormatException ignore )
+                        {
+                            // fall back to the configured keep-alive time
+                        }
+                    }
+                }
+                return maxKeepAlive;
+            }
+        };
+        return this;
+    }
+    
+    /**
+     * Set the metrics that knocks, the phases of logins and the signing of sender-vouches tokens are reported to.
+     * 
+     * @param metrics
+     *            the metrics, {@code null} to report nothing
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setMetrics( ShibClientMetrics metrics )
+    {
+        this.metrics = metrics != null ? metrics : NoOpMetrics.INSTANCE;
+        return this;
+    }
+    
+    /**
+     * Register a management bean exposing the connection pool, SP sessions and login statistics of the client with the platform MBean
+     * server. The bean is unregistered when the client is closed.
+     * 
+     * @param mBeanName
+     *            the name of the bean, unique among the clients of the JVM, {@code null} to not register a bean
+     * @return this builder
+     */
+    public ShibHttpClientBuilder setMBeanName( String mBeanName )
+    {
+        this.mBeanName = mBeanName;
+        return this;
+    }
+    
+    /**
+     * Build the client.
+     * 
+     * @return the new client
+     * @throws IllegalStateException
+     *             if transparent authentication is enabled but no credentials have been set, if cookie jars per principal are requested
+     *             without a {@link PrincipalAuthenticator}, or if the management bean cannot be registered
+     */
+    public ShibHttpClient build()
+    {
+        if ( transparentAuth && authenticator == null )
+        {
+            throw new IllegalStateException( "transparent authentication requires credentials or an authenticator" );
+        }
+        if ( maxCookieJars > 0 && !(authenticator instanceof PrincipalAuthenticator) )
+        {
+            throw new IllegalStateException( "cookie jars per principal require a PrincipalAuthenticator" );
+        }
+        return new ShibHttpClient( this );
+    }
+    
+    String getIdpUrl()
+    {
+        return idpUrl;
+    }
+    
+    Authenticator getAuthenticator()
+    {
+        return authenticator;
+    }
+    
+    HttpHost getProxy()
+    {
+        return proxy;
+    }
+    
+    boolean isAnyCert()
+    {
+        return anyCert;
+    }
+    
+    boolean isTransparentAuth()
+    {
+        return transparentAuth;
+    }
+    
+    int getMaxTotal()
+    {
+        return maxTotal;
+    }
+    
+    int getMaxPerRoute()
+    {
+        return maxPerRoute;
+    }
+    
+    long getConnectionTimeToLive()
+    {
+        return connectionTimeToLive;
+    }
+    
+    boolean isStaleConnectionCheck()
+    {
+        return staleConnectionCheck;
+    }
+    
+    int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+    
+    int getSocketTimeout()
+    {
+        return socketTimeout;
+    }
+    
+    int getConnectionRequestTimeout()
+    {
+        return connectionRequestTimeout;
+    }
+    
+    long getMaxIdleTime()
+    {
+        return maxIdleTime;
+    }
+    
+    long getIdleCheckInterval()
+    {
+        return idleCheckInterval;
+    }
+    
+    long getCookiePurgeInterval()
+    {
+        return cookiePurgeInterval;
+    }
+    
+    int getMaxCookieJars()
+    {
+        return maxCookieJars;
+    }
+    
+    long getCookieJarIdleTime()
+    {
+        return cookieJarIdleTime;
+    }
+    
+    File getSessionSnapshotFile()
+    {
+        return sessionSnapshotFile;
+    }
+    
+    SessionStore getSessionStore()
+    {
+        return sessionStore;
+    }
+    
+    ConnectionKeepAliveStrategy getKeepAliveStrategy()
+    {
+        return keepAliveStrategy;
+    }
+    
+    ShibClientMetrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    String getMBeanName()
+    {
+        return mBeanName;
+    }
+}
\ No newline at end of file
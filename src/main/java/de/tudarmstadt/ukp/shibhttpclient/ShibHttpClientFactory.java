@@ -9,6 +9,7 @@ import org.opensaml.xml.parse.BasicParserPool;
 import de.tudarmstadt.ukp.shibhttpclient.authentication.Authenticator;
 import de.tudarmstadt.ukp.shibhttpclient.processor.EcpRequestPreProcessor;
 import de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
 
 public class ShibHttpClientFactory
 {
@@ -106,7 +107,26 @@ public class ShibHttpClientFactory
      */
     public HttpClient create( String idpUrl, String username, String password, HttpHost proxy, boolean anyCert, boolean transparentAuth )
     {
-        return new ShibHttpClient( idpUrl, username, password, proxy, anyCert, transparentAuth );
+        ShibHttpClientBuilder builder = ShibHttpClientBuilder.create( idpUrl ).setProxy( proxy ).setAnyCert( anyCert )
+                .setTransparentAuth( transparentAuth );
+        if ( transparentAuth )
+        {
+            builder.setCredentials( username, password );
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Create a new builder for a {@link HttpClient} with ECP detection and transparent authentication, allowing to configure its
+     * connection pool, timeouts and connection eviction.
+     * 
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @return a new {@link ShibHttpClientBuilder}
+     */
+    public ShibHttpClientBuilder builder( String idpUrl )
+    {
+        return ShibHttpClientBuilder.create( idpUrl );
     }
     
     /**
@@ -145,8 +165,11 @@ public class ShibHttpClientFactory
         BasicParserPool parserPool = new BasicParserPool();
         parserPool.setNamespaceAware( true );
         
-        EcpRequestPreProcessor preProcessor = new EcpRequestPreProcessor( ecpClient );
-        EcpResponsePostProcessor postProcessor = new EcpResponsePostProcessor( ecpClient, parserPool, idpUrl, authenticator );
+        SessionTracker sessionTracker = new SessionTracker();
+        
+        EcpRequestPreProcessor preProcessor = new EcpRequestPreProcessor( ecpClient, sessionTracker, authenticator );
+        EcpResponsePostProcessor postProcessor = new EcpResponsePostProcessor( ecpClient, parserPool, idpUrl, authenticator,
+                sessionTracker );
         
         return clientBuilder.addInterceptorFirst( preProcessor ).addInterceptorLast( postProcessor );
     }
@@ -18,12 +18,12 @@ package de.tudarmstadt.ukp.shibhttpclient;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
 
 import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -46,7 +46,17 @@ import org.w3c.dom.Element;
 
 public final class Utils
 {
-    private static final Log LOG = LogFactory.getLog( Utils.class );
+    private static final Log                LOG                 = LogFactory.getLog( Utils.class );
+    
+    // looking up the factory and creating transformers is expensive, so each thread keeps its own
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+    
+    private static final TransformerCache   TRANSFORMER         = new TransformerCache( false );
+    
+    private static final TransformerCache   PRETTY_TRANSFORMER  = new TransformerCache( true );
+    
+    private static final char[]             BASE64_ALPHABET     = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                                                                        .toCharArray();
     
     private Utils()
     {
@@ -93,26 +103,70 @@ public final class Utils
         }
     }
     
-    public static String xmlToString( XMLObject aObject ) throws IOException
+    /**
+     * Marshall the object and serialize it as UTF-8 into the stream.
+     * 
+     * @param aObject
+     *            the object to serialize
+     * @param aStream
+     *            the stream to write to, which is not closed
+     * @throws IOException
+     *             if the object cannot be marshalled or written
+     */
+    public static void writeXml( XMLObject aObject, OutputStream aStream ) throws IOException
+    {
+        writeXml( marshall( aObject ), aStream );
+    }
+    
+    /**
+     * Serialize the element as UTF-8 into the stream.
+     * 
+     * @param aElement
+     *            the element to serialize
+     * @param aStream
+     *            the stream to write to, which is not closed
+     * @throws IOException
+     *             if the element cannot be written
+     */
+    public static void writeXml( Element aElement, OutputStream aStream ) throws IOException
     {
-        Document doc;
         try
         {
-            doc = Configuration.getMarshallerFactory().getMarshaller( aObject ).marshall( aObject ).getOwnerDocument();
+            TRANSFORMER.get().transform( new DOMSource( aElement ), new StreamResult( aStream ) );
+        }
+        catch ( TransformerException e )
+        {
+            throw new IOException( e );
+        }
+    }
+    
+    /**
+     * Marshall the object into its DOM representation.
+     * 
+     * @param aObject
+     *            the object to marshall
+     * @return the DOM element of the object
+     * @throws IOException
+     *             if the object cannot be marshalled
+     */
+    public static Element marshall( XMLObject aObject ) throws IOException
+    {
+        try
+        {
+            return Configuration.getMarshallerFactory().getMarshaller( aObject ).marshall( aObject );
         }
         catch ( MarshallingException e )
         {
             throw new IOException( e );
         }
-        
+    }
+    
+    public static String xmlToString( XMLObject aObject ) throws IOException
+    {
         try
         {
-            Source source = new DOMSource( doc );
             StringWriter stringWriter = new StringWriter();
-            Result result = new StreamResult( stringWriter );
-            TransformerFactory factory = TransformerFactory.newInstance();
-            Transformer transformer = factory.newTransformer();
-            transformer.transform( source, result );
+            TRANSFORMER.get().transform( new DOMSource( marshall( aObject ).getOwnerDocument() ), new StreamResult( stringWriter ) );
             return stringWriter.getBuffer().toString();
         }
         catch ( TransformerException e )
@@ -126,15 +180,7 @@ public final class Utils
         StringWriter sw = new StringWriter();
         try
         {
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer transformer = tf.newTransformer();
-            transformer.setOutputProperty( OutputKeys.OMIT_XML_DECLARATION, "no" );
-            transformer.setOutputProperty( OutputKeys.METHOD, "xml" );
-            transformer.setOutputProperty( OutputKeys.INDENT, "yes" );
-            transformer.setOutputProperty( OutputKeys.ENCODING, "UTF-8" );
-            transformer.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "4" );
-            
-            transformer.transform( new DOMSource( doc ), new StreamResult( sw ) );
+            PRETTY_TRANSFORMER.get().transform( new DOMSource( doc ), new StreamResult( sw ) );
             return sw.toString();
         }
         catch ( TransformerException e )
@@ -143,4 +189,97 @@ public final class Utils
             return "<ERROR: " + e.getMessage() + ">";
         }
     }
-}
+    
+    /**
+     * Encode the bytes as Base64 without line breaks.
+     * 
+     * @param aData
+     *            the bytes to encode
+     * @return the Base64 encoded bytes
+     */
+    public static String base64( byte[] aData )
+    {
+        return base64( "", aData, 0, aData.length );
+    }
+    
+    /**
+     * Encode a range of bytes as Base64 without line breaks directly behind a prefix, so no intermediate strings are created.
+     * 
+     * @param aPrefix
+     *            the text preceding the encoded bytes
+     * @param aData
+     *            the array holding the bytes to encode
+     * @param aOffset
+     *            the start of the range
+     * @param aLength
+     *            the length of the range
+     * @return the prefix followed by the Base64 encoded bytes
+     */
+    public static String base64( String aPrefix, byte[] aData, int aOffset, int aLength )
+    {
+        char[] out = new char[aPrefix.length() + (aLength + 2) / 3 * 4];
+        aPrefix.getChars( 0, aPrefix.length(), out, 0 );
+        
+        int o = aPrefix.length();
+        int end = aOffset + aLength;
+        int i = aOffset;
+        for ( ; i + 2 < end; i += 3 )
+        {
+            int bits = (aData[i] & 0xFF) << 16 | (aData[i + 1] & 0xFF) << 8 | aData[i + 2] & 0xFF;
+            out[o++] = BASE64_ALPHABET[bits >>> 18];
+            out[o++] = BASE64_ALPHABET[bits >>> 12 & 0x3F];
+            out[o++] = BASE64_ALPHABET[bits >>> 6 & 0x3F];
+            out[o++] = BASE64_ALPHABET[bits & 0x3F];
+        }
+        if ( i < end )
+        {
+            int bits = (aData[i] & 0xFF) << 16 | (i + 1 < end ? (aData[i + 1] & 0xFF) << 8 : 0);
+            out[o++] = BASE64_ALPHABET[bits >>> 18];
+            out[o++] = BASE64_ALPHABET[bits >>> 12 & 0x3F];
+            out[o++] = i + 1 < end ? BASE64_ALPHABET[bits >>> 6 & 0x3F] : '=';
+            out[o++] = '=';
+        }
+        return new String( out );
+    }
+    
+    /**
+     * The transformers of the current thread, created from the shared factory on first use.
+     */
+    private static class TransformerCache extends ThreadLocal<Transformer>
+    {
+        private final boolean pretty;
+        
+        TransformerCache( boolean pretty )
+        {
+            this.pretty = pretty;
+        }
+        
+        @Override
+        protected Transformer initialValue()
+        {
+            Transformer transformer;
+            try
+            {
+                // the factory is not thread-safe
+                synchronized ( TRANSFORMER_FACTORY )
+                {
+                    transformer = TRANSFORMER_FACTORY.newTransformer();
+                }
+            }
+            catch ( TransformerConfigurationException e )
+            {
+                throw new IllegalStateException( "Unable to create XML transformer", e );
+            }
+            
+            transformer.setOutputProperty( OutputKeys.ENCODING, "UTF-8" );
+            if ( pretty )
+            {
+                transformer.setOutputProperty( OutputKeys.OMIT_XML_DECLARATION, "no" );
+                transformer.setOutputProperty( OutputKeys.METHOD, "xml" );
+                transformer.setOutputProperty( OutputKeys.INDENT, "yes" );
+                transformer.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "4" );
+            }
+            return transformer;
+        }
+    }
+}
\ No newline at end of file
@@ -1,10 +1,10 @@
 package de.tudarmstadt.ukp.shibhttpclient.authentication;
 
-import javax.xml.bind.DatatypeConverter;
-
 import org.apache.http.HttpRequest;
 
-public class BasicAuthenticator implements Authenticator
+import de.tudarmstadt.ukp.shibhttpclient.Utils;
+
+public class BasicAuthenticator implements PrincipalAuthenticator
 {
     private String username;
     private char[] password;
@@ -25,10 +25,16 @@ public class BasicAuthenticator implements Authenticator
         request.addHeader( AUTH_HEADER, basicAuth );
     }
     
+    @Override
+    public String currentPrincipal()
+    {
+        return username;
+    }
+    
     private String encodeCredentials()
     {
         String credentials = username + ":" + new String( password );
         
-        return DatatypeConverter.printBase64Binary( credentials.getBytes() );
+        return Utils.base64( credentials.getBytes() );
     }
 }
@@ -0,0 +1,37 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A {@link PrincipalAuthenticator} that can take the principal from the {@link HttpContext} of the request that triggered a login, so the
+ * principal does not have to be bound to the thread sending the request.
+ * 
+ * <p>
+ * The client passes the context of the original request whenever it has one. Without a context, implementations fall back to
+ * {@link #supplyCredentials(HttpRequest)} and {@link #currentPrincipal()}.
+ * </p>
+ */
+public interface ContextAuthenticator extends PrincipalAuthenticator
+{
+    /**
+     * Adds authentication headers for the principal of the given context to the given request.
+     * 
+     * @param request
+     *            the request to authenticate
+     * @param context
+     *            the context of the request that triggered the login, may be {@code null}
+     * @throws CredentialException
+     *             if the credentials cannot be created
+     */
+    void supplyCredentials( HttpRequest request, HttpContext context ) throws CredentialException;
+    
+    /**
+     * Return the principal whose credentials are supplied to requests in the given context.
+     * 
+     * @param context
+     *            the context of the request, may be {@code null}
+     * @return the principal of the context
+     */
+    String currentPrincipal( HttpContext context );
+}
\ No newline at end of file
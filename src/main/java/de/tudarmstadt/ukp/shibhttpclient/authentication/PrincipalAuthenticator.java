@@ -0,0 +1,14 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication;
+
+/**
+ * An {@link Authenticator} that can tell for which principal it supplies credentials.
+ */
+public interface PrincipalAuthenticator extends Authenticator
+{
+    /**
+     * Return the principal whose credentials are supplied to the next request.
+     * 
+     * @return the current principal
+     */
+    String currentPrincipal();
+}
\ No newline at end of file
@@ -1,16 +1,24 @@
 package de.tudarmstadt.ukp.shibhttpclient.authentication;
 
 import java.security.SignatureException;
+import java.util.Collections;
 import java.util.Date;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpRequest;
 import org.apache.http.client.HttpClient;
-import org.bouncycastle.asn1.DERObject;
+import org.apache.http.protocol.HttpContext;
 
 import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.SignedToken;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenEncoder;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenMintingService;
 import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenSigner;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.NoOpMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Event;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Phase;
 
 /**
  * A {@link Authenticator} for Sender-vouches tokens.
@@ -19,14 +27,54 @@ import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenSigner;
  * Subclasses are encouraged to overwrite {@link #currentUser()} to determine the current user since a {@link HttpClient} is often reused.
  * </p>
  * 
+ * <p>
+ * Every login is sent with a newly signed token unless caching is enabled with {@link #setCacheSize(int)}. Signing a token is expensive,
+ * so with a cache the header values are reused per user until the refresh margin before the end of their validity is reached. With a
+ * {@link TokenMintingService} the tokens are signed in the background and the first request of a user does not have to wait for the
+ * signature either.
+ * </p>
+ * 
+ * <p>
+ * Both the cache and the minting service hand out the same token for several logins of a user. IdPs that accept every token only once
+ * reject all but the first of them, so neither must be used with such IdPs.
+ * </p>
+ * 
+ * <p>
+ * Credentials for a login are supplied with the context of the request that triggered it, subclasses may overwrite
+ * {@link #currentUser(HttpContext)} to take the user from there instead.
+ * </p>
+ * 
  * @author fichtelmannm
- *
+ * 
  */
-public class SenderVouchesAuthenticator implements Authenticator
+public class SenderVouchesAuthenticator implements ContextAuthenticator
 {
-    private static final long ONE_MINUTE = 60000L;
-    private String            userId;
-    private TokenSigner       signer;
+    /**
+     * The validity of tokens unless configured otherwise.
+     */
+    public static final long                DEFAULT_TOKEN_LIFETIME = 60000L;
+    
+    /**
+     * The time before the end of their validity at which cached tokens are replaced unless configured otherwise.
+     */
+    public static final long                DEFAULT_REFRESH_MARGIN = 15000L;
+    
+    /**
+     * The maximum number of users whose tokens are cached unless configured otherwise, by default tokens are not cached.
+     */
+    public static final int                 DEFAULT_CACHE_SIZE     = 0;
+    
+    private String                          userId;
+    private TokenSigner                     signer;
+    
+    private volatile long                   tokenLifetime          = DEFAULT_TOKEN_LIFETIME;
+    private volatile long                   refreshMargin          = DEFAULT_REFRESH_MARGIN;
+    private volatile int                    cacheSize              = DEFAULT_CACHE_SIZE;
+    
+    private volatile TokenMintingService    mintingService;
+    private volatile ShibClientMetrics      metrics                = NoOpMetrics.INSTANCE;
+    
+    private final Map<String, CachedHeader> headers;
     
     /**
      * Creates a new {@link SenderVouchesAuthenticator} for a static user id.
@@ -40,19 +88,152 @@ public class SenderVouchesAuthenticator implements Authenticator
     {
         this.signer = signer;
         this.userId = userId;
+        this.headers = Collections.synchronizedMap( new LinkedHashMap<String, CachedHeader>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, CachedHeader> eldest )
+            {
+                return size() > cacheSize;
+            }
+        } );
     }
     
     @Override
     public void supplyCredentials( HttpRequest request ) throws CredentialException
     {
-        Date now = new Date();
-        Date in1Minute = new Date( now.getTime() + ONE_MINUTE );
-        SignedToken svToken = createdSignedToken( now, in1Minute );
-        DERObject token = svToken.getDERObject();
-        
-        String senderVouchesHeader = "Sender-Voucher " + DatatypeConverter.printBase64Binary( token.getDEREncoded() );
-        
-        request.addHeader( AUTH_HEADER, senderVouchesHeader );
+        supplyCredentials( request, null );
+    }
+    
+    @Override
+    public void supplyCredentials( HttpRequest request, HttpContext context ) throws CredentialException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            request.addHeader( AUTH_HEADER, senderVouchesHeader( currentUser( context ) ) );
+        }
+        finally
+        {
+            metrics.time( Phase.CREDENTIALS, request.getRequestLine().getUri(), System.nanoTime() - start );
+        }
+    }
+    
+    @Override
+    public String currentPrincipal()
+    {
+        return currentUser();
+    }
+    
+    @Override
+    public String currentPrincipal( HttpContext context )
+    {
+        return currentUser( context );
+    }
+    
+    /**
+     * Set the validity of newly signed tokens.
+     * 
+     * @param lifetime
+     *            the validity of tokens
+     * @param unit
+     *            the unit of {@code lifetime}
+     */
+    public void setTokenLifetime( long lifetime, TimeUnit unit )
+    {
+        this.tokenLifetime = unit.toMillis( lifetime );
+        clearCache();
+    }
+    
+    /**
+     * Set the time before the end of their validity at which cached tokens are replaced. Tokens are not cached if the margin is not shorter
+     * than the token lifetime.
+     * 
+     * @param margin
+     *            the refresh margin
+     * @param unit
+     *            the unit of {@code margin}
+     */
+    public void setRefreshMargin( long margin, TimeUnit unit )
+    {
+        this.refreshMargin = unit.toMillis( margin );
+        clearCache();
+    }
+    
+    /**
+     * Set the maximum number of users whose tokens are cached. The least recently used users are evicted first, {@code 0} disables the
+     * cache. Cached tokens are sent with several logins, which IdPs that accept every token only once reject.
+     * 
+     * @param cacheSize
+     *            the maximum number of cached tokens
+     */
+    public void setCacheSize( int cacheSize )
+    {
+        this.cacheSize = cacheSize;
+        clearCache();
+    }
+    
+    /**
+     * Set the service that signs tokens in the background. Tokens are signed by this authenticator when the service has none ready.
+     * 
+     * @param mintingService
+     *            the minting service, {@code null} to sign all tokens inline
+     */
+    public void setMintingService( TokenMintingService mintingService )
+    {
+        this.mintingService = mintingService;
+        clearCache();
+    }
+    
+    /**
+     * Set the metrics that credential times and token cache hits are reported to. The metrics are also passed on to the signer.
+     * 
+     * @param metrics
+     *            the metrics, {@code null} to report nothing
+     */
+    public void setMetrics( ShibClientMetrics metrics )
+    {
+        this.metrics = metrics != null ? metrics : NoOpMetrics.INSTANCE;
+        signer.setMetrics( metrics );
+    }
+    
+    /**
+     * Discard all cached tokens.
+     */
+    public void clearCache()
+    {
+        headers.clear();
+    }
+    
+    /**
+     * Get the tokenLifetime in milliseconds.
+     * 
+     * @return the tokenLifetime
+     */
+    public long getTokenLifetime()
+    {
+        return tokenLifetime;
+    }
+    
+    /**
+     * Get the mintingService.
+     * 
+     * @return the mintingService
+     */
+    public TokenMintingService getMintingService()
+    {
+        return mintingService;
+    }
+    
+    /**
+     * Get the refreshMargin in milliseconds.
+     * 
+     * @return the refreshMargin
+     */
+    public long getRefreshMargin()
+    {
+        return refreshMargin;
     }
     
     /**
@@ -65,15 +246,87 @@ public class SenderVouchesAuthenticator implements Authenticator
         return userId;
     }
     
-    private SignedToken createdSignedToken( Date validFrom, Date validUntil ) throws CredentialException
+    /**
+     * Return the user id of the request in the given context, by default the {@link #currentUser() current user}.
+     * 
+     * @param context
+     *            the context of the request, may be {@code null}
+     * @return the user id
+     */
+    protected String currentUser( HttpContext context )
+    {
+        return currentUser();
+    }
+    
+    /**
+     * Return the value of the authorization header for the given user, signing a new token unless a cached or pre-minted one is fresh
+     * enough.
+     * 
+     * @param user
+     *            the user id
+     * @return the authorization header value
+     * @throws CredentialException
+     *             if the token cannot be signed
+     */
+    protected String senderVouchesHeader( String user ) throws CredentialException
+    {
+        long now = System.currentTimeMillis();
+        TokenMintingService minter = mintingService;
+        CachedHeader cached = headers.get( user );
+        if ( cached != null && now < cached.refreshAt )
+        {
+            if ( minter != null )
+            {
+                minter.touch( user );
+            }
+            metrics.count( Event.TOKEN_CACHE_HIT, null );
+            return cached.value;
+        }
+        
+        SignedToken svToken = minter != null ? minter.getToken( user ) : null;
+        if ( svToken == null || svToken.getData().getValidUntil().getTime() - refreshMargin <= now )
+        {
+            svToken = createdSignedToken( user, new Date( now ), new Date( now + tokenLifetime ) );
+            metrics.count( Event.TOKEN_SIGNED_INLINE, null );
+        }
+        else
+        {
+            metrics.count( Event.TOKEN_PREMINTED, null );
+        }
+        String senderVouchesHeader = TokenEncoder.base64( "Sender-Voucher ", svToken );
+        
+        long refreshAt = svToken.getData().getValidUntil().getTime() - refreshMargin;
+        if ( cacheSize > 0 && refreshAt > now )
+        {
+            headers.put( user, new CachedHeader( senderVouchesHeader, refreshAt ) );
+        }
+        return senderVouchesHeader;
+    }
+    
+    private SignedToken createdSignedToken( String user, Date validFrom, Date validUntil ) throws CredentialException
     {
         try
         {
-            return signer.createSignedToken( currentUser(), validFrom, validUntil );
+            return signer.createSignedToken( user, validFrom, validUntil );
         }
         catch ( SignatureException e )
         {
             throw new CredentialException( e );
         }
     }
-}
+    
+    /**
+     * A header value and the time from which it is no longer handed out.
+     */
+    private static class CachedHeader
+    {
+        private final String value;
+        private final long   refreshAt;
+        
+        CachedHeader( String value, long refreshAt )
+        {
+            this.value = value;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
\ No newline at end of file
@@ -42,6 +42,20 @@ public class CallbackSVAuthenticator extends SenderVouchesAuthenticator
         this.userIdCallback = userIdCallback;
     }
     
+    /**
+     * Creates a new {@link CallbackSVAuthenticator} with the specified callback that takes its tokens from a minting service.
+     * 
+     * @param userIdCallback
+     *            the callback to determine the current user
+     * @param mintingService
+     *            the service keeping signed SV-tokens ready
+     */
+    public CallbackSVAuthenticator( UserIdCallback userIdCallback, TokenMintingService mintingService )
+    {
+        this( userIdCallback, mintingService.getSigner() );
+        setMintingService( mintingService );
+    }
+    
     @Override
     protected String currentUser()
     {
@@ -0,0 +1,74 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import org.apache.http.protocol.HttpContext;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.SenderVouchesAuthenticator;
+
+/**
+ * A {@link SenderVouchesAuthenticator} that takes the current user from the {@link HttpContext} of each request.
+ * 
+ * <p>
+ * The user is assigned to the context the request is executed with, see {@link #assignUser(HttpContext, String)}. Unlike a
+ * {@link ThreadLocalSVAuthenticator}, requests of different users can be sent from the same threads, handed over to other threads or
+ * executed asynchronously, nothing has to be detached afterwards.
+ * </p>
+ */
+public class ContextSVAuthenticator extends SenderVouchesAuthenticator
+{
+    /**
+     * The context attribute holding the user id.
+     */
+    public static final String USER_ID = ContextSVAuthenticator.class.getName() + ".USER_ID";
+    
+    /**
+     * @param signer
+     *            the signer to create signed SV-tokens
+     */
+    public ContextSVAuthenticator( TokenSigner signer )
+    {
+        super( null, signer );
+    }
+    
+    /**
+     * @param mintingService
+     *            the service keeping signed SV-tokens ready
+     */
+    public ContextSVAuthenticator( TokenMintingService mintingService )
+    {
+        this( mintingService.getSigner() );
+        setMintingService( mintingService );
+    }
+    
+    /**
+     * Assign the user to the given context, the requests executed with it are sent on behalf of the user.
+     * 
+     * @param context
+     *            the context
+     * @param userId
+     *            the user id
+     */
+    public static void assignUser( HttpContext context, String userId )
+    {
+        context.setAttribute( USER_ID, userId );
+    }
+    
+    @Override
+    protected String currentUser( HttpContext context )
+    {
+        Object userId = context != null ? context.getAttribute( USER_ID ) : null;
+        if ( userId instanceof String )
+        {
+            return (String) userId;
+        }
+        else
+        {
+            throw new IllegalStateException( "no userId assigned to the request context" );
+        }
+    }
+    
+    @Override
+    protected String currentUser()
+    {
+        return currentUser( null );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,564 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERGeneralizedTime;
+import org.bouncycastle.asn1.x500.DirectoryString;
+import org.bouncycastle.asn1.x509.IssuerSerial;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.Signer;
+
+/**
+ * A read-only view of an encoded {@link SignedToken} that does not copy the received bytes.
+ * 
+ * <p>
+ * Wrapping a token only checks its structure and records where its parts are located. The fields are decoded on first access, and the
+ * signature is verified over the encoded token data exactly as received, so it does not depend on the data being re-encoded identically.
+ * The underlying bytes must not be modified while the view is in use.
+ * </p>
+ */
+public final class SignedTokenView
+{
+    private static final int      SEQUENCE          = 0x30;
+    private static final int      OCTET_STRING      = 0x04;
+    private static final int      GENERALIZED_TIME  = 0x18;
+    private static final int      TAGGED_0          = 0xA0;
+    private static final int      UTF8_STRING       = 0x0C;
+    private static final int      PRINTABLE_STRING  = 0x13;
+    private static final int      TELETEX_STRING    = 0x14;
+    private static final int      BMP_STRING        = 0x1E;
+    
+    private final ByteBuffer      buffer;
+    private final int             start;
+    private final int             end;
+    private final int             dataStart;
+    private final int             dataEnd;
+    private final int             idStart;
+    private final int             rolesStart;
+    private final int             validFromStart;
+    private final int             validUntilStart;
+    private final int             signerStart;
+    private final int             signerEnd;
+    private final int             signatureStart;
+    private final int             signatureEnd;
+    
+    private volatile String       id;
+    private volatile Set<Role>    roles;
+    private volatile IssuerSerial signer;
+    private volatile long         validFrom         = Long.MIN_VALUE;
+    private volatile long         validUntil        = Long.MIN_VALUE;
+    
+    private SignedTokenView( ByteBuffer buffer, int start, int end ) throws ParseException
+    {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        
+        expect( start, SEQUENCE );
+        if ( end( start ) != end )
+        {
+            throw new ParseException( "unexpected data after token", end( start ) - start );
+        }
+        
+        dataStart = content( start );
+        expect( dataStart, SEQUENCE );
+        dataEnd = end( dataStart );
+        
+        idStart = content( dataStart );
+        int pos = end( idStart );
+        if ( tag( pos ) == TAGGED_0 )
+        {
+            rolesStart = pos;
+            pos = end( pos );
+        }
+        else
+        {
+            rolesStart = -1;
+        }
+        validFromStart = pos;
+        expect( validFromStart, GENERALIZED_TIME );
+        validUntilStart = end( validFromStart );
+        expect( validUntilStart, GENERALIZED_TIME );
+        if ( end( validUntilStart ) != dataEnd )
+        {
+            throw new ParseException( "unexpected data in token data", end( validUntilStart ) - start );
+        }
+        
+        signerStart = dataEnd;
+        expect( signerStart, SEQUENCE );
+        signerEnd = end( signerStart );
+        expect( signerEnd, SEQUENCE );
+        int signatureTag = end( signerEnd );
+        expect( signatureTag, OCTET_STRING );
+        signatureStart = content( signatureTag );
+        signatureEnd = end( signatureTag );
+        if ( signatureEnd != end )
+        {
+            throw new ParseException( "unexpected data after signature", signatureEnd - start );
+        }
+    }
+    
+    /**
+     * Create a view of the encoded token.
+     * 
+     * @param encodedToken
+     *            the DER encoded token
+     * @return the view
+     * @throws ParseException
+     *             if the token is malformed
+     */
+    public static SignedTokenView wrap( byte[] encodedToken ) throws ParseException
+    {
+        return wrap( ByteBuffer.wrap( encodedToken ) );
+    }
+    
+    /**
+     * Create a view of the encoded token between the position and the limit of the buffer. The position and limit of the buffer are not
+     * changed.
+     * 
+     * @param encodedToken
+     *            the buffer holding the DER encoded token
+     * @return the view
+     * @throws ParseException
+     *             if the token is malformed
+     */
+    public static SignedTokenView wrap( ByteBuffer encodedToken ) throws ParseException
+    {
+        return new SignedTokenView( encodedToken.duplicate(), encodedToken.position(), encodedToken.limit() );
+    }
+    
+    /**
+     * Get the user id.
+     * 
+     * @return the id
+     * @throws ParseException
+     *             if the id is malformed
+     */
+    public String getId() throws ParseException
+    {
+        String id = this.id;
+        if ( id == null )
+        {
+            id = decodeString( idStart );
+            this.id = id;
+        }
+        return id;
+    }
+    
+    /**
+     * Get the roles.
+     * 
+     * @return the roles
+     * @throws ParseException
+     *             if the roles are malformed
+     */
+    public Set<Role> getRoles() throws ParseException
+    {
+        Set<Role> roles = this.roles;
+        if ( roles == null )
+        {
+            roles = rolesStart < 0 ? Collections.<Role> emptySet() : parseRoles( rolesStart );
+            this.roles = roles;
+        }
+        return roles;
+    }
+    
+    /**
+     * Get the start of the token validity.
+     * 
+     * @return the validFrom in milliseconds since the epoch
+     * @throws ParseException
+     *             if the time is malformed
+     */
+    public long getValidFrom() throws ParseException
+    {
+        long validFrom = this.validFrom;
+        if ( validFrom == Long.MIN_VALUE )
+        {
+            validFrom = decodeTime( validFromStart );
+            this.validFrom = validFrom;
+        }
+        return validFrom;
+    }
+    
+    /**
+     * Get the end of the token validity.
+     * 
+     * @return the validUntil in milliseconds since the epoch
+     * @throws ParseException
+     *             if the time is malformed
+     */
+    public long getValidUntil() throws ParseException
+    {
+        long validUntil = this.validUntil;
+        if ( validUntil == Long.MIN_VALUE )
+        {
+            validUntil = decodeTime( validUntilStart );
+            this.validUntil = validUntil;
+        }
+        return validUntil;
+    }
+    
+    /**
+     * Get the issuer and serial number of the signer certificate.
+     * 
+     * @return the signer
+     * @throws ParseException
+     *             if the signer is malformed
+     */
+    public IssuerSerial getSigner() throws ParseException
+    {
+        IssuerSerial signer = this.signer;
+        if ( signer == null )
+        {
+            try
+            {
+                signer = IssuerSerial.getInstance( decode( signerStart ) );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                throw parseException( "malformed signer", signerStart, e );
+            }
+            this.signer = signer;
+        }
+        return signer;
+    }
+    
+    /**
+     * Return a copy of the signature.
+     * 
+     * @return the signature
+     */
+    public byte[] getSignature()
+    {
+        return copy( signatureStart, signatureEnd );
+    }
+    
+    /**
+     * Return a copy of the whole encoded token.
+     * 
+     * @return the encoded token
+     */
+    public byte[] getEncoded()
+    {
+        return copy( start, end );
+    }
+    
+    /**
+     * Decode the whole token.
+     * 
+     * @return the decoded token
+     * @throws ParseException
+     *             if the token is malformed
+     */
+    public SignedToken toSignedToken() throws ParseException
+    {
+        try
+        {
+            return SignedToken.parse( ASN1Sequence.getInstance( decode( start ) ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw parseException( "malformed token", start, e );
+        }
+    }
+    
+    /**
+     * Feed the encoded token data into the signer verifying the token.
+     */
+    void updateSignedData( Signer verifier )
+    {
+        if ( buffer.hasArray() )
+        {
+            verifier.update( buffer.array(), buffer.arrayOffset() + dataStart, dataEnd - dataStart );
+        }
+        else
+        {
+            byte[] data = copy( dataStart, dataEnd );
+            verifier.update( data, 0, data.length );
+        }
+    }
+    
+    /**
+     * Feed the whole encoded token into the digest.
+     */
+    void updateEncoded( Digest digest )
+    {
+        update( digest, start, end );
+    }
+    
+    @Override
+    public String toString()
+    {
+        ToStringBuilder builder = new ToStringBuilder( this, ToStringStyle.SHORT_PREFIX_STYLE );
+        try
+        {
+            builder.append( "id", getId() ).append( "validFrom", new Date( getValidFrom() ) ).append( "validUntil", new Date( getValidUntil() ) );
+        }
+        catch ( ParseException e )
+        {
+            builder.append( "malformed", e.getMessage() );
+        }
+        return builder.toString();
+    }
+    
+    private void update( Digest digest, int from, int to )
+    {
+        if ( buffer.hasArray() )
+        {
+            digest.update( buffer.array(), buffer.arrayOffset() + from, to - from );
+        }
+        else
+        {
+            byte[] chunk = new byte[Math.min( 512, to - from )];
+            for ( int pos = from; pos < to; pos += chunk.length )
+            {
+                int length = Math.min( chunk.length, to - pos );
+                for ( int i = 0; i < length; i++ )
+                {
+                    chunk[i] = buffer.get( pos + i );
+                }
+                digest.update( chunk, 0, length );
+            }
+        }
+    }
+    
+    private Set<Role> parseRoles( int pos ) throws ParseException
+    {
+        try
+        {
+            return TokenData.parseRoles( decode( pos ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw parseException( "malformed roles", pos, e );
+        }
+    }
+    
+    private String decodeString( int pos ) throws ParseException
+    {
+        int from = content( pos );
+        int to = end( pos );
+        try
+        {
+            switch ( tag( pos ) )
+            {
+                case UTF8_STRING:
+                    return string( from, to, "UTF-8" );
+                case PRINTABLE_STRING:
+                case TELETEX_STRING:
+                    return string( from, to, "ISO-8859-1" );
+                case BMP_STRING:
+                    return string( from, to, "UTF-16BE" );
+                default:
+                    return DirectoryString.getInstance( decode( pos ) ).getString();
+            }
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw parseException( "malformed id", pos, e );
+        }
+    }
+    
+    private String string( int from, int to, String charset )
+    {
+        try
+        {
+            if ( buffer.hasArray() )
+            {
+                return new String( buffer.array(), buffer.arrayOffset() + from, to - from, charset );
+            }
+            return new String( copy( from, to ), charset );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            // all used charsets are supported by every JRE
+            throw new IllegalStateException( e );
+        }
+    }
+    
+    /**
+     * Decode a GeneralizedTime in UTC, falling back to BouncyCastle for local times and time zone offsets.
+     */
+    private long decodeTime( int pos ) throws ParseException
+    {
+        int from = content( pos );
+        int to = end( pos );
+        if ( to - from >= 15 && buffer.get( to - 1 ) == 'Z' )
+        {
+            int year = digits( from, 4 );
+            int month = digits( from + 4, 2 );
+            int day = digits( from + 6, 2 );
+            int hour = digits( from + 8, 2 );
+            int minute = digits( from + 10, 2 );
+            int second = digits( from + 12, 2 );
+            
+            int millis = 0;
+            int fraction = from + 14;
+            if ( fraction < to - 1 && (buffer.get( fraction ) == '.' || buffer.get( fraction ) == ',') )
+            {
+                int scale = 100;
+                for ( int i = fraction + 1; i < to - 1; i++ )
+                {
+                    millis += digits( i, 1 ) * scale;
+                    scale /= 10;
+                }
+                fraction = to - 1;
+            }
+            
+            if ( fraction == to - 1 && year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour >= 0 && hour < 24
+                    && minute >= 0 && minute < 60 && second >= 0 && second < 60 )
+            {
+                return (((daysSinceEpoch( year, month, day ) * 24 + hour) * 60 + minute) * 60 + second) * 1000L + millis;
+            }
+        }
+        
+        try
+        {
+            return DERGeneralizedTime.getInstance( decode( pos ) ).getDate().getTime();
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw parseException( "malformed time", pos, e );
+        }
+    }
+    
+    private int digits( int pos, int count )
+    {
+        int value = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            int digit = buffer.get( pos + i ) - '0';
+            if ( digit < 0 || digit > 9 )
+            {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    
+    /**
+     * The number of days from 1970-01-01 to the given date of the proleptic Gregorian calendar.
+     */
+    private static long daysSinceEpoch( int year, int month, int day )
+    {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+    
+    private ASN1Object decode( int pos ) throws ParseException
+    {
+        try
+        {
+            return ASN1Object.fromByteArray( copy( pos, end( pos ) ) );
+        }
+        catch ( IOException e )
+        {
+            throw parseException( "malformed element", pos, e );
+        }
+    }
+    
+    private byte[] copy( int from, int to )
+    {
+        byte[] copy = new byte[to - from];
+        for ( int i = 0; i < copy.length; i++ )
+        {
+            copy[i] = buffer.get( from + i );
+        }
+        return copy;
+    }
+    
+    private void expect( int pos, int tag ) throws ParseException
+    {
+        if ( tag( pos ) != tag )
+        {
+            throw new ParseException( "expected tag 0x" + Integer.toHexString( tag ) + " but was 0x" + Integer.toHexString( tag( pos ) ),
+                    pos - start );
+        }
+    }
+    
+    private int tag( int pos ) throws ParseException
+    {
+        if ( pos >= end )
+        {
+            throw new ParseException( "token truncated", pos - start );
+        }
+        return buffer.get( pos ) & 0xFF;
+    }
+    
+    /**
+     * Return the offset of the content of the element at {@code pos}.
+     */
+    private int content( int pos ) throws ParseException
+    {
+        tag( pos );
+        int first = lengthByte( pos + 1 );
+        return first < 0x80 ? pos + 2 : pos + 2 + (first & 0x7F);
+    }
+    
+    /**
+     * Return the offset behind the element at {@code pos}.
+     */
+    private int end( int pos ) throws ParseException
+    {
+        tag( pos );
+        int first = lengthByte( pos + 1 );
+        long length;
+        int content;
+        if ( first < 0x80 )
+        {
+            length = first;
+            content = pos + 2;
+        }
+        else
+        {
+            int count = first & 0x7F;
+            if ( count == 0 || count > 4 )
+            {
+                throw new ParseException( "unsupported length encoding", pos + 1 - start );
+            }
+            length = 0;
+            for ( int i = 0; i < count; i++ )
+            {
+                length = length << 8 | lengthByte( pos + 2 + i );
+            }
+            content = pos + 2 + count;
+        }
+        if ( content + length > end )
+        {
+            throw new ParseException( "token truncated", pos - start );
+        }
+        return (int) (content + length);
+    }
+    
+    private int lengthByte( int pos ) throws ParseException
+    {
+        if ( pos >= end )
+        {
+            throw new ParseException( "token truncated", pos - start );
+        }
+        return buffer.get( pos ) & 0xFF;
+    }
+    
+    private ParseException parseException( String message, int pos, Exception cause )
+    {
+        ParseException e = new ParseException( message + ": " + cause.getMessage(), pos - start );
+        e.initCause( cause );
+        return e;
+    }
+}
\ No newline at end of file
@@ -1,10 +1,18 @@
 package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
 
+import java.util.concurrent.Callable;
+
 import de.tudarmstadt.ukp.shibhttpclient.authentication.SenderVouchesAuthenticator;
 
 /**
  * A {@link SenderVouchesAuthenticator} that stores the current user in a {@link ThreadLocal}.
  * 
+ * <p>
+ * The assignment of a thread is shared by all instances, so a user assigned through one authenticator is seen by the others as well.
+ * Threads that are reused for tasks of different users, e.g. those of a pool, must detach the user after each task;
+ * {@link #callAs(String, Callable)} does so. Virtual threads usually run a single task and hold the assignment only as long as they live.
+ * </p>
+ * 
  * @author fichtelmannm
  *
  */
@@ -21,6 +29,16 @@ public class ThreadLocalSVAuthenticator extends SenderVouchesAuthenticator
         super( null, signer );
     }
     
+    /**
+     * @param mintingService
+     *            the service keeping signed SV-tokens ready
+     */
+    public ThreadLocalSVAuthenticator( TokenMintingService mintingService )
+    {
+        this( mintingService.getSigner() );
+        setMintingService( mintingService );
+    }
+    
     /**
      * Assign the current user for this thread.
      * 
@@ -40,6 +58,40 @@ public class ThreadLocalSVAuthenticator extends SenderVouchesAuthenticator
         currentUser.remove();
     }
     
+    /**
+     * Run a task as the given user on the current thread and restore the previous assignment afterwards, even if the task fails.
+     * 
+     * @param <T>
+     *            the type of the result
+     * @param userId
+     *            the user id
+     * @param task
+     *            the task, e.g. sending requests with a client using this authenticator
+     * @return the result of the task
+     * @throws Exception
+     *             if the task fails
+     */
+    public <T> T callAs( String userId, Callable<T> task ) throws Exception
+    {
+        String previous = currentUser.get();
+        currentUser.set( userId );
+        try
+        {
+            return task.call();
+        }
+        finally
+        {
+            if ( previous != null )
+            {
+                currentUser.set( previous );
+            }
+            else
+            {
+                currentUser.remove();
+            }
+        }
+    }
+    
     @Override
     protected String currentUser()
     {
@@ -113,7 +113,7 @@ public class TokenData implements DEREncodable
         return new TokenData( id, roles, validFrom, validUntil );
     }
     
-    private static Set<Role> parseRoles( DEREncodable secondObject )
+    static Set<Role> parseRoles( DEREncodable secondObject )
     {
         Set<Role> roles;
         ASN1TaggedObject encodedRoles = (ASN1TaggedObject) secondObject;
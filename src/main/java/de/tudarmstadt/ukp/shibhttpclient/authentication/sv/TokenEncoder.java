@@ -0,0 +1,500 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.DEREncodable;
+import org.bouncycastle.asn1.DERGeneralizedTime;
+
+import de.tudarmstadt.ukp.shibhttpclient.Utils;
+
+/**
+ * Writes the DER encoding of {@link TokenData} and {@link SignedToken} directly into a reusable buffer of the current thread, without
+ * building the BouncyCastle object graph of {@link DEREncodable#getDERObject()}. The output is byte-identical to
+ * {@code getDERObject().getDEREncoded()}, including the order of the role set.
+ */
+public final class TokenEncoder
+{
+    private static final int                      SEQUENCE          = 0x30;
+    private static final int                      SET               = 0x31;
+    private static final int                      OCTET_STRING      = 0x04;
+    private static final int                      UTF8_STRING       = 0x0C;
+    private static final int                      GENERALIZED_TIME  = 0x18;
+    private static final int                      TAGGED            = 0xA0;
+    
+    // yyyyMMddHHmmssZ
+    private static final int                      TIME_LENGTH       = 15;
+    
+    // buffers that grew larger are not kept by the thread
+    private static final int                      MAX_CACHED_BUFFER = 64 * 1024;
+    
+    private static final ThreadLocal<Buffer>      BUFFER            = new ThreadLocal<Buffer>();
+    
+    private static final Comparator<byte[]>       DER_SET_ORDER     = new Comparator<byte[]>()
+                                                                    {
+                                                                        @Override
+                                                                        public int compare( byte[] a, byte[] b )
+                                                                        {
+                                                                            int length = Math.min( a.length, b.length );
+                                                                            for ( int i = 0; i < length; i++ )
+                                                                            {
+                                                                                if ( a[i] != b[i] )
+                                                                                {
+                                                                                    return (a[i] & 0xFF) - (b[i] & 0xFF);
+                                                                                }
+                                                                            }
+                                                                            return a.length - b.length;
+                                                                        }
+                                                                    };
+    
+    private static volatile Memo                  signerMemo;
+    private static volatile Memo                  algorithmMemo;
+    
+    private TokenEncoder()
+    {
+        // No instances
+    }
+    
+    /**
+     * Return the DER encoding of the token data.
+     * 
+     * @param data
+     *            the token data
+     * @return the encoded token data
+     */
+    public static byte[] encode( TokenData data )
+    {
+        return encodeData( data ).toByteArray();
+    }
+    
+    /**
+     * Return the DER encoding of the token.
+     * 
+     * @param token
+     *            the token
+     * @return the encoded token
+     */
+    public static byte[] encode( SignedToken token )
+    {
+        return encodeToken( token ).toByteArray();
+    }
+    
+    /**
+     * Return the Base64 encoded DER encoding of the token behind a prefix.
+     * 
+     * @param prefix
+     *            the text preceding the encoded token
+     * @param token
+     *            the token
+     * @return the prefix followed by the encoded token
+     */
+    public static String base64( String prefix, SignedToken token )
+    {
+        Buffer buffer = encodeToken( token );
+        return Utils.base64( prefix, buffer.bytes, 0, buffer.length );
+    }
+    
+    /**
+     * Encode the token data into the buffer of the current thread, which is valid until the next call on this thread.
+     */
+    static Buffer encodeData( TokenData data )
+    {
+        List<byte[]> roles = encodeRoles( data );
+        int content = dataContentLength( data, roles );
+        
+        Buffer buffer = buffer( elementLength( content ) );
+        writeData( buffer, data, content, roles );
+        return buffer;
+    }
+    
+    /**
+     * Encode the token into the buffer of the current thread, which is valid until the next call on this thread.
+     */
+    static Buffer encodeToken( SignedToken token )
+    {
+        List<byte[]> roles = encodeRoles( token.getData() );
+        int dataContent = dataContentLength( token.getData(), roles );
+        byte[] signer = memoized( token.getSigner(), true );
+        byte[] algorithm = memoized( token.getSignatureAlgorithm(), false );
+        byte[] signature = token.getSignature();
+        
+        int content = elementLength( dataContent ) + signer.length + algorithm.length + elementLength( signature.length );
+        
+        Buffer buffer = buffer( elementLength( content ) );
+        buffer.header( SEQUENCE, content );
+        writeData( buffer, token.getData(), dataContent, roles );
+        buffer.write( signer );
+        buffer.write( algorithm );
+        buffer.header( OCTET_STRING, signature.length );
+        buffer.write( signature );
+        return buffer;
+    }
+    
+    private static void writeData( Buffer buffer, TokenData data, int content, List<byte[]> roles )
+    {
+        buffer.header( SEQUENCE, content );
+        buffer.utf8String( data.getId() );
+        if ( !roles.isEmpty() )
+        {
+            int setContent = 0;
+            for ( byte[] role : roles )
+            {
+                setContent += role.length;
+            }
+            buffer.header( TAGGED, elementLength( setContent ) );
+            buffer.header( SET, setContent );
+            for ( byte[] role : roles )
+            {
+                buffer.write( role );
+            }
+        }
+        buffer.time( data.getValidFrom() );
+        buffer.time( data.getValidUntil() );
+    }
+    
+    private static int dataContentLength( TokenData data, List<byte[]> roles )
+    {
+        int length = elementLength( utf8Length( data.getId() ) );
+        if ( !roles.isEmpty() )
+        {
+            int setContent = 0;
+            for ( byte[] role : roles )
+            {
+                setContent += role.length;
+            }
+            length += elementLength( elementLength( setContent ) );
+        }
+        return length + timeLength( data.getValidFrom() ) + timeLength( data.getValidUntil() );
+    }
+    
+    /**
+     * Encode the roles in the order of a DER set.
+     */
+    private static List<byte[]> encodeRoles( TokenData data )
+    {
+        if ( data.getRoles().isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+        
+        List<byte[]> roles = new ArrayList<byte[]>( data.getRoles().size() );
+        for ( Role role : data.getRoles() )
+        {
+            int content = elementLength( utf8Length( role.getName() ) );
+            if ( role.getApplication() != null )
+            {
+                content += elementLength( elementLength( utf8Length( role.getApplication() ) ) );
+            }
+            if ( role.getContext() != null )
+            {
+                content += elementLength( elementLength( utf8Length( role.getContext() ) ) );
+            }
+            
+            Buffer buffer = new Buffer( elementLength( content ) );
+            buffer.header( SEQUENCE, content );
+            buffer.utf8String( role.getName() );
+            if ( role.getApplication() != null )
+            {
+                buffer.header( TAGGED, elementLength( utf8Length( role.getApplication() ) ) );
+                buffer.utf8String( role.getApplication() );
+            }
+            if ( role.getContext() != null )
+            {
+                buffer.header( TAGGED | 1, elementLength( utf8Length( role.getContext() ) ) );
+                buffer.utf8String( role.getContext() );
+            }
+            roles.add( buffer.bytes );
+        }
+        Collections.sort( roles, DER_SET_ORDER );
+        return roles;
+    }
+    
+    private static Buffer buffer( int capacity )
+    {
+        Buffer buffer = BUFFER.get();
+        if ( buffer == null || buffer.bytes.length < capacity )
+        {
+            buffer = new Buffer( capacity );
+            if ( capacity <= MAX_CACHED_BUFFER )
+            {
+                BUFFER.set( buffer );
+            }
+        }
+        buffer.length = 0;
+        return buffer;
+    }
+    
+    /**
+     * Return the DER encoding of an element that is usually the same instance for all tokens of a signer.
+     */
+    private static byte[] memoized( DEREncodable object, boolean signer )
+    {
+        Memo memo = signer ? signerMemo : algorithmMemo;
+        if ( memo != null && memo.object == object )
+        {
+            return memo.encoded;
+        }
+        
+        memo = new Memo( object, object.getDERObject().getDEREncoded() );
+        if ( signer )
+        {
+            signerMemo = memo;
+        }
+        else
+        {
+            algorithmMemo = memo;
+        }
+        return memo.encoded;
+    }
+    
+    /**
+     * Return the length of an element with the given content length, including tag and length octets.
+     */
+    private static int elementLength( int contentLength )
+    {
+        return 1 + lengthOctets( contentLength ) + contentLength;
+    }
+    
+    private static int lengthOctets( int length )
+    {
+        if ( length < 0x80 )
+        {
+            return 1;
+        }
+        int octets = 1;
+        for ( int l = length; l != 0; l >>>= 8 )
+        {
+            octets++;
+        }
+        return octets;
+    }
+    
+    private static int utf8Length( String s )
+    {
+        int length = 0;
+        for ( int i = 0; i < s.length(); i++ )
+        {
+            char c = s.charAt( i );
+            if ( c < 0x80 )
+            {
+                length += 1;
+            }
+            else if ( c < 0x800 )
+            {
+                length += 2;
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < s.length() && Character.isLowSurrogate( s.charAt( i + 1 ) ) )
+            {
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+    
+    private static int timeLength( Date date )
+    {
+        return fastTime( date ) ? elementLength( TIME_LENGTH ) : date( date ).length;
+    }
+    
+    /**
+     * Whether the time can be formatted without a calendar. Earlier dates depend on the Julian calendar of {@link DERGeneralizedTime}.
+     */
+    private static boolean fastTime( Date date )
+    {
+        long time = date.getTime();
+        // 1600-01-01 and 10000-01-01
+        return time >= -11676096000000L && time < 253402300800000L;
+    }
+    
+    private static byte[] date( Date date )
+    {
+        return new DERGeneralizedTime( date ).getDEREncoded();
+    }
+    
+    /**
+     * A growable byte array.
+     */
+    static final class Buffer
+    {
+        private byte[] bytes;
+        private int    length;
+        
+        Buffer( int capacity )
+        {
+            this.bytes = new byte[capacity];
+        }
+        
+        /**
+         * Get the bytes, valid up to {@link #getLength()}.
+         * 
+         * @return the bytes
+         */
+        byte[] getBytes()
+        {
+            return bytes;
+        }
+        
+        /**
+         * Get the length.
+         * 
+         * @return the length
+         */
+        int getLength()
+        {
+            return length;
+        }
+        
+        byte[] toByteArray()
+        {
+            byte[] copy = new byte[length];
+            System.arraycopy( bytes, 0, copy, 0, length );
+            return copy;
+        }
+        
+        private void ensure( int additional )
+        {
+            if ( length + additional > bytes.length )
+            {
+                byte[] grown = new byte[Math.max( bytes.length * 2, length + additional )];
+                System.arraycopy( bytes, 0, grown, 0, length );
+                bytes = grown;
+            }
+        }
+        
+        private void write( byte[] b )
+        {
+            ensure( b.length );
+            System.arraycopy( b, 0, bytes, length, b.length );
+            length += b.length;
+        }
+        
+        private void header( int tag, int contentLength )
+        {
+            int octets = lengthOctets( contentLength );
+            ensure( 1 + octets );
+            bytes[length++] = (byte) tag;
+            if ( octets == 1 )
+            {
+                bytes[length++] = (byte) contentLength;
+            }
+            else
+            {
+                bytes[length++] = (byte) (0x80 | (octets - 1));
+                for ( int shift = (octets - 2) * 8; shift >= 0; shift -= 8 )
+                {
+                    bytes[length++] = (byte) (contentLength >>> shift);
+                }
+            }
+        }
+        
+        private void utf8String( String s )
+        {
+            int utf8Length = utf8Length( s );
+            header( UTF8_STRING, utf8Length );
+            ensure( utf8Length );
+            for ( int i = 0; i < s.length(); i++ )
+            {
+                char c = s.charAt( i );
+                if ( c < 0x80 )
+                {
+                    bytes[length++] = (byte) c;
+                }
+                else if ( c < 0x800 )
+                {
+                    bytes[length++] = (byte) (0xC0 | c >> 6);
+                    bytes[length++] = (byte) (0x80 | c & 0x3F);
+                }
+                else if ( Character.isHighSurrogate( c ) && i + 1 < s.length() && Character.isLowSurrogate( s.charAt( i + 1 ) ) )
+                {
+                    int codePoint = Character.toCodePoint( c, s.charAt( ++i ) );
+                    bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+                }
+                else
+                {
+                    bytes[length++] = (byte) (0xE0 | c >> 12);
+                    bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+        }
+        
+        /**
+         * Write a GeneralizedTime in UTC with second precision.
+         */
+        private void time( Date date )
+        {
+            if ( !fastTime( date ) )
+            {
+                write( date( date ) );
+                return;
+            }
+            
+            long seconds = floorDiv( date.getTime(), 1000 );
+            long days = floorDiv( seconds, 86400 );
+            int secondOfDay = (int) (seconds - days * 86400);
+            
+            // civil date of the proleptic Gregorian calendar
+            long z = days + 719468;
+            long era = floorDiv( z, 146097 );
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long mp = (5 * dayOfYear + 2) / 153;
+            int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+            int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+            int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+            
+            header( GENERALIZED_TIME, TIME_LENGTH );
+            ensure( TIME_LENGTH );
+            digits( year, 4 );
+            digits( month, 2 );
+            digits( day, 2 );
+            digits( secondOfDay / 3600, 2 );
+            digits( secondOfDay / 60 % 60, 2 );
+            digits( secondOfDay % 60, 2 );
+            bytes[length++] = 'Z';
+        }
+        
+        private void digits( int value, int count )
+        {
+            for ( int i = count - 1; i >= 0; i-- )
+            {
+                bytes[length + i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += count;
+        }
+        
+        private static long floorDiv( long x, long y )
+        {
+            long q = x / y;
+            return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+        }
+    }
+    
+    /**
+     * An element and its encoding.
+     */
+    private static final class Memo
+    {
+        private final DEREncodable object;
+        private final byte[]       encoded;
+        
+        Memo( DEREncodable object, byte[] encoded )
+        {
+            this.object = object;
+            this.encoded = encoded;
+        }
+    }
+}
\ No newline at end of file
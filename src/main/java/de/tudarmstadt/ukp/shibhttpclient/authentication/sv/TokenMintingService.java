@@ -0,0 +1,278 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import java.io.Closeable;
+import java.security.SignatureException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps signed Sender-vouches tokens ready for recently active and registered users, so authenticators do not have to sign tokens while a
+ * request is waiting.
+ * 
+ * <p>
+ * Tokens are signed by background threads of the service. The {@code validFrom} of each token lies {@code backdate} in the past to
+ * tolerate clock skew between the services, and tokens are replaced {@code refreshMargin} before they expire. Users that are neither
+ * registered nor asked for within {@code idleTimeout} are dropped at their next refresh.
+ * </p>
+ */
+public class TokenMintingService implements Closeable
+{
+    /**
+     * The validity of tokens unless configured otherwise.
+     */
+    public static final long                   DEFAULT_TOKEN_LIFETIME = 60000L;
+    
+    /**
+     * The time by which {@code validFrom} is moved into the past unless configured otherwise.
+     */
+    public static final long                   DEFAULT_BACKDATE       = 5000L;
+    
+    /**
+     * The time before their expiry at which tokens are replaced unless configured otherwise.
+     */
+    public static final long                   DEFAULT_REFRESH_MARGIN = 20000L;
+    
+    /**
+     * The time after which users that have not been asked for are dropped unless configured otherwise.
+     */
+    public static final long                   DEFAULT_IDLE_TIMEOUT   = 600000L;
+    
+    private final Log                          log                    = LogFactory.getLog( getClass() );
+    
+    private final ConcurrentMap<String, Entry> entries                = new ConcurrentHashMap<String, Entry>();
+    
+    private final TokenSigner                  signer;
+    private final long                         tokenLifetime;
+    private final long                         backdate;
+    private final long                         refreshMargin;
+    private final long                         idleTimeout;
+    private final ScheduledThreadPoolExecutor  executor;
+    
+    /**
+     * Create a new {@link TokenMintingService} with the default timings and a single background thread.
+     * 
+     * @param signer
+     *            the signer to create signed SV-tokens
+     */
+    public TokenMintingService( TokenSigner signer )
+    {
+        this( signer, DEFAULT_TOKEN_LIFETIME, DEFAULT_BACKDATE, DEFAULT_REFRESH_MARGIN, DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS, 1 );
+    }
+    
+    /**
+     * Create a new {@link TokenMintingService}.
+     * 
+     * @param signer
+     *            the signer to create signed SV-tokens
+     * @param tokenLifetime
+     *            the time from the creation of a token until it expires
+     * @param backdate
+     *            the time by which {@code validFrom} is moved into the past
+     * @param refreshMargin
+     *            the time before their expiry at which tokens are replaced, must be shorter than {@code tokenLifetime}
+     * @param idleTimeout
+     *            the time after which users that have not been asked for are dropped
+     * @param unit
+     *            the unit of the times
+     * @param threads
+     *            the number of background threads signing tokens
+     */
+    public TokenMintingService( TokenSigner signer, long tokenLifetime, long backdate, long refreshMargin, long idleTimeout,
+            TimeUnit unit, int threads )
+    {
+        if ( refreshMargin >= tokenLifetime )
+        {
+            throw new IllegalArgumentException( "refreshMargin must be shorter than tokenLifetime" );
+        }
+        this.signer = signer;
+        this.tokenLifetime = unit.toMillis( tokenLifetime );
+        this.backdate = unit.toMillis( backdate );
+        this.refreshMargin = unit.toMillis( refreshMargin );
+        this.idleTimeout = unit.toMillis( idleTimeout );
+        this.executor = new ScheduledThreadPoolExecutor( threads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "shib-token-minter-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+    
+    /**
+     * Keep a token ready for the user until it is {@link #unregister(String) unregistered}, regardless of how often it is asked for.
+     * 
+     * @param userId
+     *            the user id
+     */
+    public void register( String userId )
+    {
+        entry( userId ).registered = true;
+    }
+    
+    /**
+     * Stop keeping a token ready for the user unless it is asked for regularly.
+     * 
+     * @param userId
+     *            the user id
+     */
+    public void unregister( String userId )
+    {
+        Entry entry = entries.get( userId );
+        if ( entry != null )
+        {
+            entry.registered = false;
+        }
+    }
+    
+    /**
+     * Return the ready token of the user and mark the user as active. If there is none yet, it is signed in the background and
+     * {@code null} is returned, so the caller has to sign the token itself this time.
+     * 
+     * @param userId
+     *            the user id
+     * @return the token, {@code null} if there is no valid token yet
+     */
+    public SignedToken getToken( String userId )
+    {
+        Entry entry = entry( userId );
+        entry.lastAccess = System.currentTimeMillis();
+        
+        SignedToken token = entry.token;
+        if ( token != null && entry.lastAccess < token.getData().getValidUntil().getTime() )
+        {
+            return token;
+        }
+        return null;
+    }
+    
+    /**
+     * Mark the user as active without retrieving its token.
+     * 
+     * @param userId
+     *            the user id
+     */
+    public void touch( String userId )
+    {
+        entry( userId ).lastAccess = System.currentTimeMillis();
+    }
+    
+    /**
+     * Get the signer.
+     * 
+     * @return the signer
+     */
+    public TokenSigner getSigner()
+    {
+        return signer;
+    }
+    
+    /**
+     * Get the refreshMargin in milliseconds.
+     * 
+     * @return the refreshMargin
+     */
+    public long getRefreshMargin()
+    {
+        return refreshMargin;
+    }
+    
+    /**
+     * Stop signing tokens, discard the ready ones and release the background threads.
+     */
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+        entries.clear();
+    }
+    
+    private Entry entry( String userId )
+    {
+        Entry entry = entries.get( userId );
+        if ( entry == null )
+        {
+            Entry created = new Entry( userId );
+            entry = entries.putIfAbsent( userId, created );
+            if ( entry == null )
+            {
+                entry = created;
+                schedule( entry, 0 );
+            }
+        }
+        return entry;
+    }
+    
+    private void schedule( final Entry entry, long delay )
+    {
+        try
+        {
+            executor.schedule( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mint( entry );
+                }
+            }, delay, TimeUnit.MILLISECONDS );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // closed
+            entries.remove( entry.userId, entry );
+        }
+    }
+    
+    private void mint( Entry entry )
+    {
+        long now = System.currentTimeMillis();
+        if ( entry.token != null && !entry.registered && now - entry.lastAccess > idleTimeout )
+        {
+            log.trace( "Dropping idle user [" + entry.userId + "]" );
+            entries.remove( entry.userId, entry );
+            return;
+        }
+        
+        try
+        {
+            entry.token = signer.createSignedToken( entry.userId, new Date( now - backdate ), new Date( now + tokenLifetime ) );
+            schedule( entry, tokenLifetime - refreshMargin );
+        }
+        catch ( SignatureException e )
+        {
+            // the next request for the user signs inline and reports the problem
+            log.warn( "Unable to mint token for [" + entry.userId + "]: " + e.getMessage() );
+            entries.remove( entry.userId, entry );
+        }
+    }
+    
+    /**
+     * The ready token of a user and its activity.
+     */
+    private static class Entry
+    {
+        private final String         userId;
+        private volatile SignedToken token;
+        private volatile long        lastAccess;
+        private volatile boolean     registered;
+        
+        Entry( String userId )
+        {
+            this.userId = userId;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,42 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+/**
+ * Signals that a sender-vouches token has been presented again although it may only be used once.
+ */
+public class TokenReplayedException extends Exception
+{
+    private static final long serialVersionUID = -4418629260354872213L;
+    
+    /**
+     * 
+     */
+    public TokenReplayedException()
+    {
+        super();
+    }
+    
+    /**
+     * @param message
+     * @param cause
+     */
+    public TokenReplayedException( String message, Throwable cause )
+    {
+        super( message, cause );
+    }
+    
+    /**
+     * @param message
+     */
+    public TokenReplayedException( String message )
+    {
+        super( message );
+    }
+    
+    /**
+     * @param cause
+     */
+    public TokenReplayedException( Throwable cause )
+    {
+        super( cause );
+    }
+}
@@ -1,23 +1,25 @@
 package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
 
-import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.interfaces.RSAPrivateKey;
-import java.security.interfaces.RSAPublicKey;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.naming.InvalidNameException;
-import javax.naming.ldap.LdapName;
-import javax.naming.ldap.Rdn;
-import javax.security.auth.x500.X500Principal;
-
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.Predicate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.DEREncodable;
 import org.bouncycastle.asn1.DERInteger;
@@ -37,6 +39,10 @@ import org.bouncycastle.crypto.params.RSAKeyParameters;
 import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
 import org.bouncycastle.crypto.signers.PSSSigner;
 
+import de.tudarmstadt.ukp.shibhttpclient.metrics.NoOpMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Phase;
+
 /**
  * Creates signed Sender-vouches tokens for intermediate authentication and authorization.
  * 
@@ -64,12 +70,16 @@ public class TokenSigner
         SIGNATURE_ALGORITHM = new AlgorithmIdentifier( rsaSsaPss, pssParameters );
     }
     
+    private final Log                        log = LogFactory.getLog( getClass() );
+    
     private final RSAPrivateKey              privateKey;
     private final X509Certificate            certificate;
     private final SecureRandom               rng;
     
-    private CipherParameters                 parameters;
-    private IssuerSerial                     issuerSerial;
+    private volatile CipherParameters        parameters;
+    private volatile IssuerSerial            issuerSerial;
+    
+    private volatile ShibClientMetrics       metrics = NoOpMetrics.INSTANCE;
     
     /**
      * Create a new {@link TokenSigner} with the specified keys.
@@ -119,120 +129,255 @@ public class TokenSigner
      */
     public SignedToken sign( TokenData data ) throws SignatureException
     {
-        byte[] encoded = data.getDERObject().getDEREncoded();
-        
-        SHA256Digest digest = new SHA256Digest();
-        PSSSigner signer = new PSSSigner( new RSABlindedEngine(), digest, digest.getDigestSize() );
-        signer.init( true, parameters() );
+        return sign( data, newSigner() );
+    }
+    
+    /**
+     * Set the metrics that signing times are reported to.
+     * 
+     * @param metrics
+     *            the metrics, {@code null} to report nothing
+     */
+    public void setMetrics( ShibClientMetrics metrics )
+    {
+        this.metrics = metrics != null ? metrics : NoOpMetrics.INSTANCE;
+    }
+    
+    /**
+     * Sign all token data in parallel on a pool with one thread per processor.
+     * 
+     * <p>
+     * The batch is split into one chunk per thread, and each chunk is signed with a single signer instance.
+     * </p>
+     * 
+     * @param data
+     *            the token data to sign
+     * @return the signed tokens in the iteration order of {@code data}
+     * @throws SignatureException
+     *             if any of the tokens cannot be signed
+     */
+    public List<SignedToken> signAll( Collection<TokenData> data ) throws SignatureException
+    {
+        long start = System.nanoTime();
         
-        digest.update( encoded, 0, encoded.length );
+        final List<TokenData> batch = new ArrayList<TokenData>( data );
+        int chunks = Math.min( SigningPool.THREADS, batch.size() );
         
-        try
+        List<SignedToken> tokens = new ArrayList<SignedToken>( batch.size() );
+        if ( chunks <= 1 )
         {
-            byte[] signature = signer.generateSignature();
-            
-            IssuerSerial issuerSerial = issuerSerial();
+            try
+            {
+                tokens.addAll( signChunk( batch ) );
+            }
+            catch ( RuntimeException e )
+            {
+                // reported like the failures of chunks signed on the pool
+                throw new SignatureException( e );
+            }
+        }
+        else
+        {
+            List<Callable<List<SignedToken>>> tasks = new ArrayList<Callable<List<SignedToken>>>( chunks );
+            for ( int i = 0; i < chunks; i++ )
+            {
+                final List<TokenData> chunk = batch.subList( i * batch.size() / chunks, (i + 1) * batch.size() / chunks );
+                tasks.add( new Callable<List<SignedToken>>()
+                {
+                    @Override
+                    public List<SignedToken> call() throws SignatureException
+                    {
+                        return signChunk( chunk );
+                    }
+                } );
+            }
             
-            return new SignedToken( data, issuerSerial, SIGNATURE_ALGORITHM, signature );
+            try
+            {
+                for ( Future<List<SignedToken>> result : SigningPool.EXECUTOR.invokeAll( tasks ) )
+                {
+                    tokens.addAll( result.get() );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new SignatureException( "Interrupted while signing tokens", e );
+            }
+            catch ( ExecutionException e )
+            {
+                if ( e.getCause() instanceof SignatureException )
+                {
+                    throw (SignatureException) e.getCause();
+                }
+                throw new SignatureException( e.getCause() );
+            }
         }
-        catch ( Exception e )
+        
+        if ( log.isDebugEnabled() )
         {
-            throw new SignatureException( e );
+            long elapsed = Math.max( System.nanoTime() - start, 1 );
+            log.debug( "Signed " + tokens.size() + " tokens in " + elapsed / 1000000 + "ms on " + Math.max( chunks, 1 ) + " threads ("
+                    + tokens.size() * 1000000000L / elapsed + " tokens/s)" );
         }
+        return tokens;
     }
     
+    /**
+     * Verify the signature of the token against the trusted certificates, which are scanned for the signer. Use
+     * {@link #verify(SignedToken, TrustedSignerIndex)} with a shared index when verifying many tokens against many certificates.
+     * 
+     * @param token
+     *            the token to verify
+     * @param trustedCertificates
+     *            the certificates of the trusted signers
+     * @return whether the signature is valid
+     * @throws IssuerNotTrustedException
+     *             if the signer of the token is not trusted
+     */
     public static boolean verify( SignedToken token, Collection<X509Certificate> trustedCertificates ) throws IssuerNotTrustedException
     {
-        X509Certificate signerCertificate = findCertificate( trustedCertificates, token.getSigner() );
-        if ( signerCertificate == null )
+        RSAKeyParameters publicKey = TrustedSignerIndex.findKeyParameters( trustedCertificates, token.getSigner() );
+        if ( publicKey == null )
+        {
+            throw new IssuerNotTrustedException();
+        }
+        return verify( token, publicKey );
+    }
+    
+    /**
+     * Verify the signature of the token against the trusted signers.
+     * 
+     * @param token
+     *            the token to verify
+     * @param trustedSigners
+     *            the index of the trusted signers
+     * @return whether the signature is valid
+     * @throws IssuerNotTrustedException
+     *             if the signer of the token is not trusted
+     */
+    public static boolean verify( SignedToken token, TrustedSignerIndex trustedSigners ) throws IssuerNotTrustedException
+    {
+        RSAKeyParameters publicKey = trustedSigners.getKeyParameters( token.getSigner() );
+        if ( publicKey == null )
         {
             throw new IssuerNotTrustedException();
         }
-        RSAPublicKey publicKey = (RSAPublicKey) signerCertificate.getPublicKey();
+        return verify( token, publicKey );
+    }
+    
+    private static boolean verify( SignedToken token, RSAKeyParameters publicKey )
+    {
+        TokenEncoder.Buffer signedData = TokenEncoder.encodeData( token.getData() );
         
-        byte[] signedData = token.getData().getDERObject().getDEREncoded();
+        SHA256Digest digest = new SHA256Digest();
+        PSSSigner verifier = new PSSSigner( new RSABlindedEngine(), digest, digest.getDigestSize() );
+        verifier.init( false, publicKey );
+        verifier.update( signedData.getBytes(), 0, signedData.getLength() );
+        
+        return verifier.verifySignature( token.getSignature() );
+    }
+    
+    /**
+     * Verify the signature of the token view against the trusted signers. The signature is checked over the token data as it has been
+     * received.
+     * 
+     * @param token
+     *            the token to verify
+     * @param trustedSigners
+     *            the index of the trusted signers
+     * @return whether the signature is valid
+     * @throws IssuerNotTrustedException
+     *             if the signer of the token is not trusted
+     * @throws ParseException
+     *             if the signer of the token is malformed
+     */
+    public static boolean verify( SignedTokenView token, TrustedSignerIndex trustedSigners ) throws IssuerNotTrustedException,
+            ParseException
+    {
+        RSAKeyParameters publicKey = trustedSigners.getKeyParameters( token.getSigner() );
+        if ( publicKey == null )
+        {
+            throw new IssuerNotTrustedException();
+        }
         
         SHA256Digest digest = new SHA256Digest();
         PSSSigner verifier = new PSSSigner( new RSABlindedEngine(), digest, digest.getDigestSize() );
-        verifier.init( false, new RSAKeyParameters( false, publicKey.getModulus(), publicKey.getPublicExponent() ) );
-        digest.update( signedData, 0, signedData.length );
+        verifier.init( false, publicKey );
+        token.updateSignedData( verifier );
         
         return verifier.verifySignature( token.getSignature() );
     }
     
-    private static X509Certificate findCertificate( Collection<X509Certificate> trustedCertificates, IssuerSerial signer )
+    private List<SignedToken> signChunk( List<TokenData> chunk ) throws SignatureException
     {
-        final BigInteger serialNumber = signer.getSerial().getValue();
-        final X500Principal issuer = new X500Principal( signer.getIssuer().getNames()[0].getName().toString() );
-        X509Certificate signerCertificate = (X509Certificate) CollectionUtils.find( trustedCertificates, new Predicate()
+        PSSSigner signer = newSigner();
+        List<SignedToken> tokens = new ArrayList<SignedToken>( chunk.size() );
+        for ( TokenData data : chunk )
         {
-            @Override
-            public boolean evaluate( Object object )
-            {
-                X509Certificate cert = (X509Certificate) object;
-                
-                boolean serialMatches = cert.getSerialNumber().equals( serialNumber );
-                boolean issuerEquals = dnMatches( issuer, cert.getIssuerX500Principal() );
-                
-                return serialMatches && issuerEquals;
-            }
-        } );
-        return signerCertificate;
+            tokens.add( sign( data, signer ) );
+        }
+        return tokens;
     }
     
-    private static boolean dnMatches( X500Principal p1, X500Principal p2 )
+    private SignedToken sign( TokenData data, PSSSigner signer ) throws SignatureException
     {
+        long start = System.nanoTime();
+        TokenEncoder.Buffer encoded = TokenEncoder.encodeData( data );
+        
+        signer.update( encoded.getBytes(), 0, encoded.getLength() );
+        
         try
         {
-            List<Rdn> rdn1 = new LdapName( p1.getName() ).getRdns();
-            List<Rdn> rdn2 = new LdapName( p2.getName() ).getRdns();
+            byte[] signature = signer.generateSignature();
             
-            if ( rdn1.size() != rdn2.size() )
-                return false;
+            IssuerSerial issuerSerial = issuerSerial();
             
-            return rdn1.containsAll( rdn2 );
+            return new SignedToken( data, issuerSerial, SIGNATURE_ALGORITHM, signature );
+        }
+        catch ( Exception e )
+        {
+            throw new SignatureException( e );
         }
-        catch ( InvalidNameException e )
+        finally
         {
-            throw new RuntimeException( e );
+            signer.reset();
+            metrics.time( Phase.TOKEN_SIGNING, null, System.nanoTime() - start );
         }
     }
     
+    private PSSSigner newSigner()
+    {
+        SHA256Digest digest = new SHA256Digest();
+        PSSSigner signer = new PSSSigner( new RSABlindedEngine(), digest, digest.getDigestSize() );
+        signer.init( true, parameters() );
+        return signer;
+    }
+    
+    /**
+     * Both the issuer serial and the parameters are derived from immutable state, so threads racing to initialize them build equal
+     * values and any of them may win. This keeps monitors off the signing path, since they pin virtual threads on JDKs before 24.
+     */
     private IssuerSerial issuerSerial()
     {
-        if ( issuerSerial == null )
+        IssuerSerial result = issuerSerial;
+        if ( result == null )
         {
-            synchronized ( this )
-            {
-                if ( issuerSerial == null )
-                {
-                    issuerSerial = buildIssuerSerial();
-                }
-            }
+            result = buildIssuerSerial();
+            issuerSerial = result;
         }
-        return issuerSerial;
+        return result;
     }
     
     private CipherParameters parameters()
     {
-        if ( parameters == null )
+        CipherParameters result = parameters;
+        if ( result == null )
         {
-            synchronized ( this )
-            {
-                if ( parameters == null )
-                {
-                    if ( rng != null )
-                    {
-                        parameters = new ParametersWithRandom( parameters, rng );
-                    }
-                    else
-                    {
-                        parameters = buildRsaParameters();
-                    }
-                }
-            }
+            result = rng != null ? new ParametersWithRandom( buildRsaParameters(), rng ) : buildRsaParameters();
+            parameters = result;
         }
-        return parameters;
+        return result;
     }
     
     private IssuerSerial buildIssuerSerial()
@@ -258,4 +403,26 @@ public class TokenSigner
             return new RSAKeyParameters( true, privateKey.getModulus(), privateKey.getPrivateExponent() );
         }
     }
+    
+    /**
+     * The pool shared by all signers for {@link TokenSigner#signAll(Collection)}, created on first use.
+     */
+    private static final class SigningPool
+    {
+        private static final int             THREADS  = Runtime.getRuntime().availableProcessors();
+        
+        private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool( THREADS, new ThreadFactory()
+                                                      {
+                                                          private final AtomicInteger count = new AtomicInteger();
+                                                          
+                                                          @Override
+                                                          public Thread newThread( Runnable r )
+                                                          {
+                                                              Thread thread = new Thread( r, "shib-token-signer-"
+                                                                      + count.incrementAndGet() );
+                                                              thread.setDaemon( true );
+                                                              return thread;
+                                                          }
+                                                      } );
+    }
 }
@@ -0,0 +1,405 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+/**
+ * Remembers successfully verified sender-vouches tokens, so a token that is presented repeatedly within its validity is parsed and
+ * verified only once.
+ * 
+ * <p>
+ * Tokens are identified by the SHA-256 digest of their encoded bytes. The cache is split into independently locked stripes, and each
+ * stripe removes its tokens at their {@code validUntil} with a hashed time wheel that is advanced by the calls to {@link #verify(byte[])},
+ * so no background thread is needed. The number of remembered tokens is bounded; when a stripe is full, the tokens expiring first are
+ * evicted.
+ * </p>
+ * 
+ * <p>
+ * In one-time-use mode every token is accepted only once and presenting it again raises a {@link TokenReplayedException}. Since evicting
+ * a token would allow it to be replayed, new tokens are rejected instead while a stripe is full in this mode.
+ * </p>
+ */
+public class TokenVerificationCache
+{
+    /**
+     * The maximum number of remembered tokens unless configured otherwise.
+     */
+    public static final int          DEFAULT_MAX_ENTRIES = 100000;
+    
+    /**
+     * The resolution of the expiry unless configured otherwise.
+     */
+    public static final long         DEFAULT_TICK        = 1000L;
+    
+    private static final int         WHEEL_SIZE          = 64;
+    
+    private final Log                log                 = LogFactory.getLog( getClass() );
+    
+    private final TrustedSignerIndex trustedSigners;
+    private final boolean            oneTimeUse;
+    private final long               tick;
+    private final Stripe[]           stripes;
+    
+    /**
+     * Create a new {@link TokenVerificationCache} with the default size and resolution.
+     * 
+     * @param trustedSigners
+     *            the trusted signers
+     * @param oneTimeUse
+     *            whether every token may be used only once
+     */
+    public TokenVerificationCache( TrustedSignerIndex trustedSigners, boolean oneTimeUse )
+    {
+        this( trustedSigners, oneTimeUse, DEFAULT_MAX_ENTRIES, DEFAULT_TICK );
+    }
+    
+    /**
+     * Create a new {@link TokenVerificationCache}.
+     * 
+     * @param trustedSigners
+     *            the trusted signers
+     * @param oneTimeUse
+     *            whether every token may be used only once
+     * @param maxEntries
+     *            the maximum number of remembered tokens
+     * @param tick
+     *            the resolution of the expiry in milliseconds, tokens are forgotten up to one tick after their {@code validUntil}
+     */
+    public TokenVerificationCache( TrustedSignerIndex trustedSigners, boolean oneTimeUse, int maxEntries, long tick )
+    {
+        this.trustedSigners = trustedSigners;
+        this.oneTimeUse = oneTimeUse;
+        this.tick = tick;
+        
+        int stripeCount = 1;
+        while ( stripeCount < 4 * Runtime.getRuntime().availableProcessors() && stripeCount < 64 )
+        {
+            stripeCount <<= 1;
+        }
+        this.stripes = new Stripe[stripeCount];
+        for ( int i = 0; i < stripeCount; i++ )
+        {
+            stripes[i] = new Stripe( Math.max( 1, maxEntries / stripeCount ) );
+        }
+    }
+    
+    /**
+     * Verify the encoded token unless it has been verified before, and check that it is currently valid.
+     * 
+     * @param encodedToken
+     *            the DER encoded token
+     * @return a view of the token, {@code null} if its signature is invalid, it is not valid at this time or it cannot be remembered in
+     *         one-time-use mode
+     * @throws ParseException
+     *             if the token is malformed
+     * @throws IssuerNotTrustedException
+     *             if the signer of the token is not trusted
+     * @throws TokenReplayedException
+     *             if the token has been used before in one-time-use mode
+     */
+    public SignedTokenView verify( byte[] encodedToken ) throws ParseException, IssuerNotTrustedException, TokenReplayedException
+    {
+        return verify( SignedTokenView.wrap( encodedToken ) );
+    }
+    
+    /**
+     * Verify the encoded token between the position and the limit of the buffer unless it has been verified before, and check that it is
+     * currently valid.
+     * 
+     * @param encodedToken
+     *            the buffer holding the DER encoded token, which must not be modified while the returned view is in use
+     * @return a view of the token, {@code null} if its signature is invalid, it is not valid at this time or it cannot be remembered in
+     *         one-time-use mode
+     * @throws ParseException
+     *             if the token is malformed
+     * @throws IssuerNotTrustedException
+     *             if the signer of the token is not trusted
+     * @throws TokenReplayedException
+     *             if the token has been used before in one-time-use mode
+     */
+    public SignedTokenView verify( ByteBuffer encodedToken ) throws ParseException, IssuerNotTrustedException, TokenReplayedException
+    {
+        return verify( SignedTokenView.wrap( encodedToken ) );
+    }
+    
+    private SignedTokenView verify( SignedTokenView token ) throws ParseException, IssuerNotTrustedException, TokenReplayedException
+    {
+        long now = System.currentTimeMillis();
+        Digest digest = new Digest( token );
+        Stripe stripe = stripes[digest.hash & (stripes.length - 1)];
+        
+        SignedTokenView cached = stripe.get( digest, now );
+        if ( cached != null )
+        {
+            if ( oneTimeUse )
+            {
+                throw new TokenReplayedException( "token of [" + cached.getId() + "] has been used before" );
+            }
+            return cached;
+        }
+        
+        long validUntil = token.getValidUntil();
+        if ( now < token.getValidFrom() || now >= validUntil || !TokenSigner.verify( token, trustedSigners ) )
+        {
+            return null;
+        }
+        
+        SignedTokenView previous = stripe.put( digest, token, validUntil, now );
+        if ( previous == token )
+        {
+            // the stripe is full in one-time-use mode
+            return null;
+        }
+        if ( previous != null && oneTimeUse )
+        {
+            // verified concurrently by another thread, which won the race
+            throw new TokenReplayedException( "token of [" + token.getId() + "] has been used before" );
+        }
+        return token;
+    }
+    
+    /**
+     * Return the number of remembered tokens, including expired ones that have not been removed yet.
+     * 
+     * @return the number of remembered tokens
+     */
+    public int size()
+    {
+        int size = 0;
+        for ( Stripe stripe : stripes )
+        {
+            size += stripe.size();
+        }
+        return size;
+    }
+    
+    /**
+     * The SHA-256 digest of an encoded token.
+     */
+    private static final class Digest
+    {
+        private final byte[] value;
+        private final int    hash;
+        
+        Digest( SignedTokenView token )
+        {
+            SHA256Digest sha256 = new SHA256Digest();
+            token.updateEncoded( sha256 );
+            value = new byte[sha256.getDigestSize()];
+            sha256.doFinal( value, 0 );
+            hash = (value[0] & 0xFF) << 24 | (value[1] & 0xFF) << 16 | (value[2] & 0xFF) << 8 | value[3] & 0xFF;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !(obj instanceof Digest) )
+            {
+                return false;
+            }
+            return Arrays.equals( value, ((Digest) obj).value );
+        }
+    }
+    
+    /**
+     * A remembered token, linked into the bucket of its expiry.
+     */
+    private static final class Entry
+    {
+        private final Digest          digest;
+        private final SignedTokenView token;
+        private final long            expiresAt;
+        private Entry                 previous;
+        private Entry                 next;
+        
+        Entry( Digest digest, SignedTokenView token, long expiresAt )
+        {
+            this.digest = digest;
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    /**
+     * A part of the cache with its own lock, index and time wheel. {@link #put} returns the remembered token if there is one already, and
+     * the given token if it has been rejected.
+     */
+    private final class Stripe extends ReentrantLock
+    {
+        private static final long        serialVersionUID = 1L;
+        
+        private final Map<Digest, Entry> entries          = new HashMap<Digest, Entry>();
+        private final Entry[]            wheel            = new Entry[WHEEL_SIZE];
+        private final int                capacity;
+        private long                     lastTick         = -1;
+        
+        Stripe( int capacity )
+        {
+            this.capacity = capacity;
+        }
+        
+        SignedTokenView get( Digest digest, long now )
+        {
+            lock();
+            try
+            {
+                advance( now );
+                Entry entry = entries.get( digest );
+                return entry != null && now < entry.expiresAt ? entry.token : null;
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        
+        SignedTokenView put( Digest digest, SignedTokenView token, long expiresAt, long now )
+        {
+            lock();
+            try
+            {
+                Entry existing = entries.get( digest );
+                if ( existing != null )
+                {
+                    return existing.token;
+                }
+                
+                if ( entries.size() >= capacity )
+                {
+                    advance( now );
+                    if ( entries.size() >= capacity )
+                    {
+                        if ( oneTimeUse )
+                        {
+                            log.warn( "Replay cache is full, rejecting token" );
+                            return token;
+                        }
+                        evictFirstExpiring( now );
+                    }
+                }
+                
+                Entry entry = new Entry( digest, token, expiresAt );
+                entries.put( digest, entry );
+                link( entry );
+                return null;
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        
+        int size()
+        {
+            lock();
+            try
+            {
+                return entries.size();
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        
+        /**
+         * Remove the expired entries of all buckets passed since the last call.
+         */
+        private void advance( long now )
+        {
+            long currentTick = now / tick;
+            if ( lastTick < 0 || currentTick - lastTick > WHEEL_SIZE )
+            {
+                lastTick = currentTick - WHEEL_SIZE;
+            }
+            for ( long t = lastTick + 1; t <= currentTick; t++ )
+            {
+                Entry entry = wheel[bucket( t )];
+                while ( entry != null )
+                {
+                    Entry next = entry.next;
+                    if ( entry.expiresAt <= now )
+                    {
+                        remove( entry );
+                    }
+                    entry = next;
+                }
+            }
+            lastTick = currentTick;
+        }
+        
+        private void evictFirstExpiring( long now )
+        {
+            long currentTick = now / tick;
+            for ( long t = currentTick; t < currentTick + WHEEL_SIZE; t++ )
+            {
+                Entry first = null;
+                for ( Entry entry = wheel[bucket( t )]; entry != null; entry = entry.next )
+                {
+                    if ( first == null || entry.expiresAt < first.expiresAt )
+                    {
+                        first = entry;
+                    }
+                }
+                if ( first != null )
+                {
+                    remove( first );
+                    return;
+                }
+            }
+        }
+        
+        private void link( Entry entry )
+        {
+            int bucket = bucket( entry.expiresAt / tick );
+            entry.next = wheel[bucket];
+            if ( entry.next != null )
+            {
+                entry.next.previous = entry;
+            }
+            wheel[bucket] = entry;
+        }
+        
+        private void remove( Entry entry )
+        {
+            entries.remove( entry.digest );
+            if ( entry.previous != null )
+            {
+                entry.previous.next = entry.next;
+            }
+            else
+            {
+                wheel[bucket( entry.expiresAt / tick )] = entry.next;
+            }
+            if ( entry.next != null )
+            {
+                entry.next.previous = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+        }
+        
+        private int bucket( long t )
+        {
+            return (int) (t & (WHEEL_SIZE - 1));
+        }
+    }
+}
\ No newline at end of file
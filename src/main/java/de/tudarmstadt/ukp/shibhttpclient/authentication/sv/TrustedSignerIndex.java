@@ -0,0 +1,238 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.IssuerSerial;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+
+/**
+ * An immutable index of trusted token signers for {@link TokenSigner#verify(SignedToken, TrustedSignerIndex)}.
+ * 
+ * <p>
+ * Certificates are indexed by the canonical form of their issuer DN and their serial number, so the signer of a token is found with a
+ * single lookup regardless of how many certificates are trusted. The order of the RDNs in the issuer DN does not matter. The public key
+ * parameters are prepared once when the index is built. Certificates without an RSA key cannot verify tokens and are ignored.
+ * </p>
+ */
+public final class TrustedSignerIndex
+{
+    private final Map<SignerKey, TrustedSigner> signers;
+    
+    /**
+     * Create a new {@link TrustedSignerIndex}. If several certificates share issuer and serial number, the first one is used.
+     * 
+     * @param trustedCertificates
+     *            the certificates of the trusted signers
+     */
+    public TrustedSignerIndex( Collection<X509Certificate> trustedCertificates )
+    {
+        Map<SignerKey, TrustedSigner> signers = new HashMap<SignerKey, TrustedSigner>( trustedCertificates.size() * 2 );
+        for ( X509Certificate certificate : trustedCertificates )
+        {
+            PublicKey publicKey = certificate.getPublicKey();
+            if ( !(publicKey instanceof RSAPublicKey) )
+            {
+                continue;
+            }
+            RSAPublicKey rsaKey = (RSAPublicKey) publicKey;
+            
+            SignerKey key = new SignerKey( canonicalDn( certificate.getIssuerX500Principal() ), certificate.getSerialNumber() );
+            if ( !signers.containsKey( key ) )
+            {
+                signers.put( key, new TrustedSigner( certificate, new RSAKeyParameters( false, rsaKey.getModulus(), rsaKey
+                        .getPublicExponent() ) ) );
+            }
+        }
+        this.signers = Collections.unmodifiableMap( signers );
+    }
+    
+    /**
+     * Return the certificate of the given signer.
+     * 
+     * @param signer
+     *            the issuer and serial number of the signer certificate
+     * @return the certificate, {@code null} if the signer is not trusted
+     */
+    public X509Certificate getCertificate( IssuerSerial signer )
+    {
+        TrustedSigner trusted = find( signer );
+        return trusted != null ? trusted.certificate : null;
+    }
+    
+    /**
+     * Return the number of trusted signers.
+     * 
+     * @return the number of trusted signers
+     */
+    public int size()
+    {
+        return signers.size();
+    }
+    
+    /**
+     * Return the public key parameters of the given signer.
+     * 
+     * @param signer
+     *            the issuer and serial number of the signer certificate
+     * @return the key parameters, {@code null} if the signer is not trusted
+     */
+    RSAKeyParameters getKeyParameters( IssuerSerial signer )
+    {
+        TrustedSigner trusted = find( signer );
+        return trusted != null ? trusted.keyParameters : null;
+    }
+    
+    /**
+     * Find the public key parameters of the given signer by scanning the certificates, stopping at the first match. Cheaper than
+     * building an index to verify a single token.
+     * 
+     * @param trustedCertificates
+     *            the certificates of the trusted signers
+     * @param signer
+     *            the issuer and serial number of the signer certificate
+     * @return the key parameters, {@code null} if the signer is not trusted
+     */
+    static RSAKeyParameters findKeyParameters( Collection<X509Certificate> trustedCertificates, IssuerSerial signer )
+    {
+        SignerKey key = keyOf( signer );
+        if ( key == null )
+        {
+            return null;
+        }
+        for ( X509Certificate certificate : trustedCertificates )
+        {
+            // Compare the serial number first, canonicalizing the issuer DN is expensive
+            if ( certificate.getSerialNumber().equals( key.serial ) && certificate.getPublicKey() instanceof RSAPublicKey
+                    && canonicalDn( certificate.getIssuerX500Principal() ).equals( key.issuer ) )
+            {
+                RSAPublicKey rsaKey = (RSAPublicKey) certificate.getPublicKey();
+                return new RSAKeyParameters( false, rsaKey.getModulus(), rsaKey.getPublicExponent() );
+            }
+        }
+        return null;
+    }
+    
+    private TrustedSigner find( IssuerSerial signer )
+    {
+        SignerKey key = keyOf( signer );
+        return key != null ? signers.get( key ) : null;
+    }
+    
+    private static SignerKey keyOf( IssuerSerial signer )
+    {
+        GeneralName[] names = signer.getIssuer().getNames();
+        if ( names.length == 0 || names[0].getTagNo() != GeneralName.directoryName )
+        {
+            return null;
+        }
+        
+        X500Principal issuer;
+        try
+        {
+            issuer = new X500Principal( X500Name.getInstance( names[0].getName() ).getEncoded() );
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return null;
+        }
+        return new SignerKey( canonicalDn( issuer ), signer.getSerial().getValue() );
+    }
+    
+    private static String canonicalDn( X500Principal principal )
+    {
+        try
+        {
+            List<String> rdns = new ArrayList<String>();
+            for ( Rdn rdn : new LdapName( principal.getName( X500Principal.CANONICAL ) ).getRdns() )
+            {
+                rdns.add( rdn.toString() );
+            }
+            Collections.sort( rdns );
+            
+            StringBuilder sb = new StringBuilder();
+            for ( String rdn : rdns )
+            {
+                sb.append( rdn ).append( ',' );
+            }
+            return sb.toString();
+        }
+        catch ( InvalidNameException e )
+        {
+            throw new IllegalArgumentException( e );
+        }
+    }
+    
+    /**
+     * The canonical issuer DN and serial number of a certificate.
+     */
+    private static final class SignerKey
+    {
+        private final String     issuer;
+        private final BigInteger serial;
+        private final int        hash;
+        
+        SignerKey( String issuer, BigInteger serial )
+        {
+            this.issuer = issuer;
+            this.serial = serial;
+            this.hash = 31 * issuer.hashCode() + serial.hashCode();
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !(obj instanceof SignerKey) )
+            {
+                return false;
+            }
+            SignerKey other = (SignerKey) obj;
+            return hash == other.hash && serial.equals( other.serial ) && issuer.equals( other.issuer );
+        }
+    }
+    
+    /**
+     * A trusted certificate and its prepared public key.
+     */
+    private static final class TrustedSigner
+    {
+        private final X509Certificate  certificate;
+        private final RSAKeyParameters keyParameters;
+        
+        TrustedSigner( X509Certificate certificate, RSAKeyParameters keyParameters )
+        {
+            this.certificate = certificate;
+            this.keyParameters = keyParameters;
+        }
+    }
+}
\ No newline at end of file
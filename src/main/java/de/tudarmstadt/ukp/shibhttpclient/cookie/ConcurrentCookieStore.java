@@ -0,0 +1,385 @@
+package de.tudarmstadt.ukp.shibhttpclient.cookie;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookiePathComparator;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.SetCookie2;
+
+/**
+ * A {@link CookieStore} for many concurrent requests. Cookies are indexed by domain, so the cookies of a host are found without scanning
+ * the whole store, and nothing is locked when reading.
+ * 
+ * <p>
+ * The formatted {@code Cookie} headers are cached per origin and cookie policy and reused until a cookie is added, removed or expires.
+ * {@link RequestAddCachedCookies} sends these cached headers in place of the standard {@code RequestAddCookies}.
+ * </p>
+ */
+public class ConcurrentCookieStore implements CookieStore
+{
+    private final ConcurrentMap<String, ConcurrentMap<CookieKey, Cookie>> domains  =
+            new ConcurrentHashMap<String, ConcurrentMap<CookieKey, Cookie>>();
+    private final ConcurrentMap<String, CachedHeaders>                    headers  = new ConcurrentHashMap<String, CachedHeaders>();
+    private final AtomicLong                                              version  = new AtomicLong();
+    
+    private volatile Snapshot                                             snapshot = new Snapshot( 0, Collections.<Cookie> emptyList() );
+    
+    /**
+     * Add a cookie, replacing any cookie with the same name, domain and path. An expired cookie only removes the cookie it replaces.
+     * 
+     * @param cookie
+     *            the cookie, ignored if {@code null}
+     */
+    @Override
+    public void addCookie( Cookie cookie )
+    {
+        if ( cookie == null )
+        {
+            return;
+        }
+        CookieKey key = new CookieKey( cookie );
+        ConcurrentMap<CookieKey, Cookie> cookies = cookiesOf( normalize( cookie.getDomain() ) );
+        if ( cookie.isExpired( new Date() ) )
+        {
+            if ( cookies.remove( key ) != null )
+            {
+                changed();
+            }
+        }
+        else
+        {
+            cookies.put( key, cookie );
+            changed();
+        }
+    }
+    
+    /**
+     * Get all cookies in the store. The list is shared between callers until the store changes and must not be modified.
+     * 
+     * @return an unmodifiable list of all cookies
+     */
+    @Override
+    public List<Cookie> getCookies()
+    {
+        long current = version.get();
+        Snapshot cached = snapshot;
+        if ( cached.version == current )
+        {
+            return cached.cookies;
+        }
+        
+        List<Cookie> cookies = new ArrayList<Cookie>();
+        for ( Map<CookieKey, Cookie> domain : domains.values() )
+        {
+            cookies.addAll( domain.values() );
+        }
+        cookies = Collections.unmodifiableList( cookies );
+        snapshot = new Snapshot( current, cookies );
+        return cookies;
+    }
+    
+    /**
+     * Get the cookies whose domain is the given host or one of its parent domains. Neither the path nor the expiry of the cookies is
+     * checked.
+     * 
+     * @param host
+     *            the host name
+     * @return the cookies of the host
+     */
+    public List<Cookie> getCookies( String host )
+    {
+        List<Cookie> cookies = new ArrayList<Cookie>();
+        String domain = host.toLowerCase( Locale.ENGLISH );
+        while ( true )
+        {
+            Map<CookieKey, Cookie> domainCookies = domains.get( domain );
+            if ( domainCookies != null )
+            {
+                cookies.addAll( domainCookies.values() );
+            }
+            int dot = domain.indexOf( '.' );
+            if ( dot < 0 )
+            {
+                return cookies;
+            }
+            domain = domain.substring( dot + 1 );
+        }
+    }
+    
+    /**
+     * Get the {@code Cookie} headers for a request, formatting them only if the cookies of the origin have changed since they were last
+     * requested. Expired cookies found on the way are removed from the store.
+     * 
+     * @param policy
+     *            the name of the cookie policy of {@code cookieSpec}
+     * @param cookieSpec
+     *            the cookie specification to match and format the cookies with
+     * @param origin
+     *            the origin of the request
+     * @return the headers to add to the request, possibly empty
+     */
+    public List<Header> getCookieHeaders( String policy, CookieSpec cookieSpec, CookieOrigin origin )
+    {
+        long now = System.currentTimeMillis();
+        String key = policy + "|" + (origin.isSecure() ? "https://" : "http://") + origin.getHost() + ":" + origin.getPort();
+        CachedHeaders cached = headers.get( key );
+        if ( cached == null || cached.version != version.get() || now >= cached.expiresAt )
+        {
+            cached = match( cookieSpec, origin, now );
+            headers.put( key, cached );
+        }
+        
+        if ( cached.pathCookies.isEmpty() )
+        {
+            return cached.headers;
+        }
+        
+        // Cookies restricted to a path depend on the path of the request, which is not part of the cache key
+        List<Cookie> cookies = new ArrayList<Cookie>( cached.rootCookies );
+        for ( Cookie cookie : cached.pathCookies )
+        {
+            if ( cookieSpec.match( cookie, origin ) )
+            {
+                cookies.add( cookie );
+            }
+        }
+        Collections.sort( cookies, new CookiePathComparator() );
+        return format( cookieSpec, cookies );
+    }
+    
+    /**
+     * Remove all cookies that have expired at the given date.
+     * 
+     * @param date
+     *            the date
+     * @return {@code true} if any cookie has been removed
+     */
+    @Override
+    public boolean clearExpired( Date date )
+    {
+        if ( date == null )
+        {
+            return false;
+        }
+        boolean removed = false;
+        for ( ConcurrentMap<CookieKey, Cookie> cookies : domains.values() )
+        {
+            for ( Map.Entry<CookieKey, Cookie> entry : cookies.entrySet() )
+            {
+                if ( entry.getValue().isExpired( date ) && cookies.remove( entry.getKey(), entry.getValue() ) )
+                {
+                    removed = true;
+                }
+            }
+        }
+        if ( removed )
+        {
+            changed();
+        }
+        return removed;
+    }
+    
+    /**
+     * Remove all cookies.
+     */
+    @Override
+    public void clear()
+    {
+        domains.clear();
+        changed();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return getCookies().toString();
+    }
+    
+    private ConcurrentMap<CookieKey, Cookie> cookiesOf( String domain )
+    {
+        ConcurrentMap<CookieKey, Cookie> cookies = domains.get( domain );
+        if ( cookies == null )
+        {
+            ConcurrentMap<CookieKey, Cookie> created = new ConcurrentHashMap<CookieKey, Cookie>( 4 );
+            cookies = domains.putIfAbsent( domain, created );
+            if ( cookies == null )
+            {
+                cookies = created;
+            }
+        }
+        return cookies;
+    }
+    
+    private void changed()
+    {
+        version.incrementAndGet();
+        headers.clear();
+    }
+    
+    /**
+     * Match the cookies of the origin regardless of the request path. Cookies for the root path are matched and formatted once, cookies
+     * restricted to a narrower path are kept to be matched for each request.
+     */
+    private CachedHeaders match( CookieSpec cookieSpec, CookieOrigin origin, long now )
+    {
+        long matchedVersion = version.get();
+        Date date = new Date( now );
+        CookieOrigin rootOrigin = new CookieOrigin( origin.getHost(), origin.getPort(), "/", origin.isSecure() );
+        List<Cookie> rootCookies = new ArrayList<Cookie>();
+        List<Cookie> pathCookies = new ArrayList<Cookie>();
+        long expiresAt = Long.MAX_VALUE;
+        boolean expired = false;
+        for ( Cookie cookie : getCookies( origin.getHost() ) )
+        {
+            if ( cookie.isExpired( date ) )
+            {
+                expired = true;
+                continue;
+            }
+            if ( cookie.getPath() != null && !"/".equals( cookie.getPath() ) )
+            {
+                pathCookies.add( cookie );
+            }
+            else if ( cookieSpec.match( cookie, rootOrigin ) )
+            {
+                rootCookies.add( cookie );
+            }
+            else
+            {
+                continue;
+            }
+            if ( cookie.getExpiryDate() != null )
+            {
+                expiresAt = Math.min( expiresAt, cookie.getExpiryDate().getTime() );
+            }
+        }
+        if ( expired )
+        {
+            clearExpired( date );
+        }
+        return new CachedHeaders( matchedVersion, expiresAt, rootCookies, pathCookies, format( cookieSpec, rootCookies ) );
+    }
+    
+    private static List<Header> format( CookieSpec cookieSpec, List<Cookie> cookies )
+    {
+        if ( cookies.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+        List<Header> result = new ArrayList<Header>( cookieSpec.formatCookies( cookies ) );
+        
+        int specVersion = cookieSpec.getVersion();
+        if ( specVersion > 0 )
+        {
+            for ( Cookie cookie : cookies )
+            {
+                if ( specVersion != cookie.getVersion() || !(cookie instanceof SetCookie2) )
+                {
+                    Header versionHeader = cookieSpec.getVersionHeader();
+                    if ( versionHeader != null )
+                    {
+                        result.add( versionHeader );
+                    }
+                    break;
+                }
+            }
+        }
+        return Collections.unmodifiableList( result );
+    }
+    
+    private static String normalize( String domain )
+    {
+        if ( domain == null )
+        {
+            return "";
+        }
+        String d = domain.toLowerCase( Locale.ENGLISH );
+        return d.startsWith( "." ) ? d.substring( 1 ) : d;
+    }
+    
+    /**
+     * The identity of a cookie: its name, domain and path.
+     */
+    private static final class CookieKey
+    {
+        private final String name;
+        private final String domain;
+        private final String path;
+        
+        CookieKey( Cookie cookie )
+        {
+            this.name = cookie.getName();
+            this.domain = cookie.getDomain() != null ? cookie.getDomain().toLowerCase( Locale.ENGLISH ) : "";
+            this.path = cookie.getPath() != null ? cookie.getPath() : "/";
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return (31 * name.hashCode() + domain.hashCode()) * 31 + path.hashCode();
+        }
+        
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !(obj instanceof CookieKey) )
+            {
+                return false;
+            }
+            CookieKey other = (CookieKey) obj;
+            return name.equals( other.name ) && domain.equals( other.domain ) && path.equals( other.path );
+        }
+    }
+    
+    /**
+     * All cookies of the store at a version.
+     */
+    private static final class Snapshot
+    {
+        private final long         version;
+        private final List<Cookie> cookies;
+        
+        Snapshot( long version, List<Cookie> cookies )
+        {
+            this.version = version;
+            this.cookies = cookies;
+        }
+    }
+    
+    /**
+     * The matched cookies and formatted headers of an origin at a version of the store.
+     */
+    private static final class CachedHeaders
+    {
+        private final long         version;
+        private final long         expiresAt;
+        private final List<Cookie> rootCookies;
+        private final List<Cookie> pathCookies;
+        private final List<Header> headers;
+        
+        CachedHeaders( long version, long expiresAt, List<Cookie> rootCookies, List<Cookie> pathCookies, List<Header> headers )
+        {
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.rootCookies = rootCookies;
+            this.pathCookies = pathCookies;
+            this.headers = headers;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+package de.tudarmstadt.ukp.shibhttpclient.cookie;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.CookieStore;
+
+/**
+ * Background thread removing expired cookies from a cookie store and its per-principal jars, so cookies of SPs and principals that are no
+ * longer active do not pile up.
+ */
+public class ExpiredCookiePurger extends Thread implements Closeable
+{
+    private final Log                    log  = LogFactory.getLog( getClass() );
+    private final Object                 lock = new Object();
+    
+    private final CookieStore            cookieStore;
+    private final long                   purgeInterval;
+    private volatile PrincipalCookieJars cookieJars;
+    private volatile boolean             shutdown;
+    
+    /**
+     * Create a new {@link ExpiredCookiePurger}. It does nothing until it is started.
+     * 
+     * @param cookieStore
+     *            the cookie store to purge
+     * @param purgeInterval
+     *            the time between two purges, must be positive
+     * @param unit
+     *            the unit of {@code purgeInterval}
+     */
+    public ExpiredCookiePurger( CookieStore cookieStore, long purgeInterval, TimeUnit unit )
+    {
+        super( "shib-expired-cookie-purger" );
+        setDaemon( true );
+        this.cookieStore = cookieStore;
+        this.purgeInterval = unit.toMillis( purgeInterval );
+        if ( this.purgeInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "purgeInterval must be at least one millisecond" );
+        }
+    }
+    
+    @Override
+    public void run()
+    {
+        try
+        {
+            while ( !shutdown )
+            {
+                synchronized ( lock )
+                {
+                    if ( !shutdown )
+                    {
+                        lock.wait( purgeInterval );
+                    }
+                }
+                Date now = new Date();
+                if ( cookieStore.clearExpired( now ) )
+                {
+                    log.trace( "Purged expired cookies" );
+                }
+                PrincipalCookieJars jars = cookieJars;
+                if ( jars != null )
+                {
+                    jars.clearExpired( now );
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            log.debug( "Expired cookie purger interrupted" );
+        }
+    }
+    
+    /**
+     * Also purge the jars of the principals.
+     * 
+     * @param cookieJars
+     *            the per-principal jars, {@code null} if there are none
+     */
+    public void setCookieJars( PrincipalCookieJars cookieJars )
+    {
+        this.cookieJars = cookieJars;
+    }
+    
+    /**
+     * Stop the purger. The cookies are left in the store.
+     */
+    @Override
+    public void close()
+    {
+        shutdown = true;
+        synchronized ( lock )
+        {
+            lock.notifyAll();
+        }
+    }
+}
\ No newline at end of file
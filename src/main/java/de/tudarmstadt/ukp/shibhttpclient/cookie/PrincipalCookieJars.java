@@ -0,0 +1,208 @@
+package de.tudarmstadt.ukp.shibhttpclient.cookie;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.ContextAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.PrincipalAuthenticator;
+
+/**
+ * Keeps a separate cookie jar for every principal, so the SP sessions of the users of a shared client do not overwrite each other.
+ * 
+ * <p>
+ * Added as a request interceptor, it replaces the default cookie store of the client in the {@link HttpContext} by the jar of the
+ * principal the {@link PrincipalAuthenticator} supplies credentials for, a {@link ContextAuthenticator} is asked for the principal of the
+ * context. A cookie store set explicitly in the context is left alone. Requests of an unknown principal use the default cookie store.
+ * </p>
+ * 
+ * <p>
+ * The number of jars is bounded: the least recently used jar is evicted when a new principal would exceed the limit, and jars that have
+ * not been used for the maximum idle time are evicted whenever a jar is looked up. Evicting a jar ends the SP sessions of its principal.
+ * </p>
+ */
+public class PrincipalCookieJars implements HttpRequestInterceptor
+{
+    private final Log                    log = LogFactory.getLog( getClass() );
+    
+    private final PrincipalAuthenticator authenticator;
+    private final CookieStore            defaultCookieStore;
+    private final int                    maxJars;
+    private final long                   maxIdleTime;
+    
+    private final Map<String, Jar>       jars;
+    
+    /**
+     * Create new {@link PrincipalCookieJars}.
+     * 
+     * @param authenticator
+     *            the authenticator telling the current principal
+     * @param defaultCookieStore
+     *            the default cookie store of the client, which is replaced in the context
+     * @param maxJars
+     *            the maximum number of jars
+     * @param maxIdleTime
+     *            the time after which unused jars are evicted
+     * @param unit
+     *            the unit of {@code maxIdleTime}
+     */
+    public PrincipalCookieJars( PrincipalAuthenticator authenticator, CookieStore defaultCookieStore, final int maxJars, long maxIdleTime,
+            TimeUnit unit )
+    {
+        this.authenticator = authenticator;
+        this.defaultCookieStore = defaultCookieStore;
+        this.maxJars = maxJars;
+        this.maxIdleTime = unit.toMillis( maxIdleTime );
+        this.jars = Collections.synchronizedMap( new LinkedHashMap<String, Jar>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Jar> eldest )
+            {
+                return size() > maxJars;
+            }
+        } );
+    }
+    
+    @Override
+    public void process( HttpRequest request, HttpContext context ) throws HttpException, IOException
+    {
+        HttpClientContext clientContext = HttpClientContext.adapt( context );
+        if ( clientContext.getCookieStore() != defaultCookieStore )
+        {
+            return;
+        }
+        
+        String principal;
+        try
+        {
+            if ( authenticator instanceof ContextAuthenticator )
+            {
+                principal = ((ContextAuthenticator) authenticator).currentPrincipal( context );
+            }
+            else
+            {
+                principal = authenticator.currentPrincipal();
+            }
+        }
+        catch ( IllegalStateException e )
+        {
+            // e.g. no user assigned to the thread or context, which only matters if a login is required
+            log.trace( "No current principal, using default cookie store" );
+            return;
+        }
+        if ( principal != null )
+        {
+            clientContext.setCookieStore( getCookieStore( principal ) );
+        }
+    }
+    
+    /**
+     * Get the cookie jar of a principal, creating it if necessary.
+     * 
+     * @param principal
+     *            the principal
+     * @return the cookie jar of the principal
+     */
+    public CookieStore getCookieStore( String principal )
+    {
+        long now = System.currentTimeMillis();
+        synchronized ( jars )
+        {
+            evictIdle( now );
+            Jar jar = jars.get( principal );
+            if ( jar == null )
+            {
+                jar = new Jar();
+                jars.put( principal, jar );
+            }
+            jar.lastUsed = now;
+            return jar.cookieStore;
+        }
+    }
+    
+    /**
+     * Evict idle jars and remove expired cookies from the others.
+     * 
+     * @param date
+     *            the current date
+     */
+    public void clearExpired( Date date )
+    {
+        List<Jar> snapshot;
+        synchronized ( jars )
+        {
+            evictIdle( date.getTime() );
+            snapshot = new ArrayList<Jar>( jars.values() );
+        }
+        for ( Jar jar : snapshot )
+        {
+            jar.cookieStore.clearExpired( date );
+        }
+    }
+    
+    /**
+     * Discard all jars.
+     */
+    public void clear()
+    {
+        jars.clear();
+    }
+    
+    /**
+     * Get the number of jars.
+     * 
+     * @return the number of jars
+     */
+    public int size()
+    {
+        return jars.size();
+    }
+    
+    /**
+     * Get the maximum number of jars.
+     * 
+     * @return the maximum number of jars
+     */
+    public int getMaxJars()
+    {
+        return maxJars;
+    }
+    
+    /**
+     * The jars are ordered from least to most recently used, so idle jars are at the head.
+     */
+    private void evictIdle( long now )
+    {
+        Iterator<Jar> iterator = jars.values().iterator();
+        while ( iterator.hasNext() && iterator.next().lastUsed + maxIdleTime <= now )
+        {
+            iterator.remove();
+        }
+    }
+    
+    /**
+     * The cookie store of a principal and the time it was last used.
+     */
+    private static final class Jar
+    {
+        private final ConcurrentCookieStore cookieStore = new ConcurrentCookieStore();
+        private volatile long               lastUsed;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,99 @@
+package de.tudarmstadt.ukp.shibhttpclient.cookie;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.config.Lookup;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.CookieSpecProvider;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Adds the cached {@code Cookie} headers of a {@link ConcurrentCookieStore} to requests. It replaces {@link RequestAddCookies}, so cookie
+ * management has to be disabled on the client builder and {@code ResponseProcessCookies} added explicitly. Requests executed with any
+ * other cookie store are handed to a {@link RequestAddCookies}.
+ * 
+ * <p>
+ * Like {@link RequestAddCookies}, the cookie specification and origin of the request are stored in the context, so the cookies of the
+ * response can be processed.
+ * </p>
+ */
+public class RequestAddCachedCookies implements HttpRequestInterceptor
+{
+    private final HttpRequestInterceptor delegate = new RequestAddCookies();
+    
+    @Override
+    public void process( HttpRequest request, HttpContext context ) throws HttpException, IOException
+    {
+        if ( "CONNECT".equalsIgnoreCase( request.getRequestLine().getMethod() ) )
+        {
+            return;
+        }
+        
+        HttpClientContext clientContext = HttpClientContext.adapt( context );
+        CookieStore cookieStore = clientContext.getCookieStore();
+        Lookup<CookieSpecProvider> registry = clientContext.getCookieSpecRegistry();
+        HttpHost targetHost = clientContext.getTargetHost();
+        RouteInfo route = clientContext.getHttpRoute();
+        if ( !(cookieStore instanceof ConcurrentCookieStore) || registry == null || targetHost == null || route == null )
+        {
+            // Let the standard interceptor handle and log everything unusual
+            delegate.process( request, context );
+            return;
+        }
+        
+        String policy = clientContext.getRequestConfig().getCookieSpec();
+        if ( policy == null )
+        {
+            policy = CookieSpecs.BEST_MATCH;
+        }
+        CookieSpecProvider provider = registry.lookup( policy );
+        if ( provider == null )
+        {
+            throw new HttpException( "Unsupported cookie policy: " + policy );
+        }
+        CookieSpec cookieSpec = provider.create( clientContext );
+        
+        String path = path( request );
+        int port = targetHost.getPort() < 0 ? route.getTargetHost().getPort() : targetHost.getPort();
+        CookieOrigin cookieOrigin = new CookieOrigin( targetHost.getHostName(), port >= 0 ? port : 0, path != null && path.length() > 0
+                ? path : "/", route.isSecure() );
+        
+        for ( Header header : ((ConcurrentCookieStore) cookieStore).getCookieHeaders( policy, cookieSpec, cookieOrigin ) )
+        {
+            request.addHeader( header );
+        }
+        
+        context.setAttribute( HttpClientContext.COOKIE_SPEC, cookieSpec );
+        context.setAttribute( HttpClientContext.COOKIE_ORIGIN, cookieOrigin );
+    }
+    
+    private static String path( HttpRequest request )
+    {
+        if ( request instanceof HttpUriRequest )
+        {
+            return ((HttpUriRequest) request).getURI().getPath();
+        }
+        try
+        {
+            return new URI( request.getRequestLine().getUri() ).getPath();
+        }
+        catch ( URISyntaxException e )
+        {
+            return null;
+        }
+    }
+}
\ No newline at end of file
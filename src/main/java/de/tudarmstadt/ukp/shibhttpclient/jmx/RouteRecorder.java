@@ -0,0 +1,43 @@
+package de.tudarmstadt.ukp.shibhttpclient.jmx;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Remembers the route of every request, so the pool statistics of all routes a client uses can be reported.
+ */
+public class RouteRecorder implements HttpRequestInterceptor
+{
+    private final Set<HttpRoute> routes = Collections.newSetFromMap( new ConcurrentHashMap<HttpRoute, Boolean>() );
+    
+    @Override
+    public void process( HttpRequest request, HttpContext context ) throws HttpException, IOException
+    {
+        RouteInfo route = HttpClientContext.adapt( context ).getHttpRoute();
+        // Most requests use a known route, so check before taking the write lock of the set
+        if ( route instanceof HttpRoute && !routes.contains( route ) )
+        {
+            routes.add( (HttpRoute) route );
+        }
+    }
+    
+    /**
+     * Get the routes requests have been sent on.
+     * 
+     * @return the routes
+     */
+    public Set<HttpRoute> getRoutes()
+    {
+        return Collections.unmodifiableSet( routes );
+    }
+}
\ No newline at end of file
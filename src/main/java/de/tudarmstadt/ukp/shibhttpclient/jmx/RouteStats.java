@@ -0,0 +1,88 @@
+package de.tudarmstadt.ukp.shibhttpclient.jmx;
+
+import java.beans.ConstructorProperties;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * The connection pool statistics of a single route.
+ */
+public class RouteStats
+{
+    private final int leased;
+    private final int available;
+    private final int pending;
+    private final int max;
+    
+    /**
+     * Create new {@link RouteStats}.
+     * 
+     * @param leased
+     *            the number of leased connections
+     * @param available
+     *            the number of idle connections
+     * @param pending
+     *            the number of requests waiting for a connection
+     * @param max
+     *            the maximum number of connections
+     */
+    @ConstructorProperties( { "leased", "available", "pending", "max" } )
+    public RouteStats( int leased, int available, int pending, int max )
+    {
+        this.leased = leased;
+        this.available = available;
+        this.pending = pending;
+        this.max = max;
+    }
+    
+    RouteStats( PoolStats stats )
+    {
+        this( stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax() );
+    }
+    
+    /**
+     * Get the number of leased connections.
+     * 
+     * @return the number of leased connections
+     */
+    public int getLeased()
+    {
+        return leased;
+    }
+    
+    /**
+     * Get the number of idle connections.
+     * 
+     * @return the number of available connections
+     */
+    public int getAvailable()
+    {
+        return available;
+    }
+    
+    /**
+     * Get the number of requests waiting for a connection.
+     * 
+     * @return the number of pending requests
+     */
+    public int getPending()
+    {
+        return pending;
+    }
+    
+    /**
+     * Get the maximum number of connections.
+     * 
+     * @return the maximum number of connections
+     */
+    public int getMax()
+    {
+        return max;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "RouteStats [leased=" + leased + ", available=" + available + ", pending=" + pending + ", max=" + max + "]";
+    }
+}
\ No newline at end of file
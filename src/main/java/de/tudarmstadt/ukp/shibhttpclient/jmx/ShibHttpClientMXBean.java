@@ -0,0 +1,114 @@
+package de.tudarmstadt.ukp.shibhttpclient.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of a {@link de.tudarmstadt.ukp.shibhttpclient.ShibHttpClient}, exposing the state of its connection pool, its SP
+ * sessions and its login statistics.
+ */
+public interface ShibHttpClientMXBean
+{
+    /**
+     * Get the maximum number of pooled connections.
+     * 
+     * @return the maximum number of pooled connections
+     */
+    int getMaxTotal();
+    
+    /**
+     * Get the number of connections currently leased from the pool.
+     * 
+     * @return the number of leased connections
+     */
+    int getLeasedConnections();
+    
+    /**
+     * Get the number of idle connections in the pool.
+     * 
+     * @return the number of available connections
+     */
+    int getAvailableConnections();
+    
+    /**
+     * Get the number of requests waiting for a connection.
+     * 
+     * @return the number of pending requests
+     */
+    int getPendingConnections();
+    
+    /**
+     * Get the pool statistics of every route the client has sent requests on, keyed by route.
+     * 
+     * @return the pool statistics per route
+     */
+    Map<String, RouteStats> getRouteStats();
+    
+    /**
+     * Get the number of SP sessions that have not expired yet.
+     * 
+     * @return the number of active sessions
+     */
+    int getActiveSessions();
+    
+    /**
+     * Get a description of every tracked SP session.
+     * 
+     * @return the tracked sessions
+     */
+    String[] getSessions();
+    
+    /**
+     * Get the number of cookies in the cookie store of the client.
+     * 
+     * @return the number of cookies
+     */
+    int getCookieCount();
+    
+    /**
+     * Get the number of logins that established a session at the SP.
+     * 
+     * @return the number of successful logins
+     */
+    long getLoginsSucceeded();
+    
+    /**
+     * Get the number of logins that failed.
+     * 
+     * @return the number of failed logins
+     */
+    long getLoginsFailed();
+    
+    /**
+     * Get the duration of the most recent login.
+     * 
+     * @return the duration in milliseconds, {@code -1} if there has not been a login
+     */
+    double getLastLoginMillis();
+    
+    /**
+     * Get the number of knocks sent ahead of unredirectable requests.
+     * 
+     * @return the number of knocks sent
+     */
+    long getKnocksSent();
+    
+    /**
+     * Get the number of knocks skipped.
+     * 
+     * @return the number of knocks skipped
+     */
+    long getKnocksSkipped();
+    
+    /**
+     * Reset the login and knock counters.
+     */
+    void resetCounters();
+    
+    /**
+     * Close expired connections and connections that have been idle for at least the given time.
+     * 
+     * @param idleSeconds
+     *            the minimum idle time in seconds, {@code 0} to close all idle connections
+     */
+    void closeIdleConnections( long idleSeconds );
+}
\ No newline at end of file
@@ -0,0 +1,250 @@
+package de.tudarmstadt.ukp.shibhttpclient.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.CookieStore;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpRequestPreProcessor;
+import de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
+import de.tudarmstadt.ukp.shibhttpclient.session.SpSession;
+
+/**
+ * The {@link ShibHttpClientMXBean} of a client, registered with the platform MBean server under
+ * {@code de.tudarmstadt.ukp.shibhttpclient:type=ShibHttpClient,name=<name>}.
+ * 
+ * <p>
+ * The connection manager does not list the routes it pools connections for, so the routes are taken from a {@link RouteRecorder}.
+ * </p>
+ */
+public class ShibHttpClientManagement implements ShibHttpClientMXBean
+{
+    /**
+     * The domain of the object names of the MBeans.
+     */
+    public static final String                       DOMAIN = "de.tudarmstadt.ukp.shibhttpclient";
+    
+    private final Log                                log    = LogFactory.getLog( getClass() );
+    
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CookieStore                        cookieStore;
+    private final SessionTracker                     sessionTracker;
+    private final EcpRequestPreProcessor             requestPreProcessor;
+    private final EcpResponsePostProcessor           responsePostProcessor;
+    
+    private final RouteRecorder                      routeRecorder;
+    
+    private ObjectName                               objectName;
+    
+    /**
+     * Create a new {@link ShibHttpClientManagement}. It is not registered until {@link #register(String)} is called.
+     * 
+     * @param connectionManager
+     *            the connection pool of the client
+     * @param routeRecorder
+     *            the interceptor recording the routes of the requests of the client
+     * @param cookieStore
+     *            the cookie store of the client
+     * @param sessionTracker
+     *            the tracker of the SP sessions of the client
+     * @param requestPreProcessor
+     *            the processor counting knocks
+     * @param responsePostProcessor
+     *            the processor counting logins, may be {@code null} if the client does not log in transparently
+     */
+    public ShibHttpClientManagement( PoolingHttpClientConnectionManager connectionManager, RouteRecorder routeRecorder,
+            CookieStore cookieStore, SessionTracker sessionTracker, EcpRequestPreProcessor requestPreProcessor,
+            EcpResponsePostProcessor responsePostProcessor )
+    {
+        this.connectionManager = connectionManager;
+        this.routeRecorder = routeRecorder;
+        this.cookieStore = cookieStore;
+        this.sessionTracker = sessionTracker;
+        this.requestPreProcessor = requestPreProcessor;
+        this.responsePostProcessor = responsePostProcessor;
+    }
+    
+    /**
+     * Register this bean with the platform MBean server.
+     * 
+     * @param name
+     *            the name distinguishing the client from other clients in the same JVM
+     * @throws IllegalStateException
+     *             if the bean cannot be registered, e.g. because another client already uses the name
+     */
+    public synchronized void register( String name )
+    {
+        unregister();
+        try
+        {
+            ObjectName newName = new ObjectName( DOMAIN + ":type=ShibHttpClient,name=" + ObjectName.quote( name ) );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, newName );
+            objectName = newName;
+        }
+        catch ( JMException e )
+        {
+            throw new IllegalStateException( "cannot register MBean for client [" + name + "]", e );
+        }
+    }
+    
+    /**
+     * Remove this bean from the platform MBean server if it is registered.
+     */
+    public synchronized void unregister()
+    {
+        if ( objectName == null )
+        {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            server.unregisterMBean( objectName );
+        }
+        catch ( JMException e )
+        {
+            log.warn( "Cannot unregister MBean [" + objectName + "]", e );
+        }
+        objectName = null;
+    }
+    
+    /**
+     * Get the name this bean is registered under.
+     * 
+     * @return the object name, {@code null} if the bean is not registered
+     */
+    public synchronized ObjectName getObjectName()
+    {
+        return objectName;
+    }
+    
+    @Override
+    public int getMaxTotal()
+    {
+        return connectionManager.getMaxTotal();
+    }
+    
+    @Override
+    public int getLeasedConnections()
+    {
+        return connectionManager.getTotalStats().getLeased();
+    }
+    
+    @Override
+    public int getAvailableConnections()
+    {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+    
+    @Override
+    public int getPendingConnections()
+    {
+        return connectionManager.getTotalStats().getPending();
+    }
+    
+    @Override
+    public Map<String, RouteStats> getRouteStats()
+    {
+        Map<String, RouteStats> stats = new TreeMap<String, RouteStats>();
+        for ( HttpRoute route : routeRecorder.getRoutes() )
+        {
+            PoolStats routeStats = connectionManager.getStats( route );
+            stats.put( route.toString(), new RouteStats( routeStats ) );
+        }
+        return stats;
+    }
+    
+    @Override
+    public int getActiveSessions()
+    {
+        long now = System.currentTimeMillis();
+        int active = 0;
+        for ( SpSession session : sessionTracker.getSessions() )
+        {
+            if ( session.isValidAt( now ) )
+            {
+                active++;
+            }
+        }
+        return active;
+    }
+    
+    @Override
+    public String[] getSessions()
+    {
+        List<String> descriptions = new ArrayList<String>();
+        for ( SpSession session : sessionTracker.getSessions() )
+        {
+            descriptions.add( session.toString() );
+        }
+        return descriptions.toArray( new String[descriptions.size()] );
+    }
+    
+    @Override
+    public int getCookieCount()
+    {
+        return cookieStore.getCookies().size();
+    }
+    
+    @Override
+    public long getLoginsSucceeded()
+    {
+        return responsePostProcessor != null ? responsePostProcessor.getLoginsSucceeded() : 0;
+    }
+    
+    @Override
+    public long getLoginsFailed()
+    {
+        return responsePostProcessor != null ? responsePostProcessor.getLoginsFailed() : 0;
+    }
+    
+    @Override
+    public double getLastLoginMillis()
+    {
+        long nanos = responsePostProcessor != null ? responsePostProcessor.getLastLoginNanos() : -1;
+        return nanos < 0 ? -1 : (double) nanos / TimeUnit.MILLISECONDS.toNanos( 1 );
+    }
+    
+    @Override
+    public long getKnocksSent()
+    {
+        return requestPreProcessor.getKnocksSent();
+    }
+    
+    @Override
+    public long getKnocksSkipped()
+    {
+        return requestPreProcessor.getKnocksSkipped();
+    }
+    
+    @Override
+    public void resetCounters()
+    {
+        requestPreProcessor.resetCounters();
+        if ( responsePostProcessor != null )
+        {
+            responsePostProcessor.resetCounters();
+        }
+    }
+    
+    @Override
+    public void closeIdleConnections( long idleSeconds )
+    {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections( idleSeconds, TimeUnit.SECONDS );
+    }
+}
\ No newline at end of file
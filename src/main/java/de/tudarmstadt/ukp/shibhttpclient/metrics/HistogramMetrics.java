@@ -0,0 +1,172 @@
+package de.tudarmstadt.ukp.shibhttpclient.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a counter per event and endpoint and a {@link LatencyHistogram} per phase and endpoint in memory. Counters and histograms are
+ * created on first use and never removed, recording does not lock.
+ */
+public class HistogramMetrics implements ShibClientMetrics
+{
+    private final ConcurrentMap<Key<Event>, AtomicLong>       counters   = new ConcurrentHashMap<Key<Event>, AtomicLong>();
+    private final ConcurrentMap<Key<Phase>, LatencyHistogram> histograms = new ConcurrentHashMap<Key<Phase>, LatencyHistogram>();
+    
+    @Override
+    public void count( Event event, String endpoint )
+    {
+        Key<Event> key = new Key<Event>( event, endpoint );
+        AtomicLong counter = counters.get( key );
+        if ( counter == null )
+        {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent( key, created );
+            if ( counter == null )
+            {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+    
+    @Override
+    public void time( Phase phase, String endpoint, long nanos )
+    {
+        Key<Phase> key = new Key<Phase>( phase, endpoint );
+        LatencyHistogram histogram = histograms.get( key );
+        if ( histogram == null )
+        {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent( key, created );
+            if ( histogram == null )
+            {
+                histogram = created;
+            }
+        }
+        histogram.record( nanos );
+    }
+    
+    /**
+     * Get the number of events at the given endpoint.
+     * 
+     * @param event
+     *            the event
+     * @param endpoint
+     *            the SP origin or IdP URL, may be {@code null}
+     * @return the number of events
+     */
+    public long getCount( Event event, String endpoint )
+    {
+        AtomicLong counter = counters.get( new Key<Event>( event, endpoint ) );
+        return counter != null ? counter.get() : 0;
+    }
+    
+    /**
+     * Get the number of events at all endpoints.
+     * 
+     * @param event
+     *            the event
+     * @return the number of events
+     */
+    public long getCount( Event event )
+    {
+        long count = 0;
+        for ( Map.Entry<Key<Event>, AtomicLong> entry : counters.entrySet() )
+        {
+            if ( entry.getKey().type == event )
+            {
+                count += entry.getValue().get();
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Get the histogram of the durations of a phase at the given endpoint.
+     * 
+     * @param phase
+     *            the phase
+     * @param endpoint
+     *            the SP origin or IdP URL, may be {@code null}
+     * @return the histogram, {@code null} if the phase has not been timed at the endpoint
+     */
+    public LatencyHistogram getHistogram( Phase phase, String endpoint )
+    {
+        return histograms.get( new Key<Phase>( phase, endpoint ) );
+    }
+    
+    /**
+     * Get the histograms of a phase by endpoint. Phases not related to an endpoint are mapped from {@code null}.
+     * 
+     * @param phase
+     *            the phase
+     * @return the histograms of the phase
+     */
+    public Map<String, LatencyHistogram> getHistograms( Phase phase )
+    {
+        Map<String, LatencyHistogram> result = new HashMap<String, LatencyHistogram>();
+        for ( Map.Entry<Key<Phase>, LatencyHistogram> entry : histograms.entrySet() )
+        {
+            if ( entry.getKey().type == phase )
+            {
+                result.put( entry.getKey().endpoint, entry.getValue() );
+            }
+        }
+        return Collections.unmodifiableMap( result );
+    }
+    
+    /**
+     * Reset all counters and histograms.
+     */
+    public void reset()
+    {
+        for ( AtomicLong counter : counters.values() )
+        {
+            counter.set( 0 );
+        }
+        for ( LatencyHistogram histogram : histograms.values() )
+        {
+            histogram.reset();
+        }
+    }
+    
+    /**
+     * An event or phase at an endpoint.
+     */
+    private static final class Key<T extends Enum<T>>
+    {
+        private final T      type;
+        private final String endpoint;
+        
+        Key( T type, String endpoint )
+        {
+            this.type = type;
+            this.endpoint = endpoint;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return 31 * type.hashCode() + (endpoint != null ? endpoint.hashCode() : 0);
+        }
+        
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !(obj instanceof Key) )
+            {
+                return false;
+            }
+            Key<?> other = (Key<?>) obj;
+            return type == other.type && (endpoint != null ? endpoint.equals( other.endpoint ) : other.endpoint == null);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package de.tudarmstadt.ukp.shibhttpclient.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with logarithmic buckets.
+ * 
+ * <p>
+ * Every power of two is split into eight buckets, so percentiles are accurate to 12.5% over the whole range of {@code long} while the
+ * histogram takes less than 4KB. Recording a value is a single atomic increment of its bucket plus updates of the sum and the maximum,
+ * and never blocks. Reading while values are recorded is safe, but the count, percentiles and mean may reflect slightly different sets of
+ * values.
+ * </p>
+ */
+public class LatencyHistogram
+{
+    private static final int      SUB_BUCKET_BITS = 3;
+    private static final int      SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int      BUCKETS         = bucket( Long.MAX_VALUE ) + 1;
+    
+    private final AtomicLongArray counts          = new AtomicLongArray( BUCKETS );
+    private final AtomicLong      sum             = new AtomicLong();
+    private final AtomicLong      max             = new AtomicLong();
+    
+    /**
+     * Record a duration. Negative durations are recorded as {@code 0}.
+     * 
+     * @param nanos
+     *            the duration in nanoseconds
+     */
+    public void record( long nanos )
+    {
+        long value = Math.max( nanos, 0 );
+        counts.incrementAndGet( bucket( value ) );
+        sum.addAndGet( value );
+        
+        long current = max.get();
+        while ( value > current && !max.compareAndSet( current, value ) )
+        {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Get the number of recorded durations.
+     * 
+     * @return the number of recorded durations
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            count += counts.get( i );
+        }
+        return count;
+    }
+    
+    /**
+     * Get the mean of the recorded durations.
+     * 
+     * @param unit
+     *            the unit of the result
+     * @return the mean duration, {@code 0} if nothing has been recorded
+     */
+    public double getMean( TimeUnit unit )
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.get() / count / unit.toNanos( 1 );
+    }
+    
+    /**
+     * Get the longest recorded duration.
+     * 
+     * @param unit
+     *            the unit of the result
+     * @return the longest duration, {@code 0} if nothing has been recorded
+     */
+    public long getMax( TimeUnit unit )
+    {
+        return unit.convert( max.get(), TimeUnit.NANOSECONDS );
+    }
+    
+    /**
+     * Get the duration that the given fraction of the recorded durations does not exceed, rounded up to the upper bound of its bucket.
+     * 
+     * @param quantile
+     *            the fraction between {@code 0} and {@code 1}, e.g. {@code 0.99} for the 99th percentile
+     * @param unit
+     *            the unit of the result
+     * @return the duration at the quantile, {@code 0} if nothing has been recorded
+     */
+    public long getPercentile( double quantile, TimeUnit unit )
+    {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            snapshot[i] = counts.get( i );
+            count += snapshot[i];
+        }
+        if ( count == 0 )
+        {
+            return 0;
+        }
+        
+        long rank = Math.max( 1, (long) Math.ceil( quantile * count ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += snapshot[i];
+            if ( seen >= rank )
+            {
+                return unit.convert( Math.min( upperBound( i ), max.get() ), TimeUnit.NANOSECONDS );
+            }
+        }
+        return getMax( unit );
+    }
+    
+    /**
+     * Forget all recorded durations. Durations recorded concurrently may be partially retained.
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            counts.set( i, 0 );
+        }
+        sum.set( 0 );
+        max.set( 0 );
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram [count=" + getCount() + ", mean=" + getMean( TimeUnit.MICROSECONDS ) + "us, p50="
+                + getPercentile( 0.5, TimeUnit.MICROSECONDS ) + "us, p99=" + getPercentile( 0.99, TimeUnit.MICROSECONDS ) + "us, max="
+                + getMax( TimeUnit.MICROSECONDS ) + "us]";
+    }
+    
+    /**
+     * Values below {@link #SUB_BUCKETS} have a bucket each, larger values share a bucket with the values of the same magnitude that agree
+     * in the {@link #SUB_BUCKET_BITS} bits following the most significant one.
+     */
+    private static int bucket( long value )
+    {
+        if ( value < SUB_BUCKETS )
+        {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+    
+    private static long upperBound( int bucket )
+    {
+        if ( bucket < SUB_BUCKETS )
+        {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return lowerBound + width - 1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,29 @@
+package de.tudarmstadt.ukp.shibhttpclient.metrics;
+
+/**
+ * Discards all metrics.
+ */
+public final class NoOpMetrics implements ShibClientMetrics
+{
+    /**
+     * The shared instance.
+     */
+    public static final NoOpMetrics INSTANCE = new NoOpMetrics();
+    
+    private NoOpMetrics()
+    {
+        // use INSTANCE
+    }
+    
+    @Override
+    public void count( Event event, String endpoint )
+    {
+        // discard
+    }
+    
+    @Override
+    public void time( Phase phase, String endpoint, long nanos )
+    {
+        // discard
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package de.tudarmstadt.ukp.shibhttpclient.metrics;
+
+/**
+ * Receives counts and timings of the phases of ECP logins and sender-vouches authentication. Implementations are called on the request
+ * threads and must be thread-safe and fast; {@link NoOpMetrics} is used unless configured otherwise and {@link HistogramMetrics} keeps
+ * counters and latency histograms in memory.
+ * 
+ * <p>
+ * The endpoint is the origin ({@code scheme://host:port}) of the SP for SP phases, the URL of the IdP for IdP phases and {@code null} for
+ * phases that do not involve a remote party, such as signing a token.
+ * </p>
+ */
+public interface ShibClientMetrics
+{
+    /**
+     * The timed phases.
+     */
+    enum Phase
+    {
+        /** A HEAD request sent to the SP ahead of an unredirectable request. */
+        KNOCK,
+        /** Reading the PAOS authentication request of the SP. */
+        PAOS_PARSE,
+        /** The login request to the IdP including reading its response. */
+        IDP_LOGIN,
+        /** Posting the IdP response to the assertion consumer service of the SP. */
+        ACS_POST,
+        /** A complete login at the SP, from the PAOS challenge to the response of the assertion consumer service. */
+        LOGIN,
+        /** Repeating a request after another thread logged in. */
+        REPLAY,
+        /** Supplying the credentials for a login request to the IdP. */
+        CREDENTIALS,
+        /** Signing a sender-vouches token. */
+        TOKEN_SIGNING
+    }
+    
+    /**
+     * The counted events.
+     */
+    enum Event
+    {
+        /** A knock has been sent to the SP. */
+        KNOCK_SENT,
+        /** A knock was not necessary because of a live session or a knock in progress. */
+        KNOCK_SKIPPED,
+        /** A login established a session at the SP. */
+        LOGIN_SUCCEEDED,
+        /** A login failed. */
+        LOGIN_FAILED,
+        /** A request waited for a login of another thread instead of logging in itself. */
+        LOGIN_JOINED,
+        /** A session another node established was adopted from the shared session store instead of logging in. */
+        SESSION_ADOPTED,
+        /** A cached sender-vouches header was used. */
+        TOKEN_CACHE_HIT,
+        /** A token signed in the background was used. */
+        TOKEN_PREMINTED,
+        /** A token had to be signed on the request thread. */
+        TOKEN_SIGNED_INLINE
+    }
+    
+    /**
+     * Count an event.
+     * 
+     * @param event
+     *            the event
+     * @param endpoint
+     *            the SP origin or IdP URL the event relates to, may be {@code null}
+     */
+    void count( Event event, String endpoint );
+    
+    /**
+     * Record the duration of a phase.
+     * 
+     * @param phase
+     *            the phase
+     * @param endpoint
+     *            the SP origin or IdP URL the phase relates to, may be {@code null}
+     * @param nanos
+     *            the duration in nanoseconds
+     */
+    void time( Phase phase, String endpoint, long nanos );
+}
\ No newline at end of file
@@ -0,0 +1,218 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.util.EntityUtils;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.ecp.RelayState;
+import org.opensaml.saml2.ecp.Response;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Header;
+
+/**
+ * Pulls the fields an ECP login needs from a SOAP envelope with a StAX parser instead of building a DOM and an OpenSAML object tree: the
+ * ECP relay state, the assertion consumer service URL and the root status code of the SAML response. Parsing stops as soon as these fields
+ * have been seen, so large attribute statements in the body of an IdP response are never parsed.
+ * <p>
+ * The message is buffered as raw bytes up to a configurable maximum size, so it can be forwarded afterwards.
+ */
+public class EcpEnvelopeReader
+{
+    /**
+     * The maximum size of a message unless configured otherwise.
+     */
+    public static final int       DEFAULT_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+    
+    private static final QName    SAML2_RESPONSE           = org.opensaml.saml2.core.Response.DEFAULT_ELEMENT_NAME;
+    
+    private final Log             log                      = LogFactory.getLog( getClass() );
+    
+    private final XMLInputFactory inputFactory;
+    private final int             maxMessageSize;
+    
+    /**
+     * Create a new {@link EcpEnvelopeReader} accepting messages up to {@link #DEFAULT_MAX_MESSAGE_SIZE}.
+     */
+    public EcpEnvelopeReader()
+    {
+        this( DEFAULT_MAX_MESSAGE_SIZE );
+    }
+    
+    /**
+     * Create a new {@link EcpEnvelopeReader}.
+     * 
+     * @param maxMessageSize
+     *            the maximum size of a message in bytes
+     */
+    public EcpEnvelopeReader( int maxMessageSize )
+    {
+        this.maxMessageSize = maxMessageSize;
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE );
+        inputFactory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+        inputFactory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+    }
+    
+    /**
+     * Get the maxMessageSize.
+     * 
+     * @return the maxMessageSize
+     */
+    public int getMaxMessageSize()
+    {
+        return maxMessageSize;
+    }
+    
+    /**
+     * Read the content of the entity, refusing messages larger than the maximum message size. The entity is consumed in any case.
+     * 
+     * @param entity
+     *            the entity to read
+     * @return the content of the entity
+     * @throws IOException
+     *             if the entity cannot be read or is too large
+     */
+    public byte[] readContent( HttpEntity entity ) throws IOException
+    {
+        long length = entity.getContentLength();
+        if ( length > maxMessageSize )
+        {
+            EntityUtils.consumeQuietly( entity );
+            throw new ClientProtocolException( "ECP message of " + length + " bytes exceeds the maximum size of " + maxMessageSize
+                    + " bytes" );
+        }
+        
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream( length > 0 ? (int) length : 4096 );
+        InputStream content = entity.getContent();
+        try
+        {
+            byte[] chunk = new byte[4096];
+            int read;
+            while ( (read = content.read( chunk )) != -1 )
+            {
+                if ( buffer.size() + read > maxMessageSize )
+                {
+                    throw new ClientProtocolException( "ECP message exceeds the maximum size of " + maxMessageSize + " bytes" );
+                }
+                buffer.write( chunk, 0, read );
+            }
+        }
+        finally
+        {
+            content.close();
+        }
+        return buffer.toByteArray();
+    }
+    
+    /**
+     * Pull the ECP fields from the given SOAP envelope.
+     * 
+     * @param content
+     *            the serialized SOAP envelope
+     * @return the message, without an OpenSAML envelope
+     * @throws XMLStreamException
+     *             if the content is not well-formed or not a SOAP envelope
+     */
+    public EcpMessage read( byte[] content ) throws XMLStreamException
+    {
+        String relayState = null;
+        String assertionConsumerServiceUrl = null;
+        String statusCode = null;
+        
+        XMLStreamReader reader = inputFactory.createXMLStreamReader( new ByteArrayInputStream( content ) );
+        try
+        {
+            int depth = 0;
+            QName section = null;
+            boolean inResponse = false;
+            int statusDepth = -1;
+            
+            scan: while ( reader.hasNext() )
+            {
+                int event = reader.next();
+                if ( event == XMLStreamConstants.START_ELEMENT )
+                {
+                    depth++;
+                    QName name = reader.getName();
+                    if ( depth == 1 )
+                    {
+                        if ( !Envelope.DEFAULT_ELEMENT_NAME.equals( name ) )
+                        {
+                            throw new XMLStreamException( "Not a SOAP envelope: " + name, reader.getLocation() );
+                        }
+                    }
+                    else if ( depth == 2 )
+                    {
+                        section = name;
+                    }
+                    else if ( depth == 3 && Header.DEFAULT_ELEMENT_NAME.equals( section ) )
+                    {
+                        if ( RelayState.DEFAULT_ELEMENT_NAME.equals( name ) )
+                        {
+                            relayState = reader.getElementText();
+                            depth--;
+                            log.trace( "Relay state: captured" );
+                        }
+                        else if ( Response.DEFAULT_ELEMENT_NAME.equals( name ) )
+                        {
+                            assertionConsumerServiceUrl = reader.getAttributeValue( null,
+                                    Response.ASSERTION_CONSUMER_SERVICE_URL_ATTRIB_NAME );
+                        }
+                    }
+                    else if ( depth == 3 && Body.DEFAULT_ELEMENT_NAME.equals( section ) )
+                    {
+                        if ( !SAML2_RESPONSE.equals( name ) )
+                        {
+                            // an authentication request, nothing more to pull from the body
+                            break scan;
+                        }
+                        inResponse = true;
+                    }
+                    else if ( inResponse && depth == 4 && Status.DEFAULT_ELEMENT_NAME.equals( name ) )
+                    {
+                        statusDepth = depth;
+                    }
+                    else if ( statusDepth > 0 && StatusCode.DEFAULT_ELEMENT_NAME.equals( name ) )
+                    {
+                        // nested status codes refine their parent, the innermost one is the root cause
+                        statusCode = reader.getAttributeValue( null, StatusCode.VALUE_ATTRIB_NAME );
+                    }
+                }
+                else if ( event == XMLStreamConstants.END_ELEMENT )
+                {
+                    if ( depth == statusDepth || (depth == 3 && inResponse) )
+                    {
+                        // the rest of the response is not needed
+                        break scan;
+                    }
+                    if ( depth == 2 && Body.DEFAULT_ELEMENT_NAME.equals( section ) )
+                    {
+                        break scan;
+                    }
+                    depth--;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        
+        return new EcpMessage( content, relayState, assertionConsumerServiceUrl, statusCode );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,97 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import org.opensaml.ws.soap.soap11.Envelope;
+
+/**
+ * A SOAP message received during an ECP login, either the authentication request of the SP or the login response of the IdP, together
+ * with the fields the login needs from it.
+ */
+public class EcpMessage
+{
+    private final byte[] content;
+    private final String relayState;
+    private final String assertionConsumerServiceUrl;
+    private final String statusCode;
+    private Envelope     envelope;
+    
+    /**
+     * Create a new {@link EcpMessage}.
+     * 
+     * @param content
+     *            the serialized SOAP envelope
+     * @param relayState
+     *            the ECP relay state sent by the SP, may be {@code null}
+     * @param assertionConsumerServiceUrl
+     *            the assertion consumer service URL sent by the IdP, may be {@code null}
+     * @param statusCode
+     *            the root status code of the SAML response sent by the IdP, may be {@code null}
+     */
+    public EcpMessage( byte[] content, String relayState, String assertionConsumerServiceUrl, String statusCode )
+    {
+        this.content = content;
+        this.relayState = relayState;
+        this.assertionConsumerServiceUrl = assertionConsumerServiceUrl;
+        this.statusCode = statusCode;
+    }
+    
+    /**
+     * Get the content.
+     * 
+     * @return the content
+     */
+    public byte[] getContent()
+    {
+        return content;
+    }
+    
+    /**
+     * Get the relayState.
+     * 
+     * @return the relayState
+     */
+    public String getRelayState()
+    {
+        return relayState;
+    }
+    
+    /**
+     * Get the assertionConsumerServiceUrl.
+     * 
+     * @return the assertionConsumerServiceUrl
+     */
+    public String getAssertionConsumerServiceUrl()
+    {
+        return assertionConsumerServiceUrl;
+    }
+    
+    /**
+     * Get the statusCode.
+     * 
+     * @return the statusCode
+     */
+    public String getStatusCode()
+    {
+        return statusCode;
+    }
+    
+    /**
+     * Get the envelope.
+     * 
+     * @return the envelope, {@code null} if the message has not been unmarshalled
+     */
+    public Envelope getEnvelope()
+    {
+        return envelope;
+    }
+    
+    /**
+     * Set the envelope.
+     * 
+     * @param envelope
+     *            the envelope unmarshalled from the content
+     */
+    void setEnvelope( Envelope envelope )
+    {
+        this.envelope = envelope;
+    }
+}
\ No newline at end of file
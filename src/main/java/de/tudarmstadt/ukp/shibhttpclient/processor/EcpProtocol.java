@@ -0,0 +1,524 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import static de.tudarmstadt.ukp.shibhttpclient.Utils.*;
+import static de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.ecp.RelayState;
+import org.opensaml.saml2.ecp.Response;
+import org.opensaml.saml2.ecp.impl.RelayStateBuilder;
+import org.opensaml.ws.soap.soap11.ActorBearing;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Header;
+import org.opensaml.ws.soap.soap11.impl.EnvelopeBuilder;
+import org.opensaml.ws.soap.soap11.impl.HeaderBuilder;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.ParserPool;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.Authenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.ContextAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.CredentialException;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.PrincipalAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
+
+/**
+ * Reads and creates the messages of an ECP login: the PAOS authentication request of the SP, the login request to the IdP, the login
+ * response of the IdP and the login request to the assertion consumer service of the SP. The class does not send anything itself, so it
+ * can be used by both blocking and asynchronous clients.
+ */
+@SuppressWarnings( "deprecation" )
+public class EcpProtocol
+{
+    private static final String SOAP_ACTION_HEADER = "SOAPAction";
+    
+    private final Log           log                = LogFactory.getLog( getClass() );
+    
+    private final ParserPool    parserPool;
+    private final String        idpUrl;
+    private final Authenticator     authenticator;
+    private final EcpEnvelopeReader envelopeReader;
+    
+    /**
+     * Create a new {@link EcpProtocol} reading messages with a streaming {@link EcpEnvelopeReader}.
+     * 
+     * @param parserPool
+     *            the parser pool for SOAP messages
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @param authenticator
+     *            the {@link Authenticator} to provide credentials to the IdP
+     */
+    public EcpProtocol( ParserPool parserPool, String idpUrl, Authenticator authenticator )
+    {
+        this( parserPool, idpUrl, authenticator, new EcpEnvelopeReader() );
+    }
+    
+    /**
+     * Create a new {@link EcpProtocol}.
+     * 
+     * @param parserPool
+     *            the parser pool for SOAP messages
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @param authenticator
+     *            the {@link Authenticator} to provide credentials to the IdP
+     * @param envelopeReader
+     *            the reader pulling the ECP fields from received messages, {@code null} to unmarshall every message with the parser pool
+     */
+    public EcpProtocol( ParserPool parserPool, String idpUrl, Authenticator authenticator, EcpEnvelopeReader envelopeReader )
+    {
+        this.parserPool = parserPool;
+        this.idpUrl = idpUrl;
+        this.authenticator = authenticator;
+        this.envelopeReader = envelopeReader;
+    }
+    
+    /**
+     * Get the idpUrl.
+     * 
+     * @return the idpUrl
+     */
+    public String getIdpUrl()
+    {
+        return idpUrl;
+    }
+    
+    /**
+     * Get the authenticator.
+     * 
+     * @return the authenticator
+     */
+    public Authenticator getAuthenticator()
+    {
+        return authenticator;
+    }
+    
+    /**
+     * Identify the login at the given SP so concurrent logins with the same IdP and principal can be coalesced.
+     * 
+     * @param target
+     *            the SP host
+     * @return a key identifying the login
+     */
+    public String loginKey( HttpHost target )
+    {
+        return loginKey( target, null );
+    }
+    
+    /**
+     * Identify the login at the given SP for a request in the given context so concurrent logins with the same IdP and principal can be
+     * coalesced.
+     * 
+     * @param target
+     *            the SP host
+     * @param context
+     *            the context of the request, may be {@code null}
+     * @return a key identifying the login
+     */
+    public String loginKey( HttpHost target, HttpContext context )
+    {
+        return SessionTracker.originOf( target ) + " " + idpUrl + " " + currentPrincipal( context );
+    }
+    
+    /**
+     * Determine the principal the authenticator supplies credentials for.
+     * 
+     * @return the current principal, {@code null} unless the authenticator is a {@link PrincipalAuthenticator}
+     */
+    public String currentPrincipal()
+    {
+        return currentPrincipal( null );
+    }
+    
+    /**
+     * Determine the principal the authenticator supplies credentials for to a request in the given context.
+     * 
+     * @param context
+     *            the context of the request, may be {@code null}
+     * @return the current principal, {@code null} unless the authenticator is a {@link PrincipalAuthenticator}
+     */
+    public String currentPrincipal( HttpContext context )
+    {
+        return currentPrincipal( authenticator, context );
+    }
+    
+    /**
+     * Determine the principal the given authenticator supplies credentials for to a request in the given context.
+     * 
+     * @param authenticator
+     *            the authenticator, may be {@code null}
+     * @param context
+     *            the context of the request, may be {@code null}
+     * @return the current principal, {@code null} unless the authenticator is a {@link PrincipalAuthenticator}
+     */
+    public static String currentPrincipal( Authenticator authenticator, HttpContext context )
+    {
+        if ( authenticator instanceof ContextAuthenticator )
+        {
+            return ((ContextAuthenticator) authenticator).currentPrincipal( context );
+        }
+        if ( authenticator instanceof PrincipalAuthenticator )
+        {
+            return ((PrincipalAuthenticator) authenticator).currentPrincipal();
+        }
+        return null;
+    }
+    
+    /**
+     * Checks whether the HttpResponse is a SAML SOAP message
+     * 
+     * @param res
+     *            the HttpResponse to check
+     * @return true if the HttpResponse is a SAML SOAP message, false if not
+     */
+    public static boolean isSamlSoapResponse( HttpResponse res )
+    {
+        return hasPAOSContentType( res ) || hasSOAPActionHeader( res );
+    }
+    
+    /**
+     * Read the PAOS authentication request the SP sent instead of the requested resource.
+     * 
+     * @param paosEntity
+     *            the entity of the PAOS response
+     * @return the authentication request
+     * @throws IOException
+     *             if the message cannot be read
+     */
+    public EcpMessage readAuthnRequest( HttpEntity paosEntity ) throws IOException
+    {
+        EcpMessage initialLoginSoapResponse = readMessage( paosEntity );
+        
+        // -- Capture response consumer -------------------------------------------------------
+        // // pick out the responseConsumerURL attribute value from the SP response so that
+        // // it can later be compared to the assertionConsumerURL sent from the IdP
+        // String responseConsumerURL = ((XSAny) initialLoginSoapResponse.getHeader()
+        // .getUnknownXMLObjects(E_PAOS_REQUEST).get(0)).getUnknownAttributes().get(
+        // A_RESPONSE_CONSUMER_URL);
+        // log.debug("responseConsumerURL: [" + responseConsumerURL + "]");
+        
+        return initialLoginSoapResponse;
+    }
+    
+    /**
+     * Create the login request to the IdP for the given authentication request, including the credentials.
+     * 
+     * @param authnRequest
+     *            the authentication request of the SP
+     * @return the login request to the IdP
+     * @throws IOException
+     *             if the request cannot be created
+     */
+    public HttpPost createIdpLoginRequest( EcpMessage authnRequest ) throws IOException
+    {
+        return createIdpLoginRequest( authnRequest, null );
+    }
+    
+    /**
+     * Create the login request to the IdP for the given authentication request, including the credentials of the principal of the
+     * request that triggered the login.
+     * 
+     * @param authnRequest
+     *            the authentication request of the SP
+     * @param context
+     *            the context of the request that triggered the login, may be {@code null}
+     * @return the login request to the IdP
+     * @throws IOException
+     *             if the request cannot be created
+     */
+    public HttpPost createIdpLoginRequest( EcpMessage authnRequest, HttpContext context ) throws IOException
+    {
+        // Prepare the request to the IdP, dropping the header of the SP
+        HttpEntity entity = null;
+        if ( isSplicing( authnRequest ) )
+        {
+            entity = SoapEnvelopeSplicer.withoutHeader( authnRequest.getContent() );
+        }
+        if ( entity == null )
+        {
+            Envelope idpLoginSoapRequest = new EnvelopeBuilder().buildObject();
+            Body b = envelope( authnRequest ).getBody();
+            b.detach();
+            idpLoginSoapRequest.setBody( b );
+            entity = new XMLObjectEntity( idpLoginSoapRequest );
+        }
+        
+        // Try logging in to the IdP using HTTP BASIC authentication
+        HttpPost idpLoginRequest = new HttpPost( idpUrl );
+        idpLoginRequest.getParams().setBooleanParameter( AUTH_IN_PROGRESS, true );
+        try
+        {
+            if ( authenticator instanceof ContextAuthenticator )
+            {
+                ((ContextAuthenticator) authenticator).supplyCredentials( idpLoginRequest, context );
+            }
+            else
+            {
+                authenticator.supplyCredentials( idpLoginRequest );
+            }
+        }
+        catch ( CredentialException e )
+        {
+            throw new IllegalStateException( "credentials for authentication could not be created: " + e.getMessage(), e );
+        }
+        idpLoginRequest.setEntity( entity );
+        return idpLoginRequest;
+    }
+    
+    /**
+     * Read the login response of the IdP.
+     * 
+     * @param idpLoginResponse
+     *            the response of the IdP
+     * @return the login response
+     * @throws AuthenticationException
+     *             if the IdP rejected the login
+     * @throws IOException
+     *             if the message cannot be read
+     */
+    public EcpMessage readIdpLoginResponse( HttpResponse idpLoginResponse ) throws AuthenticationException, IOException
+    {
+        log.debug( "Status: " + idpLoginResponse.getStatusLine() );
+        if ( idpLoginResponse.getStatusLine().getStatusCode() != 200 )
+        {
+            EntityUtils.consumeQuietly( idpLoginResponse.getEntity() );
+            throw new AuthenticationException( idpLoginResponse.getStatusLine().toString() );
+        }
+        
+        EcpMessage idpLoginSoapResponse = readMessage( idpLoginResponse.getEntity() );
+        String assertionConsumerServiceURL = idpLoginSoapResponse.getAssertionConsumerServiceUrl();
+        if ( assertionConsumerServiceURL == null )
+        {
+            throw new ClientProtocolException( "IdP response lacks the ECP response header" );
+        }
+        log.debug( "assertionConsumerServiceURL: " + assertionConsumerServiceURL );
+        
+        // Hm, they don't like us
+        if ( StatusCode.AUTHN_FAILED_URI.equals( idpLoginSoapResponse.getStatusCode() ) )
+        {
+            throw new AuthenticationException( idpLoginSoapResponse.getStatusCode() );
+        }
+        
+        // compare the responseConsumerURL from the SP to the assertionConsumerServiceURL from
+        // the IdP and if they are not identical then send a SOAP fault to the SP
+        // if (false) {
+        // // Nice guys should send a fault to the SP - we are NOT nice yet
+        // }
+        
+        return idpLoginSoapResponse;
+    }
+    
+    /**
+     * Create the request forwarding the login response of the IdP to the assertion consumer service of the SP.
+     * 
+     * @param idpLoginResponse
+     *            the login response of the IdP
+     * @param authnRequest
+     *            the authentication request of the SP, providing the relay state
+     * @return the login request to the SP
+     * @throws IOException
+     *             if the request cannot be created
+     */
+    public HttpPost createSpLoginRequest( EcpMessage idpLoginResponse, EcpMessage authnRequest ) throws IOException
+    {
+        // craft the package to send to the SP by copying the response from the IdP but
+        // removing the SOAP header sent by the IdP and instead putting in a new header that
+        // includes the relay state sent by the SP
+        HttpEntity entity = null;
+        if ( isSplicing( idpLoginResponse ) )
+        {
+            entity = SoapEnvelopeSplicer.withRelayState( idpLoginResponse.getContent(), authnRequest.getRelayState() );
+        }
+        if ( entity == null )
+        {
+            Envelope idpLoginSoapResponse = envelope( idpLoginResponse );
+            Header header = new HeaderBuilder().buildObject();
+            header.getUnknownXMLObjects().clear();
+            if ( authnRequest.getRelayState() != null )
+            {
+                RelayState relayState = new RelayStateBuilder().buildObject();
+                relayState.setValue( authnRequest.getRelayState() );
+                relayState.setSOAP11MustUnderstand( Boolean.TRUE );
+                relayState.setSOAP11Actor( ActorBearing.SOAP11_ACTOR_NEXT );
+                header.getUnknownXMLObjects().add( relayState );
+            }
+            idpLoginSoapResponse.setHeader( header );
+            entity = new XMLObjectEntity( idpLoginSoapResponse );
+        }
+        
+        // push the response to the SP at the assertion consumer service URL included in
+        // the response from the IdP
+        HttpPost spLoginRequest = new HttpPost( idpLoginResponse.getAssertionConsumerServiceUrl() );
+        spLoginRequest.getParams().setBooleanParameter( AUTH_IN_PROGRESS, true );
+        spLoginRequest.setHeader( HttpHeaders.CONTENT_TYPE, MIME_TYPE_PAOS );
+        spLoginRequest.setEntity( entity );
+        HttpClientParams.setRedirecting( spLoginRequest.getParams(), false );
+        return spLoginRequest;
+    }
+    
+    private static boolean hasSOAPActionHeader( HttpResponse res )
+    {
+        return res.containsHeader( SOAP_ACTION_HEADER );
+    }
+    
+    private static boolean hasPAOSContentType( HttpResponse res )
+    {
+        boolean isSamlSoap = false;
+        if ( res.getFirstHeader( HttpHeaders.CONTENT_TYPE ) != null )
+        {
+            ContentType contentType = ContentType.parse( res.getFirstHeader( HttpHeaders.CONTENT_TYPE ).getValue() );
+            isSamlSoap = MIME_TYPE_PAOS.equals( contentType.getMimeType() );
+        }
+        return isSamlSoap;
+    }
+    
+    /**
+     * Read a SOAP message with the envelope reader, falling back to unmarshalling it if the reader cannot handle it.
+     * 
+     * @param entity
+     *            the HttpEntity to retrieve the SOAP message from
+     * @return the message
+     * @throws IOException
+     *             if the message cannot be read
+     */
+    private EcpMessage readMessage( HttpEntity entity ) throws IOException
+    {
+        if ( envelopeReader == null )
+        {
+            return unmarshalledMessage( null, getSoapMessage( entity ) );
+        }
+        
+        byte[] content = envelopeReader.readContent( entity );
+        try
+        {
+            return envelopeReader.read( content );
+        }
+        catch ( XMLStreamException e )
+        {
+            log.debug( "Streaming read of SOAP message failed, unmarshalling it: " + e.getMessage() );
+            return unmarshalledMessage( content, (Envelope) unmarshallMessage( parserPool, new ByteArrayInputStream( content ) ) );
+        }
+    }
+    
+    /**
+     * Check whether the message can be rewritten by splicing its content rather than by unmarshalling it.
+     * 
+     * @param message
+     *            the message
+     * @return {@code true} if the content of the message was read by the envelope reader and has not been unmarshalled
+     */
+    private boolean isSplicing( EcpMessage message )
+    {
+        return envelopeReader != null && message.getContent() != null && message.getEnvelope() == null;
+    }
+    
+    /**
+     * Get the envelope of the message, unmarshalling it on first use.
+     * 
+     * @param message
+     *            the message
+     * @return the envelope of the message
+     * @throws IOException
+     *             if the message cannot be unmarshalled
+     */
+    private Envelope envelope( EcpMessage message ) throws IOException
+    {
+        if ( message.getEnvelope() == null )
+        {
+            message.setEnvelope( (Envelope) unmarshallMessage( parserPool, new ByteArrayInputStream( message.getContent() ) ) );
+        }
+        return message.getEnvelope();
+    }
+    
+    /**
+     * Pull the ECP fields from an unmarshalled SOAP message.
+     * 
+     * @param content
+     *            the serialized message, may be {@code null}
+     * @param soapEnvelope
+     *            the unmarshalled message
+     * @return the message
+     */
+    private EcpMessage unmarshalledMessage( byte[] content, Envelope soapEnvelope )
+    {
+        String relayState = null;
+        String assertionConsumerServiceURL = null;
+        String statusCode = null;
+        
+        Header header = soapEnvelope.getHeader();
+        if ( header != null )
+        {
+            // -- Capture relay state (optional) --------------------------------------------------
+            List<XMLObject> relayStates = header.getUnknownXMLObjects( RelayState.DEFAULT_ELEMENT_NAME );
+            if ( !relayStates.isEmpty() )
+            {
+                relayState = ((RelayState) relayStates.get( 0 )).getValue();
+                log.trace( "Relay state: captured" );
+            }
+            
+            List<XMLObject> ecpResponses = header.getUnknownXMLObjects( Response.DEFAULT_ELEMENT_NAME );
+            if ( !ecpResponses.isEmpty() )
+            {
+                assertionConsumerServiceURL = ((Response) ecpResponses.get( 0 )).getAssertionConsumerServiceURL();
+            }
+        }
+        
+        List<XMLObject> responses = soapEnvelope.getBody().getUnknownXMLObjects( org.opensaml.saml2.core.Response.DEFAULT_ELEMENT_NAME );
+        if ( !responses.isEmpty() )
+        {
+            org.opensaml.saml2.core.Response response = (org.opensaml.saml2.core.Response) responses.get( 0 );
+            
+            // Get root code (?)
+            StatusCode sc = response.getStatus().getStatusCode();
+            while ( sc.getStatusCode() != null )
+            {
+                sc = sc.getStatusCode();
+            }
+            statusCode = sc.getValue();
+        }
+        
+        EcpMessage message = new EcpMessage( content, relayState, assertionConsumerServiceURL, statusCode );
+        message.setEnvelope( soapEnvelope );
+        return message;
+    }
+    
+    /**
+     * Extracts the SOAP message from the HttpResponse
+     * 
+     * @param entity
+     *            the HttpEntity to retrieve the SOAP message from
+     * @return soapEnvelope the SOAP message
+     * @throws IOException
+     * @throws IllegalStateException
+     * @throws ClientProtocolException
+     */
+    private org.opensaml.ws.soap.soap11.Envelope getSoapMessage( HttpEntity entity ) throws ClientProtocolException, IllegalStateException,
+            IOException
+    {
+        InputStream content = entity.getContent();
+        Envelope soapEnvelope = (Envelope) unmarshallMessage( parserPool, content );
+        EntityUtils.consumeQuietly( entity );
+        return soapEnvelope;
+    }
+}
\ No newline at end of file
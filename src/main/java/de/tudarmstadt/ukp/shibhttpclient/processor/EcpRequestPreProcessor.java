@@ -3,22 +3,43 @@ package de.tudarmstadt.ukp.shibhttpclient.processor;
 import static de.tudarmstadt.ukp.shibhttpclient.processor.EcpResponsePostProcessor.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.opensaml.common.xml.SAMLConstants;
 
+import de.tudarmstadt.ukp.shibhttpclient.authentication.Authenticator;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.NoOpMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Event;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Phase;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
+import de.tudarmstadt.ukp.shibhttpclient.session.SingleFlight;
+
 /**
  * Add the ECP/PAOS headers to each outgoing request.
+ * 
+ * <p>
+ * Requests that cannot be redirected are preceded by a knock at the same URL unless the {@link SessionTracker} knows of a live session at
+ * the target SP. Concurrent knocks of the same principal at the same URL are coalesced into one.
+ * </p>
  */
 public class EcpRequestPreProcessor implements HttpRequestInterceptor
 {
@@ -26,27 +47,56 @@ public class EcpRequestPreProcessor implements HttpRequestInterceptor
     
     private static final String HEADER_PAOS = "PAOS";
     
-    private final HttpClient    client;
+    private final HttpClient     client;
+    private final SessionTracker sessionTracker;
+    private final Authenticator  authenticator;
+    
+    private final AtomicLong     knocksSent    = new AtomicLong();
+    private final AtomicLong     knocksSkipped = new AtomicLong();
+    
+    private final SingleFlight<String, Void> knocks = new SingleFlight<String, Void>();
+    
+    private volatile ShibClientMetrics       metrics = NoOpMetrics.INSTANCE;
     
     public EcpRequestPreProcessor( HttpClient client )
+    {
+        this( client, null );
+    }
+    
+    /**
+     * Create a new {@link EcpRequestPreProcessor} that skips the knock if a live session is known.
+     * 
+     * @param client
+     *            the client used to knock
+     * @param sessionTracker
+     *            the tracker of SP sessions, may be {@code null} to always knock
+     */
+    public EcpRequestPreProcessor( HttpClient client, SessionTracker sessionTracker )
+    {
+        this( client, sessionTracker, null );
+    }
+    
+    /**
+     * Create a new {@link EcpRequestPreProcessor} that skips the knock if a live session of the principal of the request is known.
+     * 
+     * @param client
+     *            the client used to knock
+     * @param sessionTracker
+     *            the tracker of SP sessions, may be {@code null} to always knock
+     * @param authenticator
+     *            the authenticator telling the principal of a request, may be {@code null}
+     */
+    public EcpRequestPreProcessor( HttpClient client, SessionTracker sessionTracker, Authenticator authenticator )
     {
         this.client = client;
+        this.sessionTracker = sessionTracker;
+        this.authenticator = authenticator;
     }
     
     @Override
     public void process( HttpRequest request, HttpContext context ) throws HttpException, IOException
     {
-        if ( request.containsHeader( HttpHeaders.ACCEPT ) )
-        {
-            Header currentAccept = request.getFirstHeader( HttpHeaders.ACCEPT );
-            String acceptWithPaos = currentAccept.getValue() + ", " + MIME_TYPE_PAOS;
-            request.setHeader( HttpHeaders.ACCEPT, acceptWithPaos );
-        }
-        else
-        {
-            request.addHeader( HttpHeaders.ACCEPT, MIME_TYPE_PAOS );
-        }
-        request.addHeader( HEADER_PAOS, "ver=\"" + SAMLConstants.PAOS_NS + "\";\"" + SAMLConstants.SAML20ECP_NS + "\"" );
+        addPaosHeaders( request );
         
         HttpRequest r = request;
         if ( request instanceof HttpRequestWrapper )
@@ -61,12 +111,165 @@ public class EcpRequestPreProcessor implements HttpRequestInterceptor
         if ( !REDIRECTABLE.contains( r.getRequestLine().getMethod() ) && authNotInProgress )
         {
             // && !r.getRequestLine().getUri().startsWith(idpUrl)) {
+            String endpoint = endpointOf( HttpClientContext.adapt( context ).getTargetHost(), r );
+            if ( hasLiveSession( context ) )
+            {
+                knocksSkipped.incrementAndGet();
+                metrics.count( Event.KNOCK_SKIPPED, endpoint );
+                log.trace( "Live session at target, skipping knock at " + r.getRequestLine().getUri() );
+                return;
+            }
+            
             log.trace( "Unredirectable request [" + r.getRequestLine().getMethod() + "], trying to knock first at "
                     + r.getRequestLine().getUri() );
-            HttpHead knockRequest = new HttpHead( r.getRequestLine().getUri() );
-            client.execute( knockRequest );
+            knock( r.getRequestLine().getUri(), endpoint, context );
+        }
+    }
+    
+    /**
+     * Indicate the ECP capability of the client to the SP by adding the PAOS headers.
+     * 
+     * @param request
+     *            the request to the SP
+     */
+    public static void addPaosHeaders( HttpRequest request )
+    {
+        if ( request.containsHeader( HttpHeaders.ACCEPT ) )
+        {
+            Header currentAccept = request.getFirstHeader( HttpHeaders.ACCEPT );
+            String acceptWithPaos = currentAccept.getValue() + ", " + MIME_TYPE_PAOS;
+            request.setHeader( HttpHeaders.ACCEPT, acceptWithPaos );
+        }
+        else
+        {
+            request.addHeader( HttpHeaders.ACCEPT, MIME_TYPE_PAOS );
+        }
+        request.addHeader( HEADER_PAOS, "ver=\"" + SAMLConstants.PAOS_NS + "\";\"" + SAMLConstants.SAML20ECP_NS + "\"" );
+    }
+    
+    private void knock( final String uri, String endpoint, HttpContext context ) throws HttpException, IOException
+    {
+        // Knock with the cookies of the request, so the SP sees the session of its principal
+        final HttpClientContext knockContext = HttpClientContext.create();
+        knockContext.setCookieStore( HttpClientContext.adapt( context ).getCookieStore() );
+        long start = System.nanoTime();
+        try
+        {
+            SingleFlight.Result<Void> knock = knocks.execute( uri + " " + principalOf( context ), new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    HttpHead knockRequest = new HttpHead( uri );
+                    HttpResponse response = client.execute( knockRequest, knockContext );
+                    EntityUtils.consumeQuietly( response.getEntity() );
+                    return null;
+                }
+            } );
             
-            log.trace( "Knocked" );
+            if ( knock.isLeader() )
+            {
+                knocksSent.incrementAndGet();
+                metrics.count( Event.KNOCK_SENT, endpoint );
+                log.trace( "Knocked" );
+            }
+            else
+            {
+                knocksSkipped.incrementAndGet();
+                metrics.count( Event.KNOCK_SKIPPED, endpoint );
+                log.trace( "Joined knock in progress" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while waiting for knock to complete" );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof HttpException )
+            {
+                throw (HttpException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException( cause );
+        }
+        finally
+        {
+            metrics.time( Phase.KNOCK, endpoint, System.nanoTime() - start );
+        }
+    }
+    
+    /**
+     * Set the metrics that knocks are reported to.
+     * 
+     * @param metrics
+     *            the metrics, {@code null} to report nothing
+     */
+    public void setMetrics( ShibClientMetrics metrics )
+    {
+        this.metrics = metrics != null ? metrics : NoOpMetrics.INSTANCE;
+    }
+    
+    /**
+     * Get the number of knocks sent.
+     * 
+     * @return the number of knocks sent
+     */
+    public long getKnocksSent()
+    {
+        return knocksSent.get();
+    }
+    
+    /**
+     * Get the number of knocks skipped because of a live session or because a knock at the same URL was already in progress.
+     * 
+     * @return the number of knocks skipped
+     */
+    public long getKnocksSkipped()
+    {
+        return knocksSkipped.get();
+    }
+    
+    /**
+     * Reset the knock counters.
+     */
+    public void resetCounters()
+    {
+        knocksSent.set( 0 );
+        knocksSkipped.set( 0 );
+    }
+    
+    private boolean hasLiveSession( HttpContext context )
+    {
+        if ( sessionTracker == null )
+        {
+            return false;
+        }
+        
+        HttpClientContext clientContext = HttpClientContext.adapt( context );
+        HttpHost target = clientContext.getTargetHost();
+        return sessionTracker.hasLiveSession( target, principalOf( context ), clientContext.getCookieStore() );
+    }
+    
+    private String principalOf( HttpContext context )
+    {
+        try
+        {
+            return EcpProtocol.currentPrincipal( authenticator, context );
+        }
+        catch ( IllegalStateException e )
+        {
+            // no principal bound, the login will fail on its own
+            return null;
         }
     }
     
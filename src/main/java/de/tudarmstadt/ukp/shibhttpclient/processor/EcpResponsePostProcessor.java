@@ -1,49 +1,51 @@
 package de.tudarmstadt.ukp.shibhttpclient.processor;
 
-import static de.tudarmstadt.ukp.shibhttpclient.Utils.*;
 import static java.util.Arrays.asList;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
-import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.auth.AuthenticationException;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.NonRepeatableRequestException;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestWrapper;
-import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
-import org.opensaml.saml2.core.StatusCode;
-import org.opensaml.saml2.ecp.RelayState;
-import org.opensaml.saml2.ecp.Response;
-import org.opensaml.ws.soap.soap11.Body;
-import org.opensaml.ws.soap.soap11.Envelope;
-import org.opensaml.ws.soap.soap11.Header;
-import org.opensaml.ws.soap.soap11.impl.EnvelopeBuilder;
-import org.opensaml.ws.soap.soap11.impl.HeaderBuilder;
-import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.parse.ParserPool;
 
 import de.tudarmstadt.ukp.shibhttpclient.authentication.Authenticator;
-import de.tudarmstadt.ukp.shibhttpclient.authentication.CredentialException;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.NoOpMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Event;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Phase;
+import de.tudarmstadt.ukp.shibhttpclient.session.SessionTracker;
+import de.tudarmstadt.ukp.shibhttpclient.session.SharedSessionCache;
+import de.tudarmstadt.ukp.shibhttpclient.session.SingleFlight;
 
 /**
  * Analyse responses to detect PAOS solicitations for an authentication. Answer these and then transparently proceed with the original
  * request.
+ * 
+ * <p>
+ * Concurrent solicitations for the same SP and principal result in a single login. Requests that joined a login in progress are
+ * repeated once the session has been established.
+ * </p>
  */
 @SuppressWarnings( "deprecation" )
 public class EcpResponsePostProcessor implements HttpResponseInterceptor
@@ -51,22 +53,50 @@ public class EcpResponsePostProcessor implements HttpResponseInterceptor
     
     private final Log                log                = LogFactory.getLog( getClass() );
     
-    private static final String      SOAP_ACTION_HEADER = "SOAPAction";
     public static final String       AUTH_IN_PROGRESS   = EcpResponsePostProcessor.class.getName() + ".AUTH_IN_PROGRESS";
     public static final String       MIME_TYPE_PAOS     = "application/vnd.paos+xml";
     public static final List<String> REDIRECTABLE       = asList( "HEAD", "GET", "CONNECT" );
     
     private final HttpClient         client;
-    private final ParserPool         parserPool;
+    private final EcpProtocol        protocol;
     private final String             idpUrl;
-    private final Authenticator      authenticator;
+    private final SessionTracker     sessionTracker;
+    
+    private final SingleFlight<String, HttpResponse> logins = new SingleFlight<String, HttpResponse>();
+    
+    private final AtomicLong                         loginsSucceeded = new AtomicLong();
+    private final AtomicLong                         loginsFailed    = new AtomicLong();
+    private volatile long                            lastLoginNanos  = -1;
+    
+    private volatile ShibClientMetrics               metrics         = NoOpMetrics.INSTANCE;
+    private volatile SharedSessionCache              sharedSessions;
     
     public EcpResponsePostProcessor( HttpClient client, ParserPool parserPool, String idpUrl, Authenticator authenticator )
+    {
+        this( client, parserPool, idpUrl, authenticator, null );
+    }
+    
+    /**
+     * Create a new {@link EcpResponsePostProcessor} that records established sessions.
+     * 
+     * @param client
+     *            the client used to send requests to IdP and SP
+     * @param parserPool
+     *            the parser pool for SOAP messages
+     * @param idpUrl
+     *            the URL of the IdP. Should probably be something ending in "/SAML2/SOAP/ECP"
+     * @param authenticator
+     *            the {@link Authenticator} to provide credentials to the IdP
+     * @param sessionTracker
+     *            the tracker of SP sessions, may be {@code null}
+     */
+    public EcpResponsePostProcessor( HttpClient client, ParserPool parserPool, String idpUrl, Authenticator authenticator,
+            SessionTracker sessionTracker )
     {
         this.client = client;
-        this.parserPool = parserPool;
+        this.protocol = new EcpProtocol( parserPool, idpUrl, authenticator );
         this.idpUrl = idpUrl;
-        this.authenticator = authenticator;
+        this.sessionTracker = sessionTracker;
     }
     
     @Override
@@ -77,7 +107,7 @@ public class EcpResponsePostProcessor implements HttpResponseInterceptor
         if ( ctx.getAttribute( "http.request" ) instanceof HttpRequestWrapper )
         { // does not forward request to original
             log.trace( "RequestWrapper found" );
-            originalRequest = (HttpRequest) ((HttpRequestWrapper) ctx.getAttribute( "http.request" )).getOriginal();
+            originalRequest = ((HttpRequestWrapper) ctx.getAttribute( "http.request" )).getOriginal();
         }
         else
         { // use a basic HttpRequest because BasicHttpRequest objects cannot be recast to HttpUriRequest objects
@@ -94,132 +124,93 @@ public class EcpResponsePostProcessor implements HttpResponseInterceptor
         }
         
         // -- Check if authentication is necessary --------------------------------------------
-        if ( !isSamlSoapResponse( res ) )
+        if ( !EcpProtocol.isSamlSoapResponse( res ) )
         {
             return;
         }
         
         log.trace( "Detected login request" );
         
-        // -- If the request was a HEAD request, we need to try again using a GET request ----
-        HttpResponse paosResponse = res;
-        if ( originalRequest.getRequestLine().getMethod() == "HEAD" )
+        // -- Release the connection to the SP ------------------------------------------------
+        // Reading the challenge returns the connection to the pool, so requests waiting for a
+        // login in progress do not hold connections the login needs to reach the SP
+        if ( res.getEntity() != null && !res.getEntity().isRepeatable() )
         {
-            log.trace( "Original request was a HEAD, restarting authenticiation with GET" );
-            
-            HttpGet authTriggerRequest = new HttpGet( originalRequest.getRequestLine().getUri() );
-            authTriggerRequest.getParams().setBooleanParameter( AUTH_IN_PROGRESS, true );
-            paosResponse = client.execute( authTriggerRequest );
+            res.setEntity( new BufferedHttpEntity( res.getEntity() ) );
         }
         
-        // -- Parse PAOS response -------------------------------------------------------------
-        HttpEntity paosEntity = paosResponse.getEntity();
-        Envelope initialLoginSoapResponse = getSoapMessage( paosEntity );
-        
-        // -- Capture relay state (optional) --------------------------------------------------
-        RelayState relayState = captureRelayState( initialLoginSoapResponse );
-        
-        // -- Capture response consumer -------------------------------------------------------
-        // // pick out the responseConsumerURL attribute value from the SP response so that
-        // // it can later be compared to the assertionConsumerURL sent from the IdP
-        // String responseConsumerURL = ((XSAny) initialLoginSoapResponse.getHeader()
-        // .getUnknownXMLObjects(E_PAOS_REQUEST).get(0)).getUnknownAttributes().get(
-        // A_RESPONSE_CONSUMER_URL);
-        // log.debug("responseConsumerURL: [" + responseConsumerURL + "]");
-        
-        // -- Send log-in request to the IdP --------------------------------------------------
-        // Prepare the request to the IdP
-        log.debug( "Logging in to IdP [" + idpUrl + "]" );
-        Envelope idpLoginSoapRequest = new EnvelopeBuilder().buildObject();
-        Body b = initialLoginSoapResponse.getBody();
-        b.detach();
-        idpLoginSoapRequest.setBody( b );
+        final HttpClientContext clientContext = HttpClientContext.adapt( ctx );
+        final HttpHost target = clientContext.getTargetHost();
+        final String endpoint = endpointOf( target, originalRequest );
+        final String principal = protocol.currentPrincipal( clientContext );
+        if ( sessionTracker != null )
+        {
+            // -- Check if another thread logged in while this request was on its way ---------
+            if ( sessionTracker.isSessionRenewed( target, principal, clientContext.getCookieStore(), clientContext.getRequest() ) )
+            {
+                log.debug( "Session has been renewed meanwhile, replaying request" );
+                replay( res, originalRequest, target, clientContext, endpoint );
+                return;
+            }
+            sessionTracker.sessionInvalidated( target, principal );
+        }
         
-        // Try logging in to the IdP using HTTP BASIC authentication
-        HttpPost idpLoginRequest = new HttpPost( idpUrl );
-        idpLoginRequest.getParams().setBooleanParameter( AUTH_IN_PROGRESS, true );
+        // -- Log in unless another thread is already logging in to the same SP ---------------
+        final HttpResponse challenge = res;
+        final HttpRequest request = originalRequest;
+        SingleFlight.Result<HttpResponse> login;
         try
         {
-            authenticator.supplyCredentials( idpLoginRequest );
+            login = logins.execute( protocol.loginKey( target, clientContext ), new Callable<HttpResponse>()
+            {
+                @Override
+                public HttpResponse call() throws Exception
+                {
+                    SharedSessionCache shared = sharedSessions;
+                    if ( shared != null && shared.adopt( target, clientContext.getCookieStore(), principal, clientContext.getRequest() ) )
+                    {
+                        metrics.count( Event.SESSION_ADOPTED, endpoint );
+                        return null;
+                    }
+                    return login( challenge, request, target, clientContext, endpoint );
+                }
+            } );
         }
-        catch ( CredentialException e )
+        catch ( InterruptedException e )
         {
-            throw new IllegalStateException( "credentials for authentication could not be created: " + e.getMessage(), e );
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while waiting for login to complete" );
         }
-        idpLoginRequest.setEntity( new StringEntity( xmlToString( idpLoginSoapRequest ) ) );
-        HttpResponse idpLoginResponse = client.execute( idpLoginRequest );
-        
-        // -- Handle log-in response from the IdP ---------------------------------------------
-        log.debug( "Status: " + idpLoginResponse.getStatusLine() );
-        if ( idpLoginResponse.getStatusLine().getStatusCode() != 200 )
+        catch ( ExecutionException e )
         {
-            throw new AuthenticationException( idpLoginResponse.getStatusLine().toString() );
+            throw rethrow( e.getCause() );
         }
         
-        Envelope idpLoginSoapResponse = getSoapMessage( idpLoginResponse.getEntity() );
-        String assertionConsumerServiceURL = ((Response) idpLoginSoapResponse.getHeader()
-                .getUnknownXMLObjects( Response.DEFAULT_ELEMENT_NAME ).get( 0 )).getAssertionConsumerServiceURL();
-        log.debug( "assertionConsumerServiceURL: " + assertionConsumerServiceURL );
-        
-        List<XMLObject> responses = idpLoginSoapResponse.getBody().getUnknownXMLObjects(
-                org.opensaml.saml2.core.Response.DEFAULT_ELEMENT_NAME );
-        if ( !responses.isEmpty() )
+        if ( !login.isLeader() )
         {
-            org.opensaml.saml2.core.Response response = (org.opensaml.saml2.core.Response) responses.get( 0 );
-            
-            // Get root code (?)
-            StatusCode sc = response.getStatus().getStatusCode();
-            while ( sc.getStatusCode() != null )
-            {
-                sc = sc.getStatusCode();
-            }
-            
-            // Hm, they don't like us
-            if ( StatusCode.AUTHN_FAILED_URI.equals( sc.getValue() ) )
-            {
-                throw new AuthenticationException( sc.getValue() );
-            }
+            metrics.count( Event.LOGIN_JOINED, endpoint );
+            log.debug( "Joined login in progress, replaying request" );
+            replay( res, originalRequest, target, clientContext, endpoint );
+            return;
         }
-        
-        // compare the responseConsumerURL from the SP to the assertionConsumerServiceURL from
-        // the IdP and if they are not identical then send a SOAP fault to the SP
-        // if (false) {
-        // // Nice guys should send a fault to the SP - we are NOT nice yet
-        // }
-        
-        // -- Forward ticket to the SP --------------------------------------------------------
-        // craft the package to send to the SP by copying the response from the IdP but
-        // removing the SOAP header sent by the IdP and instead putting in a new header that
-        // includes the relay state sent by the SP
-        Header header = new HeaderBuilder().buildObject();
-        header.getUnknownXMLObjects().clear();
-        if ( relayState != null )
+        HttpResponse spLoginResponse = login.getValue();
+        if ( spLoginResponse == null )
         {
-            header.getUnknownXMLObjects().add( relayState );
+            log.debug( "Adopted session from session store, replaying request" );
+            replay( res, originalRequest, target, clientContext, endpoint );
+            return;
         }
-        idpLoginSoapResponse.setHeader( header );
-        
-        // push the response to the SP at the assertion consumer service URL included in
-        // the response from the IdP
-        log.debug( "Logging in to SP" );
-        HttpPost spLoginRequest = new HttpPost( assertionConsumerServiceURL );
-        spLoginRequest.getParams().setBooleanParameter( AUTH_IN_PROGRESS, true );
-        spLoginRequest.setHeader( HttpHeaders.CONTENT_TYPE, MIME_TYPE_PAOS );
-        spLoginRequest.setEntity( new StringEntity( xmlToString( idpLoginSoapResponse ) ) );
-        HttpClientParams.setRedirecting( spLoginRequest.getParams(), false );
-        HttpResponse spLoginResponse = client.execute( spLoginRequest );
-        log.debug( "Status: " + spLoginResponse.getStatusLine() );
-        log.debug( "Authentication complete" );
         
         // -- Handle unredirectable cases -----------------------------------------------------
         // If we get a redirection and the request is redirectable, then let the client redirect
-        // If the request is not redirectable, signal that the operation must be retried.
+        // If the request is not redirectable, repeat it just like the threads that joined the login
         if ( spLoginResponse.getStatusLine().getStatusCode() == 302
                 && !REDIRECTABLE.contains( originalRequest.getRequestLine().getMethod() ) )
         {
             EntityUtils.consume( spLoginResponse.getEntity() );
-            throw new NonRepeatableRequestException( "Request of type [" + originalRequest.getRequestLine().getMethod()
-                    + "] cannot be redirected" );
+            log.debug( "Request of type [" + originalRequest.getRequestLine().getMethod() + "] cannot be redirected, replaying request" );
+            replay( res, originalRequest, target, clientContext, endpoint );
+            return;
         }
         
         // -- Transparently return response to original request -------------------------------
@@ -230,68 +221,216 @@ public class EcpResponsePostProcessor implements HttpResponseInterceptor
     }
     
     /**
-     * Checks whether the HttpResponse is a SAML SOAP message
+     * Performs the ECP login triggered by the given PAOS challenge and reports its duration and outcome.
      * 
-     * @param res
-     *            the HttpResponse to check
-     * @return true if the HttpResponse is a SAML SOAP message, false if not
+     * @return the response of the SP to the login at its assertion consumer service
      */
-    private boolean isSamlSoapResponse( HttpResponse res )
+    private HttpResponse login( HttpResponse res, HttpRequest originalRequest, HttpHost target, HttpClientContext context,
+            String endpoint ) throws IOException, AuthenticationException
     {
-        return hasPAOSContentType( res ) || hasSOAPActionHeader( res );
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try
+        {
+            HttpResponse spLoginResponse = ecpLogin( res, originalRequest, target, context, endpoint );
+            succeeded = spLoginResponse.getStatusLine().getStatusCode() < 400;
+            return spLoginResponse;
+        }
+        finally
+        {
+            long duration = System.nanoTime() - start;
+            lastLoginNanos = duration;
+            (succeeded ? loginsSucceeded : loginsFailed).incrementAndGet();
+            metrics.time( Phase.LOGIN, endpoint, duration );
+            metrics.count( succeeded ? Event.LOGIN_SUCCEEDED : Event.LOGIN_FAILED, endpoint );
+        }
     }
     
-    private boolean hasSOAPActionHeader( HttpResponse res )
+    private HttpResponse ecpLogin( HttpResponse res, HttpRequest originalRequest, HttpHost target, HttpClientContext context,
+            String endpoint ) throws IOException, AuthenticationException
     {
-        return res.containsHeader( SOAP_ACTION_HEADER );
+        // -- If the request was a HEAD request, we need to try again using a GET request ----
+        HttpResponse paosResponse = res;
+        if ( originalRequest.getRequestLine().getMethod() == "HEAD" )
+        {
+            log.trace( "Original request was a HEAD, restarting authenticiation with GET" );
+            
+            HttpGet authTriggerRequest = new HttpGet( originalRequest.getRequestLine().getUri() );
+            authTriggerRequest.getParams().setBooleanParameter( AUTH_IN_PROGRESS, true );
+            paosResponse = client.execute( authTriggerRequest, loginContext( context ) );
+        }
+        
+        // -- Parse PAOS response -------------------------------------------------------------
+        long phaseStart = System.nanoTime();
+        EcpMessage authnRequest = protocol.readAuthnRequest( paosResponse.getEntity() );
+        metrics.time( Phase.PAOS_PARSE, endpoint, System.nanoTime() - phaseStart );
+        
+        // -- Send log-in request to the IdP --------------------------------------------------
+        log.debug( "Logging in to IdP [" + idpUrl + "]" );
+        phaseStart = System.nanoTime();
+        HttpResponse idpLoginResponse = client.execute( protocol.createIdpLoginRequest( authnRequest, context ), loginContext( context ) );
+        
+        // -- Handle log-in response from the IdP ---------------------------------------------
+        EcpMessage idpLoginSoapResponse = protocol.readIdpLoginResponse( idpLoginResponse );
+        metrics.time( Phase.IDP_LOGIN, idpUrl, System.nanoTime() - phaseStart );
+        
+        // -- Forward ticket to the SP --------------------------------------------------------
+        log.debug( "Logging in to SP" );
+        phaseStart = System.nanoTime();
+        HttpResponse spLoginResponse = client.execute( protocol.createSpLoginRequest( idpLoginSoapResponse, authnRequest ),
+                loginContext( context ) );
+        metrics.time( Phase.ACS_POST, endpoint, System.nanoTime() - phaseStart );
+        log.debug( "Status: " + spLoginResponse.getStatusLine() );
+        log.debug( "Authentication complete" );
+        
+        if ( sessionTracker != null && spLoginResponse.getStatusLine().getStatusCode() < 400 )
+        {
+            sessionTracker.sessionEstablished( target, context.getCookieStore(), absoluteUri( target, originalRequest ),
+                    protocol.currentPrincipal( context ) );
+        }
+        
+        return spLoginResponse;
     }
     
-    private boolean hasPAOSContentType( HttpResponse res )
+    /**
+     * Repeats the original request now that a session has been established and returns its response in place of the PAOS challenge.
+     */
+    private void replay( HttpResponse res, HttpRequest originalRequest, HttpHost target, HttpClientContext context, String endpoint )
+            throws HttpException, IOException
     {
-        boolean isSamlSoap = false;
-        if ( res.getFirstHeader( HttpHeaders.CONTENT_TYPE ) != null )
+        if ( originalRequest instanceof HttpEntityEnclosingRequest )
         {
-            ContentType contentType = ContentType.parse( res.getFirstHeader( HttpHeaders.CONTENT_TYPE ).getValue() );
-            isSamlSoap = MIME_TYPE_PAOS.equals( contentType.getMimeType() );
+            HttpEntity entity = ((HttpEntityEnclosingRequest) originalRequest).getEntity();
+            if ( entity != null && !entity.isRepeatable() )
+            {
+                throw new NonRepeatableRequestException( "Request of type [" + originalRequest.getRequestLine().getMethod()
+                        + "] cannot be repeated" );
+            }
         }
-        return isSamlSoap;
+        EntityUtils.consumeQuietly( res.getEntity() );
+        
+        HttpRequestWrapper replayRequest = HttpRequestWrapper.wrap( originalRequest );
+        replayRequest.getParams().setBooleanParameter( AUTH_IN_PROGRESS, true );
+        long start = System.nanoTime();
+        HttpResponse replayResponse = client.execute( target, replayRequest, loginContext( context ) );
+        metrics.time( Phase.REPLAY, endpoint, System.nanoTime() - start );
+        log.debug( "Replay status: " + replayResponse.getStatusLine() );
+        
+        res.setEntity( replayResponse.getEntity() );
+        res.setHeaders( replayResponse.getAllHeaders() );
+        res.setStatusLine( replayResponse.getStatusLine() );
+    }
+    
+    /**
+     * Create the context for a request sent on behalf of the request in the given context. It shares the cookie store, so the session
+     * ends up in the cookie jar of the principal even if the principal is not bound to the thread.
+     */
+    private static HttpClientContext loginContext( HttpClientContext context )
+    {
+        HttpClientContext loginContext = HttpClientContext.create();
+        loginContext.setCookieStore( context.getCookieStore() );
+        return loginContext;
+    }
+    
+    /**
+     * Set the metrics that the phases of logins are reported to.
+     * 
+     * @param metrics
+     *            the metrics, {@code null} to report nothing
+     */
+    public void setMetrics( ShibClientMetrics metrics )
+    {
+        this.metrics = metrics != null ? metrics : NoOpMetrics.INSTANCE;
+    }
+    
+    /**
+     * Adopt sessions other nodes have published to a shared session store before logging in.
+     * 
+     * @param sharedSessions
+     *            the cache of the shared session store, {@code null} to always log in
+     */
+    public void setSharedSessions( SharedSessionCache sharedSessions )
+    {
+        this.sharedSessions = sharedSessions;
+    }
+    
+    /**
+     * Get the number of logins that established a session at the SP.
+     * 
+     * @return the number of successful logins
+     */
+    public long getLoginsSucceeded()
+    {
+        return loginsSucceeded.get();
     }
     
     /**
-     * Extracts the SOAP message from the HttpResponse
+     * Get the number of logins that failed at the IdP or the SP.
      * 
-     * @param entity
-     *            the HttpEntity to retrieve the SOAP message from
-     * @return soapEnvelope the SOAP message
-     * @throws IOException
-     * @throws IllegalStateException
-     * @throws ClientProtocolException
+     * @return the number of failed logins
      */
-    private org.opensaml.ws.soap.soap11.Envelope getSoapMessage( HttpEntity entity ) throws ClientProtocolException, IllegalStateException,
-            IOException
+    public long getLoginsFailed()
     {
-        InputStream content = entity.getContent();
-        Envelope soapEnvelope = (Envelope) unmarshallMessage( parserPool, content );
-        EntityUtils.consumeQuietly( entity );
-        return soapEnvelope;
+        return loginsFailed.get();
     }
     
     /**
-     * Captures the ECP relay state in a SAML SOAP message
+     * Get the duration of the most recent login.
      * 
-     * @param soapEnvelope
-     *            the SOAP message to check for the ECP relay state
-     * @return relayState the ECP relay state in the SOAP message
+     * @return the duration of the most recent login in nanoseconds, {@code -1} if there has not been a login
+     */
+    public long getLastLoginNanos()
+    {
+        return lastLoginNanos;
+    }
+    
+    /**
+     * Reset the login counters and forget the duration of the most recent login.
+     */
+    public void resetCounters()
+    {
+        loginsSucceeded.set( 0 );
+        loginsFailed.set( 0 );
+        lastLoginNanos = -1;
+    }
+    
+    /**
+     * Determine the endpoint the metrics of a request to the given target are reported for, the origin of the target or the URI of the
+     * request if the target is unknown.
      */
-    private org.opensaml.saml2.ecp.RelayState captureRelayState( org.opensaml.ws.soap.soap11.Envelope soapEnvelope )
+    static String endpointOf( HttpHost target, HttpRequest request )
+    {
+        return target != null ? SessionTracker.originOf( target ) : request.getRequestLine().getUri();
+    }
+    
+    private static String absoluteUri( HttpHost target, HttpRequest request )
+    {
+        String uri = request.getRequestLine().getUri();
+        if ( uri.startsWith( "/" ) )
+        {
+            return target.toURI() + uri;
+        }
+        return uri;
+    }
+    
+    private static IOException rethrow( Throwable cause ) throws HttpException
     {
-        RelayState relayState = null;
-        if ( !soapEnvelope.getHeader().getUnknownXMLObjects( RelayState.DEFAULT_ELEMENT_NAME ).isEmpty() )
+        if ( cause instanceof IOException )
+        {
+            return (IOException) cause;
+        }
+        if ( cause instanceof HttpException )
+        {
+            throw (HttpException) cause;
+        }
+        if ( cause instanceof RuntimeException )
+        {
+            throw (RuntimeException) cause;
+        }
+        if ( cause instanceof Error )
         {
-            relayState = (RelayState) soapEnvelope.getHeader().getUnknownXMLObjects( RelayState.DEFAULT_ELEMENT_NAME ).get( 0 );
-            relayState.detach();
-            log.trace( "Relay state: captured" );
+            throw (Error) cause;
         }
-        return relayState;
+        return new IOException( cause );
     }
-}
+}
\ No newline at end of file
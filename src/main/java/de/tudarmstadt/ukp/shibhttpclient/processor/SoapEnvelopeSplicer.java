@@ -0,0 +1,437 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.http.entity.ContentType;
+import org.opensaml.saml2.ecp.RelayState;
+import org.opensaml.ws.soap.soap11.ActorBearing;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+
+/**
+ * Rewrites the header of a serialized SOAP 1.1 envelope at the byte level. The envelope start tag and the body are copied verbatim from the
+ * received message, so the namespace declarations they rely on and any signatures in the body stay intact, and neither a DOM nor a String
+ * of the message is created.
+ * <p>
+ * Only ASCII-compatible encodings are supported. Messages that cannot be spliced, e.g. UTF-16 encoded ones, ones with a DTD or ones
+ * without an envelope and body in the SOAP 1.1 namespace, are reported by returning {@code null}, and the caller has to rewrite them with
+ * OpenSAML.
+ */
+public final class SoapEnvelopeSplicer
+{
+    private static final ContentType SOAP_CONTENT_TYPE = ContentType.create( "text/xml" );
+    
+    private static final byte[]      EMPTY_HEADER      = ascii( "<S:Header xmlns:S=\"" + Envelope.DEFAULT_ELEMENT_NAME.getNamespaceURI()
+                                                               + "\"/>" );
+    
+    private static final byte[]      RELAY_STATE_START = ascii( "<S:Header xmlns:S=\"" + Envelope.DEFAULT_ELEMENT_NAME.getNamespaceURI()
+                                                               + "\"><ecp:RelayState xmlns:ecp=\""
+                                                               + RelayState.DEFAULT_ELEMENT_NAME.getNamespaceURI()
+                                                               + "\" S:mustUnderstand=\"1\" S:actor=\"" + ActorBearing.SOAP11_ACTOR_NEXT
+                                                               + "\">" );
+    
+    private static final byte[]      RELAY_STATE_END   = ascii( "</ecp:RelayState></S:Header>" );
+    
+    private SoapEnvelopeSplicer()
+    {
+        // No instances
+    }
+    
+    /**
+     * Create an entity holding the given envelope without its header.
+     * 
+     * @param envelope
+     *            the serialized SOAP envelope
+     * @return the entity, {@code null} if the envelope cannot be spliced
+     */
+    public static SplicedEntity withoutHeader( byte[] envelope )
+    {
+        Layout layout = Layout.scan( envelope );
+        if ( layout == null )
+        {
+            return null;
+        }
+        
+        SplicedEntity entity = new SplicedEntity( SOAP_CONTENT_TYPE );
+        entity.append( envelope, 0, layout.envelopeStartEnd );
+        entity.append( envelope, layout.bodyStart, layout.bodyEnd );
+        entity.append( envelope, layout.envelopeEndStart, layout.envelopeEnd );
+        return entity;
+    }
+    
+    /**
+     * Create an entity holding the given envelope with its header replaced by one carrying only the ECP relay state.
+     * 
+     * @param envelope
+     *            the serialized SOAP envelope
+     * @param relayState
+     *            the ECP relay state, {@code null} for an empty header
+     * @return the entity, {@code null} if the envelope cannot be spliced
+     */
+    public static SplicedEntity withRelayState( byte[] envelope, String relayState )
+    {
+        Layout layout = Layout.scan( envelope );
+        if ( layout == null )
+        {
+            return null;
+        }
+        
+        SplicedEntity entity = new SplicedEntity( SOAP_CONTENT_TYPE );
+        entity.append( envelope, 0, layout.envelopeStartEnd );
+        if ( relayState == null )
+        {
+            entity.append( EMPTY_HEADER );
+        }
+        else
+        {
+            entity.append( RELAY_STATE_START ).append( escape( relayState ) ).append( RELAY_STATE_END );
+        }
+        entity.append( envelope, layout.bodyStart, layout.bodyEnd );
+        entity.append( envelope, layout.envelopeEndStart, layout.envelopeEnd );
+        return entity;
+    }
+    
+    /**
+     * Escape character data as ASCII, so it fits into documents of any ASCII-compatible encoding.
+     */
+    private static byte[] escape( String text )
+    {
+        StringBuilder sb = new StringBuilder( text.length() + 16 );
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            switch ( c )
+            {
+                case '&':
+                    sb.append( "&amp;" );
+                    break;
+                case '<':
+                    sb.append( "&lt;" );
+                    break;
+                case '>':
+                    sb.append( "&gt;" );
+                    break;
+                default:
+                    if ( c < 0x80 )
+                    {
+                        sb.append( c );
+                    }
+                    else
+                    {
+                        sb.append( "&#x" ).append( Integer.toHexString( text.codePointAt( i ) ) ).append( ';' );
+                        if ( Character.isHighSurrogate( c ) )
+                        {
+                            i++;
+                        }
+                    }
+            }
+        }
+        return ascii( sb.toString() );
+    }
+    
+    private static byte[] ascii( String text )
+    {
+        try
+        {
+            return text.getBytes( "US-ASCII" );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            // US-ASCII is supported by every JRE
+            throw new IllegalStateException( e );
+        }
+    }
+    
+    /**
+     * Byte offsets of the envelope start tag, its body and the envelope end tag.
+     */
+    private static final class Layout
+    {
+        private int envelopeStartEnd = -1;
+        private int bodyStart        = -1;
+        private int bodyEnd          = -1;
+        private int envelopeEndStart = -1;
+        private int envelopeEnd      = -1;
+        
+        private Map<String, String> envelopeNamespaces;
+        
+        static Layout scan( byte[] b )
+        {
+            int i = 0;
+            if ( b.length >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB && (b[2] & 0xFF) == 0xBF )
+            {
+                // UTF-8 byte order mark
+                i = 3;
+            }
+            while ( i < b.length && isWhitespace( b[i] ) )
+            {
+                i++;
+            }
+            if ( i >= b.length || b[i] != '<' )
+            {
+                // not an ASCII-compatible encoding
+                return null;
+            }
+            
+            Layout layout = new Layout();
+            int depth = 0;
+            while ( true )
+            {
+                int lt = indexOf( b, "<", i );
+                if ( lt < 0 )
+                {
+                    return null;
+                }
+                
+                if ( startsWith( b, lt, "<?" ) )
+                {
+                    i = skipPast( b, lt, "?>" );
+                }
+                else if ( startsWith( b, lt, "<!--" ) )
+                {
+                    i = skipPast( b, lt, "-->" );
+                }
+                else if ( startsWith( b, lt, "<![CDATA[" ) )
+                {
+                    i = skipPast( b, lt, "]]>" );
+                }
+                else if ( startsWith( b, lt, "<!" ) )
+                {
+                    // document type declarations are not supported
+                    return null;
+                }
+                else
+                {
+                    int gt = tagEnd( b, lt );
+                    if ( gt < 0 )
+                    {
+                        return null;
+                    }
+                    i = gt + 1;
+                    
+                    if ( b[lt + 1] == '/' )
+                    {
+                        if ( depth == 2 && layout.bodyStart >= 0 && layout.bodyEnd < 0 )
+                        {
+                            layout.bodyEnd = i;
+                        }
+                        else if ( depth == 1 )
+                        {
+                            layout.envelopeEndStart = lt;
+                            layout.envelopeEnd = i;
+                            return layout.bodyEnd > 0 ? layout : null;
+                        }
+                        depth--;
+                    }
+                    else
+                    {
+                        boolean empty = b[gt - 1] == '/';
+                        depth++;
+                        String name = name( b, lt + 1 );
+                        if ( depth == 1 )
+                        {
+                            layout.envelopeNamespaces = namespaces( b, lt, gt, new HashMap<String, String>() );
+                            if ( empty || layout.envelopeNamespaces == null
+                                    || !Envelope.DEFAULT_ELEMENT_NAME.equals( qName( name, layout.envelopeNamespaces ) ) )
+                            {
+                                return null;
+                            }
+                            layout.envelopeStartEnd = i;
+                        }
+                        else if ( depth == 2 && layout.bodyStart < 0 && isBody( b, lt, gt, name, layout.envelopeNamespaces ) )
+                        {
+                            layout.bodyStart = lt;
+                            if ( empty )
+                            {
+                                layout.bodyEnd = i;
+                            }
+                        }
+                        if ( empty )
+                        {
+                            depth--;
+                        }
+                    }
+                }
+                if ( i <= 0 )
+                {
+                    return null;
+                }
+            }
+        }
+        
+        private static int tagEnd( byte[] b, int lt )
+        {
+            byte quote = 0;
+            for ( int i = lt + 1; i < b.length; i++ )
+            {
+                if ( quote != 0 )
+                {
+                    if ( b[i] == quote )
+                    {
+                        quote = 0;
+                    }
+                }
+                else if ( b[i] == '"' || b[i] == '\'' )
+                {
+                    quote = b[i];
+                }
+                else if ( b[i] == '>' )
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        private static boolean isBody( byte[] b, int lt, int gt, String name, Map<String, String> envelopeNamespaces )
+        {
+            if ( !name.equals( Body.DEFAULT_ELEMENT_LOCAL_NAME ) && !name.endsWith( ":" + Body.DEFAULT_ELEMENT_LOCAL_NAME ) )
+            {
+                return false;
+            }
+            Map<String, String> namespaces = namespaces( b, lt, gt, new HashMap<String, String>( envelopeNamespaces ) );
+            return namespaces != null && Body.DEFAULT_ELEMENT_NAME.equals( qName( name, namespaces ) );
+        }
+        
+        private static QName qName( String name, Map<String, String> namespaces )
+        {
+            int colon = name.indexOf( ':' );
+            String namespace = namespaces.get( colon >= 0 ? name.substring( 0, colon ) : "" );
+            return new QName( namespace != null ? namespace : "", name.substring( colon + 1 ) );
+        }
+        
+        private static String name( byte[] b, int start )
+        {
+            int end = start;
+            while ( end < b.length && !isWhitespace( b[end] ) && b[end] != '/' && b[end] != '>' )
+            {
+                end++;
+            }
+            return string( b, start, end );
+        }
+        
+        /**
+         * Add the namespace declarations of the start tag between the given offsets to the given map.
+         * 
+         * @return the map, {@code null} if the attributes are malformed
+         */
+        private static Map<String, String> namespaces( byte[] b, int lt, int gt, Map<String, String> namespaces )
+        {
+            int i = lt + 1;
+            while ( i < gt && !isWhitespace( b[i] ) )
+            {
+                i++;
+            }
+            while ( true )
+            {
+                while ( i < gt && isWhitespace( b[i] ) )
+                {
+                    i++;
+                }
+                if ( i >= gt || b[i] == '/' )
+                {
+                    return namespaces;
+                }
+                int nameStart = i;
+                while ( i < gt && b[i] != '=' && !isWhitespace( b[i] ) )
+                {
+                    i++;
+                }
+                String attribute = string( b, nameStart, i );
+                while ( i < gt && isWhitespace( b[i] ) )
+                {
+                    i++;
+                }
+                if ( i >= gt || b[i] != '=' )
+                {
+                    return null;
+                }
+                i++;
+                while ( i < gt && isWhitespace( b[i] ) )
+                {
+                    i++;
+                }
+                if ( i >= gt || (b[i] != '"' && b[i] != '\'') )
+                {
+                    return null;
+                }
+                byte quote = b[i];
+                int valueStart = ++i;
+                while ( i < gt && b[i] != quote )
+                {
+                    i++;
+                }
+                if ( i >= gt )
+                {
+                    return null;
+                }
+                if ( attribute.equals( "xmlns" ) )
+                {
+                    namespaces.put( "", string( b, valueStart, i ) );
+                }
+                else if ( attribute.startsWith( "xmlns:" ) )
+                {
+                    namespaces.put( attribute.substring( 6 ), string( b, valueStart, i ) );
+                }
+                i++;
+            }
+        }
+        
+        private static String string( byte[] b, int from, int to )
+        {
+            StringBuilder sb = new StringBuilder( to - from );
+            for ( int i = from; i < to; i++ )
+            {
+                sb.append( (char) b[i] );
+            }
+            return sb.toString();
+        }
+        
+        private static int skipPast( byte[] b, int from, String marker )
+        {
+            int at = indexOf( b, marker, from );
+            return at < 0 ? -1 : at + marker.length();
+        }
+        
+        private static int indexOf( byte[] b, String marker, int from )
+        {
+            if ( from < 0 )
+            {
+                return -1;
+            }
+            for ( int i = from; i <= b.length - marker.length(); i++ )
+            {
+                if ( startsWith( b, i, marker ) )
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        private static boolean startsWith( byte[] b, int at, String marker )
+        {
+            if ( at + marker.length() > b.length )
+            {
+                return false;
+            }
+            for ( int i = 0; i < marker.length(); i++ )
+            {
+                if ( b[at + i] != marker.charAt( i ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private static boolean isWhitespace( byte c )
+        {
+            return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * A repeatable entity whose content is a sequence of byte array segments. The segments are written as they are, so content assembled
+ * from parts of received messages is never copied into a single array.
+ */
+public class SplicedEntity extends AbstractHttpEntity
+{
+    private final List<byte[]> arrays = new ArrayList<byte[]>();
+    private final List<int[]>  ranges = new ArrayList<int[]>();
+    private long               length;
+    
+    /**
+     * Create a new empty {@link SplicedEntity}.
+     * 
+     * @param contentType
+     *            the content type of the entity, may be {@code null}
+     */
+    public SplicedEntity( ContentType contentType )
+    {
+        if ( contentType != null )
+        {
+            setContentType( contentType.toString() );
+        }
+    }
+    
+    /**
+     * Append a segment to the content. The array is not copied and must not be modified afterwards.
+     * 
+     * @param array
+     *            the array holding the segment
+     * @param offset
+     *            the start of the segment
+     * @param end
+     *            the end of the segment, exclusive
+     * @return this entity
+     */
+    public SplicedEntity append( byte[] array, int offset, int end )
+    {
+        if ( end > offset )
+        {
+            arrays.add( array );
+            ranges.add( new int[] { offset, end } );
+            length += end - offset;
+        }
+        return this;
+    }
+    
+    /**
+     * Append a segment to the content. The array is not copied and must not be modified afterwards.
+     * 
+     * @param array
+     *            the segment
+     * @return this entity
+     */
+    public SplicedEntity append( byte[] array )
+    {
+        return append( array, 0, array.length );
+    }
+    
+    @Override
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+    
+    @Override
+    public long getContentLength()
+    {
+        return length;
+    }
+    
+    @Override
+    public InputStream getContent()
+    {
+        List<InputStream> segments = new ArrayList<InputStream>( arrays.size() );
+        for ( int i = 0; i < arrays.size(); i++ )
+        {
+            int[] range = ranges.get( i );
+            segments.add( new ByteArrayInputStream( arrays.get( i ), range[0], range[1] - range[0] ) );
+        }
+        return new SequenceInputStream( Collections.enumeration( segments ) );
+    }
+    
+    @Override
+    public void writeTo( OutputStream outstream ) throws IOException
+    {
+        for ( int i = 0; i < arrays.size(); i++ )
+        {
+            int[] range = ranges.get( i );
+            outstream.write( arrays.get( i ), range[0], range[1] - range[0] );
+        }
+        outstream.flush();
+    }
+    
+    @Override
+    public boolean isStreaming()
+    {
+        return false;
+    }
+}
\ No newline at end of file
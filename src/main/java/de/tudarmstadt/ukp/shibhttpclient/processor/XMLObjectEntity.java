@@ -0,0 +1,71 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import static de.tudarmstadt.ukp.shibhttpclient.Utils.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.opensaml.xml.XMLObject;
+
+/**
+ * A repeatable entity holding an {@link XMLObject} serialized as UTF-8, so the message is never materialized as a String. The object is
+ * marshalled and serialized once when the entity is created, and the request is sent with a Content-Length instead of chunked.
+ */
+public class XMLObjectEntity extends AbstractHttpEntity
+{
+    private static final ContentType SOAP_CONTENT_TYPE = ContentType.create( "text/xml", "UTF-8" );
+    
+    private final byte[]             content;
+    
+    /**
+     * Create a new {@link XMLObjectEntity}.
+     * 
+     * @param object
+     *            the object to send
+     * @throws IOException
+     *             if the object cannot be marshalled
+     */
+    public XMLObjectEntity( XMLObject object ) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeXml( marshall( object ), buffer );
+        this.content = buffer.toByteArray();
+        setContentType( SOAP_CONTENT_TYPE.toString() );
+    }
+    
+    @Override
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+    
+    @Override
+    public long getContentLength()
+    {
+        return content.length;
+    }
+    
+    @Override
+    public InputStream getContent() throws IOException
+    {
+        return new ByteArrayInputStream( content );
+    }
+    
+    @Override
+    public void writeTo( OutputStream outstream ) throws IOException
+    {
+        outstream.write( content );
+        outstream.flush();
+    }
+    
+    @Override
+    public boolean isStreaming()
+    {
+        return false;
+    }
+}
\ No newline at end of file
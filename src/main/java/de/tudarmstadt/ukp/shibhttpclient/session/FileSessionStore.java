@@ -0,0 +1,202 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link SessionStore} keeping every session in a file of its own in a shared directory, e.g. on a network file system mounted by all
+ * nodes or in a temporary directory to stand in for a distributed store in tests.
+ * 
+ * <p>
+ * Sessions are replaced atomically by renaming a new file over the old one, so reads never lock. Updates are serialized by a lock on a
+ * file in the directory, which also excludes clients in other processes. The files hold session cookies, i.e. credentials, in plain
+ * text, so they are only accessible to their owner, and the directory should not be accessible to other users either.
+ * </p>
+ * <p>
+ * On platforms where renaming does not replace an existing file, the old file is deleted before the new one is renamed. Readers that
+ * look for the session in between find none, and their clients log in themselves.
+ * </p>
+ */
+public class FileSessionStore implements SessionStore
+{
+    private static final String                      LOCK_FILE = ".lock";
+    private static final String                      SUFFIX    = ".session";
+    
+    /**
+     * File locks are held by the JVM, so the stores of a process sharing a directory have to be serialized by a lock of their own.
+     */
+    private static final ConcurrentMap<File, Lock>   LOCKS     = new ConcurrentHashMap<File, Lock>();
+    
+    private final File                               directory;
+    private final Lock                               lock;
+    
+    /**
+     * Create a new {@link FileSessionStore}, creating the directory if it does not exist.
+     * 
+     * @param directory
+     *            the directory shared by all clients
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public FileSessionStore( File directory ) throws IOException
+    {
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+        {
+            throw new IOException( "Unable to create session store directory " + directory );
+        }
+        this.directory = directory.getCanonicalFile();
+        Lock created = new ReentrantLock();
+        Lock existing = LOCKS.putIfAbsent( this.directory, created );
+        this.lock = existing != null ? existing : created;
+    }
+    
+    @Override
+    public StoredSession get( String origin, String principal ) throws IOException
+    {
+        DataInputStream in = open( fileOf( origin, principal ) );
+        if ( in == null )
+        {
+            return null;
+        }
+        try
+        {
+            long version = in.readLong();
+            return new StoredSession( SessionCodec.read( in ), version );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    @Override
+    public long getVersion( String origin, String principal ) throws IOException
+    {
+        DataInputStream in = open( fileOf( origin, principal ) );
+        if ( in == null )
+        {
+            return 0;
+        }
+        try
+        {
+            return in.readLong();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    @Override
+    public long compareAndSet( SpSession session, long expectedVersion ) throws IOException
+    {
+        File file = fileOf( session.getOrigin(), session.getPrincipal() );
+        // Not a monitor, the file lock blocks and would pin virtual threads
+        lock.lock();
+        try
+        {
+            RandomAccessFile lockFile = new RandomAccessFile( new File( directory, LOCK_FILE ), "rw" );
+            try
+            {
+                FileLock fileLock = lockFile.getChannel().lock();
+                try
+                {
+                    if ( getVersion( session.getOrigin(), session.getPrincipal() ) != expectedVersion )
+                    {
+                        return 0;
+                    }
+                    long version = expectedVersion + 1;
+                    write( file, session, version );
+                    return version;
+                }
+                finally
+                {
+                    fileLock.release();
+                }
+            }
+            finally
+            {
+                lockFile.close();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void write( File file, SpSession session, long version ) throws IOException
+    {
+        File temp = new File( directory, file.getName() + ".tmp" );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+        try
+        {
+            // Still empty, nothing has been flushed yet
+            SessionSnapshotLog.restrictToOwner( temp );
+            out.writeLong( version );
+            SessionCodec.write( out, session );
+        }
+        finally
+        {
+            out.close();
+        }
+        // Renaming does not replace existing files on every platform, the session is missing until the second rename
+        if ( !temp.renameTo( file ) && !(file.delete() && temp.renameTo( file )) )
+        {
+            temp.delete();
+            throw new IOException( "Unable to replace session file " + file );
+        }
+    }
+    
+    private static DataInputStream open( File file )
+    {
+        try
+        {
+            return new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        }
+        catch ( FileNotFoundException e )
+        {
+            return null;
+        }
+    }
+    
+    private File fileOf( String origin, String principal ) throws IOException
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( (origin + " " + principal).getBytes( "UTF-8" ) );
+            return new File( directory, String.format( "%040x", new BigInteger( 1, digest ) ) + SUFFIX );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException( e );
+        }
+    }
+    
+    /**
+     * Get the directory of this store.
+     * 
+     * @return the directory
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+}
\ No newline at end of file
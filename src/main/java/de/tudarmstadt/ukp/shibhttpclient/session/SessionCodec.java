@@ -0,0 +1,91 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.cookie.ClientCookie;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+/**
+ * Binary encoding of {@link SpSession}s including their principal and cookies, shared by the {@link SessionSnapshotLog} and the
+ * {@link FileSessionStore}.
+ */
+final class SessionCodec
+{
+    private SessionCodec()
+    {
+        // No instances
+    }
+    
+    /**
+     * Write a session, including its principal and cookies.
+     */
+    static void write( DataOutputStream out, SpSession session ) throws IOException
+    {
+        out.writeUTF( session.getOrigin() );
+        writeNullable( out, session.getLoginUri() );
+        out.writeLong( session.getEstablishedAt() );
+        out.writeLong( session.getExpiresAt() );
+        writeNullable( out, session.getPrincipal() );
+        out.writeInt( session.getCookies().size() );
+        for ( Cookie cookie : session.getCookies() )
+        {
+            out.writeUTF( cookie.getName() );
+            writeNullable( out, cookie.getValue() );
+            writeNullable( out, cookie.getDomain() );
+            writeNullable( out, cookie.getPath() );
+            out.writeLong( cookie.getExpiryDate() != null ? cookie.getExpiryDate().getTime() : -1 );
+            out.writeBoolean( cookie.isSecure() );
+            out.writeInt( cookie.getVersion() );
+        }
+    }
+    
+    /**
+     * Read a session written by {@link #write(DataOutputStream, SpSession)}.
+     */
+    static SpSession read( DataInputStream in ) throws IOException
+    {
+        String origin = in.readUTF();
+        String loginUri = readNullable( in );
+        long establishedAt = in.readLong();
+        long expiresAt = in.readLong();
+        String principal = readNullable( in );
+        int count = in.readInt();
+        List<Cookie> cookies = new ArrayList<Cookie>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            BasicClientCookie cookie = new BasicClientCookie( in.readUTF(), readNullable( in ) );
+            cookie.setDomain( readNullable( in ) );
+            cookie.setPath( readNullable( in ) );
+            long expiry = in.readLong();
+            cookie.setExpiryDate( expiry >= 0 ? new Date( expiry ) : null );
+            cookie.setSecure( in.readBoolean() );
+            cookie.setVersion( in.readInt() );
+            if ( cookie.getPath() != null )
+            {
+                cookie.setAttribute( ClientCookie.PATH_ATTR, cookie.getPath() );
+            }
+            cookies.add( cookie );
+        }
+        return new SpSession( origin, loginUri, establishedAt, expiresAt, principal, cookies );
+    }
+    
+    static void writeNullable( DataOutputStream out, String value ) throws IOException
+    {
+        out.writeBoolean( value != null );
+        if ( value != null )
+        {
+            out.writeUTF( value );
+        }
+    }
+    
+    static String readNullable( DataInputStream in ) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
\ No newline at end of file
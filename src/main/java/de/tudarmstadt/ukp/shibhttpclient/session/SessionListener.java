@@ -0,0 +1,25 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+/**
+ * Notified by the {@link SessionTracker} when sessions are established or invalidated.
+ */
+public interface SessionListener
+{
+    /**
+     * Called after a login established a new session.
+     * 
+     * @param session
+     *            the new session
+     */
+    void sessionEstablished( SpSession session );
+    
+    /**
+     * Called after the session of a principal at an SP has been invalidated.
+     * 
+     * @param origin
+     *            the SP origin
+     * @param principal
+     *            the principal, may be {@code null}
+     */
+    void sessionInvalidated( String origin, String principal );
+}
\ No newline at end of file
@@ -0,0 +1,273 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.util.EntityUtils;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.ContextSVAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.cookie.PrincipalCookieJars;
+
+/**
+ * Renews SP sessions in the background shortly before they expire, so requests rarely run into a PAOS challenge.
+ * 
+ * <p>
+ * Each session is refreshed at a random point within {@code maxJitter} before {@code leadTime} ahead of its expiry by requesting the URI
+ * that triggered its login again without presenting the current session cookie. The SP answers with a PAOS challenge, and the ECP
+ * interceptors of the client log in and replace the session cookie in the shared cookie store.
+ * </p>
+ * 
+ * <p>
+ * The sessions of each principal are refreshed separately. With {@link #setCookieJars(PrincipalCookieJars) cookie jars per principal},
+ * the refresh of a principal's session uses the jar of the principal and a context the principal is
+ * {@link ContextSVAuthenticator#assignUser(org.apache.http.protocol.HttpContext, String) assigned} to, so it requires a
+ * {@link ContextSVAuthenticator}.
+ * </p>
+ */
+public class SessionRefresher implements SessionListener, Closeable
+{
+    private final Log                                     log       = LogFactory.getLog( getClass() );
+    
+    private final ConcurrentMap<String, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+    
+    private final Random                                  random    = new Random();
+    
+    private final HttpClient                              client;
+    private final SessionTracker                          sessionTracker;
+    private final CookieStore                             cookieStore;
+    private final long                                    leadTime;
+    private final long                                    maxJitter;
+    private final ScheduledExecutorService                executor;
+    private volatile PrincipalCookieJars                  cookieJars;
+    
+    /**
+     * Create a new {@link SessionRefresher}. It does nothing until it is {@link #start() started}.
+     * 
+     * @param client
+     *            the client with ECP interceptors used to log in again
+     * @param sessionTracker
+     *            the tracker of the sessions to refresh
+     * @param cookieStore
+     *            the cookie store holding the session cookies
+     * @param leadTime
+     *            the time ahead of the expiry of a session at which it is refreshed
+     * @param maxJitter
+     *            the maximum random time by which a refresh is moved further ahead
+     * @param unit
+     *            the unit of {@code leadTime} and {@code maxJitter}
+     */
+    public SessionRefresher( HttpClient client, SessionTracker sessionTracker, CookieStore cookieStore, long leadTime, long maxJitter,
+            TimeUnit unit )
+    {
+        this.client = client;
+        this.sessionTracker = sessionTracker;
+        this.cookieStore = cookieStore;
+        this.leadTime = unit.toMillis( leadTime );
+        this.maxJitter = unit.toMillis( maxJitter );
+        this.executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "shib-session-refresher" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+    
+    /**
+     * Refresh the sessions of the principals in their own cookie jars.
+     * 
+     * @param cookieJars
+     *            the per-principal jars, {@code null} if there are none
+     */
+    public void setCookieJars( PrincipalCookieJars cookieJars )
+    {
+        this.cookieJars = cookieJars;
+    }
+    
+    /**
+     * Start watching the sessions of the tracker, including those already established.
+     */
+    public void start()
+    {
+        sessionTracker.addSessionListener( this );
+        for ( SpSession session : sessionTracker.getSessions() )
+        {
+            sessionEstablished( session );
+        }
+    }
+    
+    /**
+     * Stop refreshing sessions and release the background thread.
+     */
+    @Override
+    public void close()
+    {
+        sessionTracker.removeSessionListener( this );
+        executor.shutdownNow();
+        scheduled.clear();
+    }
+    
+    @Override
+    public void sessionEstablished( final SpSession session )
+    {
+        if ( session.getLoginUri() == null || executor.isShutdown() )
+        {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        long jitter = maxJitter > 0 ? (long) (random.nextDouble() * maxJitter) : 0;
+        long delay = session.getExpiresAt() - leadTime - jitter - now;
+        // sessions shorter than the lead time are refreshed half way, not right away
+        delay = Math.max( delay, (session.getExpiresAt() - now) / 2 );
+        
+        ScheduledFuture<?> refresh = executor.schedule( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refresh( session );
+            }
+        }, delay, TimeUnit.MILLISECONDS );
+        
+        ScheduledFuture<?> previous = scheduled.put( keyOf( session.getOrigin(), session.getPrincipal() ), refresh );
+        if ( previous != null )
+        {
+            previous.cancel( false );
+        }
+        log.trace( "Refresh of [" + session.getOrigin() + "] for [" + session.getPrincipal() + "] scheduled in " + delay + "ms" );
+    }
+    
+    @Override
+    public void sessionInvalidated( String origin, String principal )
+    {
+        ScheduledFuture<?> refresh = scheduled.remove( keyOf( origin, principal ) );
+        if ( refresh != null )
+        {
+            refresh.cancel( false );
+        }
+    }
+    
+    private void refresh( SpSession session )
+    {
+        if ( sessionTracker.getSession( session.getOrigin(), session.getPrincipal() ) != session )
+        {
+            // renewed or invalidated in the meantime
+            return;
+        }
+        
+        log.debug( "Refreshing session at [" + session.getOrigin() + "] for [" + session.getPrincipal() + "]" );
+        HttpGet request = new HttpGet( session.getLoginUri() );
+        HttpClientContext context = HttpClientContext.create();
+        CookieStore store = cookieStore;
+        PrincipalCookieJars jars = cookieJars;
+        if ( jars != null && session.getPrincipal() != null )
+        {
+            store = jars.getCookieStore( session.getPrincipal() );
+            ContextSVAuthenticator.assignUser( context, session.getPrincipal() );
+        }
+        List<Cookie> staleCookies = sessionTracker.getSessionCookies( URIUtils.extractHost( request.getURI() ), store );
+        context.setCookieStore( new ExcludingCookieStore( store, staleCookies ) );
+        try
+        {
+            HttpResponse response = client.execute( request, context );
+            EntityUtils.consumeQuietly( response.getEntity() );
+            log.debug( "Session refresh at [" + session.getOrigin() + "] completed: " + response.getStatusLine() );
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Session refresh at [" + session.getOrigin() + "] failed: " + e.getMessage() );
+        }
+        catch ( RuntimeException e )
+        {
+            log.warn( "Session refresh at [" + session.getOrigin() + "] failed: " + e.getMessage(), e );
+        }
+    }
+    
+    private static String keyOf( String origin, String principal )
+    {
+        return origin + " " + principal;
+    }
+    
+    /**
+     * A view of a cookie store that hides the given cookies and writes through to the underlying store.
+     */
+    private static class ExcludingCookieStore implements CookieStore
+    {
+        private final CookieStore  delegate;
+        private final List<Cookie> excluded;
+        
+        ExcludingCookieStore( CookieStore delegate, List<Cookie> excluded )
+        {
+            this.delegate = delegate;
+            this.excluded = excluded;
+        }
+        
+        @Override
+        public void addCookie( Cookie cookie )
+        {
+            delegate.addCookie( cookie );
+        }
+        
+        @Override
+        public List<Cookie> getCookies()
+        {
+            List<Cookie> cookies = new ArrayList<Cookie>();
+            for ( Cookie cookie : delegate.getCookies() )
+            {
+                if ( !isExcluded( cookie ) )
+                {
+                    cookies.add( cookie );
+                }
+            }
+            return cookies;
+        }
+        
+        @Override
+        public boolean clearExpired( Date date )
+        {
+            return delegate.clearExpired( date );
+        }
+        
+        @Override
+        public void clear()
+        {
+            delegate.clear();
+        }
+        
+        private boolean isExcluded( Cookie cookie )
+        {
+            for ( Cookie e : excluded )
+            {
+                if ( e.getName().equals( cookie.getName() ) && e.getValue().equals( cookie.getValue() ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
\ No newline at end of file
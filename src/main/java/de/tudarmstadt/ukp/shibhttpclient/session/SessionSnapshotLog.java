@@ -0,0 +1,470 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persists the sessions recorded by a {@link SessionTracker} together with their cookies in a memory-mapped append log, so a restarted
+ * client can resume them without logging in again.
+ * 
+ * <p>
+ * Every established or invalidated session appends a record of its length, its CRC32 checksum and its payload to the log. Records are
+ * written to the mapped file and reach the page cache immediately, so they survive a crash of the process; they are forced to disk when
+ * the log is closed. When the log runs full, it is compacted to the sessions still alive and grown if necessary. On opening, the log is
+ * replayed up to the first incomplete or corrupt record.
+ * </p>
+ * 
+ * <p>
+ * The log holds session cookies, i.e. credentials, in plain text. It is made readable for its owner only when created and must be kept
+ * in a location no other user can access. A log can only be opened by a single client at a time.
+ * </p>
+ */
+public class SessionSnapshotLog implements SessionListener, Closeable
+{
+    /**
+     * The initial size of the log in bytes unless configured otherwise.
+     */
+    public static final int              DEFAULT_CAPACITY = 1024 * 1024;
+    
+    private static final int             MAGIC            = 0x53485353;
+    private static final int             VERSION          = 1;
+    private static final int             HEADER_SIZE      = 8;
+    private static final int             RECORD_OVERHEAD  = 8;
+    
+    private static final byte            ESTABLISHED      = 1;
+    /**
+     * Invalidation of all sessions at an origin, only written by earlier versions.
+     */
+    private static final byte            INVALIDATED      = 2;
+    private static final byte            INVALIDATED_USER = 3;
+    
+    private final Log                    log              = LogFactory.getLog( getClass() );
+    
+    /**
+     * Not a monitor, appending may grow and force the file and would pin virtual threads.
+     */
+    private final Lock                   lock             = new ReentrantLock();
+    
+    private final File                   file;
+    private final RandomAccessFile       raf;
+    private final FileChannel            channel;
+    private final FileLock               fileLock;
+    private MappedByteBuffer             buffer;
+    private boolean                      closed;
+    
+    private final Map<String, SpSession> live             = new LinkedHashMap<String, SpSession>();
+    
+    /**
+     * Open the log in the given file with the {@link #DEFAULT_CAPACITY}, creating it if it does not exist.
+     * 
+     * @param file
+     *            the file of the log
+     * @throws IOException
+     *             if the file cannot be opened, is not a session log or is in use by another client
+     */
+    public SessionSnapshotLog( File file ) throws IOException
+    {
+        this( file, DEFAULT_CAPACITY );
+    }
+    
+    /**
+     * Open the log in the given file, creating it if it does not exist.
+     * 
+     * @param file
+     *            the file of the log
+     * @param capacity
+     *            the initial size of a new log in bytes, existing logs keep their size
+     * @throws IOException
+     *             if the file cannot be opened, is not a session log or is in use by another client
+     */
+    public SessionSnapshotLog( File file, int capacity ) throws IOException
+    {
+        this.file = file;
+        boolean created = !file.exists();
+        raf = new RandomAccessFile( file, "rw" );
+        channel = raf.getChannel();
+        try
+        {
+            fileLock = tryLock( channel );
+            if ( created )
+            {
+                restrictToOwner( file );
+            }
+            int size = (int) Math.max( channel.size(), Math.max( capacity, HEADER_SIZE + RECORD_OVERHEAD ) );
+            buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+            
+            int magic = buffer.getInt( 0 );
+            if ( magic == 0 )
+            {
+                buffer.putInt( 0, MAGIC );
+                buffer.putInt( 4, VERSION );
+                buffer.position( HEADER_SIZE );
+                terminate();
+            }
+            else if ( magic != MAGIC || buffer.getInt( 4 ) != VERSION )
+            {
+                throw new IOException( "Not a session snapshot log: " + file );
+            }
+            else
+            {
+                replay();
+            }
+        }
+        catch ( IOException e )
+        {
+            raf.close();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            raf.close();
+            throw e;
+        }
+    }
+    
+    private static FileLock tryLock( FileChannel channel ) throws IOException
+    {
+        FileLock lock;
+        try
+        {
+            lock = channel.tryLock();
+        }
+        catch ( OverlappingFileLockException e )
+        {
+            lock = null;
+        }
+        if ( lock == null )
+        {
+            throw new IOException( "Session snapshot log is in use by another client" );
+        }
+        return lock;
+    }
+    
+    /**
+     * Make the file readable and writable by its owner only, as far as the file system supports it.
+     */
+    static void restrictToOwner( File file )
+    {
+        file.setReadable( false, false );
+        file.setReadable( true, true );
+        file.setWritable( false, false );
+        file.setWritable( true, true );
+    }
+    
+    private void replay()
+    {
+        int position = HEADER_SIZE;
+        int records = 0;
+        while ( position + RECORD_OVERHEAD <= buffer.capacity() )
+        {
+            int length = buffer.getInt( position );
+            if ( length <= 0 || position + RECORD_OVERHEAD + length > buffer.capacity() )
+            {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position( position + RECORD_OVERHEAD );
+            buffer.get( payload );
+            CRC32 crc = new CRC32();
+            crc.update( payload );
+            if ( (int) crc.getValue() != buffer.getInt( position + 4 ) )
+            {
+                log.warn( "Ignoring corrupt record at offset " + position + " of session snapshot log " + file );
+                break;
+            }
+            try
+            {
+                apply( payload );
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Ignoring unreadable record at offset " + position + " of session snapshot log " + file, e );
+                break;
+            }
+            position += RECORD_OVERHEAD + length;
+            records++;
+        }
+        buffer.position( position );
+        terminate();
+        log.debug( "Replayed " + records + " records, " + live.size() + " sessions from session snapshot log " + file );
+    }
+    
+    private void apply( byte[] payload ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( payload ) );
+        byte type = in.readByte();
+        if ( type == ESTABLISHED )
+        {
+            SpSession session = SessionCodec.read( in );
+            live.put( keyOf( session.getOrigin(), session.getPrincipal() ), session );
+        }
+        else if ( type == INVALIDATED )
+        {
+            removeOrigin( in.readUTF() );
+        }
+        else if ( type == INVALIDATED_USER )
+        {
+            String origin = in.readUTF();
+            live.remove( keyOf( origin, SessionCodec.readNullable( in ) ) );
+        }
+        else
+        {
+            throw new IOException( "Unknown record type " + type );
+        }
+    }
+    
+    /**
+     * Get the sessions in the log that have not expired yet.
+     * 
+     * @return the live sessions
+     */
+    public Collection<SpSession> getSessions()
+    {
+        lock.lock();
+        try
+        {
+            long now = System.currentTimeMillis();
+            List<SpSession> sessions = new ArrayList<SpSession>( live.size() );
+            for ( SpSession session : live.values() )
+            {
+                if ( session.isValidAt( now ) )
+                {
+                    sessions.add( session );
+                }
+            }
+            return sessions;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void sessionEstablished( SpSession session )
+    {
+        lock.lock();
+        try
+        {
+            if ( closed || session.getCookies().isEmpty() )
+            {
+                return;
+            }
+            live.put( keyOf( session.getOrigin(), session.getPrincipal() ), session );
+            try
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream( bytes );
+                out.writeByte( ESTABLISHED );
+                SessionCodec.write( out, session );
+                append( bytes.toByteArray() );
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Unable to record session at [" + session.getOrigin() + "] in session snapshot log " + file, e );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void sessionInvalidated( String origin, String principal )
+    {
+        lock.lock();
+        try
+        {
+            if ( closed || live.remove( keyOf( origin, principal ) ) == null )
+            {
+                return;
+            }
+            try
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream( bytes );
+                out.writeByte( INVALIDATED_USER );
+                out.writeUTF( origin );
+                SessionCodec.writeNullable( out, principal );
+                append( bytes.toByteArray() );
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Unable to record invalidation of session at [" + origin + "] in session snapshot log " + file, e );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void removeOrigin( String origin )
+    {
+        for ( Iterator<SpSession> sessions = live.values().iterator(); sessions.hasNext(); )
+        {
+            if ( sessions.next().getOrigin().equals( origin ) )
+            {
+                sessions.remove();
+            }
+        }
+    }
+    
+    /**
+     * Append a record, compacting and growing the log if the record does not fit.
+     */
+    private void append( byte[] payload ) throws IOException
+    {
+        if ( buffer.remaining() < RECORD_OVERHEAD + payload.length + 4 )
+        {
+            compact();
+            // The record has already been applied to the live sessions and is part of the compacted log
+            return;
+        }
+        int position = write( payload );
+        terminate();
+        // Publish the record by writing its length last
+        buffer.putInt( position, payload.length );
+    }
+    
+    /**
+     * Rewrite the log with the live sessions only, growing it until they fit.
+     */
+    private void compact() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        List<byte[]> records = new ArrayList<byte[]>( live.size() );
+        int size = HEADER_SIZE + 4;
+        for ( Iterator<SpSession> sessions = live.values().iterator(); sessions.hasNext(); )
+        {
+            SpSession session = sessions.next();
+            if ( !session.isValidAt( now ) )
+            {
+                sessions.remove();
+                continue;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeByte( ESTABLISHED );
+            SessionCodec.write( out, session );
+            records.add( bytes.toByteArray() );
+            size += RECORD_OVERHEAD + bytes.size();
+        }
+        
+        int capacity = buffer.capacity();
+        while ( capacity < size * 2 )
+        {
+            capacity *= 2;
+        }
+        if ( capacity != buffer.capacity() )
+        {
+            log.debug( "Growing session snapshot log " + file + " to " + capacity + " bytes" );
+            buffer.force();
+            buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, capacity );
+        }
+        
+        // Hide the old records while overwriting them and publish the first new one last, so a crash while compacting loses sessions
+        // but never mixes old and new records
+        buffer.position( HEADER_SIZE );
+        terminate();
+        for ( int i = 0; i < records.size(); i++ )
+        {
+            int position = write( records.get( i ) );
+            if ( i > 0 )
+            {
+                buffer.putInt( position, records.get( i ).length );
+            }
+        }
+        terminate();
+        if ( !records.isEmpty() )
+        {
+            buffer.putInt( HEADER_SIZE, records.get( 0 ).length );
+        }
+        log.debug( "Compacted session snapshot log " + file + " to " + records.size() + " sessions" );
+    }
+    
+    /**
+     * Write a record without its length, which is left to the caller to publish the record.
+     * 
+     * @return the position of the length of the record
+     */
+    private int write( byte[] payload )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( payload );
+        int position = buffer.position();
+        buffer.position( position + 4 );
+        buffer.putInt( (int) crc.getValue() );
+        buffer.put( payload );
+        return position;
+    }
+    
+    /**
+     * Mark the end of the log at the current position without moving it.
+     */
+    private void terminate()
+    {
+        if ( buffer.remaining() >= 4 )
+        {
+            buffer.putInt( buffer.position(), 0 );
+        }
+    }
+    
+    private static String keyOf( String origin, String principal )
+    {
+        return origin + " " + principal;
+    }
+    
+    /**
+     * Force all records to disk and close the log. Sessions established or invalidated afterwards are no longer recorded.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if ( closed )
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                buffer.force();
+                fileLock.release();
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
\ No newline at end of file
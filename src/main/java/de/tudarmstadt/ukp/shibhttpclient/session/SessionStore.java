@@ -0,0 +1,56 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.io.IOException;
+
+/**
+ * Shares SP sessions and their cookies between the clients of several nodes, so a session established by one node can be used by all of
+ * them instead of each node logging in on its own.
+ * 
+ * <p>
+ * Every session is stored under its SP origin and principal together with a version that increases with every update. Updates only
+ * succeed if the caller names the version it has seen last, so nodes never overwrite a session they do not know with an older one.
+ * Implementations must be thread-safe. Clients access the store through a {@link SharedSessionCache}.
+ * </p>
+ */
+public interface SessionStore
+{
+    /**
+     * Get the session of a principal at an SP.
+     * 
+     * @param origin
+     *            the SP origin ({@code scheme://host:port})
+     * @param principal
+     *            the principal, may be {@code null}
+     * @return the session with its version, {@code null} if no session is stored
+     * @throws IOException
+     *             if the store cannot be read
+     */
+    StoredSession get( String origin, String principal ) throws IOException;
+    
+    /**
+     * Get the version of the session of a principal at an SP. Should be cheaper than {@link #get(String, String)}, it is called to
+     * validate cached sessions.
+     * 
+     * @param origin
+     *            the SP origin ({@code scheme://host:port})
+     * @param principal
+     *            the principal, may be {@code null}
+     * @return the version, {@code 0} if no session is stored
+     * @throws IOException
+     *             if the store cannot be read
+     */
+    long getVersion( String origin, String principal ) throws IOException;
+    
+    /**
+     * Store a session unless the stored session has been updated since the given version.
+     * 
+     * @param session
+     *            the session, stored under its origin and principal
+     * @param expectedVersion
+     *            the version the caller has seen last, {@code 0} if it has not seen a session
+     * @return the new version, {@code 0} if the stored version differs from the expected one and nothing has been stored
+     * @throws IOException
+     *             if the store cannot be written
+     */
+    long compareAndSet( SpSession session, long expectedVersion ) throws IOException;
+}
\ No newline at end of file
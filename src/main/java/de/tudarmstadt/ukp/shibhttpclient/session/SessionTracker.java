@@ -0,0 +1,433 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.SM;
+
+import de.tudarmstadt.ukp.shibhttpclient.cookie.ConcurrentCookieStore;
+
+/**
+ * Keeps track of the Shibboleth sessions the client holds at each SP origin, separately for each principal.
+ * 
+ * <p>
+ * A session is recorded after the assertion consumer service accepted a login and set its session cookies. It is considered live as long
+ * as it has not expired and the cookie store still holds a matching, unexpired session cookie. Session cookies without an expiry date
+ * (which is what a Shibboleth SP usually sets) are assumed to live for {@link #DEFAULT_SESSION_LIFETIME}.
+ * </p>
+ * 
+ * <p>
+ * Methods without a principal refer to the session of the {@code null} principal, i.e. of a client whose authenticator does not tell the
+ * principal.
+ * </p>
+ */
+public class SessionTracker
+{
+    /**
+     * Name prefix of the session cookies set by a Shibboleth SP.
+     */
+    public static final String               DEFAULT_SESSION_COOKIE_PREFIX = "_shibsession_";
+    
+    /**
+     * Assumed lifetime of session cookies without an expiry date, matching the default inactivity timeout of a Shibboleth SP.
+     */
+    public static final long                 DEFAULT_SESSION_LIFETIME      = TimeUnit.HOURS.toMillis( 1 );
+    
+    /**
+     * Safety margin before the expiry of a session during which it is no longer considered live.
+     */
+    public static final long                 DEFAULT_EXPIRY_SKEW           = TimeUnit.SECONDS.toMillis( 30 );
+    
+    private final Log                        log                           = LogFactory.getLog( getClass() );
+    
+    private final ConcurrentMap<String, SpSession> sessions                = new ConcurrentHashMap<String, SpSession>();
+    
+    private final List<SessionListener>      listeners                     = new CopyOnWriteArrayList<SessionListener>();
+    
+    private final String                     sessionCookiePrefix;
+    private final long                       sessionLifetime;
+    private final long                       expirySkew;
+    
+    /**
+     * Create a new {@link SessionTracker} for Shibboleth session cookies using the default lifetime and skew.
+     */
+    public SessionTracker()
+    {
+        this( DEFAULT_SESSION_COOKIE_PREFIX, DEFAULT_SESSION_LIFETIME, DEFAULT_EXPIRY_SKEW );
+    }
+    
+    /**
+     * Create a new {@link SessionTracker}.
+     * 
+     * @param sessionCookiePrefix
+     *            the name prefix of the SP session cookies
+     * @param sessionLifetime
+     *            the assumed lifetime in milliseconds of session cookies without an expiry date
+     * @param expirySkew
+     *            the margin in milliseconds before the expiry of a session during which it is no longer considered live
+     */
+    public SessionTracker( String sessionCookiePrefix, long sessionLifetime, long expirySkew )
+    {
+        this.sessionCookiePrefix = sessionCookiePrefix;
+        this.sessionLifetime = sessionLifetime;
+        this.expirySkew = expirySkew;
+    }
+    
+    /**
+     * Check whether the client holds a live session at the given SP.
+     * 
+     * @param target
+     *            the SP host
+     * @param cookieStore
+     *            the cookie store the session cookies were stored in
+     * @return {@code true} if requests to the SP can be expected to succeed without authentication
+     */
+    public boolean hasLiveSession( HttpHost target, CookieStore cookieStore )
+    {
+        return hasLiveSession( target, null, cookieStore );
+    }
+    
+    /**
+     * Check whether the client holds a live session of a principal at the given SP.
+     * 
+     * @param target
+     *            the SP host
+     * @param principal
+     *            the principal, may be {@code null}
+     * @param cookieStore
+     *            the cookie store the session cookies were stored in
+     * @return {@code true} if requests of the principal to the SP can be expected to succeed without authentication
+     */
+    public boolean hasLiveSession( HttpHost target, String principal, CookieStore cookieStore )
+    {
+        if ( target == null || cookieStore == null )
+        {
+            return false;
+        }
+        
+        SpSession session = sessions.get( keyOf( originOf( target ), principal ) );
+        long now = System.currentTimeMillis();
+        if ( session == null || !session.isValidAt( now + expirySkew ) )
+        {
+            return false;
+        }
+        
+        return !sessionCookies( target, cookieStore, new Date( now ) ).isEmpty();
+    }
+    
+    /**
+     * Record a session after a successful login at the assertion consumer service of the given SP.
+     * 
+     * @param target
+     *            the SP host
+     * @param cookieStore
+     *            the cookie store holding the session cookies set by the assertion consumer service
+     * @param loginUri
+     *            the absolute URI whose request triggered the login, may be {@code null}
+     * @return the recorded session or {@code null} if the SP did not set a session cookie
+     */
+    public SpSession sessionEstablished( HttpHost target, CookieStore cookieStore, String loginUri )
+    {
+        return sessionEstablished( target, cookieStore, loginUri, null );
+    }
+    
+    /**
+     * Record a session of a principal after a successful login at the assertion consumer service of the given SP.
+     * 
+     * @param target
+     *            the SP host
+     * @param cookieStore
+     *            the cookie store holding the session cookies set by the assertion consumer service
+     * @param loginUri
+     *            the absolute URI whose request triggered the login, may be {@code null}
+     * @param principal
+     *            the principal that logged in, may be {@code null} if unknown
+     * @return the recorded session or {@code null} if the SP did not set a session cookie
+     */
+    public SpSession sessionEstablished( HttpHost target, CookieStore cookieStore, String loginUri, String principal )
+    {
+        if ( target == null || cookieStore == null )
+        {
+            return null;
+        }
+        
+        long now = System.currentTimeMillis();
+        List<Cookie> cookies = sessionCookies( target, cookieStore, new Date( now ) );
+        if ( cookies.isEmpty() )
+        {
+            log.debug( "No session cookie found for [" + originOf( target ) + "] -- session not tracked" );
+            return null;
+        }
+        
+        long expiresAt = now + sessionLifetime;
+        for ( Cookie cookie : cookies )
+        {
+            if ( cookie.getExpiryDate() != null )
+            {
+                expiresAt = Math.min( expiresAt, cookie.getExpiryDate().getTime() );
+            }
+        }
+        
+        SpSession session = new SpSession( originOf( target ), loginUri, now, expiresAt, principal, cookies );
+        sessions.put( keyOf( session.getOrigin(), principal ), session );
+        log.trace( "Session established: " + session );
+        for ( SessionListener listener : listeners )
+        {
+            listener.sessionEstablished( session );
+        }
+        return session;
+    }
+    
+    /**
+     * Record a session established earlier, e.g. by another process, whose cookies have already been added to the cookie store. Expired
+     * sessions are ignored.
+     * 
+     * @param session
+     *            the session
+     * @return {@code true} if the session has been recorded
+     */
+    public boolean restoreSession( SpSession session )
+    {
+        if ( !session.isValidAt( System.currentTimeMillis() + expirySkew ) )
+        {
+            return false;
+        }
+        sessions.put( keyOf( session.getOrigin(), session.getPrincipal() ), session );
+        log.trace( "Session restored: " + session );
+        for ( SessionListener listener : listeners )
+        {
+            listener.sessionEstablished( session );
+        }
+        return true;
+    }
+    
+    /**
+     * Check whether the session at the given SP has been renewed since the given request was sent, i.e. the cookie store holds a live
+     * session cookie that was not part of the request. Requests that were rejected for lack of authentication can simply be repeated in
+     * this case.
+     * 
+     * @param target
+     *            the SP host
+     * @param cookieStore
+     *            the cookie store holding the session cookies
+     * @param sentRequest
+     *            the request as it was sent to the SP, including its cookie headers
+     * @return {@code true} if a newer session than the one presented by the request is available
+     */
+    public boolean isSessionRenewed( HttpHost target, CookieStore cookieStore, HttpRequest sentRequest )
+    {
+        return isSessionRenewed( target, null, cookieStore, sentRequest );
+    }
+    
+    /**
+     * Check whether the session of a principal at the given SP has been renewed since the given request was sent, see
+     * {@link #isSessionRenewed(HttpHost, CookieStore, HttpRequest)}.
+     * 
+     * @param target
+     *            the SP host
+     * @param principal
+     *            the principal, may be {@code null}
+     * @param cookieStore
+     *            the cookie store holding the session cookies of the principal
+     * @param sentRequest
+     *            the request as it was sent to the SP, including its cookie headers
+     * @return {@code true} if a newer session than the one presented by the request is available
+     */
+    public boolean isSessionRenewed( HttpHost target, String principal, CookieStore cookieStore, HttpRequest sentRequest )
+    {
+        if ( !hasLiveSession( target, principal, cookieStore ) )
+        {
+            return false;
+        }
+        
+        for ( Cookie cookie : sessionCookies( target, cookieStore, new Date() ) )
+        {
+            String presented = cookie.getName() + "=" + cookie.getValue();
+            boolean sent = false;
+            for ( Header header : sentRequest.getHeaders( SM.COOKIE ) )
+            {
+                sent |= header.getValue().contains( presented );
+            }
+            if ( !sent )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Forget the session at the given SP, e.g. because the SP asked for authentication again.
+     * 
+     * @param target
+     *            the SP host
+     */
+    public void sessionInvalidated( HttpHost target )
+    {
+        sessionInvalidated( target, null );
+    }
+    
+    /**
+     * Forget the session of a principal at the given SP, e.g. because the SP asked the principal for authentication again. The sessions
+     * of other principals at the SP are kept.
+     * 
+     * @param target
+     *            the SP host
+     * @param principal
+     *            the principal, may be {@code null}
+     */
+    public void sessionInvalidated( HttpHost target, String principal )
+    {
+        if ( target == null )
+        {
+            return;
+        }
+        String origin = originOf( target );
+        if ( sessions.remove( keyOf( origin, principal ) ) != null )
+        {
+            log.trace( "Session invalidated: " + origin + " " + principal );
+            for ( SessionListener listener : listeners )
+            {
+                listener.sessionInvalidated( origin, principal );
+            }
+        }
+    }
+    
+    /**
+     * Register a listener to be notified of established and invalidated sessions.
+     * 
+     * @param listener
+     *            the listener
+     */
+    public void addSessionListener( SessionListener listener )
+    {
+        listeners.add( listener );
+    }
+    
+    /**
+     * Remove a previously registered listener.
+     * 
+     * @param listener
+     *            the listener
+     */
+    public void removeSessionListener( SessionListener listener )
+    {
+        listeners.remove( listener );
+    }
+    
+    /**
+     * Get the session recorded for a principal at the given SP origin.
+     * 
+     * @param origin
+     *            the SP origin as returned by {@link #originOf(HttpHost)}
+     * @param principal
+     *            the principal, may be {@code null}
+     * @return the session or {@code null} if none is recorded
+     */
+    public SpSession getSession( String origin, String principal )
+    {
+        return sessions.get( keyOf( origin, principal ) );
+    }
+    
+    /**
+     * Get all sessions currently recorded.
+     * 
+     * @return an unmodifiable snapshot of the recorded sessions
+     */
+    public Collection<SpSession> getSessions()
+    {
+        return Collections.unmodifiableCollection( new ArrayList<SpSession>( sessions.values() ) );
+    }
+    
+    /**
+     * Get the name prefix of the SP session cookies.
+     * 
+     * @return the sessionCookiePrefix
+     */
+    public String getSessionCookiePrefix()
+    {
+        return sessionCookiePrefix;
+    }
+    
+    /**
+     * Get the unexpired session cookies the cookie store holds for the given SP.
+     * 
+     * @param target
+     *            the SP host
+     * @param cookieStore
+     *            the cookie store
+     * @return the session cookies
+     */
+    public List<Cookie> getSessionCookies( HttpHost target, CookieStore cookieStore )
+    {
+        return sessionCookies( target, cookieStore, new Date() );
+    }
+    
+    private List<Cookie> sessionCookies( HttpHost target, CookieStore cookieStore, Date now )
+    {
+        List<Cookie> result = new ArrayList<Cookie>( 1 );
+        String host = target.getHostName().toLowerCase( Locale.ENGLISH );
+        List<Cookie> cookies = cookieStore instanceof ConcurrentCookieStore ? ((ConcurrentCookieStore) cookieStore).getCookies( host )
+                : cookieStore.getCookies();
+        for ( Cookie cookie : cookies )
+        {
+            if ( cookie.getName().startsWith( sessionCookiePrefix ) && !cookie.isExpired( now ) && domainMatches( host, cookie.getDomain() ) )
+            {
+                result.add( cookie );
+            }
+        }
+        return result;
+    }
+    
+    private static boolean domainMatches( String host, String domain )
+    {
+        if ( domain == null )
+        {
+            return false;
+        }
+        String d = domain.toLowerCase( Locale.ENGLISH );
+        if ( d.startsWith( "." ) )
+        {
+            d = d.substring( 1 );
+        }
+        return host.equals( d ) || host.endsWith( "." + d );
+    }
+    
+    private static String keyOf( String origin, String principal )
+    {
+        return origin + " " + principal;
+    }
+    
+    /**
+     * Determine the origin ({@code scheme://host:port}) of the given host, resolving default ports.
+     * 
+     * @param host
+     *            the host
+     * @return the origin of the host
+     */
+    public static String originOf( HttpHost host )
+    {
+        String scheme = host.getSchemeName().toLowerCase( Locale.ENGLISH );
+        int port = host.getPort();
+        if ( port < 0 )
+        {
+            port = "https".equals( scheme ) ? 443 : 80;
+        }
+        return scheme + "://" + host.getHostName().toLowerCase( Locale.ENGLISH ) + ":" + port;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,305 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.SM;
+
+/**
+ * Connects the {@link SessionTracker} of a client to a {@link SessionStore} shared with other nodes. Sessions established by a login of
+ * the client are published to the store, and before the client logs in, it adopts a session another node has published instead.
+ * 
+ * <p>
+ * The most recently seen version of every session is cached, so the store is only asked for the version of a session as long as it has
+ * not changed. Publishing a session only replaces the stored session if the store still holds the version last seen or an older
+ * session, so nodes that log in concurrently do not overwrite each other's newer sessions. The store is consulted on logins only, a
+ * store that cannot be reached costs the logins it would have saved but never fails a request.
+ * </p>
+ */
+public class SharedSessionCache implements SessionListener
+{
+    /**
+     * The maximum number of cached sessions unless configured otherwise.
+     */
+    public static final int                  DEFAULT_MAX_ENTRIES = 1000;
+    
+    private final Log                        log                 = LogFactory.getLog( getClass() );
+    
+    private final SessionStore               store;
+    private final SessionTracker             sessionTracker;
+    private final Map<String, CachedVersion> versions;
+    
+    private final AtomicLong                 adopted             = new AtomicLong();
+    private final AtomicLong                 published           = new AtomicLong();
+    private final AtomicLong                 conflicts           = new AtomicLong();
+    
+    /**
+     * Create a new {@link SharedSessionCache} caching up to {@link #DEFAULT_MAX_ENTRIES} sessions.
+     * 
+     * @param store
+     *            the store shared with other nodes
+     * @param sessionTracker
+     *            the tracker adopted sessions are restored to
+     */
+    public SharedSessionCache( SessionStore store, SessionTracker sessionTracker )
+    {
+        this( store, sessionTracker, DEFAULT_MAX_ENTRIES );
+    }
+    
+    /**
+     * Create a new {@link SharedSessionCache}.
+     * 
+     * @param store
+     *            the store shared with other nodes
+     * @param sessionTracker
+     *            the tracker adopted sessions are restored to
+     * @param maxEntries
+     *            the maximum number of cached sessions, the least recently used session is evicted first
+     */
+    public SharedSessionCache( SessionStore store, SessionTracker sessionTracker, final int maxEntries )
+    {
+        this.store = store;
+        this.sessionTracker = sessionTracker;
+        this.versions = Collections.synchronizedMap( new LinkedHashMap<String, CachedVersion>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, CachedVersion> eldest )
+            {
+                return size() > maxEntries;
+            }
+        } );
+    }
+    
+    /**
+     * Adopt the session another node holds at the given SP instead of logging in, if it is still valid and differs from the session the
+     * SP has just rejected.
+     * 
+     * @param target
+     *            the SP host
+     * @param cookieStore
+     *            the cookie store the session cookies are added to
+     * @param principal
+     *            the principal to log in, may be {@code null}
+     * @param rejectedRequest
+     *            the request the SP answered with an authentication request, including its cookie headers
+     * @return {@code true} if a session has been adopted and the request can be repeated
+     */
+    public boolean adopt( HttpHost target, CookieStore cookieStore, String principal, HttpRequest rejectedRequest )
+    {
+        String origin = SessionTracker.originOf( target );
+        CachedVersion cached = cachedVersion( origin, principal );
+        cached.lock.lock();
+        try
+        {
+            StoredSession stored;
+            try
+            {
+                long version = store.getVersion( origin, principal );
+                if ( version == 0 )
+                {
+                    return false;
+                }
+                stored = cached.seen != null && cached.seen.getVersion() == version ? cached.seen : store.get( origin, principal );
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Unable to read session at [" + origin + "] from session store", e );
+                return false;
+            }
+            if ( stored == null )
+            {
+                return false;
+            }
+            cached.seen = stored;
+            
+            SpSession session = stored.getSession();
+            if ( !session.isValidAt( System.currentTimeMillis() ) || wasPresented( session, rejectedRequest ) )
+            {
+                log.debug( "Stored session at [" + origin + "] is no longer valid" );
+                return false;
+            }
+            if ( !sessionTracker.restoreSession( session ) )
+            {
+                return false;
+            }
+            for ( Cookie cookie : session.getCookies() )
+            {
+                cookieStore.addCookie( cookie );
+            }
+            adopted.incrementAndGet();
+            log.debug( "Adopted session at [" + origin + "] version " + stored.getVersion() );
+            return true;
+        }
+        finally
+        {
+            cached.lock.unlock();
+        }
+    }
+    
+    /**
+     * Check whether all cookies of the session have been presented with the request, so the SP has already rejected the session.
+     */
+    private static boolean wasPresented( SpSession session, HttpRequest request )
+    {
+        Header[] headers = request.getHeaders( SM.COOKIE );
+        for ( Cookie cookie : session.getCookies() )
+        {
+            String presented = cookie.getName() + "=" + cookie.getValue();
+            boolean sent = false;
+            for ( Header header : headers )
+            {
+                sent |= header.getValue().contains( presented );
+            }
+            if ( !sent )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Publish a session established by a login of this client to the store.
+     */
+    @Override
+    public void sessionEstablished( SpSession session )
+    {
+        if ( session.getCookies().isEmpty() )
+        {
+            return;
+        }
+        CachedVersion cached = cachedVersion( session.getOrigin(), session.getPrincipal() );
+        cached.lock.lock();
+        try
+        {
+            if ( cached.seen != null && cached.seen.getSession() == session )
+            {
+                // Adopted from the store
+                return;
+            }
+            try
+            {
+                long expectedVersion = cached.seen != null ? cached.seen.getVersion() : 0;
+                long version = store.compareAndSet( session, expectedVersion );
+                if ( version == 0 )
+                {
+                    conflicts.incrementAndGet();
+                    StoredSession current = store.get( session.getOrigin(), session.getPrincipal() );
+                    expectedVersion = current != null ? current.getVersion() : 0;
+                    if ( current != null && current.getSession().getEstablishedAt() >= session.getEstablishedAt() )
+                    {
+                        log.debug( "Session store holds a newer session at [" + session.getOrigin() + "]" );
+                        cached.seen = current;
+                        return;
+                    }
+                    version = store.compareAndSet( session, expectedVersion );
+                }
+                if ( version != 0 )
+                {
+                    cached.seen = new StoredSession( session, version );
+                    published.incrementAndGet();
+                    log.debug( "Published session at [" + session.getOrigin() + "] version " + version );
+                }
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Unable to publish session at [" + session.getOrigin() + "] to session store", e );
+            }
+        }
+        finally
+        {
+            cached.lock.unlock();
+        }
+    }
+    
+    /**
+     * Sessions are not removed from the store when they are invalidated, since other nodes may still hold a newer session. The next login
+     * replaces the stored session.
+     */
+    @Override
+    public void sessionInvalidated( String origin, String principal )
+    {
+        // Nothing to do
+    }
+    
+    private CachedVersion cachedVersion( String origin, String principal )
+    {
+        String key = origin + " " + principal;
+        synchronized ( versions )
+        {
+            CachedVersion cached = versions.get( key );
+            if ( cached == null )
+            {
+                cached = new CachedVersion();
+                versions.put( key, cached );
+            }
+            return cached;
+        }
+    }
+    
+    /**
+     * Get the number of sessions adopted from other nodes.
+     * 
+     * @return the number of adopted sessions
+     */
+    public long getSessionsAdopted()
+    {
+        return adopted.get();
+    }
+    
+    /**
+     * Get the number of sessions published to the store.
+     * 
+     * @return the number of published sessions
+     */
+    public long getSessionsPublished()
+    {
+        return published.get();
+    }
+    
+    /**
+     * Get the number of sessions whose publication found the store updated by another node.
+     * 
+     * @return the number of conflicts
+     */
+    public long getConflicts()
+    {
+        return conflicts.get();
+    }
+    
+    /**
+     * Get the store shared with other nodes.
+     * 
+     * @return the store
+     */
+    public SessionStore getStore()
+    {
+        return store;
+    }
+    
+    /**
+     * The version of a session last seen in the store.
+     */
+    private static final class CachedVersion
+    {
+        /**
+         * Not a monitor, the store is accessed while holding it and blocking would pin virtual threads.
+         */
+        private final Lock    lock = new ReentrantLock();
+        private StoredSession seen;
+    }
+}
\ No newline at end of file
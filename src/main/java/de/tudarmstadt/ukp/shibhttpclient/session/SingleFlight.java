@@ -0,0 +1,102 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent executions of tasks with the same key. The first caller for a key executes its task, all callers arriving while
+ * that task is in flight wait for it and receive its outcome instead of executing their own task.
+ * 
+ * @param <K>
+ *            the type of the keys
+ * @param <V>
+ *            the type of the task results
+ */
+public class SingleFlight<K, V>
+{
+    /**
+     * The outcome of a task execution as seen by one of its callers.
+     * 
+     * @param <V>
+     *            the type of the task result
+     */
+    public static class Result<V>
+    {
+        private final V       value;
+        private final boolean leader;
+        
+        Result( V value, boolean leader )
+        {
+            this.value = value;
+            this.leader = leader;
+        }
+        
+        /**
+         * Get the value computed by the task.
+         * 
+         * @return the value
+         */
+        public V getValue()
+        {
+            return value;
+        }
+        
+        /**
+         * Check whether the caller executed the task itself.
+         * 
+         * @return {@code true} if the caller executed the task, {@code false} if it joined a task in flight
+         */
+        public boolean isLeader()
+        {
+            return leader;
+        }
+    }
+    
+    private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+    
+    /**
+     * Execute the task unless a task with the same key is already in flight, in which case its outcome is awaited.
+     * 
+     * @param key
+     *            the key identifying equivalent tasks
+     * @param task
+     *            the task to execute
+     * @return the outcome of the task
+     * @throws ExecutionException
+     *             if the task that was executed or joined failed
+     * @throws InterruptedException
+     *             if the calling thread was interrupted while waiting for a task in flight
+     */
+    public Result<V> execute( K key, Callable<V> task ) throws ExecutionException, InterruptedException
+    {
+        FutureTask<V> flight = new FutureTask<V>( task );
+        FutureTask<V> inFlight = flights.putIfAbsent( key, flight );
+        if ( inFlight != null )
+        {
+            return new Result<V>( inFlight.get(), false );
+        }
+        
+        try
+        {
+            flight.run();
+            return new Result<V>( flight.get(), true );
+        }
+        finally
+        {
+            flights.remove( key, flight );
+        }
+    }
+    
+    /**
+     * Get the number of tasks currently in flight.
+     * 
+     * @return the number of tasks in flight
+     */
+    public int getInFlight()
+    {
+        return flights.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,144 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.builder.ReflectionToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.http.cookie.Cookie;
+
+/**
+ * The state of a Shibboleth session at a single SP origin as observed by the client.
+ */
+public class SpSession
+{
+    private final String       origin;
+    private final String       loginUri;
+    private final long         establishedAt;
+    private final long         expiresAt;
+    private final String       principal;
+    private final List<Cookie> cookies;
+    
+    /**
+     * Create a new {@link SpSession}.
+     * 
+     * @param origin
+     *            the SP origin ({@code scheme://host:port})
+     * @param loginUri
+     *            the URI whose request triggered the login, may be {@code null}
+     * @param establishedAt
+     *            the time the session was established in milliseconds since the epoch
+     * @param expiresAt
+     *            the time the session expires in milliseconds since the epoch
+     */
+    public SpSession( String origin, String loginUri, long establishedAt, long expiresAt )
+    {
+        this( origin, loginUri, establishedAt, expiresAt, null, Collections.<Cookie> emptyList() );
+    }
+    
+    /**
+     * Create a new {@link SpSession} of a principal with its session cookies.
+     * 
+     * @param origin
+     *            the SP origin ({@code scheme://host:port})
+     * @param loginUri
+     *            the URI whose request triggered the login, may be {@code null}
+     * @param establishedAt
+     *            the time the session was established in milliseconds since the epoch
+     * @param expiresAt
+     *            the time the session expires in milliseconds since the epoch
+     * @param principal
+     *            the principal that logged in, may be {@code null} if unknown
+     * @param cookies
+     *            the session cookies set by the SP
+     */
+    public SpSession( String origin, String loginUri, long establishedAt, long expiresAt, String principal, List<Cookie> cookies )
+    {
+        this.origin = origin;
+        this.loginUri = loginUri;
+        this.establishedAt = establishedAt;
+        this.expiresAt = expiresAt;
+        this.principal = principal;
+        this.cookies = Collections.unmodifiableList( cookies );
+    }
+    
+    /**
+     * Get the origin.
+     * 
+     * @return the origin
+     */
+    public String getOrigin()
+    {
+        return origin;
+    }
+    
+    /**
+     * Get the loginUri.
+     * 
+     * @return the loginUri
+     */
+    public String getLoginUri()
+    {
+        return loginUri;
+    }
+    
+    /**
+     * Get the establishedAt.
+     * 
+     * @return the establishedAt
+     */
+    public long getEstablishedAt()
+    {
+        return establishedAt;
+    }
+    
+    /**
+     * Get the expiresAt.
+     * 
+     * @return the expiresAt
+     */
+    public long getExpiresAt()
+    {
+        return expiresAt;
+    }
+    
+    /**
+     * Get the principal.
+     * 
+     * @return the principal, {@code null} if unknown
+     */
+    public String getPrincipal()
+    {
+        return principal;
+    }
+    
+    /**
+     * Get the session cookies.
+     * 
+     * @return the session cookies, empty if unknown
+     */
+    public List<Cookie> getCookies()
+    {
+        return cookies;
+    }
+    
+    /**
+     * Check whether the session is still valid at the given time.
+     * 
+     * @param now
+     *            the current time in milliseconds since the epoch
+     * @return {@code true} if the session has not yet expired
+     */
+    public boolean isValidAt( long now )
+    {
+        return now < expiresAt;
+    }
+    
+    @Override
+    public String toString()
+    {
+        // The cookies are credentials and must not end up in logs
+        return new ReflectionToStringBuilder( this, ToStringStyle.SHORT_PREFIX_STYLE ).setExcludeFieldNames( new String[] { "cookies" } )
+                .toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,54 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * An {@link SpSession} held by a {@link SessionStore} and the version it has been stored with.
+ */
+public class StoredSession
+{
+    private final SpSession session;
+    private final long      version;
+    
+    /**
+     * Create a new {@link StoredSession}.
+     * 
+     * @param session
+     *            the session
+     * @param version
+     *            the version, greater than {@code 0}
+     */
+    public StoredSession( SpSession session, long version )
+    {
+        this.session = session;
+        this.version = version;
+    }
+    
+    /**
+     * Get the session.
+     * 
+     * @return the session
+     */
+    public SpSession getSession()
+    {
+        return session;
+    }
+    
+    /**
+     * Get the version.
+     * 
+     * @return the version
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder( this, ToStringStyle.SHORT_PREFIX_STYLE ).append( "session", session ).append( "version", version )
+                .toString();
+    }
+}
\ No newline at end of file
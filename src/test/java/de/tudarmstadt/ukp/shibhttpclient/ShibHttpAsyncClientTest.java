@@ -0,0 +1,153 @@
+package de.tudarmstadt.ukp.shibhttpclient;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.BasicAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.mock.MockIdp;
+import de.tudarmstadt.ukp.shibhttpclient.mock.MockSp;
+
+/**
+ * End-to-end ECP logins of the {@link ShibHttpAsyncClient} against an in-process SP and IdP.
+ */
+public class ShibHttpAsyncClientTest
+{
+    private static final int    REQUESTS = 50;
+    
+    private MockSp              sp;
+    private MockIdp             idp;
+    private ShibHttpAsyncClient client;
+    private volatile String     credentialsThread;
+    
+    @BeforeClass
+    public static void bootstrap() throws Exception
+    {
+        DefaultBootstrap.bootstrap();
+    }
+    
+    @Before
+    public void setUp() throws IOException
+    {
+        sp = new MockSp();
+        idp = new MockIdp();
+        idp.addUser( "alice", "secret" );
+        idp.setLatency( 50, TimeUnit.MILLISECONDS );
+        
+        client = new ShibHttpAsyncClient( idp.getEcpUrl(), new BasicAuthenticator( "alice", "secret".toCharArray() )
+        {
+            @Override
+            public void supplyCredentials( HttpRequest request )
+            {
+                credentialsThread = Thread.currentThread().getName();
+                super.supplyCredentials( request );
+            }
+        } );
+        client.start();
+    }
+    
+    @After
+    public void tearDown() throws IOException
+    {
+        client.close();
+        sp.close();
+        idp.close();
+    }
+    
+    @Test
+    public void firstRequestLogsIn() throws Exception
+    {
+        assertThat( execute( new HttpGet( sp.getBaseUrl() + "/resource" ) ), is( "Hello, alice" ) );
+        
+        assertThat( sp.getLogins(), is( 1 ) );
+        assertThat( idp.getAuthentications(), is( 1 ) );
+        assertThat( client.getSessionTracker().getSessions().size(), is( 1 ) );
+        // Credentials are created off the I/O dispatcher threads
+        assertFalse( credentialsThread, credentialsThread.startsWith( "I/O dispatcher" ) );
+    }
+    
+    @Test
+    public void concurrentRequestsShareOneLogin() throws Exception
+    {
+        List<Future<HttpResponse>> responses = new ArrayList<Future<HttpResponse>>();
+        for ( int i = 0; i < REQUESTS; i++ )
+        {
+            responses.add( client.execute( new HttpGet( sp.getBaseUrl() + "/resource/" + i ), null ) );
+        }
+        for ( Future<HttpResponse> response : responses )
+        {
+            assertThat( body( response ), is( "Hello, alice" ) );
+        }
+        
+        assertThat( sp.getLogins(), is( 1 ) );
+        assertThat( idp.getAuthentications(), is( 1 ) );
+    }
+    
+    @Test
+    public void expiredSessionLogsInAgain() throws Exception
+    {
+        execute( new HttpGet( sp.getBaseUrl() + "/first" ) );
+        sp.expireSessions();
+        assertThat( execute( new HttpGet( sp.getBaseUrl() + "/second" ) ), is( "Hello, alice" ) );
+        assertThat( execute( new HttpGet( sp.getBaseUrl() + "/third" ) ), is( "Hello, alice" ) );
+        
+        assertThat( sp.getLogins(), is( 2 ) );
+        assertThat( sp.getChallenges(), is( 2 ) );
+    }
+    
+    @Test
+    public void headRequestAsksForAuthenticationWithGet() throws Exception
+    {
+        HttpResponse response = client.execute( new HttpHead( sp.getBaseUrl() + "/resource" ), null ).get( 10, TimeUnit.SECONDS );
+        
+        assertThat( response.getStatusLine().getStatusCode(), is( 200 ) );
+        assertThat( sp.getLogins(), is( 1 ) );
+        // The HEAD request and the GET asking for the authentication request again
+        assertThat( sp.getChallenges(), is( 2 ) );
+    }
+    
+    @Test
+    public void postIsPrecededByKnock() throws Exception
+    {
+        HttpPost post = new HttpPost( sp.getBaseUrl() + "/resource" );
+        post.setEntity( new StringEntity( "data" ) );
+        assertThat( execute( post ), is( "Hello, alice" ) );
+        
+        assertThat( sp.getKnocks(), is( 1 ) );
+        assertThat( sp.getLogins(), is( 1 ) );
+        assertThat( client.getKnocksSent(), is( 1L ) );
+    }
+    
+    private String execute( HttpUriRequest request ) throws Exception
+    {
+        return body( client.execute( request, null ) );
+    }
+    
+    private static String body( Future<HttpResponse> future ) throws Exception
+    {
+        HttpResponse response = future.get( 10, TimeUnit.SECONDS );
+        String body = EntityUtils.toString( response.getEntity() );
+        assertThat( response.getStatusLine().getStatusCode(), is( 200 ) );
+        return body;
+    }
+}
\ No newline at end of file
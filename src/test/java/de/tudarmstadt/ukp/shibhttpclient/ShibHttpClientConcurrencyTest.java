@@ -0,0 +1,595 @@
+package de.tudarmstadt.ukp.shibhttpclient;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.X509CertificateStructure;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.X509CertificateObject;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.CallbackSVAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.ContextSVAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.ThreadLocalSVAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenSigner;
+import de.tudarmstadt.ukp.shibhttpclient.jmx.RouteStats;
+import de.tudarmstadt.ukp.shibhttpclient.jmx.ShibHttpClientMXBean;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.HistogramMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Event;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Phase;
+import de.tudarmstadt.ukp.shibhttpclient.mock.MockIdp;
+import de.tudarmstadt.ukp.shibhttpclient.mock.MockSp;
+import de.tudarmstadt.ukp.shibhttpclient.session.FileSessionStore;
+
+/**
+ * End-to-end ECP logins of many threads sharing one {@link ShibHttpClient}, against an in-process SP and IdP.
+ */
+public class ShibHttpClientConcurrencyTest
+{
+    private static final int THREADS  = 16;
+    private static final int REQUESTS = 10;
+    
+    private MockSp           sp;
+    private MockIdp          idp;
+    private ShibHttpClient   client;
+    
+    @BeforeClass
+    public static void bootstrap() throws Exception
+    {
+        DefaultBootstrap.bootstrap();
+    }
+    
+    @Before
+    public void setUp() throws IOException
+    {
+        sp = new MockSp();
+        idp = new MockIdp();
+        idp.addUser( "alice", "secret" );
+        sp.setLatency( 10, TimeUnit.MILLISECONDS );
+        idp.setLatency( 50, TimeUnit.MILLISECONDS );
+    }
+    
+    @After
+    public void tearDown() throws IOException
+    {
+        if ( client != null )
+        {
+            client.close();
+        }
+        sp.close();
+        idp.close();
+    }
+    
+    @Test
+    public void concurrentRequestsShareOneLogin() throws Exception
+    {
+        HistogramMetrics metrics = new HistogramMetrics();
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).setMetrics( metrics ).build();
+        
+        List<Long> latencies = run( new RequestFactory()
+        {
+            @Override
+            public HttpUriRequest create( int thread, int request )
+            {
+                return new HttpGet( sp.getBaseUrl() + "/resource/" + thread + "/" + request );
+            }
+        } );
+        
+        assertThat( sp.getLogins(), is( 1 ) );
+        assertThat( idp.getAuthentications(), is( 1 ) );
+        assertP99Below( latencies, 2000 );
+        
+        assertThat( metrics.getCount( Event.LOGIN_SUCCEEDED ), is( 1L ) );
+        assertThat( metrics.getCount( Event.LOGIN_FAILED ), is( 0L ) );
+        assertThat( metrics.getHistogram( Phase.IDP_LOGIN, idp.getEcpUrl() ).getCount(), is( 1L ) );
+        assertTrue( metrics.getHistogram( Phase.IDP_LOGIN, idp.getEcpUrl() ).getMax( TimeUnit.MILLISECONDS ) >= 50 );
+        assertThat( metrics.getHistograms( Phase.LOGIN ).size(), is( 1 ) );
+        assertThat( metrics.getHistograms( Phase.REPLAY ).values().iterator().next().getCount(), is( sp.getChallenges() - 1L ) );
+    }
+    
+    @Test
+    public void unredirectableRequestsSkipKnockWithLiveSession() throws Exception
+    {
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).build();
+        execute( new HttpGet( sp.getBaseUrl() + "/login" ) );
+        
+        List<Long> latencies = run( new RequestFactory()
+        {
+            @Override
+            public HttpUriRequest create( int thread, int request ) throws IOException
+            {
+                HttpPost post = new HttpPost( sp.getBaseUrl() + "/resource/" + thread + "/" + request );
+                post.setEntity( new StringEntity( "data" ) );
+                return post;
+            }
+        } );
+        
+        assertThat( sp.getLogins(), is( 1 ) );
+        assertThat( sp.getKnocks(), is( 0 ) );
+        assertThat( client.getKnocksSent(), is( 0L ) );
+        assertThat( client.getKnocksSkipped(), is( (long) THREADS * REQUESTS ) );
+        assertP99Below( latencies, 2000 );
+    }
+    
+    @Test
+    public void managementBeanReportsPoolAndLogins() throws Exception
+    {
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).setMBeanName( "test" ).build();
+        execute( new HttpGet( sp.getBaseUrl() + "/resource" ) );
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = client.getManagement().getObjectName();
+        ShibHttpClientMXBean bean = JMX.newMXBeanProxy( server, name, ShibHttpClientMXBean.class );
+        assertThat( bean.getLoginsSucceeded(), is( 1L ) );
+        assertThat( bean.getLoginsFailed(), is( 0L ) );
+        assertTrue( bean.getLastLoginMillis() >= 50 );
+        assertThat( bean.getActiveSessions(), is( 1 ) );
+        assertThat( bean.getCookieCount(), is( 1 ) );
+        assertThat( bean.getLeasedConnections(), is( 0 ) );
+        
+        Map<String, RouteStats> routes = bean.getRouteStats();
+        assertThat( routes.size(), is( 2 ) );
+        for ( RouteStats route : routes.values() )
+        {
+            assertThat( route.getLeased(), is( 0 ) );
+            assertTrue( route.getAvailable() > 0 );
+        }
+        
+        bean.resetCounters();
+        bean.closeIdleConnections( 0 );
+        assertThat( bean.getLoginsSucceeded(), is( 0L ) );
+        assertThat( bean.getAvailableConnections(), is( 0 ) );
+        
+        client.close();
+        client = null;
+        assertThat( server.isRegistered( name ), is( false ) );
+    }
+    
+    @Test
+    public void expiredSessionLogsInAgain() throws Exception
+    {
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).build();
+        sp.setSessionLifetime( 200, TimeUnit.MILLISECONDS );
+        
+        execute( new HttpGet( sp.getBaseUrl() + "/first" ) );
+        Thread.sleep( 300 );
+        execute( new HttpGet( sp.getBaseUrl() + "/second" ) );
+        
+        assertThat( sp.getLogins(), is( 2 ) );
+        assertThat( sp.getChallenges(), is( 2 ) );
+    }
+    
+    @Test
+    public void unredirectableRequestsAreReplayedAfterExpiredSession() throws Exception
+    {
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).build();
+        execute( new HttpGet( sp.getBaseUrl() + "/login" ) );
+        sp.expireSessions();
+        
+        // The thread logging in and those joining its login all repeat their POST once the session is back
+        List<Long> latencies = run( new RequestFactory()
+        {
+            @Override
+            public HttpUriRequest create( int thread, int request ) throws IOException
+            {
+                HttpPost post = new HttpPost( sp.getBaseUrl() + "/resource/" + thread + "/" + request );
+                post.setEntity( new StringEntity( "data" ) );
+                return post;
+            }
+        } );
+        
+        assertThat( sp.getLogins(), is( 2 ) );
+        assertThat( idp.getAuthentications(), is( 2 ) );
+        assertP99Below( latencies, 2000 );
+    }
+    
+    @Test
+    public void failedLoginIsRetriedByNextRequest() throws Exception
+    {
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).build();
+        idp.injectFailures( 1, 500 );
+        
+        try
+        {
+            execute( new HttpGet( sp.getBaseUrl() + "/first" ) );
+            fail( "login should have failed" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+        execute( new HttpGet( sp.getBaseUrl() + "/second" ) );
+        
+        assertThat( idp.getRequests(), is( 2 ) );
+        assertThat( sp.getLogins(), is( 1 ) );
+    }
+    
+    @Test
+    public void wrongPasswordIsRejected() throws Exception
+    {
+        HistogramMetrics metrics = new HistogramMetrics();
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "wrong" ).setMetrics( metrics ).build();
+        
+        try
+        {
+            execute( new HttpGet( sp.getBaseUrl() + "/resource" ) );
+            fail( "login should have failed" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+        
+        assertThat( idp.getRejections(), is( 1 ) );
+        assertThat( sp.getLogins(), is( 0 ) );
+        assertThat( metrics.getCount( Event.LOGIN_FAILED ), is( 1L ) );
+    }
+    
+    @Test
+    public void senderVouchesLogin() throws Exception
+    {
+        CallbackSVAuthenticator authenticator = new CallbackSVAuthenticator( new CallbackSVAuthenticator.UserIdCallback()
+        {
+            @Override
+            public String currentUser()
+            {
+                return "bob";
+            }
+        }, trustedSigner() );
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setAuthenticator( authenticator ).build();
+        
+        assertThat( execute( new HttpGet( sp.getBaseUrl() + "/resource" ) ), is( "Hello, bob" ) );
+        assertThat( idp.getAuthentications(), is( 1 ) );
+    }
+    
+    @Test
+    public void principalsKeepTheirSessionsInSeparateJars() throws Exception
+    {
+        ThreadLocalSVAuthenticator authenticator = new ThreadLocalSVAuthenticator( trustedSigner() );
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setAuthenticator( authenticator )
+                .setCookieJarPerPrincipal( 10, 1, TimeUnit.MINUTES ).build();
+        
+        try
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                for ( String user : new String[] { "bob", "carol" } )
+                {
+                    authenticator.assignCurrentUser( user );
+                    assertThat( execute( new HttpGet( sp.getBaseUrl() + "/resource/" + i ) ), is( "Hello, " + user ) );
+                }
+            }
+            
+            // The sessions of both principals are known, neither needs to knock
+            for ( String user : new String[] { "bob", "carol" } )
+            {
+                authenticator.assignCurrentUser( user );
+                HttpPost post = new HttpPost( sp.getBaseUrl() + "/resource" );
+                post.setEntity( new StringEntity( "data" ) );
+                assertThat( execute( post ), is( "Hello, " + user ) );
+            }
+        }
+        finally
+        {
+            authenticator.detachCurrentUser();
+        }
+        
+        assertThat( sp.getLogins(), is( 2 ) );
+        assertThat( client.getCookieJars().size(), is( 2 ) );
+        assertThat( client.getSessionTracker().getSessions().size(), is( 2 ) );
+        assertThat( client.getKnocksSkipped(), is( 2L ) );
+    }
+    
+    @Test( expected = IllegalStateException.class )
+    public void sessionRefreshInJarsRequiresContextAuthenticator() throws Exception
+    {
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setAuthenticator( new ThreadLocalSVAuthenticator( trustedSigner() ) )
+                .setCookieJarPerPrincipal( 10, 1, TimeUnit.MINUTES ).build();
+        client.enableSessionRefresh( 1, 1, TimeUnit.MINUTES );
+    }
+    
+    @Test
+    public void principalsOfRequestContextsShareThreads() throws Exception
+    {
+        ContextSVAuthenticator authenticator = new ContextSVAuthenticator( trustedSigner() );
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setAuthenticator( authenticator )
+                .setCookieJarPerPrincipal( 10, 1, TimeUnit.MINUTES ).build();
+        
+        // Fewer threads than requests, so every thread sends requests of both users
+        final String[] users = { "bob", "carol" };
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            List<Future<String>> responses = new ArrayList<Future<String>>();
+            for ( int i = 0; i < THREADS; i++ )
+            {
+                final String user = users[i % users.length];
+                final HttpGet request = new HttpGet( sp.getBaseUrl() + "/resource/" + i );
+                responses.add( executor.submit( new Callable<String>()
+                {
+                    @Override
+                    public String call() throws Exception
+                    {
+                        HttpContext context = new BasicHttpContext();
+                        ContextSVAuthenticator.assignUser( context, user );
+                        HttpResponse response = client.execute( request, context );
+                        assertThat( response.getStatusLine().getStatusCode(), is( 200 ) );
+                        return EntityUtils.toString( response.getEntity() );
+                    }
+                } ) );
+            }
+            for ( int i = 0; i < THREADS; i++ )
+            {
+                assertThat( responses.get( i ).get( 60, TimeUnit.SECONDS ), is( "Hello, " + users[i % users.length] ) );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        assertThat( sp.getLogins(), is( 2 ) );
+        assertThat( client.getCookieJars().size(), is( 2 ) );
+    }
+    
+    @Test
+    public void principalsKnockSeparately() throws Exception
+    {
+        ContextSVAuthenticator authenticator = new ContextSVAuthenticator( trustedSigner() );
+        client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setAuthenticator( authenticator )
+                .setCookieJarPerPrincipal( 10, 1, TimeUnit.MINUTES ).build();
+        HttpHost target = URIUtils.extractHost( new URI( sp.getBaseUrl() ) );
+        for ( String user : new String[] { "bob", "carol" } )
+        {
+            HttpContext context = new BasicHttpContext();
+            ContextSVAuthenticator.assignUser( context, user );
+            EntityUtils.consume( client.execute( new HttpGet( sp.getBaseUrl() + "/login" ), context ).getEntity() );
+            client.getSessionTracker().sessionInvalidated( target, user );
+        }
+        sp.setLatency( 100, TimeUnit.MILLISECONDS );
+        
+        // Without known sessions both knock at the same URL at the same time, each with the cookies of its own jar
+        final CountDownLatch start = new CountDownLatch( 1 );
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            List<Future<String>> responses = new ArrayList<Future<String>>();
+            for ( final String user : new String[] { "bob", "carol" } )
+            {
+                responses.add( executor.submit( new Callable<String>()
+                {
+                    @Override
+                    public String call() throws Exception
+                    {
+                        HttpPost post = new HttpPost( sp.getBaseUrl() + "/resource" );
+                        post.setEntity( new StringEntity( "data" ) );
+                        HttpContext context = new BasicHttpContext();
+                        ContextSVAuthenticator.assignUser( context, user );
+                        start.await();
+                        HttpResponse response = client.execute( post, context );
+                        return EntityUtils.toString( response.getEntity() );
+                    }
+                } ) );
+            }
+            start.countDown();
+            assertThat( responses.get( 0 ).get( 60, TimeUnit.SECONDS ), is( "Hello, bob" ) );
+            assertThat( responses.get( 1 ).get( 60, TimeUnit.SECONDS ), is( "Hello, carol" ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        assertThat( sp.getKnocks(), is( 2 ) );
+        assertThat( client.getKnocksSent(), is( 2L ) );
+    }
+    
+    @Test
+    public void restartedClientResumesPersistedSessions() throws Exception
+    {
+        File snapshot = File.createTempFile( "sessions", ".log" );
+        snapshot.delete();
+        try
+        {
+            client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).setSessionSnapshotFile( snapshot )
+                    .build();
+            execute( new HttpGet( sp.getBaseUrl() + "/before" ) );
+            client.close();
+            
+            client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" ).setSessionSnapshotFile( snapshot )
+                    .build();
+            assertThat( client.getSessionTracker().getSessions().size(), is( 1 ) );
+            execute( new HttpPost( sp.getBaseUrl() + "/after" ) );
+            
+            assertThat( sp.getLogins(), is( 1 ) );
+            assertThat( idp.getRequests(), is( 1 ) );
+            assertThat( client.getKnocksSkipped(), is( 1L ) );
+        }
+        finally
+        {
+            client.close();
+            client = null;
+            snapshot.delete();
+        }
+    }
+    
+    @Test
+    public void nodesShareSessionsThroughSessionStore() throws Exception
+    {
+        File directory = File.createTempFile( "sessions", "" );
+        directory.delete();
+        ShibHttpClient otherNode = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" )
+                .setSessionStore( new FileSessionStore( directory ) ).build();
+        try
+        {
+            client = ShibHttpClientBuilder.create( idp.getEcpUrl() ).setCredentials( "alice", "secret" )
+                    .setSessionStore( new FileSessionStore( directory ) ).build();
+            execute( new HttpGet( sp.getBaseUrl() + "/first" ) );
+            assertThat( execute( otherNode, new HttpGet( sp.getBaseUrl() + "/second" ) ), is( "Hello, alice" ) );
+            assertThat( sp.getLogins(), is( 1 ) );
+            
+            // The node whose session was rejected logs in again, the other one adopts the new session
+            sp.expireSessions();
+            execute( new HttpGet( sp.getBaseUrl() + "/third" ) );
+            execute( otherNode, new HttpGet( sp.getBaseUrl() + "/fourth" ) );
+            
+            assertThat( sp.getLogins(), is( 2 ) );
+            assertThat( idp.getRequests(), is( 2 ) );
+            assertThat( otherNode.getSharedSessions().getSessionsAdopted(), is( 2L ) );
+            assertThat( client.getSharedSessions().getSessionsPublished(), is( 2L ) );
+        }
+        finally
+        {
+            otherNode.close();
+            for ( File file : directory.listFiles() )
+            {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    private String execute( HttpUriRequest request ) throws IOException
+    {
+        return execute( client, request );
+    }
+    
+    private static String execute( ShibHttpClient client, HttpUriRequest request ) throws IOException
+    {
+        HttpResponse response = client.execute( request );
+        String body = EntityUtils.toString( response.getEntity() );
+        assertThat( response.getStatusLine().getStatusCode(), is( 200 ) );
+        return body;
+    }
+    
+    /**
+     * Send {@link #REQUESTS} requests from each of {@link #THREADS} threads, all starting at once, and return their latencies.
+     */
+    private List<Long> run( final RequestFactory requests ) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        try
+        {
+            final CountDownLatch start = new CountDownLatch( 1 );
+            List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+            for ( int t = 0; t < THREADS; t++ )
+            {
+                final int thread = t;
+                futures.add( executor.submit( new Callable<List<Long>>()
+                {
+                    @Override
+                    public List<Long> call() throws Exception
+                    {
+                        List<Long> latencies = new ArrayList<Long>( REQUESTS );
+                        start.await();
+                        for ( int r = 0; r < REQUESTS; r++ )
+                        {
+                            long begin = System.nanoTime();
+                            assertThat( execute( requests.create( thread, r ) ), is( "Hello, alice" ) );
+                            latencies.add( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - begin ) );
+                        }
+                        return latencies;
+                    }
+                } ) );
+            }
+            start.countDown();
+            
+            List<Long> latencies = new ArrayList<Long>( THREADS * REQUESTS );
+            for ( Future<List<Long>> future : futures )
+            {
+                latencies.addAll( future.get( 60, TimeUnit.SECONDS ) );
+            }
+            return latencies;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static void assertP99Below( List<Long> latencies, long maxMillis )
+    {
+        Collections.sort( latencies );
+        long p99 = latencies.get( (int) Math.ceil( latencies.size() * 0.99 ) - 1 );
+        assertTrue( "p99 latency of " + p99 + " ms exceeds " + maxMillis + " ms", p99 < maxMillis );
+    }
+    
+    /**
+     * Create a signer whose certificate the IdP trusts.
+     */
+    private TokenSigner trustedSigner() throws Exception
+    {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+        generator.initialize( 1024 );
+        KeyPair keyPair = generator.generateKeyPair();
+        X509Certificate certificate = signCertificate( keyPair );
+        idp.trustSigners( Collections.singleton( certificate ) );
+        return new TokenSigner( (RSAPrivateKey) keyPair.getPrivate(), certificate );
+    }
+    
+    private static X509Certificate signCertificate( KeyPair keyPair ) throws Exception
+    {
+        Date now = new Date();
+        SubjectPublicKeyInfo publicKeyInfo = new SubjectPublicKeyInfo( ASN1Sequence.getInstance( keyPair.getPublic().getEncoded() ) );
+        
+        X500Name subject = new X500Name( "cn=test" );
+        X509v3CertificateBuilder certificateBuilder = new X509v3CertificateBuilder( subject, BigInteger.ONE, now, new Date(
+                now.getTime() + 60000 ), subject, publicKeyInfo );
+        
+        X509CertificateHolder certificateHolder = certificateBuilder.build( new JcaContentSignerBuilder( "SHA256WithRSA" ).build( keyPair
+                .getPrivate() ) );
+        
+        return new X509CertificateObject( X509CertificateStructure.getInstance( certificateHolder.toASN1Structure() ) );
+    }
+    
+    private interface RequestFactory
+    {
+        HttpUriRequest create( int thread, int request ) throws IOException;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,97 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TestSigners;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenVerificationCache;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TrustedSignerIndex;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.HistogramMetrics;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Event;
+
+public class SenderVouchesAuthenticatorTest
+{
+    private static final String        PREFIX  = "Sender-Voucher ";
+    
+    private final HistogramMetrics     metrics = new HistogramMetrics();
+    
+    private SenderVouchesAuthenticator authenticator;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        authenticator = new SenderVouchesAuthenticator( "alice", TestSigners.signer( "cn=signer", 1 ) );
+        authenticator.setMetrics( metrics );
+    }
+    
+    @Test
+    public void everyLoginIsSentWithNewTokenByDefault() throws Exception
+    {
+        TokenVerificationCache oneTimeUse = new TokenVerificationCache( new TrustedSignerIndex( Collections.singleton( TestSigners
+                .certificate( TestSigners.keyPair(), "cn=signer", 1 ) ) ), true );
+        
+        for ( int i = 0; i < 3; i++ )
+        {
+            String header = authenticator.senderVouchesHeader( "alice" );
+            assertThat( oneTimeUse.verify( Base64.decodeBase64( header.substring( PREFIX.length() ) ) ), is( notNullValue() ) );
+        }
+        assertThat( metrics.getCount( Event.TOKEN_CACHE_HIT ), is( 0L ) );
+        assertThat( metrics.getCount( Event.TOKEN_SIGNED_INLINE ), is( 3L ) );
+    }
+    
+    @Test
+    public void cachedHeaderIsReused() throws Exception
+    {
+        authenticator.setCacheSize( 10 );
+        
+        String header = authenticator.senderVouchesHeader( "alice" );
+        assertThat( header.startsWith( PREFIX ), is( true ) );
+        assertThat( authenticator.senderVouchesHeader( "alice" ), is( header ) );
+        assertThat( authenticator.senderVouchesHeader( "bob" ), is( not( header ) ) );
+        
+        assertThat( metrics.getCount( Event.TOKEN_CACHE_HIT ), is( 1L ) );
+        assertThat( metrics.getCount( Event.TOKEN_SIGNED_INLINE ), is( 2L ) );
+    }
+    
+    @Test
+    public void tokenIsSignedAgainWithinRefreshMargin() throws Exception
+    {
+        authenticator.setCacheSize( 10 );
+        authenticator.setTokenLifetime( 300, TimeUnit.MILLISECONDS );
+        authenticator.setRefreshMargin( 200, TimeUnit.MILLISECONDS );
+        
+        String header = authenticator.senderVouchesHeader( "alice" );
+        assertThat( authenticator.senderVouchesHeader( "alice" ), is( header ) );
+        Thread.sleep( 150 );
+        assertThat( authenticator.senderVouchesHeader( "alice" ), is( not( header ) ) );
+        
+        // Tokens are not cached at all if the margin is not shorter than their lifetime
+        authenticator.setRefreshMargin( 300, TimeUnit.MILLISECONDS );
+        header = authenticator.senderVouchesHeader( "alice" );
+        assertThat( authenticator.senderVouchesHeader( "alice" ), is( not( header ) ) );
+    }
+    
+    @Test
+    public void leastRecentlyUsedUserIsEvicted() throws Exception
+    {
+        authenticator.setCacheSize( 2 );
+        
+        String alice = authenticator.senderVouchesHeader( "alice" );
+        String bob = authenticator.senderVouchesHeader( "bob" );
+        assertThat( authenticator.senderVouchesHeader( "alice" ), is( alice ) );
+        authenticator.senderVouchesHeader( "carol" );
+        
+        // Bob has been used least recently
+        assertThat( authenticator.senderVouchesHeader( "alice" ), is( alice ) );
+        assertThat( authenticator.senderVouchesHeader( "bob" ), is( not( bob ) ) );
+    }
+}
\ No newline at end of file
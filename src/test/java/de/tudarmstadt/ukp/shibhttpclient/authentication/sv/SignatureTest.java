@@ -13,8 +13,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Set;
 
-import javax.xml.bind.DatatypeConverter;
-
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
@@ -25,6 +23,8 @@ import org.bouncycastle.jce.provider.X509CertificateObject;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.junit.Test;
 
+import de.tudarmstadt.ukp.shibhttpclient.Utils;
+
 public class SignatureTest
 {
     private static Date NOW = new Date();
@@ -53,7 +53,7 @@ public class SignatureTest
         SignedToken signedToken = signer.sign( tbsToken );
         byte[] encodedToken = signedToken.getDERObject().getDEREncoded();
         
-        System.out.println( DatatypeConverter.printBase64Binary( encodedToken ) );
+        System.out.println( Utils.base64( encodedToken ) );
         
         SignedToken parsedToken = SignedToken.parse( ASN1Sequence.getInstance( encodedToken ) );
         
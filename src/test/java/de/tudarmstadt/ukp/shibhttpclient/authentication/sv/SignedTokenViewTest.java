@@ -0,0 +1,186 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERGeneralizedTime;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuerSerial;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.junit.Test;
+
+public class SignedTokenViewTest
+{
+    private static final IssuerSerial        SIGNER    = new IssuerSerial( new GeneralNames( new GeneralName( new X500Name( "cn=test" ) ) ),
+                                                               new DERInteger( BigInteger.TEN ) );
+    
+    private static final AlgorithmIdentifier ALGORITHM = new AlgorithmIdentifier( X509ObjectIdentifiers.id_SHA1 );
+    
+    @Test
+    public void fieldsMatchParsedToken() throws Exception
+    {
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 500; i++ )
+        {
+            Set<Role> roles = new HashSet<Role>();
+            int roleCount = random.nextInt( 3 );
+            for ( int r = 0; r < roleCount; r++ )
+            {
+                roles.add( new Role( "role-" + r, random.nextBoolean() ? "app" : null, random.nextBoolean() ? "\u00e4\u20ac" : null ) );
+            }
+            // Times before and after the epoch, with and without milliseconds
+            long validFrom = (long) ((random.nextDouble() - 0.5) * 2e13);
+            validFrom -= random.nextBoolean() ? validFrom % 1000 : 0;
+            TokenData data = new TokenData( "user-\u00fc-" + i, roles, new Date( validFrom ), new Date( validFrom
+                    + random.nextInt( 100000000 ) ) );
+            byte[] signature = new byte[1 + random.nextInt( 300 )];
+            random.nextBytes( signature );
+            byte[] encoded = TokenEncoder.encode( new SignedToken( data, SIGNER, ALGORITHM, signature ) );
+            
+            SignedToken parsed = SignedToken.parse( ASN1Sequence.getInstance( encoded ) );
+            SignedTokenView view = SignedTokenView.wrap( encoded );
+            
+            assertThat( view.getId(), is( parsed.getData().getId() ) );
+            assertThat( sorted( view.getRoles() ), is( sorted( parsed.getData().getRoles() ) ) );
+            assertThat( view.getValidFrom(), is( parsed.getData().getValidFrom().getTime() ) );
+            assertThat( view.getValidUntil(), is( parsed.getData().getValidUntil().getTime() ) );
+            assertThat( view.getSigner(), is( parsed.getSigner() ) );
+            assertArrayEquals( parsed.getSignature(), view.getSignature() );
+            assertArrayEquals( encoded, view.getEncoded() );
+            assertArrayEquals( encoded, TokenEncoder.encode( view.toSignedToken() ) );
+        }
+    }
+    
+    @Test
+    public void fieldsAreDecodedOnFirstAccess() throws Exception
+    {
+        Date validFrom = new Date( 1411560788000L );
+        TokenData data = new TokenData( "alice", validFrom, new Date( validFrom.getTime() + 60000 ) );
+        byte[] encoded = TokenEncoder.encode( new SignedToken( data, SIGNER, ALGORITHM, new byte[] { 1, 2, 3 } ) );
+        // Replace the first digit of the year of validFrom
+        encoded[indexOf( encoded, new DERGeneralizedTime( validFrom ).getDEREncoded() ) + 2] = 'x';
+        
+        SignedTokenView view = SignedTokenView.wrap( encoded );
+        assertThat( view.getId(), is( "alice" ) );
+        assertThat( view.getValidUntil(), is( validFrom.getTime() + 60000 ) );
+        assertThat( view.getSigner(), is( SIGNER ) );
+        try
+        {
+            view.getValidFrom();
+            fail( "malformed validFrom decoded" );
+        }
+        catch ( ParseException e )
+        {
+            // expected
+        }
+        try
+        {
+            SignedToken.parse( ASN1Sequence.getInstance( encoded ) );
+            fail( "malformed validFrom parsed" );
+        }
+        catch ( ParseException e )
+        {
+            // expected, the view fails just where the parser does
+        }
+    }
+    
+    @Test
+    public void verifiesSlicesOfBuffers() throws Exception
+    {
+        TokenSigner signer = TestSigners.signer( "cn=signer", 1 );
+        TrustedSignerIndex index = new TrustedSignerIndex( Collections.singleton( TestSigners.certificate( TestSigners.keyPair(),
+                "cn=signer", 1 ) ) );
+        byte[] encoded = TokenEncoder.encode( signer.createSignedToken( "alice", new Date(), new Date(
+                System.currentTimeMillis() + 60000 ) ) );
+        
+        // Behind other data in a heap buffer, and in a direct buffer without an array
+        byte[] padded = new byte[encoded.length + 20];
+        System.arraycopy( encoded, 0, padded, 10, encoded.length );
+        ByteBuffer heap = ByteBuffer.wrap( padded, 10, encoded.length );
+        ByteBuffer direct = ByteBuffer.allocateDirect( encoded.length );
+        direct.put( encoded ).flip();
+        for ( ByteBuffer buffer : new ByteBuffer[] { heap, direct } )
+        {
+            SignedTokenView view = SignedTokenView.wrap( buffer );
+            
+            assertThat( view.getId(), is( "alice" ) );
+            assertArrayEquals( encoded, view.getEncoded() );
+            assertTrue( TokenSigner.verify( view, index ) );
+            // The buffer is left as it was
+            assertThat( buffer.remaining(), is( encoded.length ) );
+        }
+        
+        // Tampered token data
+        padded[10 + indexOf( encoded, "alice".getBytes( "US-ASCII" ) )] = 'A';
+        assertThat( TokenSigner.verify( SignedTokenView.wrap( heap ), index ), is( false ) );
+    }
+    
+    @Test
+    public void rejectsMalformedStructure() throws Exception
+    {
+        TokenData data = new TokenData( "alice", new Date(), new Date() );
+        byte[] encoded = TokenEncoder.encode( new SignedToken( data, SIGNER, ALGORITHM, new byte[] { 1, 2, 3 } ) );
+        byte[] trailing = new byte[encoded.length + 1];
+        System.arraycopy( encoded, 0, trailing, 0, encoded.length );
+        
+        for ( byte[] malformed : new byte[][] { trailing, TokenEncoder.encode( data ), new byte[] { 0x30 } } )
+        {
+            try
+            {
+                SignedTokenView.wrap( malformed );
+                fail( "malformed token wrapped" );
+            }
+            catch ( ParseException e )
+            {
+                // expected
+            }
+        }
+    }
+    
+    private static List<String> sorted( Set<Role> roles )
+    {
+        List<String> names = new ArrayList<String>();
+        for ( Role role : roles )
+        {
+            names.add( role.toString() );
+        }
+        Collections.sort( names );
+        return names;
+    }
+    
+    private static int indexOf( byte[] array, byte[] part )
+    {
+        for ( int i = 0; i + part.length <= array.length; i++ )
+        {
+            int j = 0;
+            while ( j < part.length && array[i + j] == part[j] )
+            {
+                j++;
+            }
+            if ( j == part.length )
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException( "not found" );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,64 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Date;
+
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.X509CertificateStructure;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.X509CertificateObject;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Keys and self-signed certificates of token signers, the key pair is generated once and shared by all tests.
+ */
+public final class TestSigners
+{
+    private static KeyPair keyPair;
+    
+    private TestSigners()
+    {
+        // No instances
+    }
+    
+    public static synchronized KeyPair keyPair() throws Exception
+    {
+        if ( keyPair == null )
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+            generator.initialize( 1024 );
+            keyPair = generator.generateKeyPair();
+        }
+        return keyPair;
+    }
+    
+    /**
+     * Create a signer with a certificate of the given issuer and serial number.
+     */
+    public static TokenSigner signer( String issuer, long serial ) throws Exception
+    {
+        return new TokenSigner( (RSAPrivateKey) keyPair().getPrivate(), certificate( keyPair(), issuer, serial ) );
+    }
+    
+    public static X509Certificate certificate( KeyPair keyPair, String issuer, long serial ) throws Exception
+    {
+        SubjectPublicKeyInfo publicKeyInfo = new SubjectPublicKeyInfo( ASN1Sequence.getInstance( keyPair.getPublic().getEncoded() ) );
+        
+        Date now = new Date();
+        X500Name name = new X500Name( issuer );
+        X509v3CertificateBuilder certificateBuilder = new X509v3CertificateBuilder( name, BigInteger.valueOf( serial ), now, new Date(
+                now.getTime() + 60000 ), name, publicKeyInfo );
+        
+        X509CertificateHolder certificateHolder = certificateBuilder.build( new JcaContentSignerBuilder( "SHA256WithRSA" ).build( keyPair
+                .getPrivate() ) );
+        
+        return new X509CertificateObject( X509CertificateStructure.getInstance( certificateHolder.toASN1Structure() ) );
+    }
+}
\ No newline at end of file
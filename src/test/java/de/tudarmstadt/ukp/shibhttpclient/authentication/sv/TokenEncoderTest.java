@@ -0,0 +1,89 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuerSerial;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.shibhttpclient.Utils;
+
+public class TokenEncoderTest
+{
+    private static final IssuerSerial        SIGNER    = new IssuerSerial( new GeneralNames( new GeneralName( new X500Name( "cn=test" ) ) ),
+                                                               new DERInteger( BigInteger.TEN ) );
+    
+    private static final AlgorithmIdentifier ALGORITHM = new AlgorithmIdentifier( X509ObjectIdentifiers.id_SHA1 );
+    
+    @Test
+    public void encodingMatchesBouncyCastle()
+    {
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 500; i++ )
+        {
+            Set<Role> roles = new HashSet<Role>();
+            int roleCount = random.nextInt( 4 );
+            for ( int r = 0; r < roleCount; r++ )
+            {
+                roles.add( new Role( randomString( random ), random.nextBoolean() ? randomString( random ) : null,
+                        random.nextBoolean() ? randomString( random ) : null ) );
+            }
+            long validFrom = (long) ((random.nextDouble() - 0.5) * 2e13);
+            TokenData data = new TokenData( randomString( random ), roles, new Date( validFrom ), new Date( validFrom
+                    + random.nextInt( 100000000 ) ) );
+            
+            byte[] signature = new byte[random.nextInt( 300 )];
+            random.nextBytes( signature );
+            SignedToken token = new SignedToken( data, SIGNER, ALGORITHM, signature );
+            
+            assertArrayEquals( data.getDERObject().getDEREncoded(), TokenEncoder.encode( data ) );
+            assertArrayEquals( token.getDERObject().getDEREncoded(), TokenEncoder.encode( token ) );
+        }
+    }
+    
+    @Test
+    public void base64()
+    {
+        assertThat( Utils.base64( "Basic ", "Man".getBytes(), 0, 3 ), is( "Basic TWFu" ) );
+        assertThat( Utils.base64( "Ma".getBytes() ), is( "TWE=" ) );
+        assertThat( Utils.base64( "M".getBytes() ), is( "TQ==" ) );
+        assertThat( Utils.base64( new byte[] { -1, -17, 0, 62 } ), is( "/+8APg==" ) );
+    }
+    
+    private static String randomString( Random random )
+    {
+        int length = random.nextInt( 10 ) == 0 ? random.nextInt( 400 ) : random.nextInt( 20 );
+        StringBuilder sb = new StringBuilder( length );
+        for ( int i = 0; i < length; i++ )
+        {
+            switch ( random.nextInt( 4 ) )
+            {
+                case 0:
+                    sb.append( (char) (0x80 + random.nextInt( 0x700 )) );
+                    break;
+                case 1:
+                    sb.append( (char) (0x800 + random.nextInt( 0xD000 )) );
+                    break;
+                case 2:
+                    sb.appendCodePoint( 0x10000 + random.nextInt( 0x1000 ) );
+                    break;
+                default:
+                    sb.append( (char) ('a' + random.nextInt( 26 )) );
+            }
+        }
+        return sb.toString();
+    }
+}
\ No newline at end of file
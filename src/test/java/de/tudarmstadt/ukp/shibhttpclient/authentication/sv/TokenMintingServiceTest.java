@@ -0,0 +1,193 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenMintingServiceTest
+{
+    private static final long           LIFETIME = 300;
+    private static final long           BACKDATE = 100;
+    
+    private final BlockingQueue<String> minted   = new LinkedBlockingQueue<String>();
+    
+    private volatile boolean            failing;
+    private volatile CountDownLatch     held     = new CountDownLatch( 0 );
+    private TokenSigner                 signer;
+    private TokenMintingService         service;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        final TokenSigner delegate = TestSigners.signer( "cn=signer", 1 );
+        signer = new TokenSigner( null, null )
+        {
+            @Override
+            public SignedToken createSignedToken( String userId, Date validFrom, Date validUntil ) throws SignatureException
+            {
+                try
+                {
+                    held.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new SignatureException( e );
+                }
+                minted.add( userId );
+                if ( failing )
+                {
+                    throw new SignatureException( "key unavailable" );
+                }
+                return delegate.createSignedToken( userId, validFrom, validUntil );
+            }
+        };
+    }
+    
+    @After
+    public void tearDown()
+    {
+        if ( service != null )
+        {
+            service.close();
+        }
+    }
+    
+    @Test
+    public void mintsFirstTokenInBackground() throws Exception
+    {
+        service = new TokenMintingService( signer, LIFETIME, BACKDATE, 200, 10000, TimeUnit.MILLISECONDS, 1 );
+        long requested = System.currentTimeMillis();
+        
+        // The caller signs inline the first time
+        assertThat( getTokenWhileHeld( "alice" ), is( nullValue() ) );
+        SignedToken token = awaitToken( "alice" );
+        
+        assertThat( token.getData().getId(), is( "alice" ) );
+        long validFrom = token.getData().getValidFrom().getTime();
+        assertTrue( validFrom >= requested - BACKDATE - 1000 && validFrom <= System.currentTimeMillis() - BACKDATE + 1000 );
+        assertThat( token.getData().getValidUntil().getTime() - validFrom, is( LIFETIME + BACKDATE ) );
+        assertThat( service.getToken( "alice" ), is( sameInstance( token ) ) );
+    }
+    
+    @Test
+    public void replacesTokensRefreshMarginBeforeExpiry() throws Exception
+    {
+        // Refreshed every 100ms
+        service = new TokenMintingService( signer, LIFETIME, BACKDATE, 200, 10000, TimeUnit.MILLISECONDS, 1 );
+        service.getToken( "alice" );
+        SignedToken first = awaitToken( "alice" );
+        
+        long start = System.currentTimeMillis();
+        minted.clear();
+        assertThat( minted.poll( 5, TimeUnit.SECONDS ), is( "alice" ) );
+        // Replaced before the previous token expires
+        assertTrue( System.currentTimeMillis() - start < LIFETIME );
+        
+        SignedToken renewed = awaitRenewal( "alice", first );
+        assertTrue( renewed.getData().getValidUntil().after( first.getData().getValidUntil() ) );
+    }
+    
+    @Test
+    public void dropsIdleUsersButKeepsRegisteredOnes() throws Exception
+    {
+        // Refreshed every 50ms, idle after 100ms
+        service = new TokenMintingService( signer, LIFETIME, BACKDATE, 250, 100, TimeUnit.MILLISECONDS, 1 );
+        service.register( "kept" );
+        service.getToken( "idle" );
+        awaitToken( "idle" );
+        
+        Thread.sleep( 300 );
+        minted.clear();
+        Thread.sleep( 150 );
+        List<String> refreshed = new ArrayList<String>();
+        minted.drainTo( refreshed );
+        
+        assertTrue( refreshed.contains( "kept" ) );
+        assertThat( refreshed.contains( "idle" ), is( false ) );
+        // The idle user is started over
+        assertThat( getTokenWhileHeld( "idle" ), is( nullValue() ) );
+        assertThat( service.getToken( "kept" ), is( notNullValue() ) );
+    }
+    
+    @Test
+    public void unregisteredUsersBecomeIdle() throws Exception
+    {
+        service = new TokenMintingService( signer, LIFETIME, BACKDATE, 250, 100, TimeUnit.MILLISECONDS, 1 );
+        service.register( "bob" );
+        awaitToken( "bob" );
+        service.unregister( "bob" );
+        
+        Thread.sleep( 300 );
+        minted.clear();
+        assertThat( minted.poll( 150, TimeUnit.MILLISECONDS ), is( nullValue() ) );
+    }
+    
+    @Test
+    public void failedMintIsRetriedForNextRequest() throws Exception
+    {
+        failing = true;
+        service = new TokenMintingService( signer, LIFETIME, BACKDATE, 200, 10000, TimeUnit.MILLISECONDS, 1 );
+        service.getToken( "alice" );
+        assertThat( minted.poll( 5, TimeUnit.SECONDS ), is( "alice" ) );
+        
+        // The failed user is not retried in the background
+        assertThat( minted.poll( LIFETIME, TimeUnit.MILLISECONDS ), is( nullValue() ) );
+        failing = false;
+        assertThat( getTokenWhileHeld( "alice" ), is( nullValue() ) );
+        assertThat( awaitToken( "alice" ).getData().getId(), is( "alice" ) );
+    }
+    
+    /**
+     * Ask for the token while minting is held, so a token minted for a new user cannot be ready yet.
+     */
+    private SignedToken getTokenWhileHeld( String userId )
+    {
+        held = new CountDownLatch( 1 );
+        try
+        {
+            return service.getToken( userId );
+        }
+        finally
+        {
+            held.countDown();
+        }
+    }
+    
+    private SignedToken awaitToken( String userId ) throws InterruptedException
+    {
+        return awaitRenewal( userId, null );
+    }
+    
+    private SignedToken awaitRenewal( String userId, SignedToken previous ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( System.currentTimeMillis() < deadline )
+        {
+            SignedToken token = service.getToken( userId );
+            if ( token != null && token != previous )
+            {
+                return token;
+            }
+            Thread.sleep( 5 );
+        }
+        fail( "no token minted for " + userId );
+        return null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,96 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TokenSignerTest
+{
+    private static final Date NOW = new Date();
+    
+    @Test
+    public void signAllKeepsIterationOrder() throws Exception
+    {
+        // More tokens than threads, so the batch is split into chunks of different sizes
+        Collection<TokenData> batch = new LinkedHashSet<TokenData>();
+        for ( int i = 0; i < 4 * Runtime.getRuntime().availableProcessors() + 3; i++ )
+        {
+            batch.add( data( "user-" + i ) );
+        }
+        TokenSigner signer = TestSigners.signer( "cn=signer", 1 );
+        X509Certificate certificate = TestSigners.certificate( TestSigners.keyPair(), "cn=signer", 1 );
+        
+        List<SignedToken> tokens = signer.signAll( batch );
+        
+        assertThat( tokens.size(), is( batch.size() ) );
+        int i = 0;
+        for ( TokenData data : batch )
+        {
+            SignedToken token = tokens.get( i++ );
+            assertThat( token.getData(), is( sameInstance( data ) ) );
+            assertTrue( TokenSigner.verify( token, Collections.singleton( certificate ) ) );
+        }
+    }
+    
+    @Test
+    public void signAllOfSmallBatches() throws Exception
+    {
+        TokenSigner signer = TestSigners.signer( "cn=signer", 1 );
+        
+        assertThat( signer.signAll( Collections.<TokenData> emptyList() ).size(), is( 0 ) );
+        List<SignedToken> tokens = signer.signAll( Collections.singletonList( data( "alice" ) ) );
+        assertThat( tokens.size(), is( 1 ) );
+        assertThat( tokens.get( 0 ).getData().getId(), is( "alice" ) );
+    }
+    
+    @Test
+    public void signAllReportsSigningErrors() throws Exception
+    {
+        // The key is too short for a PSS signature with a SHA-256 sized salt
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+        generator.initialize( 512 );
+        KeyPair shortKeys = generator.generateKeyPair();
+        TokenSigner signer = new TokenSigner( (RSAPrivateKey) shortKeys.getPrivate(), TestSigners.certificate( shortKeys, "cn=short",
+                1 ) );
+        
+        // Signed on the calling thread and on the pool
+        for ( int size : new int[] { 1, 2 * Runtime.getRuntime().availableProcessors() + 1 } )
+        {
+            List<TokenData> batch = new ArrayList<TokenData>();
+            for ( int i = 0; i < size; i++ )
+            {
+                batch.add( data( "user-" + i ) );
+            }
+            try
+            {
+                signer.signAll( batch );
+                fail( "signed " + size + " tokens with a short key" );
+            }
+            catch ( SignatureException e )
+            {
+                // expected
+            }
+        }
+    }
+    
+    private static TokenData data( String userId )
+    {
+        return new TokenData( userId, NOW, new Date( NOW.getTime() + 60000 ) );
+    }
+}
\ No newline at end of file
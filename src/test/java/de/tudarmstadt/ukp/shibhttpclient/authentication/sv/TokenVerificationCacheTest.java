@@ -0,0 +1,163 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TokenVerificationCacheTest
+{
+    private static TokenSigner        signer;
+    private static TrustedSignerIndex trustedSigners;
+    
+    @BeforeClass
+    public static void setUpSigner() throws Exception
+    {
+        signer = TestSigners.signer( "cn=signer", 1 );
+        trustedSigners = new TrustedSignerIndex( Collections.singleton( TestSigners.certificate( TestSigners.keyPair(), "cn=signer",
+                1 ) ) );
+    }
+    
+    @Test
+    public void oneTimeUseRejectsReplayedToken() throws Exception
+    {
+        TokenVerificationCache cache = new TokenVerificationCache( trustedSigners, true );
+        byte[] token = token( "alice", 60000 );
+        
+        assertThat( cache.verify( token ).getId(), is( "alice" ) );
+        assertReplayed( cache, token );
+        // Copies of the token are recognized by their content
+        assertReplayed( cache, token.clone() );
+        assertThat( cache.size(), is( 1 ) );
+    }
+    
+    @Test
+    public void lenientModeAcceptsTokenAgain() throws Exception
+    {
+        TokenVerificationCache cache = new TokenVerificationCache( trustedSigners, false );
+        byte[] token = token( "alice", 60000 );
+        
+        SignedTokenView first = cache.verify( token );
+        // Verified once, the remembered view is returned for further uses
+        assertThat( cache.verify( token ), is( sameInstance( first ) ) );
+        assertThat( cache.verify( token.clone() ), is( sameInstance( first ) ) );
+        assertThat( cache.size(), is( 1 ) );
+    }
+    
+    @Test
+    public void rejectsInvalidTokens() throws Exception
+    {
+        TokenVerificationCache cache = new TokenVerificationCache( trustedSigners, true );
+        byte[] tampered = token( "alice", 60000 );
+        tampered[tampered.length - 1] ^= 1;
+        long now = System.currentTimeMillis();
+        byte[] future = TokenEncoder.encode( signer.createSignedToken( "alice", new Date( now + 60000 ), new Date( now + 120000 ) ) );
+        
+        assertThat( cache.verify( tampered ), is( nullValue() ) );
+        assertThat( cache.verify( future ), is( nullValue() ) );
+        assertThat( cache.verify( token( "alice", -1 ) ), is( nullValue() ) );
+        assertThat( cache.size(), is( 0 ) );
+    }
+    
+    @Test
+    public void tokensExpireAfterValidUntil() throws Exception
+    {
+        // The 64 buckets of the time wheel span 640ms, less than the validity of the token
+        TokenVerificationCache cache = new TokenVerificationCache( trustedSigners, true, 1000, 10 );
+        SignedTokenView view = cache.verify( token( "alice", 2000 ) );
+        byte[] token = view.getEncoded();
+        
+        sleepUntil( view.getValidUntil() - 200 );
+        assertReplayed( cache, token );
+        
+        sleepUntil( view.getValidUntil() + 20 );
+        // Expired, it is neither replayed nor accepted
+        assertThat( cache.verify( token ), is( nullValue() ) );
+        assertThat( cache.size(), is( 0 ) );
+    }
+    
+    @Test
+    public void fullCacheRejectsNewTokensInOneTimeUseMode() throws Exception
+    {
+        // One token per stripe
+        TokenVerificationCache cache = new TokenVerificationCache( trustedSigners, true, 1, TokenVerificationCache.DEFAULT_TICK );
+        List<byte[]> accepted = new ArrayList<byte[]>();
+        List<byte[]> rejected = new ArrayList<byte[]>();
+        for ( byte[] token : tokens( 100 ) )
+        {
+            (cache.verify( token ) != null ? accepted : rejected).add( token );
+        }
+        
+        assertTrue( !rejected.isEmpty() );
+        assertThat( cache.size(), is( accepted.size() ) );
+        // Rejected tokens are not remembered, and none of the accepted ones has been evicted to make room for them
+        assertThat( cache.verify( rejected.get( 0 ) ), is( nullValue() ) );
+        for ( byte[] token : accepted )
+        {
+            assertReplayed( cache, token );
+        }
+    }
+    
+    @Test
+    public void fullCacheEvictsTokensInLenientMode() throws Exception
+    {
+        TokenVerificationCache cache = new TokenVerificationCache( trustedSigners, false, 1, TokenVerificationCache.DEFAULT_TICK );
+        List<byte[]> tokens = tokens( 100 );
+        for ( byte[] token : tokens )
+        {
+            assertThat( cache.verify( token ), is( notNullValue() ) );
+        }
+        
+        // Every stripe keeps its last token
+        assertTrue( cache.size() < tokens.size() );
+        assertThat( cache.verify( tokens.get( 0 ) ), is( notNullValue() ) );
+    }
+    
+    private static void assertReplayed( TokenVerificationCache cache, byte[] token ) throws Exception
+    {
+        try
+        {
+            cache.verify( token );
+            fail( "replayed token accepted" );
+        }
+        catch ( TokenReplayedException e )
+        {
+            // expected
+        }
+    }
+    
+    private static void sleepUntil( long time ) throws InterruptedException
+    {
+        Thread.sleep( Math.max( 0, time - System.currentTimeMillis() ) );
+    }
+    
+    private static List<byte[]> tokens( int count ) throws Exception
+    {
+        List<byte[]> tokens = new ArrayList<byte[]>();
+        for ( int i = 0; i < count; i++ )
+        {
+            tokens.add( token( "user-" + i, 60000 ) );
+        }
+        return tokens;
+    }
+    
+    /**
+     * Sign a token of the user that is valid for the given time from now, the times are encoded in whole seconds.
+     */
+    private static byte[] token( String userId, long validity ) throws Exception
+    {
+        long now = System.currentTimeMillis();
+        return TokenEncoder.encode( signer.createSignedToken( userId, new Date( now - 1000 ), new Date( now + validity ) ) );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+package de.tudarmstadt.ukp.shibhttpclient.authentication.sv;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuerSerial;
+import org.junit.Test;
+
+public class TrustedSignerIndexTest
+{
+    private static final String ISSUER = "cn=signer,o=ukp,c=de";
+    
+    @Test
+    public void findsSignerRegardlessOfRdnOrderAndCase() throws Exception
+    {
+        X509Certificate trusted = certificate( ISSUER, 7 );
+        List<X509Certificate> certificates = Arrays.asList( certificate( "cn=other", 7 ), certificate( ISSUER, 8 ), trusted );
+        TrustedSignerIndex index = new TrustedSignerIndex( certificates );
+        
+        for ( String issuer : new String[] { ISSUER, "c=de,o=ukp,cn=signer", "CN=Signer, O=UKP, C=DE" } )
+        {
+            SignedToken token = sign( issuer, 7 );
+            
+            assertThat( issuer, index.getCertificate( token.getSigner() ), is( sameInstance( trusted ) ) );
+            assertTrue( issuer, TokenSigner.verify( token, index ) );
+            assertTrue( issuer, TokenSigner.verify( token, certificates ) );
+        }
+        assertThat( index.size(), is( 3 ) );
+    }
+    
+    @Test
+    public void rejectsUnknownIssuer() throws Exception
+    {
+        List<X509Certificate> certificates = Arrays.asList( certificate( ISSUER, 7 ) );
+        TrustedSignerIndex index = new TrustedSignerIndex( certificates );
+        
+        // Another issuer, another serial number of the issuer
+        for ( SignedToken token : new SignedToken[] { sign( "cn=signer,o=other,c=de", 7 ), sign( ISSUER, 8 ) } )
+        {
+            assertThat( index.getCertificate( token.getSigner() ), is( nullValue() ) );
+            assertNotTrusted( token, index, certificates );
+        }
+    }
+    
+    @Test
+    public void rejectsIssuerWithoutDirectoryName() throws Exception
+    {
+        List<X509Certificate> certificates = Arrays.asList( certificate( ISSUER, 7 ) );
+        TrustedSignerIndex index = new TrustedSignerIndex( certificates );
+        SignedToken signed = sign( ISSUER, 7 );
+        IssuerSerial signer = new IssuerSerial( new GeneralNames( new GeneralName( GeneralName.dNSName, "signer.example.org" ) ),
+                new DERInteger( BigInteger.valueOf( 7 ) ) );
+        SignedToken token = new SignedToken( signed.getData(), signer, signed.getSignatureAlgorithm(), signed.getSignature() );
+        
+        assertThat( index.getCertificate( signer ), is( nullValue() ) );
+        assertNotTrusted( token, index, certificates );
+    }
+    
+    @Test
+    public void firstCertificateOfSignerWins() throws Exception
+    {
+        X509Certificate first = certificate( ISSUER, 7 );
+        TrustedSignerIndex index = new TrustedSignerIndex( Arrays.asList( first, certificate( "c=de,o=ukp,cn=signer", 7 ) ) );
+        
+        assertThat( index.size(), is( 1 ) );
+        assertThat( index.getCertificate( sign( ISSUER, 7 ).getSigner() ), is( sameInstance( first ) ) );
+    }
+    
+    private static void assertNotTrusted( SignedToken token, TrustedSignerIndex index, Collection<X509Certificate> certificates )
+    {
+        try
+        {
+            TokenSigner.verify( token, index );
+            fail( "signer found in the index" );
+        }
+        catch ( IssuerNotTrustedException e )
+        {
+            // expected
+        }
+        try
+        {
+            TokenSigner.verify( token, certificates );
+            fail( "signer found in the certificates" );
+        }
+        catch ( IssuerNotTrustedException e )
+        {
+            // expected
+        }
+    }
+    
+    private static X509Certificate certificate( String issuer, long serial ) throws Exception
+    {
+        return TestSigners.certificate( TestSigners.keyPair(), issuer, serial );
+    }
+    
+    private static SignedToken sign( String issuer, long serial ) throws Exception
+    {
+        Date now = new Date();
+        return TestSigners.signer( issuer, serial ).createSignedToken( "alice", now, new Date( now.getTime() + 60000 ) );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,73 @@
+package de.tudarmstadt.ukp.shibhttpclient.cookie;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.cookie.BrowserCompatSpec;
+import org.junit.Test;
+
+public class ConcurrentCookieStoreTest
+{
+    private final ConcurrentCookieStore store      = new ConcurrentCookieStore();
+    private final CookieSpec            cookieSpec = new BrowserCompatSpec();
+    
+    @Test
+    public void headersAreCachedUntilTheStoreChanges()
+    {
+        store.addCookie( cookie( "_shibsession_a", "1", "sp.example.org", "/" ) );
+        store.addCookie( cookie( "other", "2", "idp.example.org", "/" ) );
+        
+        List<Header> headers = headers( "/resource" );
+        assertThat( headers.size(), is( 1 ) );
+        assertThat( headers.get( 0 ).getValue(), is( "_shibsession_a=1" ) );
+        assertThat( headers( "/other" ), sameInstance( headers ) );
+        
+        store.addCookie( cookie( "_shibsession_a", "3", "sp.example.org", "/" ) );
+        assertThat( headers( "/resource" ).get( 0 ).getValue(), is( "_shibsession_a=3" ) );
+        assertThat( store.getCookies().size(), is( 2 ) );
+    }
+    
+    @Test
+    public void pathCookiesAreMatchedPerRequest()
+    {
+        store.addCookie( cookie( "root", "1", ".example.org", "/" ) );
+        store.addCookie( cookie( "app", "2", "sp.example.org", "/app" ) );
+        
+        assertThat( headers( "/app/page" ).get( 0 ).getValue(), is( "app=2; root=1" ) );
+        assertThat( headers( "/other" ).get( 0 ).getValue(), is( "root=1" ) );
+    }
+    
+    @Test
+    public void expiredCookiesAreRemoved()
+    {
+        BasicClientCookie expiring = cookie( "expiring", "1", "sp.example.org", "/" );
+        expiring.setExpiryDate( new Date( System.currentTimeMillis() + 60000 ) );
+        store.addCookie( expiring );
+        assertThat( headers( "/" ).size(), is( 1 ) );
+        
+        assertThat( store.clearExpired( new Date( System.currentTimeMillis() + 120000 ) ), is( true ) );
+        assertThat( headers( "/" ).size(), is( 0 ) );
+        assertThat( store.getCookies().isEmpty(), is( true ) );
+    }
+    
+    private List<Header> headers( String path )
+    {
+        return store.getCookieHeaders( "compatibility", cookieSpec, new CookieOrigin( "sp.example.org", 443, path, true ) );
+    }
+    
+    private static BasicClientCookie cookie( String name, String value, String domain, String path )
+    {
+        BasicClientCookie cookie = new BasicClientCookie( name, value );
+        cookie.setDomain( domain );
+        cookie.setPath( path );
+        return cookie;
+    }
+}
\ No newline at end of file
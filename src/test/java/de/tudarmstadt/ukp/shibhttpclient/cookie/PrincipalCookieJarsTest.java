@@ -0,0 +1,87 @@
+package de.tudarmstadt.ukp.shibhttpclient.cookie;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.BasicAuthenticator;
+
+public class PrincipalCookieJarsTest
+{
+    private final ConcurrentCookieStore defaultCookieStore = new ConcurrentCookieStore();
+    
+    @Test
+    public void leastRecentlyUsedJarIsEvicted()
+    {
+        PrincipalCookieJars jars = new PrincipalCookieJars( null, defaultCookieStore, 2, 1, TimeUnit.MINUTES );
+        CookieStore alice = jars.getCookieStore( "alice" );
+        CookieStore bob = jars.getCookieStore( "bob" );
+        assertThat( jars.getCookieStore( "alice" ), is( sameInstance( alice ) ) );
+        
+        // Bob has been used least recently
+        jars.getCookieStore( "carol" );
+        assertThat( jars.size(), is( 2 ) );
+        assertThat( jars.getCookieStore( "alice" ), is( sameInstance( alice ) ) );
+        assertThat( jars.getCookieStore( "bob" ), is( not( sameInstance( bob ) ) ) );
+        assertThat( jars.size(), is( 2 ) );
+    }
+    
+    @Test
+    public void idleJarsAreEvicted() throws Exception
+    {
+        PrincipalCookieJars jars = new PrincipalCookieJars( null, defaultCookieStore, 10, 200, TimeUnit.MILLISECONDS );
+        CookieStore alice = jars.getCookieStore( "alice" );
+        Thread.sleep( 250 );
+        
+        // Looking up another jar evicts the idle one
+        CookieStore bob = jars.getCookieStore( "bob" );
+        assertThat( jars.size(), is( 1 ) );
+        assertThat( jars.getCookieStore( "alice" ), is( not( sameInstance( alice ) ) ) );
+        
+        // Purging evicts idle jars and expired cookies of the others
+        bob.addCookie( cookie( "expired", System.currentTimeMillis() - 1000 ) );
+        bob.addCookie( cookie( "valid", System.currentTimeMillis() + 60000 ) );
+        jars.clearExpired( new Date() );
+        assertThat( jars.size(), is( 2 ) );
+        assertThat( bob.getCookies().size(), is( 1 ) );
+        jars.clearExpired( new Date( System.currentTimeMillis() + 200 ) );
+        assertThat( jars.size(), is( 0 ) );
+    }
+    
+    @Test
+    public void interceptorSwapsDefaultCookieStoreForJarOfPrincipal() throws Exception
+    {
+        PrincipalCookieJars jars = new PrincipalCookieJars( new BasicAuthenticator( "alice", "secret".toCharArray() ), defaultCookieStore,
+                10, 1, TimeUnit.MINUTES );
+        
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore( defaultCookieStore );
+        jars.process( new HttpGet( "https://sp.example.org/" ), context );
+        assertThat( context.getCookieStore(), is( sameInstance( jars.getCookieStore( "alice" ) ) ) );
+        
+        // A cookie store set explicitly is left alone
+        ConcurrentCookieStore explicit = new ConcurrentCookieStore();
+        context.setCookieStore( explicit );
+        jars.process( new HttpGet( "https://sp.example.org/" ), context );
+        assertThat( context.getCookieStore(), is( sameInstance( (CookieStore) explicit ) ) );
+    }
+    
+    private static BasicClientCookie cookie( String name, long expiry )
+    {
+        BasicClientCookie cookie = new BasicClientCookie( name, "1" );
+        cookie.setDomain( "sp.example.org" );
+        cookie.setPath( "/" );
+        cookie.setExpiryDate( new Date( expiry ) );
+        return cookie;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+package de.tudarmstadt.ukp.shibhttpclient.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Event;
+import de.tudarmstadt.ukp.shibhttpclient.metrics.ShibClientMetrics.Phase;
+
+public class HistogramMetricsTest
+{
+    private static final String SP  = "https://sp.example.org:443";
+    private static final String IDP = "https://idp.example.org/idp/profile/SAML2/SOAP/ECP";
+    
+    @Test
+    public void countsEventsByEndpoint()
+    {
+        HistogramMetrics metrics = new HistogramMetrics();
+        metrics.count( Event.KNOCK_SENT, SP );
+        metrics.count( Event.KNOCK_SENT, SP );
+        metrics.count( Event.KNOCK_SENT, "https://other.example.org:443" );
+        metrics.count( Event.TOKEN_CACHE_HIT, null );
+        
+        assertThat( metrics.getCount( Event.KNOCK_SENT, SP ), is( 2L ) );
+        assertThat( metrics.getCount( Event.KNOCK_SENT ), is( 3L ) );
+        assertThat( metrics.getCount( Event.KNOCK_SENT, null ), is( 0L ) );
+        // Events without an endpoint are counted under null
+        assertThat( metrics.getCount( Event.TOKEN_CACHE_HIT, null ), is( 1L ) );
+        assertThat( metrics.getCount( Event.TOKEN_CACHE_HIT ), is( 1L ) );
+        assertThat( metrics.getCount( Event.KNOCK_SKIPPED ), is( 0L ) );
+    }
+    
+    @Test
+    public void timesPhasesByEndpoint()
+    {
+        HistogramMetrics metrics = new HistogramMetrics();
+        metrics.time( Phase.IDP_LOGIN, IDP, TimeUnit.MILLISECONDS.toNanos( 40 ) );
+        metrics.time( Phase.IDP_LOGIN, IDP, TimeUnit.MILLISECONDS.toNanos( 60 ) );
+        metrics.time( Phase.CREDENTIALS, null, TimeUnit.MILLISECONDS.toNanos( 5 ) );
+        
+        LatencyHistogram idpLogin = metrics.getHistogram( Phase.IDP_LOGIN, IDP );
+        assertThat( idpLogin.getCount(), is( 2L ) );
+        assertThat( idpLogin.getMax( TimeUnit.MILLISECONDS ), is( 60L ) );
+        assertThat( metrics.getHistogram( Phase.IDP_LOGIN, SP ), is( nullValue() ) );
+        assertThat( metrics.getHistogram( Phase.IDP_LOGIN, null ), is( nullValue() ) );
+        
+        Map<String, LatencyHistogram> credentials = metrics.getHistograms( Phase.CREDENTIALS );
+        assertThat( credentials.size(), is( 1 ) );
+        assertThat( credentials.get( null ).getCount(), is( 1L ) );
+        assertThat( metrics.getHistograms( Phase.REPLAY ).isEmpty(), is( true ) );
+    }
+    
+    @Test
+    public void resetKeepsEndpoints()
+    {
+        HistogramMetrics metrics = new HistogramMetrics();
+        metrics.count( Event.LOGIN_SUCCEEDED, SP );
+        metrics.time( Phase.LOGIN, SP, 1000 );
+        
+        metrics.reset();
+        assertThat( metrics.getCount( Event.LOGIN_SUCCEEDED, SP ), is( 0L ) );
+        assertThat( metrics.getHistogram( Phase.LOGIN, SP ).getCount(), is( 0L ) );
+        
+        metrics.count( Event.LOGIN_SUCCEEDED, SP );
+        assertThat( metrics.getCount( Event.LOGIN_SUCCEEDED ), is( 1L ) );
+    }
+}
\ No newline at end of file
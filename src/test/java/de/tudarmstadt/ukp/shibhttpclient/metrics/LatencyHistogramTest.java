@@ -0,0 +1,104 @@
+package de.tudarmstadt.ukp.shibhttpclient.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void smallValuesAreExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( long nanos = 1; nanos <= 15; nanos++ )
+        {
+            histogram.record( nanos );
+        }
+        
+        assertThat( histogram.getCount(), is( 15L ) );
+        assertThat( percentile( histogram, 0 ), is( 1L ) );
+        assertThat( percentile( histogram, 0.5 ), is( 8L ) );
+        assertThat( percentile( histogram, 0.9 ), is( 14L ) );
+        assertThat( percentile( histogram, 1 ), is( 15L ) );
+        assertEquals( 8.0, histogram.getMean( TimeUnit.NANOSECONDS ), 0 );
+    }
+    
+    @Test
+    public void percentilesAreRoundedUpToBucketBounds()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 16 and 17 share a bucket, so do 960 to 1023, 1024 to 1151 and 1152 to 1279
+        histogram.record( 16 );
+        histogram.record( 960 );
+        histogram.record( 1024 );
+        histogram.record( 1200 );
+        
+        assertThat( percentile( histogram, 0.25 ), is( 17L ) );
+        assertThat( percentile( histogram, 0.5 ), is( 1023L ) );
+        assertThat( percentile( histogram, 0.75 ), is( 1151L ) );
+        // The bound of the last bucket is capped by the longest duration
+        assertThat( percentile( histogram, 1 ), is( 1200L ) );
+        
+        LatencyHistogram single = new LatencyHistogram();
+        single.record( 16 );
+        assertThat( percentile( single, 0.5 ), is( 16L ) );
+    }
+    
+    @Test
+    public void percentilesOfKnownLatencies()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1ms to 100ms, ten times each in shuffled order
+        for ( int round = 0; round < 10; round++ )
+        {
+            for ( int i = 0; i < 100; i++ )
+            {
+                histogram.record( TimeUnit.MILLISECONDS.toNanos( 1 + (i * 37 + round) % 100 ) );
+            }
+        }
+        
+        assertThat( histogram.getCount(), is( 1000L ) );
+        assertEquals( 50.5, histogram.getMean( TimeUnit.MILLISECONDS ), 1e-9 );
+        assertThat( histogram.getMax( TimeUnit.MILLISECONDS ), is( 100L ) );
+        // Buckets are at most an eighth of their lower bound wide
+        assertBetween( histogram.getPercentile( 0.5, TimeUnit.MICROSECONDS ), 50000, 50000 * 9 / 8 );
+        assertBetween( histogram.getPercentile( 0.9, TimeUnit.MICROSECONDS ), 90000, 90000 * 9 / 8 );
+        assertBetween( histogram.getPercentile( 0.99, TimeUnit.MICROSECONDS ), 99000, 100000 );
+        assertThat( histogram.getPercentile( 1, TimeUnit.MILLISECONDS ), is( 100L ) );
+    }
+    
+    @Test
+    public void emptyAndNegativeDurations()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat( percentile( histogram, 0.5 ), is( 0L ) );
+        assertEquals( 0.0, histogram.getMean( TimeUnit.NANOSECONDS ), 0 );
+        
+        histogram.record( -5 );
+        assertThat( histogram.getCount(), is( 1L ) );
+        assertThat( percentile( histogram, 1 ), is( 0L ) );
+        
+        histogram.record( Long.MAX_VALUE );
+        assertThat( percentile( histogram, 1 ), is( Long.MAX_VALUE ) );
+        
+        histogram.reset();
+        assertThat( histogram.getCount(), is( 0L ) );
+        assertThat( histogram.getMax( TimeUnit.NANOSECONDS ), is( 0L ) );
+    }
+    
+    private static long percentile( LatencyHistogram histogram, double quantile )
+    {
+        return histogram.getPercentile( quantile, TimeUnit.NANOSECONDS );
+    }
+    
+    private static void assertBetween( long value, long min, long max )
+    {
+        assertTrue( value + " < " + min, value >= min );
+        assertTrue( value + " > " + max, value <= max );
+    }
+}
\ No newline at end of file
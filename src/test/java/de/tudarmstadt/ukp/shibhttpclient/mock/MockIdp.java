@@ -0,0 +1,190 @@
+package de.tudarmstadt.ukp.shibhttpclient.mock;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.SignedTokenView;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TokenVerificationCache;
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.TrustedSignerIndex;
+
+/**
+ * A Shibboleth IdP offering the ECP profile at {@link #ECP_PATH}. Clients authenticate with HTTP BASIC credentials of the registered users
+ * or with sender-vouches tokens of trusted signers. The ECP response asserts the authenticated principal to the assertion consumer service
+ * named in the authentication request; it is not signed.
+ */
+public class MockIdp extends MockServer
+{
+    /**
+     * The path of the ECP profile endpoint.
+     */
+    public static final String              ECP_PATH        = "/idp/profile/SAML2/SOAP/ECP";
+    
+    private static final Pattern            AUTHN_REQUEST   = Pattern.compile( "<(?:\\w+:)?AuthnRequest\\s[^>]*>" );
+    private static final Pattern            ACS_URL         = Pattern.compile( "AssertionConsumerServiceURL=\"([^\"]*)\"" );
+    private static final Pattern            REQUEST_ID      = Pattern.compile( "\\sID=\"([^\"]*)\"" );
+    
+    private final Map<String, String>       users           = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger             authentications = new AtomicInteger();
+    private final AtomicInteger             rejections      = new AtomicInteger();
+    
+    private volatile TokenVerificationCache senderVouches;
+    
+    /**
+     * Create a new {@link MockIdp} and start it on an ephemeral port.
+     * 
+     * @throws IOException
+     *             if the server cannot be started
+     */
+    public MockIdp() throws IOException
+    {
+        super( "idp" );
+    }
+    
+    @Override
+    protected void serve( HttpExchange exchange ) throws IOException
+    {
+        String body = readBody( exchange );
+        if ( !ECP_PATH.equals( exchange.getRequestURI().getPath() ) || !"POST".equals( exchange.getRequestMethod() ) )
+        {
+            send( exchange, 404, "text/plain", "not found" );
+            return;
+        }
+        
+        Matcher authnRequest = AUTHN_REQUEST.matcher( body );
+        if ( !authnRequest.find() )
+        {
+            send( exchange, 400, "text/plain", "no authentication request" );
+            return;
+        }
+        Matcher acsUrl = ACS_URL.matcher( authnRequest.group() );
+        Matcher requestId = REQUEST_ID.matcher( authnRequest.group() );
+        if ( !acsUrl.find() || !requestId.find() )
+        {
+            send( exchange, 400, "text/plain", "incomplete authentication request" );
+            return;
+        }
+        
+        String principal = authenticate( exchange.getRequestHeaders().getFirst( "Authorization" ) );
+        if ( principal == null )
+        {
+            rejections.incrementAndGet();
+            exchange.getResponseHeaders().set( "WWW-Authenticate", "Basic realm=\"mock\"" );
+            send( exchange, 401, "text/plain", "unauthorized" );
+            return;
+        }
+        authentications.incrementAndGet();
+        
+        String responseId = "_" + UUID.randomUUID().toString().replace( "-", "" );
+        send( exchange, 200, "text/xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap11:Header>"
+                + "<ecp:Response xmlns:ecp=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\""
+                + " soap11:actor=\"http://schemas.xmlsoap.org/soap/actor/next\" soap11:mustUnderstand=\"1\""
+                + " AssertionConsumerServiceURL=\"" + acsUrl.group( 1 ) + "\"/>"
+                + "</soap11:Header><soap11:Body>"
+                + "<saml2p:Response xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\" Destination=\"" + acsUrl.group( 1 ) + "\""
+                + " ID=\"" + responseId + "\" InResponseTo=\"" + requestId.group( 1 ) + "\" IssueInstant=\"2014-09-24T12:13:09Z\""
+                + " Version=\"2.0\">"
+                + "<saml2:Issuer xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\">" + escape( getBaseUrl() ) + "/idp/shibboleth</saml2:Issuer>"
+                + "<saml2p:Status><saml2p:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></saml2p:Status>"
+                + "<saml2:Assertion xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"" + responseId + "-a\""
+                + " IssueInstant=\"2014-09-24T12:13:09Z\" Version=\"2.0\">"
+                + "<saml2:Issuer>" + escape( getBaseUrl() ) + "/idp/shibboleth</saml2:Issuer>"
+                + "<saml2:Subject><saml2:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:unspecified\">" + escape( principal )
+                + "</saml2:NameID></saml2:Subject>"
+                + "</saml2:Assertion></saml2p:Response>"
+                + "</soap11:Body></soap11:Envelope>" );
+    }
+    
+    private String authenticate( String authorization )
+    {
+        if ( authorization == null )
+        {
+            return null;
+        }
+        if ( authorization.startsWith( "Basic " ) )
+        {
+            String[] credentials = new String( Base64.decodeBase64( authorization.substring( 6 ) ) ).split( ":", 2 );
+            String password = credentials.length == 2 ? users.get( credentials[0] ) : null;
+            return password != null && password.equals( credentials[1] ) ? credentials[0] : null;
+        }
+        TokenVerificationCache verifier = senderVouches;
+        if ( authorization.startsWith( "Sender-Voucher " ) && verifier != null )
+        {
+            try
+            {
+                SignedTokenView token = verifier.verify( Base64.decodeBase64( authorization.substring( 15 ) ) );
+                return token != null ? token.getId() : null;
+            }
+            catch ( Exception e )
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Register a user for HTTP BASIC authentication.
+     * 
+     * @param username
+     *            the name of the user
+     * @param password
+     *            the password of the user
+     */
+    public void addUser( String username, String password )
+    {
+        users.put( username, password );
+    }
+    
+    /**
+     * Accept sender-vouches tokens signed by the owners of the given certificates.
+     * 
+     * @param certificates
+     *            the certificates of the trusted signers
+     */
+    public void trustSigners( Collection<X509Certificate> certificates )
+    {
+        senderVouches = new TokenVerificationCache( new TrustedSignerIndex( certificates ), false );
+    }
+    
+    /**
+     * Get the URL of the ECP profile endpoint.
+     * 
+     * @return the URL of the ECP profile endpoint
+     */
+    public String getEcpUrl()
+    {
+        return getBaseUrl() + ECP_PATH;
+    }
+    
+    /**
+     * Get the number of successful authentications.
+     * 
+     * @return the number of successful authentications
+     */
+    public int getAuthentications()
+    {
+        return authentications.get();
+    }
+    
+    /**
+     * Get the number of rejected authentications.
+     * 
+     * @return the number of rejected authentications
+     */
+    public int getRejections()
+    {
+        return rejections.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,250 @@
+package de.tudarmstadt.ukp.shibhttpclient.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP server on the loopback interface with configurable latency and failure injection, the base of the mock SP and IdP.
+ */
+public abstract class MockServer implements Closeable
+{
+    private final HttpServer      server;
+    private final ExecutorService executor;
+    private final AtomicInteger   pendingFailures = new AtomicInteger();
+    private final AtomicInteger   requests        = new AtomicInteger();
+    
+    private volatile long         latency;
+    private volatile int          failureStatus   = 500;
+    
+    /**
+     * Create a new {@link MockServer} and start it on an ephemeral port.
+     * 
+     * @param name
+     *            the name of the server, used for its threads
+     * @throws IOException
+     *             if the server cannot be started
+     */
+    protected MockServer( final String name ) throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), 0 ), 128 );
+        executor = Executors.newCachedThreadPool( new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "mock-" + name + "-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        server.setExecutor( executor );
+        server.createContext( "/", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                try
+                {
+                    requests.incrementAndGet();
+                    if ( latency > 0 )
+                    {
+                        Thread.sleep( latency );
+                    }
+                    if ( takeFailure() )
+                    {
+                        readBody( exchange );
+                        send( exchange, failureStatus, "text/plain", "injected failure" );
+                    }
+                    else
+                    {
+                        serve( exchange );
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        } );
+        server.start();
+    }
+    
+    /**
+     * Answer the request.
+     * 
+     * @param exchange
+     *            the request and response
+     * @throws IOException
+     *             if the exchange fails
+     */
+    protected abstract void serve( HttpExchange exchange ) throws IOException;
+    
+    /**
+     * Get the URL of the server, without a trailing slash.
+     * 
+     * @return the URL of the server
+     */
+    public String getBaseUrl()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+    
+    /**
+     * Delay every response.
+     * 
+     * @param latency
+     *            the delay
+     * @param unit
+     *            the unit of the delay
+     */
+    public void setLatency( long latency, TimeUnit unit )
+    {
+        this.latency = unit.toMillis( latency );
+    }
+    
+    /**
+     * Answer the next requests with an error instead of serving them.
+     * 
+     * @param count
+     *            the number of requests to fail
+     * @param status
+     *            the status code of the failed responses
+     */
+    public void injectFailures( int count, int status )
+    {
+        failureStatus = status;
+        pendingFailures.set( count );
+    }
+    
+    /**
+     * Get the number of requests received, including failed ones.
+     * 
+     * @return the number of requests
+     */
+    public int getRequests()
+    {
+        return requests.get();
+    }
+    
+    @Override
+    public void close()
+    {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+    
+    private boolean takeFailure()
+    {
+        while ( true )
+        {
+            int pending = pendingFailures.get();
+            if ( pending <= 0 )
+            {
+                return false;
+            }
+            if ( pendingFailures.compareAndSet( pending, pending - 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Read the body of the request as UTF-8.
+     * 
+     * @param exchange
+     *            the exchange
+     * @return the body of the request
+     * @throws IOException
+     *             if the body cannot be read
+     */
+    protected static String readBody( HttpExchange exchange ) throws IOException
+    {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ( (read = in.read( buffer )) != -1 )
+        {
+            out.write( buffer, 0, read );
+        }
+        return new String( out.toByteArray(), "UTF-8" );
+    }
+    
+    /**
+     * Send the response, without a body for HEAD requests.
+     * 
+     * @param exchange
+     *            the exchange
+     * @param status
+     *            the status code
+     * @param contentType
+     *            the content type of the body
+     * @param body
+     *            the body
+     * @throws IOException
+     *             if the response cannot be sent
+     */
+    protected static void send( HttpExchange exchange, int status, String contentType, String body ) throws IOException
+    {
+        byte[] content = body.getBytes( "UTF-8" );
+        exchange.getResponseHeaders().set( "Content-Type", contentType );
+        if ( "HEAD".equals( exchange.getRequestMethod() ) )
+        {
+            exchange.sendResponseHeaders( status, -1 );
+            return;
+        }
+        exchange.sendResponseHeaders( status, content.length );
+        OutputStream out = exchange.getResponseBody();
+        out.write( content );
+        out.close();
+    }
+    
+    /**
+     * Send a redirect to the given location.
+     * 
+     * @param exchange
+     *            the exchange
+     * @param location
+     *            the absolute URL to redirect to
+     * @throws IOException
+     *             if the response cannot be sent
+     */
+    protected static void redirect( HttpExchange exchange, String location ) throws IOException
+    {
+        exchange.getResponseHeaders().set( "Location", location );
+        exchange.sendResponseHeaders( 302, -1 );
+    }
+    
+    /**
+     * Escape the text for use in XML content and attribute values.
+     * 
+     * @param text
+     *            the text
+     * @return the escaped text
+     */
+    protected static String escape( String text )
+    {
+        return text.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" ).replace( "\"", "&quot;" );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,252 @@
+package de.tudarmstadt.ukp.shibhttpclient.mock;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A Shibboleth SP protecting every path except its handlers. Requests without a session are answered with a PAOS authentication request
+ * if the client announces ECP support and redirected to a login page otherwise. The assertion consumer service accepts the ECP response
+ * of any IdP, starts a session for the principal named in the assertion and redirects to the resource the login was triggered by.
+ * Protected resources answer {@code Hello, <principal>}.
+ */
+public class MockSp extends MockServer
+{
+    /**
+     * The name of the session cookie.
+     */
+    public static final String         SESSION_COOKIE = "_shibsession_mock";
+    
+    /**
+     * The path of the assertion consumer service.
+     */
+    public static final String         ACS_PATH       = "/Shibboleth.sso/SAML2/ECP";
+    
+    /**
+     * The path of the login page for clients without ECP support.
+     */
+    public static final String         LOGIN_PATH     = "/Shibboleth.sso/Login";
+    
+    private static final String        PAOS_MIME_TYPE = "application/vnd.paos+xml";
+    private static final Pattern       RELAY_STATE    = Pattern.compile( "<ecp:RelayState[^>]*>([^<]*)</ecp:RelayState>" );
+    private static final Pattern       NAME_ID        = Pattern.compile( "<saml2:NameID[^>]*>([^<]*)</saml2:NameID>" );
+    
+    private final Map<String, Session> sessions       = new ConcurrentHashMap<String, Session>();
+    private final Map<String, String>  relayStates    = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger        challenges     = new AtomicInteger();
+    private final AtomicInteger        logins         = new AtomicInteger();
+    private final AtomicInteger        knocks         = new AtomicInteger();
+    
+    private volatile long              sessionLifetime = TimeUnit.HOURS.toMillis( 1 );
+    
+    /**
+     * Create a new {@link MockSp} and start it on an ephemeral port.
+     * 
+     * @throws IOException
+     *             if the server cannot be started
+     */
+    public MockSp() throws IOException
+    {
+        super( "sp" );
+    }
+    
+    @Override
+    protected void serve( HttpExchange exchange ) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        if ( ACS_PATH.equals( path ) )
+        {
+            consumeAssertion( exchange );
+            return;
+        }
+        if ( LOGIN_PATH.equals( path ) )
+        {
+            send( exchange, 200, "text/html", "<html><body>login</body></html>" );
+            return;
+        }
+        
+        if ( "HEAD".equals( exchange.getRequestMethod() ) )
+        {
+            knocks.incrementAndGet();
+        }
+        readBody( exchange );
+        
+        Session session = session( exchange );
+        if ( session != null )
+        {
+            send( exchange, 200, "text/plain", "Hello, " + session.principal );
+        }
+        else if ( acceptsPaos( exchange ) )
+        {
+            challenge( exchange );
+        }
+        else
+        {
+            redirect( exchange, getBaseUrl() + LOGIN_PATH );
+        }
+    }
+    
+    private void challenge( HttpExchange exchange ) throws IOException
+    {
+        challenges.incrementAndGet();
+        String relayState = "ss:mem:" + UUID.randomUUID();
+        String requestId = "_" + UUID.randomUUID().toString().replace( "-", "" );
+        relayStates.put( relayState, getBaseUrl() + exchange.getRequestURI() );
+        
+        String acsUrl = escape( getAcsUrl() );
+        send( exchange, 200, PAOS_MIME_TYPE, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Header>"
+                + "<paos:Request xmlns:paos=\"urn:liberty:paos:2003-08\" S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\""
+                + " S:mustUnderstand=\"1\" messageID=\"" + requestId + "\" responseConsumerURL=\"" + acsUrl + "\""
+                + " service=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\"/>"
+                + "<ecp:Request xmlns:ecp=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\" IsPassive=\"0\""
+                + " S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\" S:mustUnderstand=\"1\">"
+                + "<saml:Issuer xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">" + escape( getBaseUrl() ) + "/shibboleth</saml:Issuer>"
+                + "</ecp:Request>"
+                + "<ecp:RelayState xmlns:ecp=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\""
+                + " S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\" S:mustUnderstand=\"1\">" + relayState + "</ecp:RelayState>"
+                + "</S:Header><S:Body>"
+                + "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" AssertionConsumerServiceURL=\"" + acsUrl
+                + "\" ID=\"" + requestId + "\" IssueInstant=\"2014-09-24T12:13:08Z\""
+                + " ProtocolBinding=\"urn:oasis:names:tc:SAML:2.0:bindings:PAOS\" Version=\"2.0\">"
+                + "<saml:Issuer xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">" + escape( getBaseUrl() ) + "/shibboleth</saml:Issuer>"
+                + "<samlp:NameIDPolicy AllowCreate=\"1\"/></samlp:AuthnRequest>"
+                + "</S:Body></S:Envelope>" );
+    }
+    
+    private void consumeAssertion( HttpExchange exchange ) throws IOException
+    {
+        String body = readBody( exchange );
+        Matcher relayState = RELAY_STATE.matcher( body );
+        String target = relayState.find() ? relayStates.remove( relayState.group( 1 ) ) : null;
+        Matcher nameId = NAME_ID.matcher( body );
+        if ( target == null || !nameId.find() )
+        {
+            send( exchange, 400, "text/plain", "invalid ECP response" );
+            return;
+        }
+        
+        String sessionId = UUID.randomUUID().toString();
+        sessions.put( sessionId, new Session( unescape( nameId.group( 1 ) ), System.currentTimeMillis() + sessionLifetime ) );
+        logins.incrementAndGet();
+        
+        exchange.getResponseHeaders().add( "Set-Cookie", SESSION_COOKIE + "=" + sessionId + "; path=/" );
+        redirect( exchange, target );
+    }
+    
+    private Session session( HttpExchange exchange )
+    {
+        String cookies = exchange.getRequestHeaders().getFirst( "Cookie" );
+        if ( cookies == null )
+        {
+            return null;
+        }
+        for ( String cookie : cookies.split( ";" ) )
+        {
+            String[] nameValue = cookie.trim().split( "=", 2 );
+            if ( nameValue.length == 2 && SESSION_COOKIE.equals( nameValue[0] ) )
+            {
+                Session session = sessions.get( nameValue[1] );
+                if ( session != null && session.expiresAt > System.currentTimeMillis() )
+                {
+                    return session;
+                }
+            }
+        }
+        return null;
+    }
+    
+    private static boolean acceptsPaos( HttpExchange exchange )
+    {
+        String accept = exchange.getRequestHeaders().getFirst( "Accept" );
+        return accept != null && accept.contains( PAOS_MIME_TYPE ) && exchange.getRequestHeaders().containsKey( "PAOS" );
+    }
+    
+    private static String unescape( String text )
+    {
+        return text.replace( "&quot;", "\"" ).replace( "&gt;", ">" ).replace( "&lt;", "<" ).replace( "&amp;", "&" );
+    }
+    
+    /**
+     * Get the URL of the assertion consumer service.
+     * 
+     * @return the URL of the assertion consumer service
+     */
+    public String getAcsUrl()
+    {
+        return getBaseUrl() + ACS_PATH;
+    }
+    
+    /**
+     * Set the time after which sessions expire. Sessions already established keep their expiry.
+     * 
+     * @param sessionLifetime
+     *            the lifetime of new sessions
+     * @param unit
+     *            the unit of the lifetime
+     */
+    public void setSessionLifetime( long sessionLifetime, TimeUnit unit )
+    {
+        this.sessionLifetime = unit.toMillis( sessionLifetime );
+    }
+    
+    /**
+     * End all sessions, so every client has to log in again.
+     */
+    public void expireSessions()
+    {
+        sessions.clear();
+    }
+    
+    /**
+     * Get the number of PAOS authentication requests sent.
+     * 
+     * @return the number of PAOS authentication requests
+     */
+    public int getChallenges()
+    {
+        return challenges.get();
+    }
+    
+    /**
+     * Get the number of sessions established at the assertion consumer service.
+     * 
+     * @return the number of logins
+     */
+    public int getLogins()
+    {
+        return logins.get();
+    }
+    
+    /**
+     * Get the number of HEAD requests to protected resources.
+     * 
+     * @return the number of knocks
+     */
+    public int getKnocks()
+    {
+        return knocks.get();
+    }
+    
+    /**
+     * A session of a principal.
+     */
+    private static final class Session
+    {
+        private final String principal;
+        private final long   expiresAt;
+        
+        Session( String principal, long expiresAt )
+        {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
\ No newline at end of file
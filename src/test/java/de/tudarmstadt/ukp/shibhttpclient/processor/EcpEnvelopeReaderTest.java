@@ -0,0 +1,130 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.parse.BasicParserPool;
+
+public class EcpEnvelopeReaderTest
+{
+    private static final String ENVELOPE_START = "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">";
+    private static final String ECP_NS         = "urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp";
+    private static final String NO_PASSIVE     = "urn:oasis:names:tc:SAML:2.0:status:NoPassive";
+    
+    private static final String AUTHN_REQUEST  = ENVELOPE_START + "<S:Header>"
+            + "<ecp:RelayState xmlns:ecp=\"" + ECP_NS + "\">ss:mem:1</ecp:RelayState>"
+            + "</S:Header><S:Body>"
+            + "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_1\""
+            + " Version=\"2.0\" IssueInstant=\"2014-09-24T12:13:08Z\"/>"
+            + "</S:Body></S:Envelope>";
+    
+    private final EcpEnvelopeReader reader = new EcpEnvelopeReader();
+    
+    @BeforeClass
+    public static void bootstrap() throws Exception
+    {
+        DefaultBootstrap.bootstrap();
+    }
+    
+    @Test
+    public void readsRelayStateOfAuthnRequest() throws Exception
+    {
+        EcpMessage message = reader.read( bytes( AUTHN_REQUEST ) );
+        
+        assertThat( message.getRelayState(), is( "ss:mem:1" ) );
+        assertThat( message.getAssertionConsumerServiceUrl(), is( nullValue() ) );
+        assertThat( message.getStatusCode(), is( nullValue() ) );
+        assertThat( message.getEnvelope(), is( nullValue() ) );
+    }
+    
+    @Test
+    public void readsInnermostStatusCodeOfResponse() throws Exception
+    {
+        EcpMessage message = reader.read( bytes( ENVELOPE_START + "<S:Header>"
+                + "<ecp:Response xmlns:ecp=\"" + ECP_NS + "\" AssertionConsumerServiceURL=\"https://sp.example.org/acs\"/>"
+                + "</S:Header><S:Body>"
+                + "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_2\" Version=\"2.0\">"
+                + "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Responder\">"
+                + "<samlp:StatusCode Value=\"" + NO_PASSIVE + "\"/></samlp:StatusCode></samlp:Status>"
+                + "<unparsed/></samlp:Response></S:Body></S:Envelope>" ) );
+        
+        assertThat( message.getAssertionConsumerServiceUrl(), is( "https://sp.example.org/acs" ) );
+        assertThat( message.getStatusCode(), is( NO_PASSIVE ) );
+    }
+    
+    @Test( expected = XMLStreamException.class )
+    public void rejectsOtherDocuments() throws Exception
+    {
+        reader.read( bytes( "<html><body>login</body></html>" ) );
+    }
+    
+    @Test
+    public void unmarshallsWhatTheReaderCannotHandle() throws Exception
+    {
+        BasicParserPool parserPool = new BasicParserPool();
+        parserPool.setNamespaceAware( true );
+        EcpProtocol protocol = new EcpProtocol( parserPool, "https://idp.example.org", null, new EcpEnvelopeReader()
+        {
+            @Override
+            public EcpMessage read( byte[] content ) throws XMLStreamException
+            {
+                throw new XMLStreamException( "unsupported" );
+            }
+        } );
+        
+        EcpMessage message = protocol.readAuthnRequest( new ByteArrayEntity( bytes( AUTHN_REQUEST ) ) );
+        
+        assertThat( message.getEnvelope(), is( notNullValue() ) );
+        assertThat( message.getRelayState(), is( "ss:mem:1" ) );
+        assertThat( message.getContent().length, is( bytes( AUTHN_REQUEST ).length ) );
+    }
+    
+    @Test
+    public void readsMessageOfMaximumSize() throws Exception
+    {
+        byte[] content = new byte[EcpEnvelopeReader.DEFAULT_MAX_MESSAGE_SIZE];
+        
+        assertThat( reader.readContent( new InputStreamEntity( new ByteArrayInputStream( content ), -1 ) ).length,
+                is( EcpEnvelopeReader.DEFAULT_MAX_MESSAGE_SIZE ) );
+    }
+    
+    @Test
+    public void rejectsLargerMessages() throws Exception
+    {
+        byte[] content = new byte[EcpEnvelopeReader.DEFAULT_MAX_MESSAGE_SIZE + 1];
+        
+        // Refused by its declared length before reading, or while reading without one
+        for ( long length : new long[] { content.length, -1 } )
+        {
+            try
+            {
+                reader.readContent( new InputStreamEntity( new ByteArrayInputStream( content ), length ) );
+                fail( "message of " + content.length + " bytes accepted" );
+            }
+            catch ( ClientProtocolException e )
+            {
+                // expected
+            }
+        }
+    }
+    
+    private static byte[] bytes( String xml ) throws UnsupportedEncodingException
+    {
+        return xml.getBytes( "UTF-8" );
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package de.tudarmstadt.ukp.shibhttpclient.processor;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class SoapEnvelopeSplicerTest
+{
+    private static final String SOAP_NS  = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String ECP_NS   = "urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp";
+    
+    private static final String BODY     = "<soap11:Body><samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+            + " ID=\"_1\" Version=\"2.0\">&lt;kept&gt;</samlp:Response></soap11:Body>";
+    private static final String ENVELOPE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<soap11:Envelope xmlns:soap11=\"" + SOAP_NS + "\"><soap11:Header>"
+            + "<ecp:Response xmlns:ecp=\"" + ECP_NS + "\" AssertionConsumerServiceURL=\"https://sp.example.org/acs\"/>"
+            + "</soap11:Header>" + BODY + "</soap11:Envelope>";
+    
+    @Test
+    public void replacesHeaderWithRelayState() throws Exception
+    {
+        Element envelope = parse( SoapEnvelopeSplicer.withRelayState( bytes( ENVELOPE ), "ss:mem:1" ) );
+        
+        Element header = (Element) envelope.getFirstChild();
+        assertThat( header.getLocalName(), is( "Header" ) );
+        assertThat( header.getChildNodes().getLength(), is( 1 ) );
+        Element relayState = (Element) header.getFirstChild();
+        assertThat( relayState.getNamespaceURI(), is( ECP_NS ) );
+        assertThat( relayState.getTextContent(), is( "ss:mem:1" ) );
+        assertThat( relayState.getAttributeNS( SOAP_NS, "mustUnderstand" ), is( "1" ) );
+    }
+    
+    @Test
+    public void bodyKeepsNamespaceDeclaredOnEnvelope() throws Exception
+    {
+        SplicedEntity entity = SoapEnvelopeSplicer.withRelayState( bytes( ENVELOPE ), "ss:mem:1" );
+        
+        // The body is copied verbatim, its prefix is still bound by the envelope start tag
+        assertThat( string( entity ), containsString( BODY ) );
+        Element body = (Element) parse( entity ).getLastChild();
+        assertThat( body.getNamespaceURI(), is( SOAP_NS ) );
+        assertThat( body.getLocalName(), is( "Body" ) );
+        assertThat( body.getTextContent(), is( "<kept>" ) );
+    }
+    
+    @Test
+    public void escapesRelayState() throws Exception
+    {
+        String relayState = "a&b<c>\u00e4\ud83d\ude00";
+        SplicedEntity entity = SoapEnvelopeSplicer.withRelayState( bytes( ENVELOPE ), relayState );
+        
+        assertThat( string( entity ), containsString( ">a&amp;b&lt;c&gt;&#xe4;&#x1f600;</ecp:RelayState>" ) );
+        assertThat( ((Element) parse( entity ).getFirstChild()).getTextContent(), is( relayState ) );
+    }
+    
+    @Test
+    public void dropsHeader() throws Exception
+    {
+        SplicedEntity entity = SoapEnvelopeSplicer.withoutHeader( bytes( ENVELOPE ) );
+        
+        Element envelope = parse( entity );
+        assertThat( envelope.getChildNodes().getLength(), is( 1 ) );
+        assertThat( ((Element) envelope.getFirstChild()).getLocalName(), is( "Body" ) );
+        assertThat( entity.getContentLength(), is( (long) string( entity ).length() ) );
+    }
+    
+    @Test
+    public void skipsBodyOfOtherNamespace() throws Exception
+    {
+        String envelope = "<S:Envelope xmlns:S=\"" + SOAP_NS + "\"><x:Body xmlns:x=\"urn:other\"/>"
+                + "<S:Body><empty/></S:Body></S:Envelope>";
+        
+        assertThat( string( SoapEnvelopeSplicer.withoutHeader( bytes( envelope ) ) ),
+                is( "<S:Envelope xmlns:S=\"" + SOAP_NS + "\"><S:Body><empty/></S:Body></S:Envelope>" ) );
+        assertThat( SoapEnvelopeSplicer.withoutHeader( bytes( "<S:Envelope xmlns:S=\"" + SOAP_NS
+                + "\"><Body xmlns=\"urn:other\"/></S:Envelope>" ) ), is( nullValue() ) );
+    }
+    
+    @Test
+    public void rejectsDocumentTypeDeclaration()
+    {
+        String envelope = "<?xml version=\"1.0\"?><!DOCTYPE Envelope [<!ENTITY x \"y\">]>"
+                + ENVELOPE.substring( ENVELOPE.indexOf( "?>" ) + 2 );
+        
+        assertThat( SoapEnvelopeSplicer.withRelayState( bytes( envelope ), "ss:mem:1" ), is( nullValue() ) );
+        // Comments and CDATA sections are not mistaken for one
+        assertThat( SoapEnvelopeSplicer.withoutHeader( bytes( "<!-- <!DOCTYPE --><S:Envelope xmlns:S=\"" + SOAP_NS
+                + "\"><S:Body><![CDATA[<!DOCTYPE]]></S:Body></S:Envelope>" ) ), is( notNullValue() ) );
+    }
+    
+    @Test
+    public void rejectsWhatCannotBeSpliced() throws Exception
+    {
+        // UTF-16, an envelope of another namespace, other documents
+        assertThat( SoapEnvelopeSplicer.withoutHeader( ENVELOPE.getBytes( "UTF-16" ) ), is( nullValue() ) );
+        assertThat( SoapEnvelopeSplicer.withoutHeader( bytes( ENVELOPE.replace( SOAP_NS, "urn:other" ) ) ), is( nullValue() ) );
+        assertThat( SoapEnvelopeSplicer.withoutHeader( bytes( "<html><body>login</body></html>" ) ), is( nullValue() ) );
+    }
+    
+    private static Element parse( SplicedEntity entity ) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware( true );
+        Element envelope = factory.newDocumentBuilder().parse( entity.getContent() ).getDocumentElement();
+        assertThat( envelope.getNamespaceURI(), is( SOAP_NS ) );
+        return envelope;
+    }
+    
+    private static String string( SplicedEntity entity ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo( out );
+        return new String( out.toByteArray(), "UTF-8" );
+    }
+    
+    private static byte[] bytes( String xml )
+    {
+        try
+        {
+            return xml.getBytes( "UTF-8" );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
\ No newline at end of file
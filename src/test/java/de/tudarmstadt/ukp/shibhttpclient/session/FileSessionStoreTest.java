@@ -0,0 +1,88 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileSessionStoreTest
+{
+    private static final String ORIGIN = "https://sp.example.org:443";
+    
+    private File                directory;
+    
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile( "sessions", "" );
+        directory.delete();
+    }
+    
+    @After
+    public void tearDown()
+    {
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    @Test
+    public void updatesRequireTheCurrentVersion() throws IOException
+    {
+        FileSessionStore store = new FileSessionStore( directory );
+        assertThat( store.get( ORIGIN, "alice" ), is( nullValue() ) );
+        assertThat( store.getVersion( ORIGIN, "alice" ), is( 0L ) );
+        
+        assertThat( store.compareAndSet( session( "alice", "1" ), 0 ), is( 1L ) );
+        // Another node has not seen the first session yet
+        assertThat( store.compareAndSet( session( "alice", "2" ), 0 ), is( 0L ) );
+        assertThat( store.compareAndSet( session( "alice", "2" ), 2 ), is( 0L ) );
+        assertThat( cookieValue( store.get( ORIGIN, "alice" ) ), is( "1" ) );
+        
+        assertThat( store.compareAndSet( session( "alice", "2" ), 1 ), is( 2L ) );
+        StoredSession stored = store.get( ORIGIN, "alice" );
+        assertThat( stored.getVersion(), is( 2L ) );
+        assertThat( cookieValue( stored ), is( "2" ) );
+        // The sessions of other principals have versions of their own
+        assertThat( store.getVersion( ORIGIN, "bob" ), is( 0L ) );
+    }
+    
+    @Test
+    public void storesSharingDirectorySeeEachOthersUpdates() throws IOException
+    {
+        FileSessionStore store = new FileSessionStore( directory );
+        FileSessionStore other = new FileSessionStore( directory );
+        
+        assertThat( store.compareAndSet( session( "alice", "1" ), 0 ), is( 1L ) );
+        assertThat( other.compareAndSet( session( "alice", "2" ), 0 ), is( 0L ) );
+        assertThat( other.compareAndSet( session( "alice", "2" ), other.getVersion( ORIGIN, "alice" ) ), is( 2L ) );
+        assertThat( cookieValue( store.get( ORIGIN, "alice" ) ), is( "2" ) );
+        // Only the lock file and the session file are left behind
+        assertThat( directory.list().length, is( 2 ) );
+    }
+    
+    private static String cookieValue( StoredSession stored )
+    {
+        return stored.getSession().getCookies().get( 0 ).getValue();
+    }
+    
+    private static SpSession session( String principal, String value )
+    {
+        BasicClientCookie cookie = new BasicClientCookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", value );
+        cookie.setDomain( "sp.example.org" );
+        cookie.setPath( "/" );
+        long now = System.currentTimeMillis();
+        return new SpSession( ORIGIN, ORIGIN + "/resource", now, now + 60000, principal, Collections.<Cookie> singletonList( cookie ) );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.shibhttpclient.authentication.sv.ContextSVAuthenticator;
+import de.tudarmstadt.ukp.shibhttpclient.cookie.PrincipalCookieJars;
+
+public class SessionRefresherTest
+{
+    private static final HttpHost        SP        = new HttpHost( "sp.example.org", 443, "https" );
+    private static final String          LOGIN_URI = "https://sp.example.org/resource";
+    private static final long            LIFETIME  = 200;
+    
+    private final BlockingQueue<Refresh> refreshes = new LinkedBlockingQueue<Refresh>();
+    
+    private SessionTracker               tracker;
+    private CookieStore                  cookieStore;
+    private SessionRefresher             refresher;
+    
+    @Before
+    public void setUp()
+    {
+        tracker = new SessionTracker( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX, LIFETIME, 0 );
+        cookieStore = new BasicCookieStore();
+        refresher = new SessionRefresher( recordingClient(), tracker, cookieStore, 150, 0, TimeUnit.MILLISECONDS );
+    }
+    
+    @After
+    public void tearDown()
+    {
+        refresher.close();
+    }
+    
+    @Test
+    public void refreshHidesStaleSessionCookie() throws Exception
+    {
+        cookieStore.addCookie( cookie( "other", "kept" ) );
+        cookieStore.addCookie( cookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", "stale" ) );
+        tracker.sessionEstablished( SP, cookieStore, LOGIN_URI );
+        long established = System.currentTimeMillis();
+        refresher.start();
+        
+        Refresh refresh = refreshes.poll( 5, TimeUnit.SECONDS );
+        assertThat( refresh.uri, is( LOGIN_URI ) );
+        assertThat( refresh.cookies, is( "other=kept" ) );
+        assertThat( refresh.principal, is( nullValue() ) );
+        // Sessions shorter than the lead time are refreshed half way
+        assertTrue( refresh.at - established >= LIFETIME / 2 - 10 );
+    }
+    
+    @Test
+    public void refreshIsScheduledLeadTimeBeforeExpiry() throws Exception
+    {
+        tracker = new SessionTracker( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX, 2 * LIFETIME, 0 );
+        refresher.close();
+        refresher = new SessionRefresher( recordingClient(), tracker, cookieStore, LIFETIME / 2, 0, TimeUnit.MILLISECONDS );
+        refresher.start();
+        cookieStore.addCookie( cookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", "1" ) );
+        long established = System.currentTimeMillis();
+        tracker.sessionEstablished( SP, cookieStore, LOGIN_URI );
+        
+        Refresh refresh = refreshes.poll( 5, TimeUnit.SECONDS );
+        assertTrue( refresh.at - established >= 2 * LIFETIME - LIFETIME / 2 - 10 );
+    }
+    
+    @Test
+    public void renewedSessionReplacesScheduledRefresh() throws Exception
+    {
+        cookieStore.addCookie( cookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", "1" ) );
+        refresher.start();
+        tracker.sessionEstablished( SP, cookieStore, LOGIN_URI );
+        Thread.sleep( LIFETIME / 4 );
+        cookieStore.addCookie( cookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", "2" ) );
+        tracker.sessionEstablished( SP, cookieStore, LOGIN_URI );
+        
+        // Only the renewed session is refreshed, with its own cookie hidden
+        Refresh refresh = refreshes.poll( 5, TimeUnit.SECONDS );
+        assertThat( refresh.cookies, is( "" ) );
+        assertThat( refreshes.poll( LIFETIME / 4, TimeUnit.MILLISECONDS ), is( nullValue() ) );
+    }
+    
+    @Test
+    public void invalidatedSessionIsNotRefreshed() throws Exception
+    {
+        cookieStore.addCookie( cookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", "1" ) );
+        refresher.start();
+        tracker.sessionEstablished( SP, cookieStore, LOGIN_URI );
+        tracker.sessionInvalidated( SP );
+        
+        assertThat( refreshes.poll( LIFETIME * 2, TimeUnit.MILLISECONDS ), is( nullValue() ) );
+    }
+    
+    @Test
+    public void principalsAreRefreshedInTheirOwnJars() throws Exception
+    {
+        PrincipalCookieJars jars = new PrincipalCookieJars( null, cookieStore, 10, 1, TimeUnit.MINUTES );
+        refresher.setCookieJars( jars );
+        refresher.start();
+        for ( String user : new String[] { "bob", "carol" } )
+        {
+            jars.getCookieStore( user ).addCookie( cookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", user ) );
+            jars.getCookieStore( user ).addCookie( cookie( "jar", user ) );
+            tracker.sessionEstablished( SP, jars.getCookieStore( user ), LOGIN_URI, user );
+        }
+        
+        List<String> refreshed = new ArrayList<String>();
+        for ( int i = 0; i < 2; i++ )
+        {
+            Refresh refresh = refreshes.poll( 5, TimeUnit.SECONDS );
+            assertThat( refresh.cookies, is( "jar=" + refresh.principal ) );
+            refreshed.add( refresh.principal );
+        }
+        assertTrue( refreshed.contains( "bob" ) );
+        assertTrue( refreshed.contains( "carol" ) );
+        assertFalse( cookieStore.getCookies().iterator().hasNext() );
+    }
+    
+    private static Cookie cookie( String name, String value )
+    {
+        BasicClientCookie cookie = new BasicClientCookie( name, value );
+        cookie.setDomain( SP.getHostName() );
+        cookie.setPath( "/" );
+        return cookie;
+    }
+    
+    /**
+     * A client that records the requests executed by the refresher instead of sending them.
+     */
+    private HttpClient recordingClient()
+    {
+        return (HttpClient) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[] { HttpClient.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke( Object proxy, Method method, Object[] args )
+                    {
+                        if ( !"execute".equals( method.getName() ) || args.length != 2 || !(args[1] instanceof HttpContext) )
+                        {
+                            throw new UnsupportedOperationException( method.toString() );
+                        }
+                        HttpClientContext context = HttpClientContext.adapt( (HttpContext) args[1] );
+                        StringBuilder cookies = new StringBuilder();
+                        for ( Cookie cookie : context.getCookieStore().getCookies() )
+                        {
+                            cookies.append( cookies.length() > 0 ? "; " : "" ).append( cookie.getName() ).append( '=' )
+                                    .append( cookie.getValue() );
+                        }
+                        refreshes.add( new Refresh( ((HttpUriRequest) args[0]).getURI().toString(), cookies.toString(),
+                                (String) context.getAttribute( ContextSVAuthenticator.USER_ID ) ) );
+                        return new BasicHttpResponse( HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK" );
+                    }
+                } );
+    }
+    
+    private static class Refresh
+    {
+        final String uri;
+        final String cookies;
+        final String principal;
+        final long   at = System.currentTimeMillis();
+        
+        Refresh( String uri, String cookies, String principal )
+        {
+            this.uri = uri;
+            this.cookies = cookies;
+            this.principal = principal;
+        }
+    }
+}
\ No newline at end of file
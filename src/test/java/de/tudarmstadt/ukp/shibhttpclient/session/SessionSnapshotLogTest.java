@@ -0,0 +1,118 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionSnapshotLogTest
+{
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile( "sessions", ".log" );
+        file.delete();
+    }
+    
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+    
+    @Test
+    public void sessionsSurviveCompactionAndGrowth() throws IOException
+    {
+        SessionSnapshotLog log = new SessionSnapshotLog( file, 256 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            log.sessionEstablished( session( "https://sp" + (i % 10) + ".example.org:443", "alice", "value" + i ) );
+        }
+        log.sessionEstablished( session( "https://sp0.example.org:443", "bob", "bob" ) );
+        log.sessionInvalidated( "https://sp0.example.org:443", "alice" );
+        log.close();
+        
+        log = new SessionSnapshotLog( file );
+        try
+        {
+            Collection<SpSession> sessions = log.getSessions();
+            assertThat( sessions.size(), is( 10 ) );
+            SpSession first = sessions.iterator().next();
+            assertThat( first.getOrigin(), is( "https://sp1.example.org:443" ) );
+            assertThat( first.getPrincipal(), is( "alice" ) );
+            assertThat( first.getCookies().get( 0 ).getValue(), is( "value91" ) );
+            assertThat( first.getCookies().get( 0 ).getDomain(), is( "sp1.example.org" ) );
+            // Only the session of the principal that has been invalidated is gone
+            SpSession last = sessions.toArray( new SpSession[sessions.size()] )[sessions.size() - 1];
+            assertThat( last.getOrigin(), is( "https://sp0.example.org:443" ) );
+            assertThat( last.getPrincipal(), is( "bob" ) );
+        }
+        finally
+        {
+            log.close();
+        }
+    }
+    
+    @Test
+    public void replayStopsAtCorruptRecord() throws IOException
+    {
+        SessionSnapshotLog log = new SessionSnapshotLog( file );
+        log.sessionEstablished( session( "https://sp1.example.org:443", "alice", "1" ) );
+        log.sessionEstablished( session( "https://sp2.example.org:443", "alice", "2" ) );
+        log.close();
+        
+        // Flip a byte in the payload of the second record
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            int firstLength = readInt( raf, 8 );
+            long second = 8 + 8 + firstLength;
+            raf.seek( second + 12 );
+            int b = raf.read();
+            raf.seek( second + 12 );
+            raf.write( b ^ 0xff );
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        log = new SessionSnapshotLog( file );
+        try
+        {
+            assertThat( log.getSessions().size(), is( 1 ) );
+            assertThat( log.getSessions().iterator().next().getOrigin(), is( "https://sp1.example.org:443" ) );
+        }
+        finally
+        {
+            log.close();
+        }
+    }
+    
+    private static int readInt( RandomAccessFile raf, long position ) throws IOException
+    {
+        raf.seek( position );
+        return raf.readInt();
+    }
+    
+    private static SpSession session( String origin, String principal, String value )
+    {
+        BasicClientCookie cookie = new BasicClientCookie( SessionTracker.DEFAULT_SESSION_COOKIE_PREFIX + "sp", value );
+        cookie.setDomain( origin.substring( 8, origin.lastIndexOf( ':' ) ) );
+        cookie.setPath( "/" );
+        long now = System.currentTimeMillis();
+        return new SpSession( origin, origin + "/resource", now, now + 60000, principal, Collections.<Cookie> singletonList( cookie ) );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+package de.tudarmstadt.ukp.shibhttpclient.session;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest
+{
+    private static final int                   FOLLOWERS  = 4;
+    
+    private final SingleFlight<String, String> flights    = new SingleFlight<String, String>();
+    private final CountDownLatch               started    = new CountDownLatch( 1 );
+    private final CountDownLatch               release    = new CountDownLatch( 1 );
+    private final AtomicInteger                executions = new AtomicInteger();
+    
+    private ExecutorService                    executor;
+    
+    @Before
+    public void setUp()
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+    
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+    
+    @Test
+    public void followersReceiveResultOfLeader() throws Exception
+    {
+        Future<SingleFlight.Result<String>> leader = executor.submit( caller( "key", blockingTask( "value", null ) ) );
+        started.await( 5, TimeUnit.SECONDS );
+        List<Future<SingleFlight.Result<String>>> followers = joinFollowers( "key" );
+        release.countDown();
+        
+        assertTrue( leader.get( 5, TimeUnit.SECONDS ).isLeader() );
+        assertThat( leader.get().getValue(), is( "value" ) );
+        for ( Future<SingleFlight.Result<String>> follower : followers )
+        {
+            assertFalse( follower.get( 5, TimeUnit.SECONDS ).isLeader() );
+            assertThat( follower.get().getValue(), is( "value" ) );
+        }
+        assertThat( executions.get(), is( 1 ) );
+        assertThat( flights.getInFlight(), is( 0 ) );
+    }
+    
+    @Test
+    public void followersRethrowFailureOfLeader() throws Exception
+    {
+        IOException failure = new IOException( "login failed" );
+        Future<SingleFlight.Result<String>> leader = executor.submit( caller( "key", blockingTask( null, failure ) ) );
+        started.await( 5, TimeUnit.SECONDS );
+        List<Future<SingleFlight.Result<String>>> followers = joinFollowers( "key" );
+        release.countDown();
+        
+        assertThat( causeOf( leader ), is( sameInstance( (Throwable) failure ) ) );
+        for ( Future<SingleFlight.Result<String>> follower : followers )
+        {
+            assertThat( causeOf( follower ), is( sameInstance( (Throwable) failure ) ) );
+        }
+        assertThat( executions.get(), is( 1 ) );
+        
+        // The failed task is not remembered, the next caller executes its own task
+        SingleFlight.Result<String> retry = flights.execute( "key", new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return "retried";
+            }
+        } );
+        assertTrue( retry.isLeader() );
+        assertThat( retry.getValue(), is( "retried" ) );
+    }
+    
+    @Test
+    public void differentKeysDoNotWaitForEachOther() throws Exception
+    {
+        Future<SingleFlight.Result<String>> blocked = executor.submit( caller( "blocked", blockingTask( "blocked", null ) ) );
+        started.await( 5, TimeUnit.SECONDS );
+        
+        SingleFlight.Result<String> other = flights.execute( "other", new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return "other";
+            }
+        } );
+        assertTrue( other.isLeader() );
+        assertThat( other.getValue(), is( "other" ) );
+        assertFalse( blocked.isDone() );
+        release.countDown();
+        assertThat( blocked.get( 5, TimeUnit.SECONDS ).getValue(), is( "blocked" ) );
+    }
+    
+    /**
+     * Start followers for the key and wait until they have joined the task in flight.
+     */
+    private List<Future<SingleFlight.Result<String>>> joinFollowers( String key ) throws InterruptedException
+    {
+        List<Future<SingleFlight.Result<String>>> followers = new ArrayList<Future<SingleFlight.Result<String>>>();
+        for ( int i = 0; i < FOLLOWERS; i++ )
+        {
+            followers.add( executor.submit( caller( key, new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    executions.incrementAndGet();
+                    return "follower";
+                }
+            } ) ) );
+        }
+        // Followers cannot be observed waiting, give them time to reach the task in flight
+        Thread.sleep( 200 );
+        return followers;
+    }
+    
+    private Callable<SingleFlight.Result<String>> caller( final String key, final Callable<String> task )
+    {
+        return new Callable<SingleFlight.Result<String>>()
+        {
+            @Override
+            public SingleFlight.Result<String> call() throws Exception
+            {
+                return flights.execute( key, task );
+            }
+        };
+    }
+    
+    private Callable<String> blockingTask( final String value, final Exception failure )
+    {
+        return new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                executions.incrementAndGet();
+                started.countDown();
+                release.await( 5, TimeUnit.SECONDS );
+                if ( failure != null )
+                {
+                    throw failure;
+                }
+                return value;
+            }
+        };
+    }
+    
+    private static Throwable causeOf( Future<SingleFlight.Result<String>> future ) throws Exception
+    {
+        try
+        {
+            future.get( 5, TimeUnit.SECONDS );
+            fail( "expected the task to fail" );
+            return null;
+        }
+        catch ( ExecutionException e )
+        {
+            // The caller's ExecutionException wraps the one thrown by SingleFlight
+            assertTrue( e.getCause() instanceof ExecutionException );
+            return e.getCause().getCause();
+        }
+    }
+}
\ No newline at end of file